@@ -4,6 +4,8 @@ import com.hcbt.hcisup.SdkService.CmsService.CMS;
 import com.hcbt.hcisup.SdkService.CmsService.HCISUPCMS;
 import com.hcbt.hcisup.common.HandleStreamV2;
 import com.hcbt.hcisup.common.PlayBackStream;
+import com.hcbt.hcisup.common.PsStreamParser;
+import com.hcbt.hcisup.common.SingleFlight;
 import com.hcbt.hcisup.common.osSelect;
 import com.hcbt.hcisup.utils.lUserIdAndDeviceMap;
 import com.sun.jna.Native;
@@ -24,6 +26,12 @@ import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * 流媒体服务（SMS）类
@@ -35,15 +43,15 @@ public class SMS {
 
     public static HCISUPSMS hcISUPSMS = null;
 
-    // 存储 sessionID 和 HandleStreamV2 的映射
-    public static Map<Integer, HandleStreamV2> concurrentMap = new HashMap<>();
+    // 存储 sessionID 和 HandleStreamV2 的映射（回调线程与接口线程并发访问）
+    public static Map<Integer, HandleStreamV2> concurrentMap = new ConcurrentHashMap<>();
     // 存储 sessionID 和 PlayBackStream 的映射
     public static Map<Integer, PlayBackStream> PlayBackconcurrentMap = new HashMap<>();
 
     // 预览相关映射
     public static Map<Integer, Integer> PreviewHandSAndSessionIDandMap = new HashMap<>(); // lLinkHandle -> SessionID
     public static Map<Integer, Integer> SessionIDAndPreviewHandleMap = new HashMap<>();  // SessionID -> lLinkHandle
-    public static Map<Integer, Integer> LuserIDandSessionMap = new HashMap<>();          // channel -> SessionID
+    public static Map<Integer, Integer> LuserIDandSessionMap = new ConcurrentHashMap<>(); // channel -> SessionID（SDK 请求在线程池中并发执行）
 
     // 回放相关映射
     public static Map<Integer, Integer> BackLuserIDandSessionMap = new HashMap<>();
@@ -75,6 +83,17 @@ public class SMS {
     @Value("${ehome.playBack-videoPath}")
     private String fileVideoPath;
 
+    // 执行 SDK 预览、回放请求的线程数（接口线程不再阻塞等待）
+    @Value("${app.stream.async.sdk-threads:8}")
+    private int sdkThreads;
+
+    // 执行 SDK 请求与后续推流启动的线程池
+    private ExecutorService startExecutor;
+    // 相同的预览请求并发时合并为一次：设备/通道/码流类型/预览方式 -> 请求结果
+    private final SingleFlight<String, String> previewFlight = new SingleFlight<>("preview");
+    // 同一回放文件并发的请求合并为一次
+    private final SingleFlight<String, String> playBackFlight = new SingleFlight<>("playBack");
+
     /**
      * 实例化 HCISUPSMS 对象
      *
@@ -105,6 +124,12 @@ public class SMS {
      */
     @PostConstruct
     public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        startExecutor = Executors.newFixedThreadPool(Math.max(sdkThreads, 1), r -> {
+            Thread thread = new Thread(r, "ISUP-Start-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
         if (hcISUPSMS == null) {
             if (!createSDKInstance()) {
                 log.error("加载 SMS SDK 失败");
@@ -271,13 +296,13 @@ public class SMS {
                 case HCNetSDK.NET_DVR_SYSHEAD: // 系统头
                     break;
                 case HCNetSDK.NET_DVR_STREAMDATA: // 码流数据
-                    byte[] dataStream = pPreviewCBMsg.pRecvdata.getByteArray(0, pPreviewCBMsg.dwDataLen);
-                    if (dataStream != null) {
+                    if (pPreviewCBMsg.pRecvdata != null && pPreviewCBMsg.dwDataLen > 0) {
                         Integer sessionID = PreviewHandSAndSessionIDandMap.get(iPreviewHandle);
                         HandleStreamV2 handleStreamV2 = concurrentMap.get(sessionID);
                         if (handleStreamV2 != null) {
                             log.debug("预览数据回调");
-                            handleStreamV2.startProcessing(dataStream);
+                            // 直接映射 native 内存，由解析器在回调内读完
+                            handleStreamV2.startProcessing(pPreviewCBMsg.pRecvdata.getByteBuffer(0, pPreviewCBMsg.dwDataLen));
                         }
                     }
                     break;
@@ -405,7 +430,7 @@ public class SMS {
             log.info("CMS 向设备发送请求预览实时码流成功, sessionID: " + struPushInfoIn.lSessionID);
             completableFutureOne.complete("true");
             LuserIDandSessionMap.put(channel, struPushInfoIn.lSessionID);
-            concurrentMap.put(struPushInfoIn.lSessionID, new HandleStreamV2(luserID,channel));
+            concurrentMap.put(struPushInfoIn.lSessionID, newStreamHandler(luserID, channel));
         }
     }
 
@@ -467,13 +492,97 @@ public class SMS {
             log.info("CMS 向设备发送请求预览实时码流成功, sessionID: " + struPushInfoIn.lSessionID);
             LuserIDandSessionMap.put(channel, struPushInfoIn.lSessionID);
             // // 创建流处理对象
-            HandleStreamV2 handler = new HandleStreamV2(luserID,channel);
+            HandleStreamV2 handler = newStreamHandler(luserID, channel);
             // 将流处理对象放入并发映射中
             concurrentMap.put(struPushInfoIn.lSessionID, handler);
             completableFutureOne.complete("true");
         }
     }
 
+    /**
+     * 异步开启预览，同一设备同一通道并发的请求合并为一次 SDK 调用
+     *
+     * @return 结果为 "true" / "false"
+     */
+    public CompletableFuture<String> realPlayAsync(int luserID, int channel) {
+        // RealPlay 固定取主码流
+        return previewFlight.execute(previewKey("ehome", luserID, channel, 0),
+                () -> submit(future -> RealPlay(luserID, channel, future)));
+    }
+
+    /**
+     * 异步开启预览（使用 FFmpeg），同一设备同一通道同一码流类型并发的请求合并为一次 SDK 调用
+     *
+     * @return 结果为 "true" / "false"
+     */
+    public CompletableFuture<String> realPlayWithFFmpegAsync(int luserID, int channel, int dwStreamType) {
+        return previewFlight.execute(previewKey("ffmpeg", luserID, channel, dwStreamType),
+                () -> submit(future -> RealPlayWithFFmpeg(luserID, channel, dwStreamType, future)));
+    }
+
+    /**
+     * 预览请求合并的 key：不同设备、码流类型或预览方式（回调接入不同）的请求不能合并
+     */
+    private static String previewKey(String kind, int luserID, int channel, int dwStreamType) {
+        return kind + "/" + luserID + "/" + channel + "/" + dwStreamType;
+    }
+
+    /**
+     * 异步开始回放，同一文件同一时间段并发的请求合并为一次
+     *
+     * @return 结果为 "true" / "false"，回放数据接收完成后才完成
+     */
+    public CompletableFuture<String> startPlayBackAsync(int lUserId, String fileName, LocalDateTime startTime, LocalDateTime endTime) {
+        String key = lUserId + "/" + fileName + "/" + startTime + "/" + endTime;
+        return playBackFlight.execute(key, () -> submit(future -> startPlayBackByFileName(lUserId, fileName, startTime, endTime, future)));
+    }
+
+    /**
+     * 执行 SDK 请求与后续推流启动的线程池
+     */
+    public Executor getStartExecutor() {
+        return startExecutor;
+    }
+
+    /**
+     * 在线程池中执行 SDK 请求，请求抛出异常时以异常结束
+     */
+    private CompletableFuture<String> submit(Consumer<CompletableFuture<String>> request) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture.runAsync(() -> request.accept(future), startExecutor).whenComplete((ignored, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 创建通道的流处理对象
+     */
+    private HandleStreamV2 newStreamHandler(int luserID, int channel) {
+        return new HandleStreamV2(luserID, channel);
+    }
+
+    /**
+     * 预览回调的 PS 解析统计：通道号 -> 统计信息
+     */
+    public static Map<Integer, Map<String, Object>> callbackStats() {
+        Map<Integer, Map<String, Object>> stats = new HashMap<>();
+        for (HandleStreamV2 handler : concurrentMap.values()) {
+            PsStreamParser parser = handler.getParser();
+            Map<String, Object> item = new HashMap<>();
+            item.put("packs", parser.getPackCount());
+            item.put("videoPes", parser.getVideoPesCount());
+            item.put("audioPes", parser.getAudioPesCount());
+            item.put("frames", parser.getFrameCount());
+            item.put("droppedFrames", parser.getDroppedFrames());
+            item.put("resyncs", parser.getResyncCount());
+            stats.put(handler.getChannel(), item);
+        }
+        return stats;
+    }
+
     /**
      * 停止预览
      *
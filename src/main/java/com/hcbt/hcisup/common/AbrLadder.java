@@ -0,0 +1,195 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单次解码、多路输出的码率阶梯
+ * <p>
+ * 同一摄像机的主码流（xx01）与子码流（xx02）原来作为两路独立会话拉取和转码，每路转码都要完整解码一次原始分辨率。
+ * 开启后主码流由一个 FFmpeg 进程解码一次，经 filter_complex split 缩放为多个规格并分别推流，
+ * 观看者按需选择规格（如原始分辨率、854x480、640x360），不必再为低分辨率单独拉取子码流。
+ * <p>
+ * 规格按配置顺序排列，如 {@code source,854x480,640x360}；source 表示原始分辨率，源为 H.264 时直接复制不转码。
+ * 原始分辨率的输出地址与不开启时相同，其他规格在地址后加上 {@code _<高度>p}。
+ */
+@Slf4j
+public final class AbrLadder {
+
+    /**
+     * 一个输出规格
+     */
+    public static final class Rendition {
+        public final String name;
+        // 0 表示原始分辨率
+        public final int width;
+        public final int height;
+
+        Rendition(String name, int width, int height) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean isSource() {
+            return width == 0;
+        }
+
+        /**
+         * 该规格的输出地址（RTMP 地址或直播流 key）
+         */
+        public String target(String base) {
+            return isSource() ? base : base + "_" + name;
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static volatile List<Rendition> renditions = Collections.singletonList(new Rendition("source", 0, 0));
+
+    private AbrLadder() {
+    }
+
+    /**
+     * @param enable 是否开启
+     * @param spec   规格列表，如 source,854x480,640x360
+     */
+    public static void configure(boolean enable, String spec) {
+        List<Rendition> parsed = parse(spec);
+        if (enable && parsed.isEmpty()) {
+            log.warn("码率阶梯配置为空，不开启：{}", spec);
+            enable = false;
+        }
+        if (!parsed.isEmpty()) {
+            renditions = Collections.unmodifiableList(parsed);
+        }
+        enabled = enable;
+        if (enable) {
+            List<String> names = new ArrayList<>();
+            for (Rendition rendition : renditions) {
+                names.add(rendition.name);
+            }
+            log.info("主码流单次解码输出多个规格：{}", names);
+        }
+    }
+
+    private static List<Rendition> parse(String spec) {
+        List<Rendition> parsed = new ArrayList<>();
+        if (spec == null) {
+            return parsed;
+        }
+        for (String item : spec.split(",")) {
+            String value = item.trim().toLowerCase();
+            if (value.isEmpty()) {
+                continue;
+            }
+            if ("source".equals(value)) {
+                parsed.add(new Rendition("source", 0, 0));
+                continue;
+            }
+            int x = value.indexOf('x');
+            try {
+                int width = Integer.parseInt(value.substring(0, x));
+                int height = Integer.parseInt(value.substring(x + 1));
+                // libx264 要求宽高为偶数
+                if (width > 0 && height > 0 && width % 2 == 0 && height % 2 == 0) {
+                    parsed.add(new Rendition(height + "p", width, height));
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                // 格式错误
+            }
+            log.warn("忽略无效的码率阶梯规格：{}", item);
+        }
+        return parsed;
+    }
+
+    /**
+     * 是否对该会话使用码率阶梯（只对主码流）
+     */
+    public static boolean appliesTo(boolean mainStream) {
+        return enabled && mainStream;
+    }
+
+    public static List<Rendition> renditions() {
+        return renditions;
+    }
+
+    /**
+     * 按名称查找规格，找不到返回 null
+     */
+    public static Rendition find(String name) {
+        for (Rendition rendition : renditions) {
+            if (rendition.name.equalsIgnoreCase(name)) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 各规格名称对应的地址
+     *
+     * @param base 原始分辨率的地址，其他规格在其后加后缀
+     * @param suffix 地址后缀（如 .flv）
+     */
+    public static Map<String, String> urls(String base, String suffix) {
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (Rendition rendition : renditions) {
+            urls.put(rendition.name, rendition.target(base) + suffix);
+        }
+        return urls;
+    }
+
+    /**
+     * 构造单次解码、多路输出的 FFmpeg 命令
+     *
+     * @param input      输入参数（含 ffmpeg 本身，如 ffmpeg -f hevc -i pipe:0）
+     * @param sourceH264 源是否为 H.264（原始分辨率直接复制）
+     * @param outputUrl  原始分辨率的推流地址
+     */
+    public static String[] command(List<String> input, boolean sourceH264, String outputUrl) {
+        List<String> command = new ArrayList<>(input);
+        List<Rendition> scaled = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            if (!rendition.isSource() || !sourceH264) {
+                scaled.add(rendition);
+            }
+        }
+        // 需要解码的规格共用一次解码，split 后分别缩放
+        if (!scaled.isEmpty()) {
+            StringBuilder graph = new StringBuilder("[0:v]split=").append(scaled.size());
+            for (int i = 0; i < scaled.size(); i++) {
+                graph.append("[s").append(i).append(']');
+            }
+            for (int i = 0; i < scaled.size(); i++) {
+                Rendition rendition = scaled.get(i);
+                graph.append(";[s").append(i).append(']');
+                if (rendition.isSource()) {
+                    graph.append("null");
+                } else {
+                    graph.append("scale=").append(rendition.width).append(':').append(rendition.height);
+                }
+                graph.append("[o").append(i).append(']');
+            }
+            command.add("-filter_complex");
+            command.add(graph.toString());
+        }
+        for (Rendition rendition : renditions) {
+            int index = scaled.indexOf(rendition);
+            command.add("-map");
+            command.add(index < 0 ? "0:v" : "[o" + index + "]");
+            command.add("-c:v");
+            command.add(index < 0 ? "copy" : "libx264");
+            command.add("-an");
+            command.add("-f");
+            command.add("flv");
+            command.add(rendition.target(outputUrl));
+        }
+        return command.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,198 @@
+package com.hcbt.hcisup.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AMF0 编解码（RTMP 命令与 FLV 脚本 tag 使用）
+ * <p>
+ * 只支持推流需要的类型：数字、布尔、字符串、对象、ECMA 数组、严格数组、null。
+ */
+public final class Amf0 {
+
+    private static final int NUMBER = 0x00;
+    private static final int BOOLEAN = 0x01;
+    private static final int STRING = 0x02;
+    private static final int OBJECT = 0x03;
+    private static final int NULL = 0x05;
+    private static final int UNDEFINED = 0x06;
+    private static final int ECMA_ARRAY = 0x08;
+    private static final int OBJECT_END = 0x09;
+    private static final int STRICT_ARRAY = 0x0A;
+    private static final int LONG_STRING = 0x0C;
+
+    private Amf0() {
+    }
+
+    public static void writeNumber(ByteArrayOutputStream out, double value) {
+        out.write(NUMBER);
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    public static void writeBoolean(ByteArrayOutputStream out, boolean value) {
+        out.write(BOOLEAN);
+        out.write(value ? 1 : 0);
+    }
+
+    public static void writeString(ByteArrayOutputStream out, String value) {
+        out.write(STRING);
+        writeKey(out, value);
+    }
+
+    public static void writeNull(ByteArrayOutputStream out) {
+        out.write(NULL);
+    }
+
+    /**
+     * 写入对象，值支持 Number / Boolean / String / null
+     */
+    public static void writeObject(ByteArrayOutputStream out, Map<String, Object> value) {
+        out.write(OBJECT);
+        writeProperties(out, value);
+    }
+
+    /**
+     * 写入 ECMA 数组（onMetaData 使用）
+     */
+    public static void writeEcmaArray(ByteArrayOutputStream out, Map<String, Object> value) {
+        out.write(ECMA_ARRAY);
+        int size = value.size();
+        out.write(size >>> 24);
+        out.write(size >>> 16);
+        out.write(size >>> 8);
+        out.write(size);
+        writeProperties(out, value);
+    }
+
+    public static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            writeNull(out);
+        } else if (value instanceof Number) {
+            writeNumber(out, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            writeBoolean(out, (Boolean) value);
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeProperties(ByteArrayOutputStream out, Map<String, Object> value) {
+        for (Map.Entry<String, Object> entry : value.entrySet()) {
+            writeKey(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+        out.write(0);
+        out.write(0);
+        out.write(OBJECT_END);
+    }
+
+    private static void writeKey(ByteArrayOutputStream out, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >>> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 依次解码缓冲区中的所有值
+     *
+     * @throws IllegalArgumentException 数据不完整或类型不支持
+     */
+    public static List<Object> decodeAll(byte[] data, int offset, int length) {
+        Reader reader = new Reader(data, offset, offset + length);
+        List<Object> values = new ArrayList<>();
+        while (reader.pos < reader.end) {
+            values.add(reader.readValue());
+        }
+        return values;
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        Object readValue() {
+            int type = u8();
+            switch (type) {
+                case NUMBER:
+                    return Double.longBitsToDouble(((long) u32() << 32) | (u32() & 0xFFFFFFFFL));
+                case BOOLEAN:
+                    return u8() != 0;
+                case STRING:
+                    return readString(u16());
+                case LONG_STRING:
+                    return readString(u32());
+                case OBJECT:
+                    return readProperties();
+                case ECMA_ARRAY:
+                    u32();
+                    return readProperties();
+                case STRICT_ARRAY: {
+                    int count = u32();
+                    List<Object> list = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case NULL:
+                case UNDEFINED:
+                    return null;
+                default:
+                    throw new IllegalArgumentException("不支持的 AMF0 类型: " + type);
+            }
+        }
+
+        private Map<String, Object> readProperties() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            while (true) {
+                String key = readString(u16());
+                if (key.isEmpty() && pos < end && (data[pos] & 0xFF) == OBJECT_END) {
+                    pos++;
+                    return map;
+                }
+                map.put(key, readValue());
+            }
+        }
+
+        private String readString(int len) {
+            need(len);
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        private int u8() {
+            need(1);
+            return data[pos++] & 0xFF;
+        }
+
+        private int u16() {
+            return (u8() << 8) | u8();
+        }
+
+        private int u32() {
+            return (u16() << 16) | u16();
+        }
+
+        private void need(int n) {
+            if (n < 0 || pos + n > end) {
+                throw new IllegalArgumentException("AMF0 数据不完整");
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 合并写入 FFmpeg 标准输入的输出流
+ * <p>
+ * 逐帧 write + flush 时每帧至少一次管道写系统调用。合并模式下帧先写入一块大缓冲区，
+ * 以下情况才一次性写出：缓冲区放不下、调用方显式 flush（如写入线程取空了环形缓冲区）、
+ * 最早的一帧等待超过最长延迟。延迟到期由下一次写入在写入线程上顺带写出；没有写入线程驱动的流（{@code autoFlush}）
+ * 另由公共的定时线程兜底，定时线程只写出当时没有其他线程在写的流，且写管道时不持有流的监视器。
+ * <p>
+ * 同时统计写出次数（约等于系统调用次数）以及每帧因合并增加的延迟分布。
+ */
+@Slf4j
+public class CoalescingOutputStream extends OutputStream {
+
+    /**
+     * 写入模式
+     */
+    public enum Mode {
+        /** 每帧写出并 flush（原有行为） */
+        FLUSH_PER_FRAME,
+        /** 合并写出 */
+        COALESCE
+    }
+
+    // 名称 -> 流，用于统计与定时检查
+    private static final Map<String, CoalescingOutputStream> streams = new ConcurrentHashMap<>();
+    private static volatile Mode defaultMode = Mode.COALESCE;
+    private static volatile int defaultBufferBytes = 256 * 1024;
+    private static volatile long defaultMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private static ScheduledExecutorService flusher;
+
+    private final String name;
+    private final OutputStream out;
+    private final Mode mode;
+    private final long maxLatencyNanos;
+    private final boolean autoFlush;
+    // 串行化对底层管道的写入；缓冲区状态在本对象监视器下读写，写管道时不持有监视器
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final byte[] buf;
+    private int count;
+    // 缓冲区中每帧的写入时间
+    private long[] pendingNanos = new long[64];
+    private int pendingFrames;
+    private boolean closed;
+
+    // 统计（在本对象监视器下更新）
+    private final long createdNanos = System.nanoTime();
+    private long frames;
+    private long bytes;
+    private long writes;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * 设置之后创建的流使用的模式、缓冲区大小与最长延迟
+     */
+    public static void configure(Mode mode, int bufferBytes, long maxLatencyMs) {
+        defaultMode = mode == null ? Mode.COALESCE : mode;
+        defaultBufferBytes = Math.max(bufferBytes, 16 * 1024);
+        defaultMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(maxLatencyMs, 0));
+    }
+
+    /**
+     * 按当前配置包装 FFmpeg 标准输入
+     *
+     * @param name      名称（统计用），同名的旧流会被替换
+     * @param autoFlush 没有写入线程调用 {@link #flushIfDue()} 时为 true，由定时线程保证最长延迟
+     */
+    public static CoalescingOutputStream open(String name, OutputStream out, boolean autoFlush) {
+        CoalescingOutputStream stream = new CoalescingOutputStream(name, out, defaultMode, defaultBufferBytes,
+                defaultMaxLatencyNanos, autoFlush);
+        streams.put(name, stream);
+        if (autoFlush && stream.mode == Mode.COALESCE) {
+            startFlusher();
+        }
+        return stream;
+    }
+
+    /**
+     * 各流的写出次数与合并延迟统计
+     */
+    public static Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new HashMap<>();
+        for (CoalescingOutputStream stream : streams.values()) {
+            stats.put(stream.name, stream.snapshot());
+        }
+        return stats;
+    }
+
+    private static synchronized void startFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Pipe-Flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(defaultMaxLatencyNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+        flusher.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            for (CoalescingOutputStream stream : streams.values()) {
+                // 写出线程正在写入（可能阻塞在管道上）时跳过，由它顺带写出
+                if (!stream.autoFlush || !stream.isDue(now) || !stream.writeLock.tryLock()) {
+                    continue;
+                }
+                try {
+                    stream.drain();
+                } catch (IOException e) {
+                    // 进程已退出，由下一次写入的调用方处理
+                    log.debug("合并写出失败 {}: {}", stream.name, e.getMessage());
+                } finally {
+                    stream.writeLock.unlock();
+                }
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    private CoalescingOutputStream(String name, OutputStream out, Mode mode, int bufferBytes,
+                                   long maxLatencyNanos, boolean autoFlush) {
+        this.name = name;
+        this.out = out;
+        this.mode = mode;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.autoFlush = autoFlush;
+        this.buf = mode == Mode.COALESCE ? new byte[bufferBytes] : new byte[0];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * 写入一帧；最早的一帧已超过最长延迟时在当前线程写出
+     */
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        long now = System.nanoTime();
+        if (mode == Mode.FLUSH_PER_FRAME || length >= buf.length) {
+            writeLock.lock();
+            try {
+                ensureOpen();
+                // 先写出缓冲区中的帧，保持顺序
+                drain();
+                out.write(data, offset, length);
+                out.flush();
+                synchronized (this) {
+                    frames++;
+                    bytes += length;
+                    writes++;
+                    latency.record(0);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        boolean due;
+        while (true) {
+            synchronized (this) {
+                ensureOpen();
+                if (count + length <= buf.length) {
+                    System.arraycopy(data, offset, buf, count, length);
+                    count += length;
+                    if (pendingFrames == pendingNanos.length) {
+                        pendingNanos = Arrays.copyOf(pendingNanos, pendingNanos.length * 2);
+                    }
+                    pendingNanos[pendingFrames++] = now;
+                    frames++;
+                    bytes += length;
+                    due = now - pendingNanos[0] >= maxLatencyNanos;
+                    break;
+                }
+            }
+            // 缓冲区放不下，先写出
+            flushBuffer();
+        }
+        if (due) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * 缓冲区中最早的帧等待超过最长延迟时写出
+     */
+    public void flushIfDue() throws IOException {
+        if (isDue(System.nanoTime())) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * 立即写出缓冲区中的数据
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        // 其他线程正阻塞在管道写入上时不再等待，直接关闭
+        if (writeLock.tryLock()) {
+            try {
+                drain();
+            } catch (IOException e) {
+                log.debug("关闭前写出失败 {}: {}", name, e.getMessage());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        streams.remove(name, this);
+        out.close();
+    }
+
+    private synchronized void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("输出流已关闭: " + name);
+        }
+    }
+
+    private synchronized boolean isDue(long now) {
+        return pendingFrames > 0 && now - pendingNanos[0] >= maxLatencyNanos;
+    }
+
+    private void flushBuffer() throws IOException {
+        writeLock.lock();
+        try {
+            drain();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 写出缓冲区中已有的帧，调用方持有 writeLock
+     * <p>
+     * 管道写入在监视器之外进行，期间其他线程仍可追加到 count 之后；写出成功后才从缓冲区移除这部分数据，
+     * 失败时数据保留在缓冲区中。
+     */
+    private void drain() throws IOException {
+        int length;
+        int frameCount;
+        synchronized (this) {
+            length = count;
+            frameCount = pendingFrames;
+        }
+        if (length == 0) {
+            return;
+        }
+        out.write(buf, 0, length);
+        out.flush();
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (int i = 0; i < frameCount; i++) {
+                latency.record(TimeUnit.NANOSECONDS.toMicros(now - pendingNanos[i]));
+            }
+            System.arraycopy(buf, length, buf, 0, count - length);
+            count -= length;
+            System.arraycopy(pendingNanos, frameCount, pendingNanos, 0, pendingFrames - frameCount);
+            pendingFrames -= frameCount;
+            writes++;
+        }
+    }
+
+    private synchronized Map<String, Object> snapshot() {
+        Map<String, Object> stats = new HashMap<>();
+        double seconds = Math.max((System.nanoTime() - createdNanos) / 1e9, 1e-3);
+        stats.put("mode", mode.name());
+        stats.put("maxLatencyMs", TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos));
+        stats.put("bufferBytes", buf.length);
+        stats.put("frames", frames);
+        stats.put("bytes", bytes);
+        stats.put("writes", writes);
+        stats.put("writesPerSecond", Math.round(writes / seconds * 10) / 10.0);
+        stats.put("framesPerWrite", writes == 0 ? 0 : Math.round(frames * 100.0 / writes) / 100.0);
+        stats.put("addedLatencyP50Ms", latency.percentile(0.50) / 1000.0);
+        stats.put("addedLatencyP99Ms", latency.percentile(0.99) / 1000.0);
+        stats.put("addedLatencyMaxMs", latency.max() / 1000.0);
+        return stats;
+    }
+
+    /**
+     * 微秒级延迟分布：16 以内逐个计数，之后每个 2 的幂区间分 8 档（误差约 12.5%）
+     */
+    private static final class LatencyHistogram {
+        private final long[] buckets = new long[16 + 60 * 8];
+        private long total;
+        private long max;
+
+        void record(long micros) {
+            buckets[bucket(Math.max(micros, 0))]++;
+            total++;
+            max = Math.max(max, micros);
+        }
+
+        long percentile(double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < 16) {
+                return (int) micros;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) ((micros >>> (exp - 3)) & 7);
+            return 16 + (exp - 4) * 8 + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int exp = (bucket - 16) / 8 + 4;
+            int sub = (bucket - 16) % 8;
+            return ((8L + sub + 1) << (exp - 3)) - 1;
+        }
+    }
+}
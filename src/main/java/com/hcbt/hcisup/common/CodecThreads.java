@@ -0,0 +1,93 @@
+package com.hcbt.hcisup.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按本地线程名统计 FFmpeg 编解码器工作线程的 CPU
+ * <p>
+ * libavcodec 与 x264 的工作线程在打开编解码器时由调用线程创建，Linux 上新线程继承创建者的线程名（comm）且之后不再改名，
+ * ThreadMXBean 看不到这些线程。打开编解码器期间把当前 Java 线程临时改名为会话标签（HotSpot 会同步设置本地线程名），
+ * 之后按线程名汇总 {@code /proc/self/task/<tid>/stat} 的 CPU 时间，编解码器保持默认的多线程也能按会话统计。
+ * 非 Linux 系统上读不到，统计为空。
+ */
+final class CodecThreads {
+
+    /**
+     * 打开编解码器的操作
+     */
+    interface Open<T> {
+        T open() throws Exception;
+    }
+
+    // Linux 的 USER_HZ 固定为 100
+    private static final long NANOS_PER_TICK = 10_000_000L;
+    private static final Path TASKS = Paths.get("/proc/self/task");
+
+    private CodecThreads() {
+    }
+
+    /**
+     * 会话标签，本地线程名最多 15 个字符
+     */
+    static String tag(String session) {
+        return session.length() > 15 ? session.substring(0, 15) : session;
+    }
+
+    /**
+     * 以 tag 为当前线程名执行 open，期间创建的编解码线程都带上该名称
+     */
+    static <T> T open(String tag, Open<T> open) throws Exception {
+        Thread thread = Thread.currentThread();
+        String name = thread.getName();
+        thread.setName(tag);
+        try {
+            return open.open();
+        } finally {
+            thread.setName(name);
+        }
+    }
+
+    /**
+     * 当前各线程名下全部线程的 CPU 时间（纳秒）；已退出的线程不再计入
+     */
+    static Map<String, Long> cpuNanosByName() {
+        Map<String, Long> cpu = new HashMap<>();
+        if (!Files.isDirectory(TASKS)) {
+            return cpu;
+        }
+        try (DirectoryStream<Path> tasks = Files.newDirectoryStream(TASKS)) {
+            for (Path task : tasks) {
+                String stat;
+                try {
+                    stat = new String(Files.readAllBytes(task.resolve("stat")), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    // 线程已退出
+                    continue;
+                }
+                int open = stat.indexOf('(');
+                int close = stat.lastIndexOf(')');
+                if (open < 0 || close < open) {
+                    continue;
+                }
+                // 右括号之后第一个字段为 state，utime 与 stime 为其后第 12、13 个字段
+                String[] fields = stat.substring(close + 2).split(" ");
+                try {
+                    long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+                    cpu.merge(stat.substring(open + 1, close), ticks * NANOS_PER_TICK, Long::sum);
+                } catch (RuntimeException e) {
+                    // 格式不符，跳过
+                }
+            }
+        } catch (IOException e) {
+            return cpu;
+        }
+        return cpu;
+    }
+}
@@ -0,0 +1,274 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 CPU 开销准入推流会话
+ * <p>
+ * 不同管线的开销相差几十倍（libx264 转码 vs. -c:v copy），按路数限制要么浪费机器要么压垮机器。
+ * 这里给每种管线一个核数权重，新会话按权重之和不超过总核数预算准入。
+ * 权重初始为经验值，运行中定时读取每个 FFmpeg 子进程的 {@code /proc/<pid>/stat}，
+ * 按实测 CPU 用量做指数平滑校准（仅 Linux，其他系统保持初始值）。
+ */
+@Slf4j
+public final class CpuBudget {
+
+    /**
+     * 管线类型与初始权重（核）
+     */
+    public enum Pipeline {
+        /** 应用内封装（不启动 FFmpeg） */
+        NATIVE(0.02),
+        /** FFmpeg -c:v copy */
+        COPY(0.05),
+        /** H.265 子码流转 H.264 */
+        TRANSCODE_SUB(0.6),
+        /** H.265 主码流缩放并转 H.264 */
+        TRANSCODE_MAIN(1.5),
+        /** JavaCV 解码再编码 */
+        JAVACV(1.5),
+        /** 主码流解码一次，缩放输出多个规格（码率阶梯） */
+        LADDER(2.0);
+
+        final double initialCores;
+
+        Pipeline(double initialCores) {
+            this.initialCores = initialCores;
+        }
+
+        public boolean isTranscode() {
+            return this == TRANSCODE_SUB || this == TRANSCODE_MAIN || this == JAVACV || this == LADDER;
+        }
+    }
+
+    // Linux 的 USER_HZ 固定为 100
+    private static final double CLOCK_TICKS = 100.0;
+    // 校准的平滑系数
+    private static final double ALPHA = 0.2;
+
+    private static final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    // 当前权重（在类监视器下访问）
+    private static final Map<Pipeline, Double> weights = new EnumMap<>(Pipeline.class);
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong degraded = new AtomicLong();
+    private static volatile boolean enabled;
+    private static volatile double budgetCores = Runtime.getRuntime().availableProcessors() * 0.8;
+    private static volatile boolean degradeToCopy;
+    private static ScheduledExecutorService sampler;
+
+    static {
+        for (Pipeline pipeline : Pipeline.values()) {
+            weights.put(pipeline, pipeline.initialCores);
+        }
+    }
+
+    private CpuBudget() {
+    }
+
+    /**
+     * 一个已准入的会话
+     */
+    private static final class Lease {
+        final String key;
+        final Pipeline pipeline;
+        volatile Process process;
+        long lastTicks = -1;
+        long lastNanos;
+        volatile double measuredCores = -1;
+
+        Lease(String key, Pipeline pipeline) {
+            this.key = key;
+            this.pipeline = pipeline;
+        }
+    }
+
+    /**
+     * @param cores          总核数预算，不大于 0 时取可用核数的 80%
+     * @param sampleInterval 读取 /proc 校准权重的间隔（毫秒）
+     */
+    public static synchronized void configure(boolean enable, double cores, boolean degrade, long sampleInterval) {
+        enabled = enable;
+        budgetCores = cores > 0 ? cores : Runtime.getRuntime().availableProcessors() * 0.8;
+        degradeToCopy = degrade;
+        if (enable && sampler == null && Files.isDirectory(Paths.get("/proc/self"))) {
+            sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Cpu-Budget-Sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(sampleInterval, 1000);
+            sampler.scheduleAtFixedRate(CpuBudget::sample, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        log.info("CPU 准入：{}，预算 {} 核", enable ? "开启" : "关闭", String.format("%.1f", budgetCores));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 预算不足时是否降级为直接复制
+     */
+    public static boolean isDegradeToCopy() {
+        return degradeToCopy;
+    }
+
+    /**
+     * 尝试准入：已准入会话的权重之和加上新会话的权重不超过预算时登记并返回 true
+     *
+     * @param key 会话标识（同一 key 重复准入时替换旧的登记）
+     */
+    public static synchronized boolean tryAdmit(String key, Pipeline pipeline) {
+        if (enabled) {
+            double committed = 0;
+            for (Lease lease : leases.values()) {
+                if (!lease.key.equals(key)) {
+                    committed += weights.get(lease.pipeline);
+                }
+            }
+            double cost = weights.get(pipeline);
+            if (committed + cost > budgetCores) {
+                rejected.incrementAndGet();
+                log.warn("CPU 预算不足，拒绝 {}（{}，需要 {} 核，已用 {}/{} 核）", key, pipeline,
+                        String.format("%.2f", cost), String.format("%.2f", committed), String.format("%.1f", budgetCores));
+                return false;
+            }
+        }
+        leases.put(key, new Lease(key, pipeline));
+        return true;
+    }
+
+    /**
+     * 记录一次降级（转码被拒后改为直接复制）
+     */
+    public static void recordDegrade(String key, Pipeline from, Pipeline to) {
+        degraded.incrementAndGet();
+        log.warn("CPU 预算不足，{} 由 {} 降级为 {}", key, from, to);
+    }
+
+    /**
+     * 关联 FFmpeg 进程，用于实测 CPU
+     */
+    public static void attach(String key, Process process) {
+        Lease lease = leases.get(key);
+        if (lease != null) {
+            lease.process = process;
+        }
+    }
+
+    /**
+     * 会话结束，释放预算
+     */
+    public static void release(String key) {
+        leases.remove(key);
+    }
+
+    /**
+     * 读取各进程的 CPU 时间，按管线类型平滑更新权重
+     */
+    private static void sample() {
+        Map<Pipeline, List<Double>> measured = new EnumMap<>(Pipeline.class);
+        long now = System.nanoTime();
+        for (Lease lease : leases.values()) {
+            Process process = lease.process;
+            if (process == null || !process.isAlive()) {
+                continue;
+            }
+            long ticks = readCpuTicks(process.pid());
+            if (ticks < 0) {
+                continue;
+            }
+            // 第一次只记录起点，跳过启动阶段（探测、建连）的开销
+            if (lease.lastTicks >= 0) {
+                double seconds = (now - lease.lastNanos) / 1e9;
+                double cores = (ticks - lease.lastTicks) / CLOCK_TICKS / seconds;
+                lease.measuredCores = cores;
+                measured.computeIfAbsent(lease.pipeline, k -> new ArrayList<>()).add(cores);
+            }
+            lease.lastTicks = ticks;
+            lease.lastNanos = now;
+        }
+        if (measured.isEmpty()) {
+            return;
+        }
+        synchronized (CpuBudget.class) {
+            for (Map.Entry<Pipeline, List<Double>> entry : measured.entrySet()) {
+                double sum = 0;
+                for (double cores : entry.getValue()) {
+                    sum += cores;
+                }
+                double mean = sum / entry.getValue().size();
+                double weight = weights.get(entry.getKey()) * (1 - ALPHA) + mean * ALPHA;
+                // 不低于 0.01 核，避免空闲进程把权重拉到 0 后无限准入
+                weights.put(entry.getKey(), Math.max(weight, 0.01));
+            }
+        }
+    }
+
+    /**
+     * /proc/<pid>/stat 中的 utime + stime（时钟滴答），读取失败返回 -1
+     */
+    static long readCpuTicks(long pid) {
+        Path path = Paths.get("/proc", String.valueOf(pid), "stat");
+        try {
+            String stat = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+            // 进程名可能含空格，从最后一个右括号之后开始按空格分割（第一个字段为 state）
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 预算、权重与各会话的实测 CPU
+     */
+    public static synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("budgetCores", budgetCores);
+        double committed = 0;
+        List<Map<String, Object>> sessions = new ArrayList<>();
+        for (Lease lease : leases.values()) {
+            double weight = weights.get(lease.pipeline);
+            committed += weight;
+            Map<String, Object> item = new HashMap<>();
+            item.put("key", lease.key);
+            item.put("pipeline", lease.pipeline.name());
+            item.put("reservedCores", round(weight));
+            item.put("measuredCores", lease.measuredCores < 0 ? null : round(lease.measuredCores));
+            sessions.add(item);
+        }
+        stats.put("committedCores", round(committed));
+        stats.put("availableCores", round(budgetCores - committed));
+        Map<String, Object> weightStats = new HashMap<>();
+        for (Map.Entry<Pipeline, Double> entry : weights.entrySet()) {
+            weightStats.put(entry.getKey().name(), round(entry.getValue()));
+        }
+        stats.put("weights", weightStats);
+        stats.put("sessions", sessions);
+        stats.put("rejected", rejected.get());
+        stats.put("degraded", degraded.get());
+        return stats;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
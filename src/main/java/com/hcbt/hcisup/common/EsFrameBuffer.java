@@ -0,0 +1,126 @@
+package com.hcbt.hcisup.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 可复用的裸流（ES）帧缓冲区
+ * <p>
+ * 每个通道持有一个实例，PES 负载直接追加到同一块数组中，帧结束后以
+ * (array, 0, length) 的视图形式交给下游，随后 reset 复用。
+ * 容量只在帧比历史最大帧更大时按倍数扩容，稳态下每帧零分配。
+ * <p>
+ * 非线程安全，只能由单个回调线程使用。
+ */
+public class EsFrameBuffer {
+    // 默认初始容量 256KB，1080p 的 P 帧基本无需扩容
+    private static final int DEFAULT_CAPACITY = 256 * 1024;
+    // 底层数组
+    private byte[] buf;
+    // 当前已写入的长度
+    private int length;
+
+    public EsFrameBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity 初始容量（字节）
+     */
+    public EsFrameBuffer(int initialCapacity) {
+        this.buf = new byte[Math.max(initialCapacity, 1024)];
+    }
+
+    /**
+     * 追加一段数据
+     *
+     * @param src    源数组
+     * @param offset 起始位置
+     * @param len    长度
+     */
+    public void append(byte[] src, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        ensureCapacity(length + len);
+        System.arraycopy(src, offset, buf, length, len);
+        length += len;
+    }
+
+    /**
+     * 从 ByteBuffer 追加 len 个字节（读取位置随之前移）
+     *
+     * @param src 源缓冲区（可以是堆外缓冲区）
+     * @param len 长度
+     */
+    public void append(ByteBuffer src, int len) {
+        if (len <= 0) {
+            return;
+        }
+        ensureCapacity(length + len);
+        src.get(buf, length, len);
+        length += len;
+    }
+
+    /**
+     * 追加单个字节
+     */
+    public void append(byte b) {
+        ensureCapacity(length + 1);
+        buf[length++] = b;
+    }
+
+    /**
+     * 截断到指定长度（只能缩短）
+     */
+    public void truncate(int newLength) {
+        if (newLength >= 0 && newLength < length) {
+            length = newLength;
+        }
+    }
+
+    /**
+     * 确保容量足够，不足时按 2 倍扩容（保留已有数据）
+     */
+    private void ensureCapacity(int required) {
+        if (required <= buf.length) {
+            return;
+        }
+        int newCapacity = buf.length;
+        while (newCapacity < required) {
+            newCapacity = newCapacity << 1;
+            if (newCapacity <= 0) {
+                newCapacity = required;
+                break;
+            }
+        }
+        byte[] newBuf = new byte[newCapacity];
+        System.arraycopy(buf, 0, newBuf, 0, length);
+        buf = newBuf;
+    }
+
+    /**
+     * 清空内容，保留容量
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * 底层数组，有效数据为 [0, length)
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+}
@@ -8,14 +8,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * FFmpeg 流处理器
+ * <p>
+ * 切换通道时先启动新通道的管线，新管线从关键帧开始推流（-progress 的 total_size 大于 0）后再替换并关闭旧管线（先建后拆），
+ * 切换期间旧通道的画面不中断。
  */
 @Slf4j
 public class FFmpegStreamHandler {
@@ -38,6 +46,47 @@ public class FFmpegStreamHandler {
     private static final String HLS_ROOT_DIR = "/home/elitedatai/hclsup_java/yolo123/hls/";
     // 帧图片根目录
     private static final String FRAMES_ROOT_DIR = "/home/elitedatai/hclsup_java/yolo123/hls/image/";
+    // 切换中的新管线（用户 ID -> 新管线），替换旧管线后移除
+    private static final ConcurrentHashMap<Integer, PendingSwitch> pendingSwitches = new ConcurrentHashMap<>();
+    // 最近的切换耗时（毫秒）
+    private static final LatencySamples switchSamples = new LatencySamples(200);
+    private static final AtomicLong switchFailures = new AtomicLong();
+    // 新管线等待关键帧并开始输出的最长时间，超时放弃切换并保留旧管线
+    private static volatile long switchTimeoutMs = 5000;
+    // 当前管线的健康监督（用户 ID -> 会话）
+    private static final ConcurrentHashMap<Integer, StreamSupervisor.Session> healthSessions = new ConcurrentHashMap<>();
+
+    /**
+     * 切换通道时已启动、尚未替换旧管线的新管线
+     */
+    private static final class PendingSwitch {
+        final int channel;
+        final Process process;
+        final OutputStream input;
+        final long startNanos;
+        final CompletableFuture<Long> swapped = new CompletableFuture<>();
+        // 新进程的 -progress 输出，total_size 大于 0 表示已开始推流
+        final StreamSupervisor.Session progress;
+        // 是否已写入第一个关键帧（之前的非关键帧丢弃，避免 FFmpeg 等待参数集）
+        volatile boolean keyFrameWritten;
+        // 是否已观察到输出（只在读取新进程日志的线程中访问）
+        boolean outputSeen;
+
+        PendingSwitch(int channel, Process process, OutputStream input, long startNanos) {
+            this.channel = channel;
+            this.process = process;
+            this.input = input;
+            this.startNanos = startNanos;
+            this.progress = new StreamSupervisor.Session("switch-" + channel, null, null);
+        }
+    }
+
+    /**
+     * @param keyFrameTimeoutMs 切换通道时新管线等待关键帧并开始输出的最长时间（毫秒）
+     */
+    public static void configureSwitch(long keyFrameTimeoutMs) {
+        switchTimeoutMs = Math.max(keyFrameTimeoutMs, 500);
+    }
 
     /**
      * 获取用户锁（如果不存在则创建）
@@ -67,8 +116,8 @@ public class FFmpegStreamHandler {
                 String rtmpUrl = String.format("rtmp://%s:%d/live/%s", "101.132.99.208", 1935, streamKey);
                 log.info("用户 ID: {} 切换到通道: {}", luserId, channel);
 
-                // 检查 FFmpeg 是否可用
-                if (!isFFmpegInstalled()) {
+                // 检查 FFmpeg 是否可用（结果在第一次检查后缓存）
+                if (!FFmpegWorkerPool.isFFmpegAvailable()) {
                     log.error("FFmpeg 未安装或无法访问");
                     return false;
                 }
@@ -82,15 +131,18 @@ public class FFmpegStreamHandler {
                     return true;
                 }
 
-                // 在启动新进程前，先彻底清理所有相关资源
+                // 多次卡死或退出后熔断，熔断期内不再启动
+                if (!StreamSupervisor.allowStart(supervisorKey(luserId, channel))) {
+                    log.warn("用户 ID: {} 通道 {} 熔断中，暂不启动", luserId, channel);
+                    return false;
+                }
+
+                // 在启动新进程前，先彻底清理所有相关资源（会等待旧进程退出，不需要再额外等待）
                 forceStopAndCleanup(luserId);
 
                 // 清理目标频道的所有文件
                 cleanupChannelFiles(channel);
 
-                // 等待资源完全释放
-                waitForResourceCleanup();
-
                 // 更新通道映射
                 userChannels.put(luserId, channel);
 
@@ -136,6 +188,12 @@ public class FFmpegStreamHandler {
     private static void forceStopAndCleanup(Integer luserId) {
         log.info("强制停止并清理资源，用户 ID: {}", luserId);
 
+        // 放弃正在进行的切换
+        PendingSwitch pending = pendingSwitches.get(luserId);
+        if (pending != null) {
+            abortSwitch(luserId, pending, "推流已停止");
+        }
+
         // 停止运行标志
         AtomicBoolean flag = runningFlags.get(luserId);
         if (flag != null) {
@@ -179,8 +237,15 @@ public class FFmpegStreamHandler {
             cleanupChannelFiles(channel);
         }
 
+        // 释放 CPU 预算
+        CpuBudget.release(budgetKey(luserId));
+
         // 重置重启计数
         restartAttempts.remove(luserId);
+        StreamSupervisor.Session health = healthSessions.remove(luserId);
+        if (health != null) {
+            StreamSupervisor.unwatch(health.key, health);
+        }
     }
 
     /**
@@ -275,30 +340,297 @@ public class FFmpegStreamHandler {
      * 启动 FFmpeg flv 进程的核心逻辑
      */
     private static boolean startFFmpegProcess2(Integer luserId, String rtmpUrl, int channel) {
+        if (!CpuBudget.tryAdmit(budgetKey(luserId), CpuBudget.Pipeline.COPY)) {
+            log.warn("CPU 预算不足，不启动 FFmpeg 推流，用户 ID: {}, 通道: {}", luserId, channel);
+            return false;
+        }
         try {
-            // 构建并启动 FFmpeg 命令
-            List<String> command = buildOptimizedFFmpegCommand2(rtmpUrl);
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-
-            log.info("启动 FFmpeg 推流进程，用户 ID: {}, 通道: {}", luserId, channel);
-
-            Process process = pb.start();
+            Process process = launchProcess2(luserId, rtmpUrl, channel, false);
+            CpuBudget.attach(budgetKey(luserId), process);
             ffmpegProcesses.put(luserId, process);
-            ffmpegOutputStreams.put(luserId, process.getOutputStream());
+            ffmpegOutputStreams.put(luserId, CoalescingOutputStream.open("ffmpeg_" + luserId, process.getOutputStream(), true));
             runningFlags.put(luserId, new AtomicBoolean(true));
             restartAttempts.put(luserId, 0);
+            watchHealth(luserId, channel);
 
             // 启动监控线程
-            startMonitoringThreads2(luserId, process);
+            startMonitoringThreads2(luserId, process, process.getInputStream());
 
             return true;
         } catch (Exception e) {
             log.error("启动 FFmpeg 推流失败，用户 ID: {}", luserId, e);
+            CpuBudget.release(budgetKey(luserId));
             return false;
         }
     }
 
+    /**
+     * 启动推流到 rtmpUrl 的 FFmpeg 进程
+     * <p>
+     * FFmpeg 直接推送 RTMP，不取用预热进程：预热进程启动时还不知道输出地址，只能输出到标准输出，
+     * 需要再经一个转发线程推流，多一跳也多一个线程。
+     *
+     * @param progress 是否总是输出进度（切换通道时据此判断新管线已开始推流）
+     */
+    private static Process launchProcess2(Integer luserId, String rtmpUrl, int channel, boolean progress) throws IOException {
+        // 构建并启动 FFmpeg 命令
+        List<String> command = buildOptimizedFFmpegCommand2(rtmpUrl, progress);
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+
+        log.info("启动 FFmpeg 推流进程，用户 ID: {}, 通道: {}", luserId, channel);
+
+        return pb.start();
+    }
+
+    /**
+     * 先建后拆地切换通道
+     * <p>
+     * 旧管线继续推流，同时为新通道启动一条管线；新管线从第一个关键帧开始写入，
+     * 其 {@code -progress} 输出的 total_size 大于 0（已开始推流）后替换旧管线，并在后台关闭旧进程、清理旧通道文件。
+     * 超时或新进程退出时放弃切换，旧管线不受影响。
+     * 当前没有运行中的管线时直接启动。
+     * <p>
+     * 调用方应在本方法返回后开始向新通道送数据（{@link #writeData(Integer, int, byte[], int, int, boolean)}）。
+     *
+     * @return 替换完成时得到切换耗时（毫秒）；失败时异常结束
+     */
+    public static CompletableFuture<Long> switchChannel(Integer luserId, int channel) {
+        long startNanos = System.nanoTime();
+        Integer currentChannel = userChannels.get(luserId);
+        if (currentChannel == null || !isProcessAlive(luserId)) {
+            return startFFmpegForChannel(luserId, channel) ? CompletableFuture.completedFuture(0L)
+                    : CompletableFuture.failedFuture(new IOException("启动 FFmpeg 失败"));
+        }
+        if (currentChannel.equals(channel)) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        ReentrantLock lock = getUserLock(luserId);
+        try {
+            if (!lock.tryLock(3, TimeUnit.SECONDS)) {
+                log.warn("获取用户锁超时，用户 ID: {}", luserId);
+                return CompletableFuture.failedFuture(new TimeoutException("获取用户锁超时"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            PendingSwitch existing = pendingSwitches.get(luserId);
+            if (existing != null) {
+                if (existing.channel == channel) {
+                    return existing.swapped;
+                }
+                abortSwitch(luserId, existing, "切换到其他通道");
+            }
+            if (!StreamSupervisor.allowStart(supervisorKey(luserId, channel))) {
+                return CompletableFuture.failedFuture(new IOException("通道多次启动失败，暂停启动"));
+            }
+            log.info("用户 ID: {} 由通道 {} 切换到通道 {}（先启动新管线）", luserId, currentChannel, channel);
+            // 目标通道当前没有输出，可以直接清理
+            cleanupChannelFiles(channel);
+
+            // 切换期间新旧两个进程同时运行，新进程单独计入预算
+            if (!CpuBudget.tryAdmit(switchBudgetKey(luserId), CpuBudget.Pipeline.COPY)) {
+                return CompletableFuture.failedFuture(new IOException("CPU 预算不足，无法启动新通道管线"));
+            }
+            String rtmpUrl = String.format("rtmp://%s:%d/live/%s", "101.132.99.208", 1935, luserId + "_" + channel);
+            Process process = launchProcess2(luserId, rtmpUrl, channel, true);
+            PendingSwitch pending = new PendingSwitch(channel, process,
+                    CoalescingOutputStream.open("ffmpeg_" + luserId + "_" + channel, process.getOutputStream(), true),
+                    startNanos);
+            CpuBudget.attach(switchBudgetKey(luserId), process);
+            pendingSwitches.put(luserId, pending);
+            startMonitoringThreads2(luserId, process, process.getInputStream());
+
+            pending.swapped.orTimeout(switchTimeoutMs, TimeUnit.MILLISECONDS).whenComplete((millis, error) -> {
+                if (error != null) {
+                    abortSwitch(luserId, pending, error instanceof TimeoutException
+                            ? "等待新管线输出超时（" + switchTimeoutMs + "ms）" : error.getMessage());
+                }
+            });
+            return pending.swapped;
+        } catch (IOException e) {
+            log.error("启动新通道管线失败，用户 ID: {}, 通道: {}", luserId, channel, e);
+            CpuBudget.release(switchBudgetKey(luserId));
+            switchFailures.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在辅助线程中替换旧管线（调用方为 SDK 回调线程，不在其中等待用户锁）
+     */
+    private static void completeSwitchAsync(Integer luserId, PendingSwitch pending) {
+        if (pending != null && pendingSwitches.get(luserId) == pending) {
+            SessionThreads.start("FFmpeg-Switch-" + luserId, () -> completeSwitch(luserId, pending));
+        }
+    }
+
+    /**
+     * 用新管线替换旧管线，再关闭旧进程
+     */
+    private static void completeSwitch(Integer luserId, PendingSwitch pending) {
+        Process oldProcess;
+        OutputStream oldInput;
+        Integer oldChannel;
+        long millis;
+        ReentrantLock lock = getUserLock(luserId);
+        lock.lock();
+        try {
+            // 已超时、已停止或已被新的切换取代
+            if (!pendingSwitches.remove(luserId, pending)) {
+                return;
+            }
+            // 先替换输入流，之后到达的数据直接写入新管线
+            oldInput = ffmpegOutputStreams.put(luserId, pending.input);
+            oldProcess = ffmpegProcesses.put(luserId, pending.process);
+            oldChannel = userChannels.put(luserId, pending.channel);
+            runningFlags.put(luserId, new AtomicBoolean(true));
+            restartAttempts.put(luserId, 0);
+            watchHealth(luserId, pending.channel);
+            // 新进程接替当前会话的预算（同为直接复制），旧进程随后关闭
+            CpuBudget.attach(budgetKey(luserId), pending.process);
+            CpuBudget.release(switchBudgetKey(luserId));
+            millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pending.startNanos);
+        } finally {
+            lock.unlock();
+        }
+        switchSamples.add(millis);
+        log.info("用户 ID: {} 已由通道 {} 切换到通道 {}，耗时 {}ms", luserId, oldChannel, pending.channel, millis);
+        pending.swapped.complete(millis);
+
+        // 旧进程的监控回调发现进程已被替换，不会重启
+        SessionThreads.start("FFmpeg-Teardown-" + luserId, () -> {
+            closeQuietly(oldInput);
+            if (oldProcess != null) {
+                oldProcess.destroy();
+                try {
+                    if (!oldProcess.waitFor(1000, TimeUnit.MILLISECONDS)) {
+                        oldProcess.destroyForcibly();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    oldProcess.destroyForcibly();
+                }
+            }
+            if (oldChannel != null && oldChannel != pending.channel) {
+                cleanupChannelFiles(oldChannel);
+            }
+        });
+    }
+
+    /**
+     * 放弃切换：结束新管线，旧管线不受影响
+     */
+    private static void abortSwitch(Integer luserId, PendingSwitch pending, String reason) {
+        if (!pendingSwitches.remove(luserId, pending)) {
+            return;
+        }
+        switchFailures.incrementAndGet();
+        CpuBudget.release(switchBudgetKey(luserId));
+        log.warn("用户 ID: {} 切换到通道 {} 失败：{}，保留原通道", luserId, pending.channel, reason);
+        closeQuietly(pending.input);
+        pending.process.destroyForcibly();
+        pending.swapped.completeExceptionally(new IOException(reason));
+    }
+
+    /**
+     * 监督当前管线（按用户与通道区分摄像机），替换同一用户之前的监督
+     */
+    private static void watchHealth(Integer luserId, int channel) {
+        StreamSupervisor.Session health = StreamSupervisor.watch(supervisorKey(luserId, channel),
+                () -> restartFFmpeg(luserId), () -> stopFFmpeg(luserId));
+        StreamSupervisor.Session old = healthSessions.put(luserId, health);
+        if (old != null && !old.key.equals(health.key)) {
+            StreamSupervisor.unwatch(old.key, old);
+        }
+    }
+
+    private static String supervisorKey(Integer luserId, int channel) {
+        return "ffmpeg_" + luserId + "_" + channel;
+    }
+
+    /**
+     * 用户当前管线在 CPU 预算中的登记
+     */
+    private static String budgetKey(Integer luserId) {
+        return "ffmpeg_" + luserId;
+    }
+
+    /**
+     * 切换通道时新管线在 CPU 预算中的登记，切换完成后并入 {@link #budgetKey(Integer)}
+     */
+    private static String switchBudgetKey(Integer luserId) {
+        return "ffmpeg_" + luserId + "_switch";
+    }
+
+    /**
+     * 由健康监督在退避后调用：结束当前进程（可能已卡死）并重新启动
+     */
+    private static void restartFFmpeg(Integer luserId) {
+        ReentrantLock lock = getUserLock(luserId);
+        lock.lock();
+        try {
+            Integer channel = userChannels.get(luserId);
+            if (channel == null || !isProcessRunning(luserId)) {
+                return;
+            }
+            log.warn("重启 FFmpeg，用户 ID: {}, 通道: {}", luserId, channel);
+            // 先移出映射，旧进程的监控回调不会再报告失败
+            closeQuietly(ffmpegOutputStreams.remove(luserId));
+            Process old = ffmpegProcesses.remove(luserId);
+            if (old != null) {
+                old.destroyForcibly();
+            }
+            cleanupChannelFiles(channel);
+            String rtmpUrl = String.format("rtmp://%s:%d/live/%s", "101.132.99.208", 1935, luserId + "_" + channel);
+            startFFmpegProcess2(luserId, rtmpUrl, channel);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前管线出错：开启健康监督时退避重启（多次失败后熔断），否则按原逻辑立即重启
+     */
+    private static void onPipelineFailure(Integer luserId, String reason) {
+        StreamSupervisor.Session health = healthSessions.get(luserId);
+        if (StreamSupervisor.isEnabled() && health != null) {
+            StreamSupervisor.reportFailure(health.key, reason);
+        } else {
+            handleProcessRestart2(luserId);
+        }
+    }
+
+    private static void closeQuietly(OutputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.debug("关闭输出流失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 切换次数、失败次数与耗时分布
+     */
+    public static Map<String, Object> switchStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("keyFrameTimeoutMs", switchTimeoutMs);
+        stats.put("failures", switchFailures.get());
+        stats.put("switchMs", switchSamples.snapshot());
+        Map<Integer, Integer> pending = new HashMap<>();
+        for (Map.Entry<Integer, PendingSwitch> entry : pendingSwitches.entrySet()) {
+            pending.put(entry.getKey(), entry.getValue().channel);
+        }
+        stats.put("pending", pending);
+        return stats;
+    }
+
     /**
      * 启动 FFmpeg 进程的核心逻辑
      */
@@ -310,6 +642,12 @@ public class FFmpegStreamHandler {
                 return false;
             }
 
+            // 解码 H.265 后缩放并用 libx264 编码，按主码流转码计入 CPU 预算
+            if (!CpuBudget.tryAdmit(budgetKey(luserId), CpuBudget.Pipeline.TRANSCODE_MAIN)) {
+                log.warn("CPU 预算不足，不启动 FFmpeg 转码，用户 ID: {}, 通道: {}", luserId, channel);
+                return false;
+            }
+
             // 构建并启动 FFmpeg 命令
             List<String> command = buildOptimizedFFmpegCommand(hlsPath);
             ProcessBuilder pb = new ProcessBuilder(command);
@@ -318,8 +656,9 @@ public class FFmpegStreamHandler {
             log.info("启动 FFmpeg 进程，用户 ID: {}, 通道: {}", luserId, channel);
 
             Process process = pb.start();
+            CpuBudget.attach(budgetKey(luserId), process);
             ffmpegProcesses.put(luserId, process);
-            ffmpegOutputStreams.put(luserId, process.getOutputStream());
+            ffmpegOutputStreams.put(luserId, CoalescingOutputStream.open("ffmpeg_" + luserId, process.getOutputStream(), true));
             runningFlags.put(luserId, new AtomicBoolean(true));
             restartAttempts.put(luserId, 0);
 
@@ -329,6 +668,7 @@ public class FFmpegStreamHandler {
             return true;
         } catch (Exception e) {
             log.error("启动 FFmpeg 进程失败，用户 ID: {}", luserId, e);
+            CpuBudget.release(budgetKey(luserId));
             return false;
         }
     }
@@ -413,12 +753,23 @@ public class FFmpegStreamHandler {
         return command;
     }
 
+    /**
+     * 开启健康监督或调用方需要时输出进度到标准错误（与日志一起读取）
+     */
+    private static void addProgress(List<String> command, boolean force) {
+        if (force || StreamSupervisor.isEnabled()) {
+            command.add("-progress"); command.add("pipe:2");
+            command.add("-nostats");
+        }
+    }
+
     /**
      * 构建优化的 FFmpeg （flv）命令
      */
-    private static List<String> buildOptimizedFFmpegCommand2(String rtmpUrl) {
+    private static List<String> buildOptimizedFFmpegCommand2(String rtmpUrl, boolean progress) {
         List<String> command = new ArrayList<>();
         command.add("ffmpeg");
+        addProgress(command, progress);
 
         // 输入为裸 H.265 数据（HEVC），从管道读取
         command.add("-f"); command.add("hevc");
@@ -448,7 +799,7 @@ public class FFmpegStreamHandler {
      */
     private static void startMonitoringThreads(Integer luserId, Process process) {
         // 输出日志线程
-        Thread logThread = new Thread(() -> {
+        SessionThreads.start("FFmpeg-Output-" + luserId, () -> {
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                 String line;
                 while ((line = reader.readLine()) != null && isProcessRunning(luserId)) {
@@ -459,60 +810,65 @@ public class FFmpegStreamHandler {
                     log.error("读取 FFmpeg 输出失败: {}", e.getMessage());
                 }
             }
-        }, "FFmpeg-Output-" + luserId);
-        logThread.setDaemon(true); // 设置为守护线程，避免进程退出时线程仍在运行
-        logThread.start();
+        });
 
-        // 进程监控线程
-        Thread monitorThread = new Thread(() -> {
-            try {
-                int exitCode = process.waitFor();
-                log.info("FFmpeg 进程退出，用户 ID: {}, 退出码: {}", luserId, exitCode);
+        // 进程监控
+        SessionThreads.onExit("FFmpeg-Monitor-" + luserId, process, () -> {
+            log.info("FFmpeg 进程退出，用户 ID: {}, 退出码: {}", luserId, process.exitValue());
 
-                if (isProcessRunning(luserId)) {
-                    handleProcessRestart(luserId);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.warn("进程监控线程被中断，用户 ID: {}", luserId);
+            // 已被替换的进程不再重启
+            if (isProcessRunning(luserId) && ffmpegProcesses.get(luserId) == process) {
+                handleProcessRestart(luserId);
             }
-        }, "FFmpeg-Monitor-" + luserId);
-        monitorThread.setDaemon(true);
-        monitorThread.start();
+        });
     }
-    private static void startMonitoringThreads2(Integer luserId, Process process) {
+    private static void startMonitoringThreads2(Integer luserId, Process process, InputStream logStream) {
+        // 切换通道时启动的新进程
+        PendingSwitch current = pendingSwitches.get(luserId);
+        PendingSwitch switching = current != null && current.process == process ? current : null;
         // 输出日志线程
-        Thread logThread = new Thread(() -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+        SessionThreads.start("FFmpeg-Output-" + luserId, () -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(logStream))) {
                 String line;
                 while ((line = reader.readLine()) != null && isProcessRunning(luserId)) {
+                    // 开启健康监督时命令带 -progress，进度行只用于判断输出是否前进
+                    StreamSupervisor.Session health = healthSessions.get(luserId);
+                    if (health != null && ffmpegProcesses.get(luserId) == process && health.onProgressLine(line)) {
+                        continue;
+                    }
+                    if (switching != null && switching.progress.onProgressLine(line)) {
+                        // 新管线开始推流后替换旧管线
+                        if (!switching.outputSeen && switching.progress.hasOutput()) {
+                            switching.outputSeen = true;
+                            completeSwitchAsync(luserId, switching);
+                        }
+                        continue;
+                    }
                     log.debug("FFmpeg [{}]: {}", luserId, line);
                 }
             } catch (IOException e) {
-                if (isProcessRunning(luserId)) {
+                // 切换通道后关闭的旧进程不报错
+                if (isProcessRunning(luserId) && process.isAlive()) {
                     log.error("读取 FFmpeg 输出失败: {}", e.getMessage());
                 }
             }
-        }, "FFmpeg-Output-" + luserId);
-        logThread.setDaemon(true); // 设置为守护线程，避免进程退出时线程仍在运行
-        logThread.start();
+        });
 
-        // 进程监控线程
-        Thread monitorThread = new Thread(() -> {
-            try {
-                int exitCode = process.waitFor();
-                log.info("FFmpeg 进程退出，用户 ID: {}, 退出码: {}", luserId, exitCode);
+        // 进程监控
+        SessionThreads.onExit("FFmpeg-Monitor-" + luserId, process, () -> {
+            log.info("FFmpeg 进程退出，用户 ID: {}, 退出码: {}", luserId, process.exitValue());
 
-                if (isProcessRunning(luserId)) {
-                    handleProcessRestart2(luserId);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.warn("进程监控线程被中断，用户 ID: {}", luserId);
+            // 切换中的新进程退出时放弃切换
+            PendingSwitch pending = pendingSwitches.get(luserId);
+            if (pending != null && pending.process == process) {
+                abortSwitch(luserId, pending, "新管线 FFmpeg 进程退出");
+                return;
             }
-        }, "FFmpeg-Monitor-" + luserId);
-        monitorThread.setDaemon(true);
-        monitorThread.start();
+            // 已被替换的进程不再重启
+            if (isProcessRunning(luserId) && ffmpegProcesses.get(luserId) == process) {
+                onPipelineFailure(luserId, "FFmpeg 进程退出");
+            }
+        });
     }
 
     /**
@@ -586,7 +942,14 @@ public class FFmpegStreamHandler {
      * 写入数据到 FFmpeg
      */
     public static void writeData(Integer luserId, byte[] data) {
-        if (data == null || data.length < 10) {
+        if (data == null) {
+            return;
+        }
+        writeData(luserId, data, 0, data.length);
+    }
+
+    private static void writeData(Integer luserId, byte[] data, int offset, int length) {
+        if (length < 10) {
             return;
         }
 
@@ -599,16 +962,24 @@ public class FFmpegStreamHandler {
         if (outputStream != null) {
             synchronized (outputStream) { // 同步写入，避免并发问题
                 try {
-                    outputStream.write(data);
-                    outputStream.flush();
+                    // 不逐帧 flush：合并模式下由缓冲区满或定时线程按最长延迟写出
+                    outputStream.write(data, offset, length);
+                    StreamSupervisor.Session health = healthSessions.get(luserId);
+                    if (health != null) {
+                        health.onInput(length);
+                    }
                 } catch (IOException e) {
+                    if (ffmpegOutputStreams.get(luserId) != outputStream) {
+                        // 切换通道后旧管线已关闭
+                        return;
+                    }
                     log.error("写入数据失败，用户 ID: {}", luserId, e);
                     // 如果写入失败，可能是进程已经挂了，尝试重启
                     ReentrantLock lock = getUserLock(luserId);
                     if (lock.tryLock()) {
                         try {
                             // handleProcessRestart(luserId);
-                            handleProcessRestart2(luserId);
+                            onPipelineFailure(luserId, "写入失败");
                         } finally {
                             lock.unlock();
                         }
@@ -618,6 +989,43 @@ public class FFmpegStreamHandler {
         }
     }
 
+    /**
+     * 按通道写入一帧数据
+     * <p>
+     * 切换中新通道的数据写入新管线（第一个关键帧之前的帧丢弃），当前通道的数据写入当前管线，其他通道的数据忽略。
+     *
+     * @param keyFrame 是否为关键帧
+     */
+    public static void writeData(Integer luserId, int channel, byte[] data, int offset, int length, boolean keyFrame) {
+        PendingSwitch pending = pendingSwitches.get(luserId);
+        if (pending != null && pending.channel == channel) {
+            writePending(luserId, pending, data, offset, length, keyFrame);
+            return;
+        }
+        Integer currentChannel = userChannels.get(luserId);
+        if (currentChannel == null || currentChannel != channel) {
+            return;
+        }
+        writeData(luserId, data, offset, length);
+    }
+
+    private static void writePending(Integer luserId, PendingSwitch pending, byte[] data, int offset, int length, boolean keyFrame) {
+        if (!pending.keyFrameWritten && !keyFrame) {
+            return;
+        }
+        synchronized (pending.input) {
+            try {
+                pending.input.write(data, offset, length);
+                if (!pending.keyFrameWritten) {
+                    pending.keyFrameWritten = true;
+                    pending.input.flush();
+                }
+            } catch (IOException e) {
+                abortSwitch(luserId, pending, "写入新管线失败: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * 停止 FFmpeg 进程
      */
@@ -672,18 +1080,4 @@ public class FFmpegStreamHandler {
         }
         return -1;
     }
-
-    /**
-     * 检查 FFmpeg 是否已安装
-     */
-    private static boolean isFFmpegInstalled() {
-        try {
-            Process checkProcess = new ProcessBuilder("ffmpeg", "-version").start();
-            int exitCode = checkProcess.waitFor();
-            return exitCode == 0;
-        } catch (Exception e) {
-            log.error("检查 FFmpeg 失败: {}", e.getMessage());
-            return false;
-        }
-    }
 }
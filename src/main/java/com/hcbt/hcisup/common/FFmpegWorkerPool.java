@@ -0,0 +1,304 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预启动的 FFmpeg 进程池
+ * <p>
+ * 每次启动通道都要 fork/exec FFmpeg、加载编解码库，再加上原来的 {@code ffmpeg -version} 检查，
+ * 启动耗时常常超过一秒。这里按管线参数（profile，即不含输出地址的完整命令）预先启动若干个进程，
+ * 输出固定为 {@code -f flv pipe:1}，在标准输入上等待数据（FFmpeg 探测到输入前不会打开输出）。
+ * 通道启动时直接取用一个预热进程，由调用方读取标准输出的 FLV（直播分发），随后异步补充。
+ * 启动时就能确定输出地址、由 FFmpeg 直接推送 RTMP 的管线不使用本池，避免多一跳转发。
+ * <p>
+ * 空闲进程不显示版本信息，启动前的输出由后台定期读出丢弃，不会写满管道，也不会混入取用后的日志。
+ * <p>
+ * FFmpeg 是否可用在应用启动时检查一次并缓存。
+ */
+@Slf4j
+public final class FFmpegWorkerPool {
+
+    // profile -> 空闲进程
+    private static final Map<String, Deque<Worker>> idle = new ConcurrentHashMap<>();
+    // 需要保持预热的 profile -> 命令
+    private static final Map<String, List<String>> profiles = new ConcurrentHashMap<>();
+    // 补充空闲进程并定期丢弃空闲进程的输出
+    private static final ScheduledExecutorService refiller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FFmpeg-Prewarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 最近的首字节耗时（毫秒），预热进程与现场启动分开统计
+    private static final LatencySamples warmStarts = new LatencySamples(200);
+    private static final LatencySamples coldStarts = new LatencySamples(200);
+    // 丢弃空闲进程输出的间隔
+    private static final long IDLE_DRAIN_INTERVAL_MS = 1000;
+    // 丢弃输出时的读取缓冲区（只在 refiller 线程中使用）
+    private static final byte[] discardBuffer = new byte[8192];
+
+    private static volatile boolean enabled;
+    private static volatile int workersPerProfile = 1;
+    private static volatile Boolean ffmpegAvailable;
+    private static volatile String ffmpegVersion;
+    private static boolean drainScheduled;
+
+    private FFmpegWorkerPool() {
+    }
+
+    /**
+     * 一个 FFmpeg 进程
+     */
+    public static final class Worker {
+        private final String profile;
+        private final Process process;
+        private final boolean warm;
+
+        private Worker(String profile, Process process, boolean warm) {
+            this.profile = profile;
+            this.process = process;
+            this.warm = warm;
+        }
+
+        public Process getProcess() {
+            return process;
+        }
+
+        public String getProfile() {
+            return profile;
+        }
+
+        /**
+         * 是否取自预热进程（false 表示现场启动）
+         */
+        public boolean isWarm() {
+            return warm;
+        }
+    }
+
+    /**
+     * @param enable  是否预启动
+     * @param perPool 每个 profile 保持的空闲进程数
+     */
+    public static synchronized void configure(boolean enable, int perPool) {
+        enabled = enable;
+        workersPerProfile = Math.max(perPool, 1);
+        if (enable && !drainScheduled) {
+            drainScheduled = true;
+            refiller.scheduleWithFixedDelay(FFmpegWorkerPool::discardIdleOutput, IDLE_DRAIN_INTERVAL_MS,
+                    IDLE_DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * FFmpeg 是否可用（只执行一次 ffmpeg -version）
+     */
+    public static boolean isFFmpegAvailable() {
+        Boolean available = ffmpegAvailable;
+        if (available == null) {
+            synchronized (FFmpegWorkerPool.class) {
+                if (ffmpegAvailable == null) {
+                    ffmpegAvailable = probeFFmpeg();
+                }
+                available = ffmpegAvailable;
+            }
+        }
+        return available;
+    }
+
+    private static boolean probeFFmpeg() {
+        try {
+            Process process = new ProcessBuilder("ffmpeg", "-version").redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                ffmpegVersion = reader.readLine();
+                while (reader.readLine() != null) {
+                    // 读完输出，避免进程阻塞
+                }
+            }
+            boolean ok = process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
+            log.info("FFmpeg 检查{}：{}", ok ? "通过" : "失败", ffmpegVersion);
+            return ok;
+        } catch (Exception e) {
+            log.error("检查 FFmpeg 失败: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 登记需要保持预热的 profile 并在后台启动空闲进程
+     *
+     * @param command 不含输出地址的命令，输出统一追加为 -f flv pipe:1
+     */
+    public static void prewarm(List<String> command) {
+        if (!enabled) {
+            return;
+        }
+        String profile = String.join(" ", command);
+        if (profiles.putIfAbsent(profile, new ArrayList<>(command)) == null) {
+            log.info("FFmpeg 预热 profile：{}", profile);
+        }
+        refill(profile);
+    }
+
+    /**
+     * 取出一个进程：有预热进程时直接使用，否则现场启动
+     */
+    public static Worker acquire(List<String> command) throws IOException {
+        String profile = String.join(" ", command);
+        Worker worker = null;
+        Deque<Worker> workers = idle.get(profile);
+        if (workers != null) {
+            synchronized (workers) {
+                while (!workers.isEmpty()) {
+                    Worker candidate = workers.pollFirst();
+                    if (candidate.process.isAlive()) {
+                        worker = candidate;
+                        break;
+                    }
+                    log.warn("丢弃已退出的预热 FFmpeg，profile：{}", profile);
+                }
+            }
+        }
+        if (worker == null) {
+            worker = new Worker(profile, fork(command), false);
+        }
+        if (enabled) {
+            profiles.putIfAbsent(profile, new ArrayList<>(command));
+            refill(profile);
+        }
+        return worker;
+    }
+
+    /**
+     * 记录一次启动的耗时
+     *
+     * @param startNanos     开始启动通道的时间
+     * @param firstByteNanos FFmpeg 输出第一个字节的时间
+     */
+    public static void recordStart(Worker worker, long startNanos, long firstByteNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(firstByteNanos - startNanos);
+        (worker.warm ? warmStarts : coldStarts).add(millis);
+        log.info("FFmpeg {}启动，首字节耗时 {}ms", worker.warm ? "预热进程" : "现场", millis);
+    }
+
+    /**
+     * 结束所有空闲进程（应用退出时调用）
+     */
+    public static void shutdown() {
+        profiles.clear();
+        for (Deque<Worker> workers : idle.values()) {
+            synchronized (workers) {
+                for (Worker worker : workers) {
+                    worker.process.destroy();
+                }
+                workers.clear();
+            }
+        }
+        refiller.shutdownNow();
+    }
+
+    /**
+     * 空闲进程数与预热 / 现场启动的首字节耗时
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ffmpegAvailable", ffmpegAvailable);
+        stats.put("ffmpegVersion", ffmpegVersion);
+        Map<String, Integer> idleCounts = new HashMap<>();
+        for (Map.Entry<String, Deque<Worker>> entry : idle.entrySet()) {
+            synchronized (entry.getValue()) {
+                idleCounts.put(entry.getKey(), entry.getValue().size());
+            }
+        }
+        stats.put("idleWorkers", idleCounts);
+        stats.put("warmFirstByteMs", warmStarts.snapshot());
+        stats.put("coldFirstByteMs", coldStarts.snapshot());
+        return stats;
+    }
+
+    private static void refill(String profile) {
+        refiller.execute(() -> {
+            List<String> command = profiles.get(profile);
+            if (command == null) {
+                return;
+            }
+            Deque<Worker> workers = idle.computeIfAbsent(profile, k -> new ArrayDeque<>());
+            while (true) {
+                synchronized (workers) {
+                    workers.removeIf(worker -> !worker.process.isAlive());
+                    if (workers.size() >= workersPerProfile) {
+                        return;
+                    }
+                }
+                try {
+                    Worker worker = new Worker(profile, fork(command), true);
+                    synchronized (workers) {
+                        workers.addLast(worker);
+                    }
+                } catch (IOException e) {
+                    log.error("预启动 FFmpeg 失败: {}", e.getMessage());
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * 读出并丢弃空闲进程标准输出与标准错误中已有的数据（只读当前可读的字节，不阻塞）
+     * <p>
+     * 在空闲队列的锁内执行，进程被取用后不再读取，调用方拿到的流从取用时开始。
+     */
+    private static void discardIdleOutput() {
+        for (Deque<Worker> workers : idle.values()) {
+            synchronized (workers) {
+                for (Worker worker : workers) {
+                    discardAvailable(worker.process.getInputStream());
+                    discardAvailable(worker.process.getErrorStream());
+                }
+            }
+        }
+    }
+
+    private static void discardAvailable(InputStream in) {
+        try {
+            int available;
+            // 管道不支持 skip，按可读字节数读取
+            while ((available = in.available()) > 0) {
+                if (in.read(discardBuffer, 0, Math.min(available, discardBuffer.length)) < 0) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // 进程已退出，下次补充时移除
+        }
+    }
+
+    private static Process fork(List<String> command) throws IOException {
+        List<String> full = new ArrayList<>(command);
+        // 不输出版本信息，空闲时不产生输出
+        full.add(1, "-hide_banner");
+        full.add("-f");
+        full.add("flv");
+        full.add("pipe:1");
+        return new ProcessBuilder(full).start();
+    }
+}
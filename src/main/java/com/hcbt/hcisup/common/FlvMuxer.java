@@ -0,0 +1,554 @@
+package com.hcbt.hcisup.common;
+
+import java.io.IOException;
+
+/**
+ * FLV 视频 tag 封装
+ * <p>
+ * 把 Annex-B 格式的 H.264 / H.265 帧转换为 FLV 视频 tag 负载：
+ * 参数集变化时先输出序列头（AVCDecoderConfigurationRecord / HEVCDecoderConfigurationRecord），
+ * 帧数据中的起始码替换为 4 字节长度（AVCC）。tag 时间戳由 90kHz 的 DTS（没有时为 PTS）换算为毫秒，
+ * 合成时间（CTS）为 PTS − DTS，源码流含 B 帧时播放端按 DTS 解码、按 PTS 显示。
+ * H.265 使用国内通用的扩展编码 ID 12（SRS、flv.js 均支持）。
+ * <p>
+ * 同一个实例只能在一个线程中使用。
+ */
+public class FlvMuxer {
+
+    /** tag 类型 */
+    public static final int TAG_AUDIO = 8;
+    public static final int TAG_VIDEO = 9;
+    public static final int TAG_SCRIPT = 18;
+
+    /** 视频编码 ID */
+    public static final int CODEC_AVC = 7;
+    public static final int CODEC_HEVC = 12;
+
+    // PTS / DTS 为 33 位
+    private static final long PTS_MASK = (1L << 33) - 1;
+    // 时间戳跳变超过该值视为不连续（10 秒）
+    private static final long MAX_PTS_GAP = 10 * 90000L;
+
+    /**
+     * tag 输出
+     */
+    public interface TagWriter {
+        /**
+         * @param tagType   tag 类型
+         * @param timestamp 时间戳（毫秒）
+         * @param body      tag 负载
+         */
+        void writeTag(int tagType, int timestamp, byte[] body, int offset, int length) throws IOException;
+    }
+
+    private final boolean hevc;
+    // 复用的 tag 负载缓冲区
+    private final EsFrameBuffer body = new EsFrameBuffer(256 * 1024);
+
+    // 最新的参数集（不含起始码）
+    private byte[] vps;
+    private byte[] sps;
+    private byte[] pps;
+    private boolean paramsChanged;
+    private boolean sequenceHeaderSent;
+
+    // 时间戳换算
+    private long lastPts = -1;
+    private long elapsed90k;
+    private long firstWallMillis = -1;
+
+    // 统计
+    private long videoTags;
+    private long sequenceHeaders;
+    private long skippedFrames;
+
+    /**
+     * @param hevc 是否为 H.265
+     */
+    public FlvMuxer(boolean hevc) {
+        this.hevc = hevc;
+    }
+
+    /**
+     * 封装一帧（解码时间与显示时间相同）
+     *
+     * @param pts      90kHz 显示时间戳，未知为 -1（按到达时间计算）
+     * @param keyFrame 是否为关键帧
+     * @return 是否输出了该帧（序列头发送之前的帧会被跳过）
+     */
+    public boolean writeFrame(byte[] data, int offset, int length, long pts, boolean keyFrame, TagWriter out) throws IOException {
+        return writeFrame(data, offset, length, pts, pts, keyFrame, out);
+    }
+
+    /**
+     * 封装一帧
+     *
+     * @param pts      90kHz 显示时间戳，未知为 -1
+     * @param dts      90kHz 解码时间戳，未知为 -1（按 PTS，两者都未知时按到达时间计算）
+     * @param keyFrame 是否为关键帧
+     * @return 是否输出了该帧（序列头发送之前的帧会被跳过）
+     */
+    public boolean writeFrame(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame,
+                              TagWriter out) throws IOException {
+        long decodeTime = dts >= 0 ? dts : pts;
+        int timestamp = nextTimestamp(decodeTime);
+        int cts = compositionTime(pts, decodeTime);
+        int end = offset + length;
+        collectParameterSets(data, offset, end);
+
+        if ((paramsChanged || !sequenceHeaderSent) && hasParameterSets()) {
+            body.reset();
+            writeVideoHeader(true, 0, 0);
+            if (hevc) {
+                writeHvcC();
+            } else {
+                writeAvcC();
+            }
+            out.writeTag(TAG_VIDEO, timestamp, body.array(), 0, body.length());
+            sequenceHeaderSent = true;
+            paramsChanged = false;
+            sequenceHeaders++;
+        }
+        if (!sequenceHeaderSent) {
+            skippedFrames++;
+            return false;
+        }
+
+        body.reset();
+        writeVideoHeader(keyFrame, 1, cts);
+        int headerLength = body.length();
+        int pos = NalUnits.findStartCode(data, offset, end);
+        while (pos >= 0) {
+            int header = pos + NalUnits.startCodeLength(data, pos);
+            if (header >= end) {
+                break;
+            }
+            int next = NalUnits.findStartCode(data, header + 1, end);
+            int nalEnd = next < 0 ? end : next;
+            int type = NalUnits.nalType(data[header], hevc);
+            // 参数集已在序列头中，分隔符在 FLV 中没有意义
+            if (!NalUnits.isParameterSet(type, hevc) && type != (hevc ? NalUnits.HEVC_AUD : NalUnits.H264_AUD)) {
+                appendInt(nalEnd - header);
+                body.append(data, header, nalEnd - header);
+            }
+            pos = next;
+        }
+        if (body.length() == headerLength) {
+            return false;
+        }
+        out.writeTag(TAG_VIDEO, timestamp, body.array(), 0, body.length());
+        videoTags++;
+        return true;
+    }
+
+    public boolean isHevc() {
+        return hevc;
+    }
+
+    public long getVideoTags() {
+        return videoTags;
+    }
+
+    public long getSequenceHeaders() {
+        return sequenceHeaders;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * FLV 文件头（含第一个 PreviousTagSize）
+     *
+     * @param audio 是否声明音频
+     */
+    public static byte[] fileHeader(boolean audio) {
+        return new byte[]{'F', 'L', 'V', 1, (byte) (audio ? 0x05 : 0x01), 0, 0, 0, 9, 0, 0, 0, 0};
+    }
+
+    /**
+     * 完整 tag 的头部（11 字节），之后是负载与 4 字节 PreviousTagSize
+     */
+    public static void writeTagHeader(byte[] dst, int tagType, int timestamp, int dataSize) {
+        dst[0] = (byte) tagType;
+        dst[1] = (byte) (dataSize >>> 16);
+        dst[2] = (byte) (dataSize >>> 8);
+        dst[3] = (byte) dataSize;
+        dst[4] = (byte) (timestamp >>> 16);
+        dst[5] = (byte) (timestamp >>> 8);
+        dst[6] = (byte) timestamp;
+        dst[7] = (byte) (timestamp >>> 24);
+        dst[8] = 0;
+        dst[9] = 0;
+        dst[10] = 0;
+    }
+
+    /**
+     * 合成时间（毫秒）：PTS − DTS，处理 33 位回绕，任一未知或差值异常时为 0
+     */
+    private static int compositionTime(long pts, long dts) {
+        if (pts < 0 || dts < 0) {
+            return 0;
+        }
+        long delta = (pts - dts) & PTS_MASK;
+        return delta <= MAX_PTS_GAP ? (int) (delta / 90) : 0;
+    }
+
+    /**
+     * 换算时间戳：有 DTS（或 PTS）时累加增量（处理 33 位回绕与跳变），否则使用到达时间
+     */
+    private int nextTimestamp(long pts) {
+        if (pts < 0) {
+            long now = System.currentTimeMillis();
+            if (firstWallMillis < 0) {
+                firstWallMillis = now;
+            }
+            return (int) (now - firstWallMillis);
+        }
+        if (lastPts >= 0) {
+            long delta = (pts - lastPts) & PTS_MASK;
+            if (delta <= MAX_PTS_GAP) {
+                elapsed90k += delta;
+            }
+        }
+        lastPts = pts;
+        return (int) (elapsed90k / 90);
+    }
+
+    private void collectParameterSets(byte[] data, int offset, int end) {
+        int pos = NalUnits.findStartCode(data, offset, end);
+        while (pos >= 0) {
+            int header = pos + NalUnits.startCodeLength(data, pos);
+            if (header >= end) {
+                break;
+            }
+            int next = NalUnits.findStartCode(data, header + 1, end);
+            int nalEnd = next < 0 ? end : next;
+            int type = NalUnits.nalType(data[header], hevc);
+            if (NalUnits.isParameterSet(type, hevc)) {
+                if (hevc && type == NalUnits.HEVC_VPS) {
+                    vps = update(vps, data, header, nalEnd);
+                } else if (type == (hevc ? NalUnits.HEVC_SPS : NalUnits.H264_SPS)) {
+                    sps = update(sps, data, header, nalEnd);
+                } else {
+                    pps = update(pps, data, header, nalEnd);
+                }
+            }
+            pos = next;
+        }
+    }
+
+    private byte[] update(byte[] current, byte[] data, int from, int to) {
+        if (current != null && current.length == to - from) {
+            boolean same = true;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != data[from + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return current;
+            }
+        }
+        paramsChanged = true;
+        byte[] copy = new byte[to - from];
+        System.arraycopy(data, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    private boolean hasParameterSets() {
+        return sps != null && pps != null && (!hevc || vps != null) && sps.length >= 4;
+    }
+
+    /**
+     * 视频 tag 负载头：帧类型 + 编码 ID，包类型（0 序列头，1 帧数据），24 位合成时间（毫秒）
+     */
+    private void writeVideoHeader(boolean keyFrame, int packetType, int cts) {
+        body.append((byte) (((keyFrame ? 1 : 2) << 4) | (hevc ? CODEC_HEVC : CODEC_AVC)));
+        body.append((byte) packetType);
+        body.append((byte) (cts >>> 16));
+        body.append((byte) (cts >>> 8));
+        body.append((byte) cts);
+    }
+
+    /**
+     * AVCDecoderConfigurationRecord
+     */
+    private void writeAvcC() {
+        body.append((byte) 1);
+        body.append(sps[1]);      // profile_idc
+        body.append(sps[2]);      // 兼容性标志
+        body.append(sps[3]);      // level_idc
+        body.append((byte) 0xFF); // NALU 长度 4 字节
+        body.append((byte) 0xE1); // 1 个 SPS
+        appendShort(sps.length);
+        body.append(sps, 0, sps.length);
+        body.append((byte) 1);    // 1 个 PPS
+        appendShort(pps.length);
+        body.append(pps, 0, pps.length);
+    }
+
+    /**
+     * HEVCDecoderConfigurationRecord，profile / level 等字段取自 SPS
+     */
+    private void writeHvcC() {
+        HevcSpsInfo info = HevcSpsInfo.parse(sps);
+        body.append((byte) 1);
+        body.append(info.profileTierLevel, 0, 12);             // profile_space / tier / profile / 兼容性 / 约束 / level
+        body.append((byte) 0xF0);                              // min_spatial_segmentation_idc = 0
+        body.append((byte) 0x00);
+        body.append((byte) 0xFC);                              // parallelismType = 0
+        body.append((byte) (0xFC | info.chromaFormat));
+        body.append((byte) (0xF8 | info.bitDepthLumaMinus8));
+        body.append((byte) (0xF8 | info.bitDepthChromaMinus8));
+        body.append((byte) 0);                                 // avgFrameRate
+        body.append((byte) 0);
+        body.append((byte) ((info.maxSubLayers << 3) | (info.temporalIdNested << 2) | 3));
+        body.append((byte) 3);                                 // VPS / SPS / PPS 三组
+        appendArray(NalUnits.HEVC_VPS, vps);
+        appendArray(NalUnits.HEVC_SPS, sps);
+        appendArray(NalUnits.HEVC_PPS, pps);
+    }
+
+    private void appendArray(int nalType, byte[] nal) {
+        body.append((byte) (0x80 | nalType));
+        appendShort(1);
+        appendShort(nal.length);
+        body.append(nal, 0, nal.length);
+    }
+
+    private void appendShort(int v) {
+        body.append((byte) (v >>> 8));
+        body.append((byte) v);
+    }
+
+    private void appendInt(int v) {
+        body.append((byte) (v >>> 24));
+        body.append((byte) (v >>> 16));
+        body.append((byte) (v >>> 8));
+        body.append((byte) v);
+    }
+
+    /**
+     * 从 H.265 SPS 中取出 hvcC 需要的字段
+     */
+    static final class HevcSpsInfo {
+        final byte[] profileTierLevel = new byte[12];
+        int maxSubLayers = 1;
+        int temporalIdNested;
+        int chromaFormat = 1;
+        int bitDepthLumaMinus8;
+        int bitDepthChromaMinus8;
+        int width;
+        int height;
+
+        /**
+         * @param sps 含两字节 NAL 头的 SPS
+         */
+        static HevcSpsInfo parse(byte[] sps) {
+            HevcSpsInfo info = new HevcSpsInfo();
+            byte[] rbsp = unescape(sps, 2);
+            if (rbsp.length < 13) {
+                return info;
+            }
+            int first = rbsp[0] & 0xFF;
+            int maxSubLayersMinus1 = (first >> 1) & 0x07;
+            info.maxSubLayers = maxSubLayersMinus1 + 1;
+            info.temporalIdNested = first & 0x01;
+            System.arraycopy(rbsp, 1, info.profileTierLevel, 0, 12);
+            try {
+                BitReader br = new BitReader(rbsp, 13 * 8);
+                boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+                boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+                for (int i = 0; i < maxSubLayersMinus1; i++) {
+                    profilePresent[i] = br.bit() == 1;
+                    levelPresent[i] = br.bit() == 1;
+                }
+                if (maxSubLayersMinus1 > 0) {
+                    for (int i = maxSubLayersMinus1; i < 8; i++) {
+                        br.skip(2);
+                    }
+                }
+                for (int i = 0; i < maxSubLayersMinus1; i++) {
+                    if (profilePresent[i]) {
+                        br.skip(88);
+                    }
+                    if (levelPresent[i]) {
+                        br.skip(8);
+                    }
+                }
+                br.ue();                        // sps_seq_parameter_set_id
+                info.chromaFormat = br.ue() & 0x03;
+                if (info.chromaFormat == 3) {
+                    br.skip(1);                 // separate_colour_plane_flag
+                }
+                info.width = br.ue();           // pic_width_in_luma_samples
+                info.height = br.ue();          // pic_height_in_luma_samples
+                if (br.bit() == 1) {            // conformance_window_flag
+                    int subWidth = info.chromaFormat == 1 || info.chromaFormat == 2 ? 2 : 1;
+                    int subHeight = info.chromaFormat == 1 ? 2 : 1;
+                    info.width -= subWidth * (br.ue() + br.ue());
+                    info.height -= subHeight * (br.ue() + br.ue());
+                }
+                info.bitDepthLumaMinus8 = br.ue() & 0x07;
+                info.bitDepthChromaMinus8 = br.ue() & 0x07;
+            } catch (IndexOutOfBoundsException e) {
+                // SPS 被截断时使用默认值（4:2:0，8 bit）
+            }
+            return info;
+        }
+
+        /**
+         * 去除防竞争字节（00 00 03 中的 03）
+         */
+        static byte[] unescape(byte[] nal, int from) {
+            byte[] out = new byte[Math.max(nal.length - from, 0)];
+            int n = 0;
+            int zeros = 0;
+            for (int i = from; i < nal.length; i++) {
+                int b = nal[i] & 0xFF;
+                if (zeros >= 2 && b == 3) {
+                    zeros = 0;
+                    continue;
+                }
+                out[n++] = (byte) b;
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            byte[] result = new byte[n];
+            System.arraycopy(out, 0, result, 0, n);
+            return result;
+        }
+    }
+
+    /**
+     * 从 H.264 SPS 中取出图像宽高
+     */
+    static final class AvcSpsInfo {
+        int width;
+        int height;
+
+        /**
+         * @param sps 含一字节 NAL 头的 SPS
+         */
+        static AvcSpsInfo parse(byte[] sps) {
+            AvcSpsInfo info = new AvcSpsInfo();
+            byte[] rbsp = HevcSpsInfo.unescape(sps, 1);
+            if (rbsp.length < 4) {
+                return info;
+            }
+            try {
+                int profile = rbsp[0] & 0xFF;
+                BitReader br = new BitReader(rbsp, 3 * 8);
+                br.ue();                                    // seq_parameter_set_id
+                int chromaFormat = 1;
+                if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                        || profile == 83 || profile == 86 || profile == 118 || profile == 128
+                        || profile == 138 || profile == 139 || profile == 134 || profile == 135) {
+                    chromaFormat = br.ue();
+                    if (chromaFormat == 3) {
+                        br.skip(1);                         // separate_colour_plane_flag
+                    }
+                    br.ue();                                // bit_depth_luma_minus8
+                    br.ue();                                // bit_depth_chroma_minus8
+                    br.skip(1);                             // qpprime_y_zero_transform_bypass_flag
+                    if (br.bit() == 1) {                    // seq_scaling_matrix_present_flag
+                        int lists = chromaFormat == 3 ? 12 : 8;
+                        for (int i = 0; i < lists; i++) {
+                            if (br.bit() == 1) {
+                                skipScalingList(br, i < 6 ? 16 : 64);
+                            }
+                        }
+                    }
+                }
+                br.ue();                                    // log2_max_frame_num_minus4
+                int pocType = br.ue();
+                if (pocType == 0) {
+                    br.ue();                                // log2_max_pic_order_cnt_lsb_minus4
+                } else if (pocType == 1) {
+                    br.skip(1);                             // delta_pic_order_always_zero_flag
+                    br.se();                                // offset_for_non_ref_pic
+                    br.se();                                // offset_for_top_to_bottom_field
+                    int cycle = br.ue();
+                    for (int i = 0; i < cycle; i++) {
+                        br.se();
+                    }
+                }
+                br.ue();                                    // max_num_ref_frames
+                br.skip(1);                                 // gaps_in_frame_num_value_allowed_flag
+                int widthInMbs = br.ue() + 1;
+                int heightInMapUnits = br.ue() + 1;
+                int frameMbsOnly = br.bit();
+                if (frameMbsOnly == 0) {
+                    br.skip(1);                             // mb_adaptive_frame_field_flag
+                }
+                br.skip(1);                                 // direct_8x8_inference_flag
+                info.width = widthInMbs * 16;
+                info.height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+                if (br.bit() == 1) {                        // frame_cropping_flag
+                    int cropX = chromaFormat == 0 || chromaFormat == 3 ? 1 : 2;
+                    int cropY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+                    info.width -= cropX * (br.ue() + br.ue());
+                    info.height -= cropY * (br.ue() + br.ue());
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // SPS 被截断时宽高保持已解析的值
+            }
+            return info;
+        }
+
+        private static void skipScalingList(BitReader br, int size) {
+            int last = 8;
+            int next = 8;
+            for (int j = 0; j < size; j++) {
+                if (next != 0) {
+                    next = (last + br.se() + 256) % 256;
+                }
+                last = next == 0 ? last : next;
+            }
+        }
+    }
+
+    /**
+     * 按位读取（含无符号 / 有符号指数哥伦布码）
+     */
+    static final class BitReader {
+        private final byte[] data;
+        private int bitPos;
+
+        BitReader(byte[] data, int bitPos) {
+            this.data = data;
+            this.bitPos = bitPos;
+        }
+
+        int bit() {
+            int b = (data[bitPos >> 3] >> (7 - (bitPos & 7))) & 1;
+            bitPos++;
+            return b;
+        }
+
+        void skip(int bits) {
+            bitPos += bits;
+        }
+
+        int ue() {
+            int zeros = 0;
+            while (bit() == 0) {
+                zeros++;
+                if (zeros > 31) {
+                    throw new IndexOutOfBoundsException("非法的指数哥伦布码");
+                }
+            }
+            int value = 0;
+            for (int i = 0; i < zeros; i++) {
+                value = (value << 1) | bit();
+            }
+            return (1 << zeros) - 1 + value;
+        }
+
+        int se() {
+            int v = ue();
+            return (v & 1) == 1 ? (v + 1) / 2 : -(v / 2);
+        }
+    }
+}
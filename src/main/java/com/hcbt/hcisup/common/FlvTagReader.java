@@ -0,0 +1,72 @@
+package com.hcbt.hcisup.common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * FLV 流读取
+ * <p>
+ * 从 FFmpeg 的 {@code -f flv pipe:1} 输出中逐个读取 tag，以负载的形式交给
+ * {@link FlvMuxer.TagWriter}（直播分发或 RTMP 推流），不在 Java 侧重新封装。
+ */
+public class FlvTagReader {
+
+    private final DataInputStream in;
+    private final byte[] tagHeader = new byte[11];
+    // 复用的负载缓冲区
+    private byte[] body = new byte[256 * 1024];
+    private boolean headerRead;
+    private long tags;
+
+    public FlvTagReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * 读取下一个 tag 并输出
+     *
+     * @return false 表示流已结束
+     */
+    public boolean next(FlvMuxer.TagWriter out) throws IOException {
+        try {
+            if (!headerRead) {
+                readFileHeader();
+                headerRead = true;
+            }
+            in.readFully(tagHeader);
+            int tagType = tagHeader[0] & 0x1F;
+            int dataSize = ((tagHeader[1] & 0xFF) << 16) | ((tagHeader[2] & 0xFF) << 8) | (tagHeader[3] & 0xFF);
+            int timestamp = ((tagHeader[7] & 0xFF) << 24) | ((tagHeader[4] & 0xFF) << 16)
+                    | ((tagHeader[5] & 0xFF) << 8) | (tagHeader[6] & 0xFF);
+            if (body.length < dataSize) {
+                body = new byte[Math.max(dataSize, body.length * 2)];
+            }
+            in.readFully(body, 0, dataSize);
+            in.readInt(); // PreviousTagSize
+            tags++;
+            out.writeTag(tagType, timestamp, body, 0, dataSize);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public long getTags() {
+        return tags;
+    }
+
+    private void readFileHeader() throws IOException {
+        byte[] header = new byte[9];
+        in.readFully(header);
+        if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+            throw new IOException("不是 FLV 数据");
+        }
+        int headerSize = ((header[5] & 0xFF) << 24) | ((header[6] & 0xFF) << 16) | ((header[7] & 0xFF) << 8) | (header[8] & 0xFF);
+        if (headerSize > 9) {
+            in.readFully(new byte[headerSize - 9]);
+        }
+        in.readInt(); // PreviousTagSize0
+    }
+}
@@ -0,0 +1,400 @@
+package com.hcbt.hcisup.common;
+
+import java.util.List;
+
+/**
+ * fMP4（CMAF）封装
+ * <p>
+ * 输入为 FLV 视频 tag 中的解码配置（avcC / hvcC）与 AVCC 帧数据，二者与 MP4 中的格式相同，
+ * 因此无需再转换 NAL：初始化段直接嵌入解码配置，分片（moof + mdat）直接拼接帧数据。
+ * 时间基为毫秒（timescale 1000），与 FLV 时间戳一致。
+ */
+public final class Fmp4Muxer {
+
+    /** 时间基 */
+    public static final int TIMESCALE = 1000;
+
+    private static final int TRACK_ID = 1;
+
+    // trun 标志：data-offset、时长、大小、标志、合成时间偏移
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400 | 0x000800;
+    // 样本标志：关键帧 depends_on=2；非关键帧 depends_on=1 且 is_non_sync
+    private static final int SAMPLE_SYNC = 0x02000000;
+    private static final int SAMPLE_NON_SYNC = 0x01010000;
+
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private Fmp4Muxer() {
+    }
+
+    /**
+     * 一个样本（一帧）
+     */
+    public static final class Sample {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final long decodeTime;
+        final int compositionOffset;
+        final boolean keyFrame;
+        int duration;
+
+        /**
+         * @param data              AVCC 帧数据（不复制）
+         * @param decodeTime        解码时间（毫秒）
+         * @param compositionOffset 显示时间与解码时间之差（毫秒）
+         */
+        public Sample(byte[] data, int offset, int length, long decodeTime, int compositionOffset, boolean keyFrame) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.decodeTime = decodeTime;
+            this.compositionOffset = compositionOffset;
+            this.keyFrame = keyFrame;
+        }
+
+        public int getDuration() {
+            return duration;
+        }
+
+        public boolean isKeyFrame() {
+            return keyFrame;
+        }
+    }
+
+    /**
+     * 初始化段（ftyp + moov）
+     *
+     * @param hevc   是否为 H.265
+     * @param config AVCDecoderConfigurationRecord / HEVCDecoderConfigurationRecord
+     */
+    public static byte[] initSegment(boolean hevc, byte[] config) {
+        int[] size = videoSize(hevc, config);
+        BoxWriter w = new BoxWriter(1024 + config.length);
+
+        int ftyp = w.start("ftyp");
+        w.fourcc("iso6");
+        w.u32(0);
+        w.fourcc("iso6");
+        w.fourcc("cmfc");
+        w.fourcc("mp41");
+        w.end(ftyp);
+
+        int moov = w.start("moov");
+        int mvhd = w.fullBox("mvhd", 0, 0);
+        w.u32(0);                   // creation_time
+        w.u32(0);                   // modification_time
+        w.u32(TIMESCALE);
+        w.u32(0);                   // duration
+        w.u32(0x00010000);          // rate 1.0
+        w.u16(0x0100);              // volume 1.0
+        w.zeros(10);
+        w.matrix();
+        w.zeros(24);                // pre_defined
+        w.u32(TRACK_ID + 1);        // next_track_ID
+        w.end(mvhd);
+
+        int trak = w.start("trak");
+        int tkhd = w.fullBox("tkhd", 0, 0x000003);
+        w.u32(0);
+        w.u32(0);
+        w.u32(TRACK_ID);
+        w.u32(0);                   // reserved
+        w.u32(0);                   // duration
+        w.zeros(8);
+        w.u16(0);                   // layer
+        w.u16(0);                   // alternate_group
+        w.u16(0);                   // volume
+        w.u16(0);
+        w.matrix();
+        w.u32(size[0] << 16);
+        w.u32(size[1] << 16);
+        w.end(tkhd);
+
+        int mdia = w.start("mdia");
+        int mdhd = w.fullBox("mdhd", 0, 0);
+        w.u32(0);
+        w.u32(0);
+        w.u32(TIMESCALE);
+        w.u32(0);
+        w.u16(0x55C4);              // language "und"
+        w.u16(0);
+        w.end(mdhd);
+        int hdlr = w.fullBox("hdlr", 0, 0);
+        w.u32(0);
+        w.fourcc("vide");
+        w.zeros(12);
+        w.ascii("VideoHandler");
+        w.u8(0);
+        w.end(hdlr);
+
+        int minf = w.start("minf");
+        int vmhd = w.fullBox("vmhd", 0, 1);
+        w.zeros(8);                 // graphicsmode + opcolor
+        w.end(vmhd);
+        int dinf = w.start("dinf");
+        int dref = w.fullBox("dref", 0, 0);
+        w.u32(1);
+        int url = w.fullBox("url ", 0, 1);
+        w.end(url);
+        w.end(dref);
+        w.end(dinf);
+
+        int stbl = w.start("stbl");
+        int stsd = w.fullBox("stsd", 0, 0);
+        w.u32(1);
+        int entry = w.start(hevc ? "hvc1" : "avc1");
+        w.zeros(6);
+        w.u16(1);                   // data_reference_index
+        w.zeros(16);                // pre_defined + reserved
+        w.u16(size[0]);
+        w.u16(size[1]);
+        w.u32(0x00480000);          // 72 dpi
+        w.u32(0x00480000);
+        w.u32(0);
+        w.u16(1);                   // frame_count
+        w.zeros(32);                // compressorname
+        w.u16(0x0018);              // depth
+        w.u16(0xFFFF);              // pre_defined = -1
+        int cfg = w.start(hevc ? "hvcC" : "avcC");
+        w.bytes(config, 0, config.length);
+        w.end(cfg);
+        w.end(entry);
+        w.end(stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = w.fullBox(empty, 0, 0);
+            w.u32(0);
+            w.end(box);
+        }
+        int stsz = w.fullBox("stsz", 0, 0);
+        w.u32(0);
+        w.u32(0);
+        w.end(stsz);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+
+        int mvex = w.start("mvex");
+        int trex = w.fullBox("trex", 0, 0);
+        w.u32(TRACK_ID);
+        w.u32(1);                   // default_sample_description_index
+        w.u32(0);
+        w.u32(0);
+        w.u32(0);
+        w.end(trex);
+        w.end(mvex);
+        w.end(moov);
+        return w.toByteArray();
+    }
+
+    /**
+     * 一个分片（moof + mdat），样本时长需已填好
+     *
+     * @param sequence 分片序号（从 1 开始递增）
+     */
+    public static byte[] fragment(int sequence, List<Sample> samples) {
+        int dataSize = 0;
+        for (Sample sample : samples) {
+            dataSize += sample.length;
+        }
+        BoxWriter w = new BoxWriter(128 + samples.size() * 16 + 8 + dataSize);
+
+        int moof = w.start("moof");
+        int mfhd = w.fullBox("mfhd", 0, 0);
+        w.u32(sequence);
+        w.end(mfhd);
+        int traf = w.start("traf");
+        int tfhd = w.fullBox("tfhd", 0, 0x020000);     // default-base-is-moof
+        w.u32(TRACK_ID);
+        w.end(tfhd);
+        int tfdt = w.fullBox("tfdt", 1, 0);
+        w.u64(samples.isEmpty() ? 0 : samples.get(0).decodeTime);
+        w.end(tfdt);
+        int trun = w.fullBox("trun", 1, TRUN_FLAGS);    // 版本 1：合成时间偏移为有符号数
+        w.u32(samples.size());
+        int dataOffsetPos = w.position();
+        w.u32(0);
+        for (Sample sample : samples) {
+            w.u32(sample.duration);
+            w.u32(sample.length);
+            w.u32(sample.keyFrame ? SAMPLE_SYNC : SAMPLE_NON_SYNC);
+            w.u32(sample.compositionOffset);
+        }
+        w.end(trun);
+        w.end(traf);
+        w.end(moof);
+        // 数据偏移从 moof 起算，指向 mdat 负载
+        w.patch(dataOffsetPos, w.position() + 8);
+
+        w.u32(8 + dataSize);
+        w.fourcc("mdat");
+        for (Sample sample : samples) {
+            w.bytes(sample.data, sample.offset, sample.length);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * 从解码配置中的 SPS 取出宽高，解析失败返回 0
+     */
+    static int[] videoSize(boolean hevc, byte[] config) {
+        byte[] sps = hevc ? hvcCNal(config, NalUnits.HEVC_SPS) : avcCSps(config);
+        if (sps == null) {
+            return new int[]{0, 0};
+        }
+        if (hevc) {
+            FlvMuxer.HevcSpsInfo info = FlvMuxer.HevcSpsInfo.parse(sps);
+            return new int[]{Math.max(info.width, 0), Math.max(info.height, 0)};
+        }
+        FlvMuxer.AvcSpsInfo info = FlvMuxer.AvcSpsInfo.parse(sps);
+        return new int[]{Math.max(info.width, 0), Math.max(info.height, 0)};
+    }
+
+    private static byte[] avcCSps(byte[] config) {
+        // 版本、profile、兼容性、level、长度字段、SPS 个数
+        if (config.length < 8 || (config[5] & 0x1F) == 0) {
+            return null;
+        }
+        int length = ((config[6] & 0xFF) << 8) | (config[7] & 0xFF);
+        return copy(config, 8, length);
+    }
+
+    private static byte[] hvcCNal(byte[] config, int nalType) {
+        if (config.length < 23) {
+            return null;
+        }
+        int pos = 23;
+        int arrays = config[22] & 0xFF;
+        for (int a = 0; a < arrays && pos + 3 <= config.length; a++) {
+            int type = config[pos] & 0x3F;
+            int count = ((config[pos + 1] & 0xFF) << 8) | (config[pos + 2] & 0xFF);
+            pos += 3;
+            for (int i = 0; i < count && pos + 2 <= config.length; i++) {
+                int length = ((config[pos] & 0xFF) << 8) | (config[pos + 1] & 0xFF);
+                pos += 2;
+                if (type == nalType) {
+                    return copy(config, pos, length);
+                }
+                pos += length;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] copy(byte[] src, int from, int length) {
+        if (from + length > src.length) {
+            return null;
+        }
+        byte[] out = new byte[length];
+        System.arraycopy(src, from, out, 0, length);
+        return out;
+    }
+
+    /**
+     * 大端写入，box 长度在结束时回填
+     */
+    private static final class BoxWriter {
+        private byte[] buf;
+        private int pos;
+
+        BoxWriter(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        int start(String type) {
+            int at = pos;
+            u32(0);
+            fourcc(type);
+            return at;
+        }
+
+        int fullBox(String type, int version, int flags) {
+            int at = start(type);
+            u32((version << 24) | flags);
+            return at;
+        }
+
+        void end(int at) {
+            patch(at, pos - at);
+        }
+
+        void patch(int at, int value) {
+            buf[at] = (byte) (value >>> 24);
+            buf[at + 1] = (byte) (value >>> 16);
+            buf[at + 2] = (byte) (value >>> 8);
+            buf[at + 3] = (byte) value;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        void u8(int v) {
+            ensure(1);
+            buf[pos++] = (byte) v;
+        }
+
+        void u16(int v) {
+            ensure(2);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void u32(int v) {
+            ensure(4);
+            patch(pos, v);
+            pos += 4;
+        }
+
+        void u64(long v) {
+            u32((int) (v >>> 32));
+            u32((int) v);
+        }
+
+        void fourcc(String type) {
+            ascii(type);
+        }
+
+        void ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[pos++] = (byte) s.charAt(i);
+            }
+        }
+
+        void zeros(int n) {
+            ensure(n);
+            pos += n;
+        }
+
+        void matrix() {
+            for (int v : UNITY_MATRIX) {
+                u32(v);
+            }
+        }
+
+        void bytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, buf, pos, length);
+            pos += length;
+        }
+
+        byte[] toByteArray() {
+            if (pos == buf.length) {
+                return buf;
+            }
+            byte[] out = new byte[pos];
+            System.arraycopy(buf, 0, out, 0, pos);
+            return out;
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, pos + n)];
+                System.arraycopy(buf, 0, grown, 0, pos);
+                buf = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.hcbt.hcisup.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者 / 单消费者的帧环形缓冲区
+ * <p>
+ * 生产者是 SDK 预览回调线程，消费者是该通道专属的写入线程。帧数据连同帧头
+ * （长度、标志、PTS、DTS）连续存放在一个预分配的字节数组里，入队和出队都不分配对象；
+ * 消费者可以直接从底层数组把帧写入 FFmpeg 管道。
+ * <p>
+ * 缓冲区满时按 {@link OverflowPolicy} 处理：
+ * <ul>
+ *     <li>DROP_TO_IDR：丢弃当前帧，并继续丢弃后续非关键帧，直到下一个关键帧能够入队</li>
+ *     <li>BLOCK：阻塞生产者，超时仍无空间则按 DROP_TO_IDR 处理</li>
+ * </ul>
+ */
+public class FrameRingBuffer {
+
+    /** 缓冲区满时的处理策略 */
+    public enum OverflowPolicy {
+        DROP_TO_IDR,
+        BLOCK
+    }
+
+    /** 帧标志：关键帧 */
+    public static final int FLAG_KEY_FRAME = 1;
+
+    // 帧头：int 长度 + int 标志 + long PTS + long DTS
+    private static final int HEADER_SIZE = 24;
+    // 回绕标记：数组尾部剩余空间放不下一帧时写入
+    private static final int WRAP_MARKER = -1;
+
+    private final byte[] buffer;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+
+    // 写入位置（单调递增），只由生产者修改
+    private final AtomicLong tail = new AtomicLong();
+    // 读取位置（单调递增），只由消费者修改
+    private final AtomicLong head = new AtomicLong();
+    // 生产者侧状态：是否在等待关键帧
+    private boolean waitingForKeyFrame;
+    // 消费者线程，入队后唤醒
+    private volatile Thread consumer;
+
+    // 当前帧的读取结果（仅消费者使用）
+    private int frameOffset;
+    private int frameLength;
+    private int frameFlags;
+    private long framePts;
+    private long frameDts;
+
+    // 统计
+    private final AtomicLong offeredFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private final AtomicLong overflowEvents = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile long highWatermark;
+
+    /**
+     * @param capacity        缓冲区容量（字节）
+     * @param policy          溢出策略
+     * @param blockTimeoutMs  BLOCK 策略的最长阻塞时间
+     */
+    public FrameRingBuffer(int capacity, OverflowPolicy policy, long blockTimeoutMs) {
+        // 容量按 8 字节对齐，保证尾部剩余空间至少能放下回绕标记
+        this.capacity = Math.max(capacity, 64 * 1024) & ~7;
+        this.buffer = new byte[this.capacity];
+        this.policy = policy == null ? OverflowPolicy.DROP_TO_IDR : policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(blockTimeoutMs, 0));
+    }
+
+    /**
+     * 绑定消费者线程，入队后会唤醒它
+     */
+    public void bindConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * 生产者入队一帧
+     *
+     * @param pts 90kHz 显示时间戳，未知为 -1
+     * @param dts 90kHz 解码时间戳，未知为 -1
+     * @return 是否入队成功（false 表示被丢弃）
+     */
+    public boolean offer(byte[] src, int offset, int length, long pts, long dts, boolean keyFrame) {
+        offeredFrames.incrementAndGet();
+        if (waitingForKeyFrame && !keyFrame) {
+            drop(length);
+            return false;
+        }
+        int recordSize = align(HEADER_SIZE + length);
+        if (recordSize > capacity) {
+            // 单帧超过整个缓冲区，只能丢弃
+            overflowEvents.incrementAndGet();
+            waitingForKeyFrame = true;
+            drop(length);
+            return false;
+        }
+        long t = tail.get();
+        int pos = (int) (t % capacity);
+        int padding = pos + recordSize > capacity ? capacity - pos : 0;
+        long required = padding + recordSize;
+
+        if (!hasSpace(t, required)) {
+            overflowEvents.incrementAndGet();
+            if (policy != OverflowPolicy.BLOCK || !awaitSpace(t, required)) {
+                waitingForKeyFrame = true;
+                drop(length);
+                return false;
+            }
+        }
+
+        if (padding > 0) {
+            writeInt(pos, WRAP_MARKER);
+            pos = 0;
+        }
+        writeInt(pos, length);
+        writeInt(pos + 4, keyFrame ? FLAG_KEY_FRAME : 0);
+        writeLong(pos + 8, pts);
+        writeLong(pos + 16, dts);
+        System.arraycopy(src, offset, buffer, pos + HEADER_SIZE, length);
+        long newTail = t + required;
+        tail.lazySet(newTail);
+        waitingForKeyFrame = false;
+
+        long used = newTail - head.get();
+        if (used > highWatermark) {
+            highWatermark = used;
+        }
+        Thread c = consumer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+        return true;
+    }
+
+    private boolean hasSpace(long t, long required) {
+        return capacity - (t - head.get()) >= required;
+    }
+
+    /**
+     * BLOCK 策略：等待消费者腾出空间
+     */
+    private boolean awaitSpace(long t, long required) {
+        long start = System.nanoTime();
+        long deadline = start + blockTimeoutNanos;
+        try {
+            while (!hasSpace(t, required)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(Math.min(left, 100_000L));
+            }
+            return true;
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void drop(int length) {
+        droppedFrames.incrementAndGet();
+        droppedBytes.addAndGet(length);
+    }
+
+    /**
+     * 消费者读取下一帧的位置信息，数据仍在底层数组中，处理完后调用 {@link #release()}
+     *
+     * @return 是否有可读帧
+     */
+    public boolean peek() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        int pos = (int) (h % capacity);
+        if (readInt(pos) == WRAP_MARKER) {
+            h += capacity - pos;
+            head.lazySet(h);
+            if (h == tail.get()) {
+                return false;
+            }
+            pos = 0;
+        }
+        frameLength = readInt(pos);
+        frameFlags = readInt(pos + 4);
+        framePts = readLong(pos + 8);
+        frameDts = readLong(pos + 16);
+        frameOffset = pos + HEADER_SIZE;
+        return true;
+    }
+
+    /**
+     * 消费者确认当前帧已处理，释放其空间
+     */
+    public void release() {
+        // peek 已跳过回绕标记，head 正指向当前帧
+        head.lazySet(head.get() + align(HEADER_SIZE + frameLength));
+    }
+
+    /**
+     * 消费者等待新数据
+     */
+    public void await(long timeoutNanos) {
+        if (head.get() == tail.get()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+    }
+
+    /**
+     * 丢弃所有未消费的数据（仅消费者线程或生产者停止后调用）
+     */
+    public void clear() {
+        head.set(tail.get());
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    public long framePts() {
+        return framePts;
+    }
+
+    public long frameDts() {
+        return frameDts;
+    }
+
+    public boolean isKeyFrame() {
+        return (frameFlags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long usedBytes() {
+        return tail.get() - head.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * 统计信息
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("policy", policy.name());
+        stats.put("capacity", capacity);
+        stats.put("usedBytes", usedBytes());
+        stats.put("highWatermark", highWatermark);
+        stats.put("offeredFrames", offeredFrames.get());
+        stats.put("droppedFrames", droppedFrames.get());
+        stats.put("droppedBytes", droppedBytes.get());
+        stats.put("overflowEvents", overflowEvents.get());
+        stats.put("blockedMs", TimeUnit.NANOSECONDS.toMillis(blockedNanos.get()));
+        return stats;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private void writeInt(int pos, int v) {
+        buffer[pos] = (byte) (v >>> 24);
+        buffer[pos + 1] = (byte) (v >>> 16);
+        buffer[pos + 2] = (byte) (v >>> 8);
+        buffer[pos + 3] = (byte) v;
+    }
+
+    private void writeLong(int pos, long v) {
+        writeInt(pos, (int) (v >>> 32));
+        writeInt(pos + 4, (int) v);
+    }
+
+    private int readInt(int pos) {
+        return ((buffer[pos] & 0xFF) << 24)
+                | ((buffer[pos + 1] & 0xFF) << 16)
+                | ((buffer[pos + 2] & 0xFF) << 8)
+                | (buffer[pos + 3] & 0xFF);
+    }
+
+    private long readLong(int pos) {
+        return ((long) readInt(pos) << 32) | (readInt(pos + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,67 @@
+package com.hcbt.hcisup.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 裸流帧的输出端
+ * <p>
+ * 通道写入线程把环形缓冲区中的帧交给输出端：FFmpeg 进程的标准输入，
+ * 或者进程内的 FLV 封装 + RTMP 推流（H.264 直接复制时不再需要 FFmpeg）。
+ */
+public interface FrameSink extends Closeable {
+
+    /**
+     * 写入线程开始写出前调用一次，建立耗时的连接（如 RTMP 握手），不在启动推流的锁内进行
+     */
+    default void open() throws IOException {
+    }
+
+    /**
+     * 输出一帧 Annex-B 数据
+     *
+     * @param pts      90kHz 显示时间戳，未知为 -1
+     * @param dts      90kHz 解码时间戳，未知为 -1
+     * @param keyFrame 是否为关键帧
+     */
+    void writeFrame(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame) throws IOException;
+
+    /**
+     * 写出已缓冲的数据（写入线程取空环形缓冲区时调用）
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * 缓冲的数据等待超过最长延迟时写出（写入线程每写一帧调用一次）
+     */
+    default void flushIfDue() throws IOException {
+    }
+
+    /**
+     * 写入 FFmpeg 标准输入的输出端，是否合并写出由 {@link CoalescingOutputStream} 的模式决定
+     */
+    static FrameSink pipe(CoalescingOutputStream out) {
+        return new FrameSink() {
+            @Override
+            public void writeFrame(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame) throws IOException {
+                out.write(data, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void flushIfDue() throws IOException {
+                out.flushIfDue();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+}
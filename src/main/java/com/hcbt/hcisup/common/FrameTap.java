@@ -0,0 +1,209 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 推流会话的解码帧分接
+ * <p>
+ * 检测原来读取另一个 FFmpeg 写到磁盘的 JPEG，每路摄像机要解码两次，中间还要编码、解码一次 JPEG。
+ * 推流会话解码出的帧按订阅者各自的采样率复制一份交给订阅者，检测直接从内存取帧。
+ * <p>
+ * 每个订阅者只保留最新的一帧：订阅者处理慢时旧帧被替换（计入丢弃），不会阻塞推流线程，也不会积压内存。
+ * 帧副本取自 {@link MatPool}，被替换或取走处理完的帧归还池中，同一分辨率的帧内存循环使用。
+ * 没有订阅者或未到采样时间时不复制，发布方可先用 {@link #isDue(long)} 判断，省去转换开销。
+ */
+@Slf4j
+public final class FrameTap {
+
+    /**
+     * 一个订阅者
+     */
+    public final class Subscription implements AutoCloseable {
+        private final long intervalNanos;
+        private long nextDueNanos;
+        // 尚未取走的最新一帧（在本对象监视器下访问）
+        private Mat latest;
+        private boolean closed;
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        // 有新帧或关闭时的回调（如唤醒流水线任务）
+        private volatile Runnable listener;
+
+        Subscription(double fps) {
+            this.intervalNanos = fps <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+            this.nextDueNanos = System.nanoTime();
+        }
+
+        /**
+         * 取下一帧，没有新帧时最多等待 timeoutMs
+         *
+         * @return 帧（BGR，取自 {@link MatPool}，调用方用完后 {@link MatPool#release(Mat)} 归还）；超时返回 null，已关闭时同样返回 null
+         */
+        public synchronized Mat take(long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (latest == null && !closed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            Mat frame = latest;
+            latest = null;
+            return frame;
+        }
+
+        /**
+         * 不等待，取走最新一帧（调用方同样负责归还）；没有新帧时返回 null
+         */
+        public synchronized Mat poll() {
+            Mat frame = latest;
+            latest = null;
+            return frame;
+        }
+
+        /**
+         * 设置有新帧或订阅关闭时的回调，在发布线程中调用，不能阻塞
+         */
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        /**
+         * 会话已停止或已取消订阅
+         */
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            subscribers.remove(this);
+            Mat stale;
+            synchronized (this) {
+                closed = true;
+                stale = latest;
+                latest = null;
+                notifyAll();
+            }
+            MatPool.release(stale);
+            notifyListener();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        boolean isDue(long now) {
+            return now - nextDueNanos >= 0;
+        }
+
+        void offer(Mat frame, long now) {
+            nextDueNanos = now + intervalNanos;
+            Mat stale;
+            synchronized (this) {
+                if (closed) {
+                    MatPool.release(frame);
+                    return;
+                }
+                stale = latest;
+                latest = frame;
+                notifyAll();
+            }
+            delivered.incrementAndGet();
+            if (stale != null) {
+                dropped.incrementAndGet();
+                MatPool.release(stale);
+            }
+            notifyListener();
+        }
+
+        private void notifyListener() {
+            Runnable current = listener;
+            if (current != null) {
+                current.run();
+            }
+        }
+    }
+
+    private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * 订阅解码帧
+     *
+     * @param fps 采样帧率，不大于 0 表示每帧都取
+     */
+    public Subscription subscribe(double fps) {
+        Subscription subscription = new Subscription(fps);
+        subscribers.add(subscription);
+        return subscription;
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * 是否有订阅者到了采样时间
+     */
+    public boolean isDue(long now) {
+        for (Subscription subscription : subscribers) {
+            if (subscription.isDue(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把帧复制给到了采样时间的订阅者（frame 由调用方继续持有，副本取自 {@link MatPool}）
+     */
+    public void publish(Mat frame, long now) {
+        for (Subscription subscription : subscribers) {
+            if (subscription.isDue(now)) {
+                Mat copy = MatPool.acquire(frame.rows(), frame.cols(), frame.type());
+                frame.copyTo(copy);
+                subscription.offer(copy, now);
+            }
+        }
+    }
+
+    /**
+     * 会话停止，关闭全部订阅（等待中的订阅者返回 null）
+     */
+    public void closeAll() {
+        for (Subscription subscription : subscribers) {
+            subscription.close();
+        }
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * 各订阅者已交付与被替换的帧数之和
+     */
+    public long[] counters() {
+        long delivered = 0;
+        long dropped = 0;
+        for (Subscription subscription : subscribers) {
+            delivered += subscription.getDelivered();
+            dropped += subscription.getDropped();
+        }
+        return new long[]{delivered, dropped};
+    }
+}
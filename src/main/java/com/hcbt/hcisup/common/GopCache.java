@@ -0,0 +1,247 @@
+package com.hcbt.hcisup.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 单个通道的 GOP 缓存
+ * <p>
+ * 缓存最近的参数集（VPS/SPS/PPS）以及从最近一个关键帧开始的整组帧。
+ * 新启动的 FFmpeg、重启后的推流或者晚加入的观看者可以先拿到这组帧，
+ * 不必等待摄像机的下一个关键帧即可开始解码。
+ * <p>
+ * 帧数据连续存放在一个可复用的数组里，缓存超过上限时丢弃整组，等待下一个关键帧。
+ * 编码由通道的识别结果设置（{@link #setHevc(boolean)}），不在每个关键帧上重新猜测。
+ * 所有方法都需要在同一个监视器下调用（方法本身已同步）。
+ */
+public class GopCache {
+
+    /**
+     * 预热时逐帧回调
+     */
+    public interface FrameConsumer {
+        void accept(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame);
+    }
+
+    // 起始码
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    // 缓存上限（字节），0 表示不缓存
+    private final int maxBytes;
+
+    // 当前 GOP 的帧数据
+    private final EsFrameBuffer gop = new EsFrameBuffer(256 * 1024);
+    // 每帧在 gop 中的起始位置、长度与时间戳
+    private int[] frameOffsets = new int[64];
+    private int[] frameLengths = new int[64];
+    private long[] framePts = new long[64];
+    private long[] frameDts = new long[64];
+    private int frameCount;
+
+    // 最新的参数集（含起始码）
+    private byte[] vps;
+    private byte[] sps;
+    private byte[] pps;
+    // 当前 GOP 的关键帧是否已携带参数集
+    private boolean keyFrameHasParams;
+    private boolean hevc;
+
+    // 统计
+    private long cachedGops;
+    private long overflowedGops;
+    private long primeCount;
+    private long primedFrames;
+    private long skippedPrimes;
+
+    /**
+     * @param maxBytes 缓存上限（字节），0 表示不缓存
+     */
+    public GopCache(int maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * 设置通道的视频编码；编码变化时缓存的参数集与 GOP 都不再可用，一并丢弃
+     */
+    public synchronized void setHevc(boolean hevc) {
+        if (this.hevc == hevc) {
+            return;
+        }
+        this.hevc = hevc;
+        vps = null;
+        sps = null;
+        pps = null;
+        keyFrameHasParams = false;
+        resetGop();
+    }
+
+    /**
+     * 缓存一帧
+     * <p>
+     * 关键帧开启新的一组；关键帧之前或缓存溢出后的非关键帧直接忽略。
+     */
+    public synchronized void add(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame) {
+        if (maxBytes == 0) {
+            return;
+        }
+        if (keyFrame) {
+            keyFrameHasParams = extractParameterSets(data, offset, length);
+            if (frameCount > 0) {
+                cachedGops++;
+            }
+            resetGop();
+        } else if (frameCount == 0) {
+            return;
+        }
+        if (gop.length() + length > maxBytes) {
+            // 整组超过上限，丢弃后等待下一个关键帧
+            overflowedGops++;
+            resetGop();
+            return;
+        }
+        if (frameCount == frameOffsets.length) {
+            int n = frameCount << 1;
+            frameOffsets = Arrays.copyOf(frameOffsets, n);
+            frameLengths = Arrays.copyOf(frameLengths, n);
+            framePts = Arrays.copyOf(framePts, n);
+            frameDts = Arrays.copyOf(frameDts, n);
+        }
+        frameOffsets[frameCount] = gop.length();
+        frameLengths[frameCount] = length;
+        framePts[frameCount] = pts;
+        frameDts[frameCount] = dts;
+        frameCount++;
+        gop.append(data, offset, length);
+    }
+
+    /**
+     * 按顺序回放缓存：关键帧缺少参数集时先补一帧参数集，再回放整组帧
+     * <p>
+     * 整组超过 maxBytes（如接收方缓冲区的可用空间）时不回放，避免预热本身就把接收方写满而丢帧；
+     * 接收方从下一个关键帧开始。
+     *
+     * @param maxBytes 回放数据的上限（字节）
+     * @return 回放的帧数
+     */
+    public synchronized int prime(FrameConsumer consumer, int maxBytes) {
+        if (frameCount == 0) {
+            return 0;
+        }
+        byte[] params = keyFrameHasParams ? new byte[0] : parameterSets();
+        if (gop.length() + params.length > maxBytes) {
+            skippedPrimes++;
+            return 0;
+        }
+        int frames = 0;
+        if (!keyFrameHasParams) {
+            if (params.length > 0) {
+                consumer.accept(params, 0, params.length, framePts[0], frameDts[0], true);
+                frames++;
+            }
+        }
+        byte[] array = gop.array();
+        for (int i = 0; i < frameCount; i++) {
+            consumer.accept(array, frameOffsets[i], frameLengths[i], framePts[i], frameDts[i], i == 0);
+            frames++;
+        }
+        primeCount++;
+        primedFrames += frames;
+        return frames;
+    }
+
+    /**
+     * 拼接后的参数集（Annex-B），没有缓存时返回空数组
+     */
+    public synchronized byte[] parameterSets() {
+        int size = (vps == null ? 0 : vps.length) + (sps == null ? 0 : sps.length) + (pps == null ? 0 : pps.length);
+        byte[] out = new byte[size];
+        int pos = 0;
+        for (byte[] nal : new byte[][]{vps, sps, pps}) {
+            if (nal != null) {
+                System.arraycopy(nal, 0, out, pos, nal.length);
+                pos += nal.length;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 丢弃当前 GOP（参数集保留），用于码流中断后重新开始
+     */
+    public synchronized void resetGop() {
+        gop.reset();
+        frameCount = 0;
+    }
+
+    public synchronized boolean isHevc() {
+        return hevc;
+    }
+
+    /**
+     * 缓存统计信息
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("maxBytes", maxBytes);
+        stats.put("codec", hevc ? "hevc" : "h264");
+        stats.put("gopFrames", frameCount);
+        stats.put("gopBytes", gop.length());
+        stats.put("hasParameterSets", sps != null);
+        stats.put("cachedGops", cachedGops);
+        stats.put("overflowedGops", overflowedGops);
+        stats.put("primeCount", primeCount);
+        stats.put("primedFrames", primedFrames);
+        stats.put("skippedPrimes", skippedPrimes);
+        return stats;
+    }
+
+    /**
+     * 从关键帧中提取参数集
+     *
+     * @return 该帧是否携带 SPS 与 PPS
+     */
+    private boolean extractParameterSets(byte[] data, int offset, int length) {
+        boolean hasSps = false;
+        boolean hasPps = false;
+        int end = offset + length;
+        int pos = NalUnits.findStartCode(data, offset, end);
+        while (pos >= 0) {
+            int header = pos + NalUnits.startCodeLength(data, pos);
+            if (header >= end) {
+                break;
+            }
+            int next = NalUnits.findStartCode(data, header + 1, end);
+            int nalEnd = next < 0 ? end : next;
+            int type = NalUnits.nalType(data[header], hevc);
+            if (NalUnits.isParameterSet(type, hevc)) {
+                byte[] nal = copyNal(data, header, nalEnd);
+                if (hevc && type == NalUnits.HEVC_VPS) {
+                    vps = nal;
+                } else if (type == (hevc ? NalUnits.HEVC_SPS : NalUnits.H264_SPS)) {
+                    sps = nal;
+                    hasSps = true;
+                } else {
+                    pps = nal;
+                    hasPps = true;
+                }
+            }
+            pos = next;
+        }
+        if (!hevc) {
+            vps = null;
+        }
+        return hasSps && hasPps;
+    }
+
+    private static byte[] copyNal(byte[] data, int from, int to) {
+        byte[] nal = new byte[START_CODE.length + to - from];
+        System.arraycopy(START_CODE, 0, nal, 0, START_CODE.length);
+        System.arraycopy(data, from, nal, START_CODE.length, to - from);
+        return nal;
+    }
+}
@@ -2,21 +2,29 @@ package com.hcbt.hcisup.common;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.ByteBuffer;
+
 /**
  * 流处理器 V2
- * 用于处理视频流数据，解析 PES 包并提取裸流（ES）
- * 通过跳过部分帧解析降低 CPU 使用率。
+ * 用于处理视频流数据，解析 PS 流并提取裸流（ES）
+ * 由 {@link PsStreamParser} 完成状态化解析，回调数据可在任意位置切分，
+ * 解析出的完整帧以缓冲区视图的形式推送给 FFmpeg。
+ * SDK 回调的 native 数据由解析器直接读取（只拷贝视频负载与包头），不再逐包分配堆数组。
  */
 @Slf4j
-public class HandleStreamV2 {
-    // 存储拼接后的裸流数据
-    private byte[] allEsBytes = null;
+public class HandleStreamV2 implements PsStreamParser.Listener {
+    // PS 流解析器（每个通道一个实例）
+    private final PsStreamParser parser = new PsStreamParser(this);
     // 用户 ID
     private final Integer luserId;
     // 通道号
     private Integer channel;
     // 是否正在处理流数据
     private boolean isProcessing = false;
+    // 视频是否为 H.265（来自 PSM，缺失时根据首帧 NAL 头判断）
+    private boolean hevc = false;
+    // 编码格式是否已确定
+    private boolean codecKnown = false;
     /**
      * 构造函数
      *
@@ -44,30 +52,85 @@ public class HandleStreamV2 {
             log.debug("开始为用户: {} 处理通道:{}视频流", luserId,channel);
         }
 
-        // 检查是否为 RTP 包（包头为 00 00 01 BA）
-        if (isRtpPacket(outputData)) {
-            // 处理完整的帧数据
-            processCompleteFrame();
-            allEsBytes = null;
-        }
+        parser.feed(outputData, 0, outputData.length);
+    }
 
-        // 检查是否为 PES 包（包头为 00 00 01 E0）
-        if (isPesPacket(outputData)) {
-            // 提取并拼接裸流
-            byte[] esBytes = extractEsBytes(outputData);
-            allEsBytes = concatenateEsBytes(allEsBytes, esBytes);
+    /**
+     * 处理 SDK 回调中的 native 数据
+     * <p>
+     * 解析器在本次调用内读完全部数据（视频负载拷贝进帧缓冲区），不需要先整体拷贝一份。
+     *
+     * @param nativeData 指向 native 内存的缓冲区（仅在回调期间有效）
+     */
+    public void startProcessing(final ByteBuffer nativeData) {
+        if (nativeData == null || !nativeData.hasRemaining()) {
+            log.warn("输入数据为空或无效，用户 ID: {}", luserId);
+            return;
+        }
+        if (!isProcessing) {
+            isProcessing = true;
+            log.debug("开始为用户: {} 处理通道:{}视频流", luserId,channel);
         }
+
+        parser.feed(nativeData);
     }
 
     /**
      * 处理完整的帧数据
-     * 将累积的裸流数据发送到 FFmpeg
+     * 将解析出的裸流数据发送到 FFmpeg
      */
-    private void processCompleteFrame() {
-        // 通过 FFmpeg 推送数据
-        ISUPStreamHandler.pushRaw(luserId, channel,allEsBytes);
-        // FFmpegStreamHandler.writeData(luserId, allEsBytes);
-        log.debug("通过 FFmpeg 推送裸流数据，用户 ID: {},通道号:{}", luserId,channel);
+    @Override
+    public void onVideoFrame(byte[] data, int offset, int length, long pts, long dts) {
+        if (!codecKnown) {
+            detectCodec(data, offset, length);
+        }
+        boolean keyFrame = codecKnown && NalUnits.isKeyFrame(data, offset, length, hevc);
+        // 通过 FFmpeg 推送数据（拷贝进通道写入缓冲区，不阻塞回调线程）
+        ISUPStreamHandler.pushRaw(luserId, channel, data, offset, length, pts, dts, keyFrame);
+        // FFmpegStreamHandler 只接收其当前通道或切换中的新通道的数据，其他通道直接返回
+        FFmpegStreamHandler.writeData(luserId, channel, data, offset, length, keyFrame);
+        log.debug("通过 FFmpeg 推送裸流数据，用户 ID: {},通道号:{},pts:{}", luserId, channel, pts);
+    }
+
+    @Override
+    public void onVideoStreamType(int streamType) {
+        log.info("通道{}视频流类型: 0x{}", channel, Integer.toHexString(streamType));
+        if (streamType == PsStreamParser.STREAM_TYPE_H265 || streamType == PsStreamParser.STREAM_TYPE_H264) {
+            setCodec(streamType == PsStreamParser.STREAM_TYPE_H265);
+        }
+    }
+
+    /**
+     * 没有 PSM 时根据 NAL 头识别编码
+     * <p>
+     * 只有遇到参数集或随机访问帧才能可靠区分，普通帧继续等待。
+     */
+    private void detectCodec(byte[] data, int offset, int length) {
+        if (NalUnits.looksLikeHevc(data, offset, length)) {
+            setCodec(true);
+            return;
+        }
+        int pos = NalUnits.findStartCode(data, offset, offset + length);
+        if (pos < 0) {
+            return;
+        }
+        int header = pos + NalUnits.startCodeLength(data, pos);
+        if (header < offset + length) {
+            int type = NalUnits.nalType(data[header], false);
+            if (NalUnits.isParameterSet(type, false) || type == NalUnits.H264_AUD
+                    || NalUnits.isKeyFrame(data, offset, length, false)) {
+                setCodec(false);
+            }
+        }
+    }
+
+    private void setCodec(boolean hevc) {
+        if (codecKnown && this.hevc == hevc) {
+            return;
+        }
+        this.hevc = hevc;
+        codecKnown = true;
+        ISUPStreamHandler.reportVideoCodec(channel, hevc ? "hevc" : "h264");
     }
 
     /**
@@ -85,67 +148,14 @@ public class HandleStreamV2 {
     }
 
     /**
-     * 判断是否为 RTP 包（包头为 00 00 01 BA）
-     *
-     * @param data 输入数据
-     * @return 是否为 RTP 包
+     * PS 解析器，用于查询解析统计
      */
-    private boolean isRtpPacket(final byte[] data) {
-        return data.length >= 4 &&
-                (data[0] & 0xff) == 0x00 &&
-                (data[1] & 0xff) == 0x00 &&
-                (data[2] & 0xff) == 0x01 &&
-                (data[3] & 0xff) == 0xBA;
+    public PsStreamParser getParser() {
+        return parser;
     }
 
-    /**
-     * 判断是否为 PES 包（包头为 00 00 01 E0）
-     *
-     * @param data 输入数据
-     * @return 是否为 PES 包
-     */
-    private boolean isPesPacket(final byte[] data) {
-        return data.length >= 4 &&
-                (data[0] & 0xff) == 0x00 &&
-                (data[1] & 0xff) == 0x00 &&
-                (data[2] & 0xff) == 0x01 &&
-                (data[3] & 0xff) == 0xE0;
-    }
-
-    /**
-     * 提取 PES 包中的裸流数据（ES）
-     *
-     * @param outputData 输入的 PES 包数据
-     * @return 提取的裸流数据
-     */
-    private byte[] extractEsBytes(final byte[] outputData) {
-        // 计算裸流起始位置和长度
-        int from = 9 + (outputData[8] & 0xff);
-        int len = outputData.length - 9 - (outputData[8] & 0xff);
-
-        // 提取裸流
-        byte[] esBytes = new byte[len];
-        System.arraycopy(outputData, from, esBytes, 0, len);
-        return esBytes;
-    }
-
-    /**
-     * 拼接裸流数据
-     *
-     * @param existingBytes 已有的裸流数据
-     * @param newBytes      新的裸流数据
-     * @return 拼接后的裸流数据
-     */
-    private byte[] concatenateEsBytes(final byte[] existingBytes, final byte[] newBytes) {
-        if (existingBytes == null) {
-            return newBytes;
-        }
-
-        // 创建新数组并拼接数据
-        byte[] combinedBytes = new byte[existingBytes.length + newBytes.length];
-        System.arraycopy(existingBytes, 0, combinedBytes, 0, existingBytes.length);
-        System.arraycopy(newBytes, 0, combinedBytes, existingBytes.length, newBytes.length);
-        return combinedBytes;
+    public Integer getChannel() {
+        return channel;
     }
 
 }
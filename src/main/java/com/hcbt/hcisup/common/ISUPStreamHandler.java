@@ -4,17 +4,21 @@ import com.hcbt.hcisup.SdkService.StreamService.SMS;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * ISUP 裸流推流处理器
@@ -30,9 +34,101 @@ public class ISUPStreamHandler {
     private SMS sms;
     private static ISUPStreamHandler instance;
 
+    // 每个通道写入缓冲区的容量（字节）
+    @Value("${app.stream.ring-buffer.capacity:4194304}")
+    private int ringCapacity;
+    // 缓冲区满时的策略：DROP_TO_IDR 丢到下一个关键帧，BLOCK 阻塞回调线程直到超时
+    @Value("${app.stream.ring-buffer.overflow-policy:DROP_TO_IDR}")
+    private FrameRingBuffer.OverflowPolicy overflowPolicy;
+    // BLOCK 策略的最长阻塞时间（毫秒）
+    @Value("${app.stream.ring-buffer.block-timeout-ms:200}")
+    private long blockTimeoutMs;
+
+    // 每个通道 GOP 缓存上限（字节），0 表示关闭预热；预热最多占写入缓冲区的一半，默认与之对应
+    @Value("${app.stream.gop-cache.max-bytes:2097152}")
+    private int gopCacheMaxBytes;
+
+    // 启动推流时等待识别源编码的最长时间（毫秒）
+    @Value("${app.stream.codec-detect-timeout-ms:2000}")
+    private long codecDetectTimeoutMs;
+
+    // H.264 通道是否在进程内封装 FLV 并推送 RTMP（不启动 FFmpeg）
+    @Value("${app.stream.native-muxer.enabled:false}")
+    private boolean nativeMuxerEnabled;
+    // 进程内推流连接 RTMP 服务器的超时时间（毫秒）
+    @Value("${app.stream.native-muxer.connect-timeout-ms:3000}")
+    private int nativeMuxerTimeoutMs;
+
+    // 是否由应用直接分发 HTTP-FLV / WebSocket-FLV（不再推送到 SRS）
+    @Value("${app.stream.live-hub.enabled:false}")
+    private boolean liveHubEnabled;
+    // 每个观看者的发送队列长度（tag 数）
+    @Value("${app.stream.live-hub.subscriber-queue:512}")
+    private int liveHubQueueSize;
+    // 每路直播缓存的 GOP 上限（字节），用于新观看者秒开
+    @Value("${app.stream.live-hub.gop-max-bytes:4194304}")
+    private int liveHubGopMaxBytes;
+
+    // 是否在内存中生成 LL-HLS（fMP4）切片，提供 /hls/{key}/index.m3u8
+    @Value("${app.stream.ll-hls.enabled:false}")
+    private boolean llHlsEnabled;
+    // 部分切片目标时长（毫秒）
+    @Value("${app.stream.ll-hls.part-target-ms:500}")
+    private int llHlsPartTargetMs;
+    // 切片目标时长（毫秒），实际在达到该时长后的第一个关键帧处切分
+    @Value("${app.stream.ll-hls.segment-target-ms:2000}")
+    private int llHlsSegmentTargetMs;
+    // 播放列表保留的切片个数
+    @Value("${app.stream.ll-hls.window-segments:6}")
+    private int llHlsWindowSegments;
+
+    // 写入线程空闲时的最长等待时间
+    private static final long WRITER_IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
     @PostConstruct
     public void init() {
         instance = this;
+        LiveStreamHub.configure(liveHubQueueSize, liveHubGopMaxBytes);
+        LlHlsSegmenter.configure(llHlsPartTargetMs, llHlsSegmentTargetMs, llHlsWindowSegments);
+    }
+
+    /**
+     * 是否由应用直接分发直播流
+     */
+    public static boolean isLiveHubEnabled() {
+        return instance != null && instance.liveHubEnabled;
+    }
+
+    /**
+     * 是否在内存中生成 LL-HLS 切片
+     */
+    public static boolean isLlHlsEnabled() {
+        return instance != null && instance.llHlsEnabled;
+    }
+
+    /**
+     * 通道对应的直播流 key
+     */
+    public static String liveKey(int channel) {
+        return "isup_" + channel;
+    }
+
+    /**
+     * 按配置创建通道的写入缓冲区
+     */
+    private static FrameRingBuffer newRingBuffer() {
+        if (instance == null) {
+            return new FrameRingBuffer(4 * 1024 * 1024, FrameRingBuffer.OverflowPolicy.DROP_TO_IDR, 200);
+        }
+        return new FrameRingBuffer(instance.ringCapacity, instance.overflowPolicy, instance.blockTimeoutMs);
+    }
+
+    /**
+     * 获取通道的 GOP 缓存，没有则按配置创建
+     */
+    private static GopCache gopCache(int channel) {
+        return gopCaches.computeIfAbsent(channel,
+                k -> new GopCache(instance == null ? 2 * 1024 * 1024 : instance.gopCacheMaxBytes));
     }
 
     /**
@@ -40,12 +136,22 @@ public class ISUPStreamHandler {
      */
     static class StreamSession {
         Process process;             // FFmpeg 进程对象
-        ExecutorService executor;    // 监控线程池，监控进程状态，防止僵尸进程
         volatile boolean running;    // 标记该推流任务是否运行中
-        long lastActiveTime = System.currentTimeMillis();// 最近一次接收裸流数据的时间戳（用于超时判断）
-        OutputStream ffmpegInput;    // FFmpeg 标准输入流，向其写入裸流数据
-        ReentrantLock writeLock = new ReentrantLock(); // 线程安全写入锁
+        volatile long lastActiveTime = System.currentTimeMillis();// 用户最近一次活动（启动或心跳）的时间戳（用于空闲超时）
+        FrameSink sink;              // 帧输出端：FFmpeg 标准输入或进程内 RTMP 推流
+        FrameRingBuffer ring;        // 回调线程与写入线程之间的帧缓冲区
+        Thread writer;               // 写入线程，把缓冲区中的帧写入 FFmpeg
         String videoCodec = "h264";  // 视频编码，ISUP裸流一般是h265（hevc）
+        long startNanos;             // 开始启动的时间
+        volatile long firstFrameNanos;    // 第一帧写入 FFmpeg 的时间
+        volatile long firstKeyFrameNanos; // 第一个关键帧写入 FFmpeg 的时间（可解码的起点）
+        int primedFrames;            // 启动时从 GOP 缓存预热的帧数
+        int userId;                  // 启动会话的用户（重启管线时沿用）
+        String outputUrl;            // 推流地址（重启管线时沿用）
+        volatile StreamSupervisor.Session health; // 输入速率与输出进度
+        TimingWheel.Timeout idleTimer; // 空闲超时
+        boolean ladder;              // 是否输出码率阶梯的多个规格
+        boolean degraded;            // CPU 预算不足未转码，直接输出 H.265
     }
 
     /**
@@ -55,11 +161,17 @@ public class ISUPStreamHandler {
         public boolean success;      // 启动是否成功
         public String videoCodec;    // 视频编码格式
         public String message;       // 附加信息（如错误描述或成功提示）
+        public boolean degraded;     // CPU 预算不足未转码，输出 H.265 的 FLV（编码 ID 12），播放端需支持 H.265
 
         public StartResult(boolean success, String videoCodec, String message) {
+            this(success, videoCodec, message, false);
+        }
+
+        public StartResult(boolean success, String videoCodec, String message, boolean degraded) {
             this.success = success;
             this.videoCodec = videoCodec;
             this.message = message;
+            this.degraded = degraded;
         }
     }
 
@@ -68,16 +180,18 @@ public class ISUPStreamHandler {
      * key1 = userId, key2 = channel, value = StreamSession
      */
     private static final Map<Integer, StreamSession> sessionMap = new ConcurrentHashMap<>();
-    // key: channel -> 正在使用该通道的用户ID集合
-    private static final Map<Integer, Set<Integer>> channelUserMap = new ConcurrentHashMap<>();
-    private static final int MAX_TOTAL_STREAMS = 1;
+    // key: channel -> 该通道识别出的源编码（h264 / hevc）
+    private static final Map<Integer, CompletableFuture<String>> channelCodecs = new ConcurrentHashMap<>();
+    // key: channel -> 该通道最近的参数集与 GOP
+    private static final Map<Integer, GopCache> gopCaches = new ConcurrentHashMap<>();
     private static final AtomicInteger activeStreamCount = new AtomicInteger(0);
     private static final Object streamLock = new Object();
 
     /**
      * 启动某用户某通道的裸流推流任务
      * <p>
-     * 该方法会启动一个 FFmpeg 进程，参数为从标准输入读取裸 H.265 流，推送到指定 RTMP 地址。
+     * 该方法会启动一个 FFmpeg 进程，从标准输入读取裸流，推送到指定 RTMP 地址。
+     * 源编码由码流识别：H.264 直接复制，H.265 转码为 H.264。
      * 如果该通道已经在推流，则直接返回正在运行的结果，不重复启动。
      *
      * @param userId    用户ID
@@ -87,149 +201,398 @@ public class ISUPStreamHandler {
      * @return 启动结果，包括成功与否、视频编码格式和消息
      */
     public static StartResult startStream(int userId, int channel, String outputUrl) {
-        int dwStreamType = Integer.parseInt(String.valueOf(channel).substring(String.valueOf(channel).length() - 2));
-        // 注册用户使用该通道
-        channelUserMap.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(userId);
+        long startNanos = System.nanoTime();
+        // 注册用户使用该通道（持有租约，最后一个观看者离开后回收通道）
+        ViewerLeases.acquire(liveKey(channel), userId);
+        ViewerLeases.bind(liveKey(channel), () -> hubSubscribers(channel), () -> reclaimIdle(channel));
         // 获取通道推流会话，若无则新建
         StreamSession userSession = sessionMap.get(channel);
         // 如果该通道已有推流会话且运行中，返回提示“正在运行”
         if (userSession != null && userSession.running) {
             userSession.lastActiveTime = System.currentTimeMillis();
+            StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_ISUP, channel);
             log.info("复用通道推流，channel: {}, outputUrl: {}", channel, outputUrl);
-            return new StartResult(true, userSession.videoCodec, "通道正在推流，复用当前会话");
+            return new StartResult(true, userSession.videoCodec, "通道正在推流，复用当前会话", userSession.degraded);
         }
+        // 识别源码流编码（来自 PSM 或首个 NAL 头），等待时不持有 streamLock
+        String sourceCodec = awaitVideoCodec(channel);
+        return startPipeline(userId, channel, outputUrl, sourceCodec, startNanos);
+    }
+
+    /**
+     * 启动通道的推流管线，不登记观看者（启动与重启管线共用）
+     * <p>
+     * 持有 streamLock 复查并发启动、熔断与容量，再创建输出端与写入线程。
+     *
+     * @param sourceCodec 已识别的源编码
+     */
+    private static StartResult startPipeline(int userId, int channel, String outputUrl, String sourceCodec, long startNanos) {
+        int dwStreamType = Integer.parseInt(String.valueOf(channel).substring(String.valueOf(channel).length() - 2));
         synchronized (streamLock) {
-            // 在启动前检查总数限制
-            if (activeStreamCount.get() >= MAX_TOTAL_STREAMS) {
+            // 等待编码识别期间可能已有并发请求启动了该通道
+            StreamSession started = sessionMap.get(channel);
+            if (started != null && started.running) {
+                started.lastActiveTime = System.currentTimeMillis();
+                StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_ISUP, channel);
+                return new StartResult(true, started.videoCodec, "通道正在推流，复用当前会话", started.degraded);
+            }
+            // 多次卡死或退出后熔断，熔断期内不再启动
+            if (!StreamSupervisor.allowStart(liveKey(channel))) {
+                removeUser(channel, userId);
+                return new StartResult(false, null, "通道多次启动失败，暂停启动，请稍后重试");
+            }
+            // 在启动前检查总数限制，已满时按策略挤出通道后就地重新检查
+            // （不重新进入 startStream：租约登记与编码识别已在锁外完成，不能在锁内再做一遍）
+            while (activeStreamCount.get() >= StreamCapacityScheduler.limit(StreamCapacityScheduler.POOL_ISUP)) {
                 log.info("当前推流数量:{}", activeStreamCount.get());
                 log.warn("会话map的数量：{}", sessionMap.size());
-                log.warn("推流数量已满，准备挤出最早的通道，当前准备播放通道{}", channel);
-                if (sessionMap.size() > 0) {
-                    // 找到最早启动的通道
-                    int oldestChannel = 0;
-                    for (Map.Entry<Integer, ISUPStreamHandler.StreamSession> entry : sessionMap.entrySet()) {
-                        oldestChannel = entry.getKey();
-                    }
-                    log.warn("挤出通道{}", oldestChannel);
-                    if (oldestChannel != 0) {
-                        log.warn("关闭通道 channel {}，为新通道腾位", oldestChannel);
-                        // 删除会话
-                        stopStream2(oldestChannel);
-                        // 清除通道用户
-                        channelUserMap.remove(oldestChannel);
-                        // 停止推流成功后，重新启动推流
-                        return startStream(userId, channel, outputUrl);
-                    }
-                } else {
-                    return new StartResult(false, null, "会话map为空，无法挤出最早的通道");
+                log.warn("推流数量已满，准备按策略挤出通道，当前准备播放通道{}", channel);
+                Integer victim = StreamCapacityScheduler.pickVictim(StreamCapacityScheduler.POOL_ISUP, channel);
+                if (victim == null) {
+                    removeUser(channel, userId);
+                    return new StartResult(false, null, "推流数量已满，没有可挤出的通道");
+                }
+                log.warn("关闭通道 channel {}，为新通道腾位", victim);
+                int before = activeStreamCount.get();
+                // 删除会话并清除通道用户
+                stopStream2(victim);
+                if (activeStreamCount.get() >= before) {
+                    // 挤出的通道没有会话，名额没有减少，避免反复挤出同一个通道
+                    removeUser(channel, userId);
+                    return new StartResult(false, null, "推流数量已满，挤出通道失败");
                 }
             }
-            // 构造 FFmpeg 命令行参数，利用管道方式传入裸流数据
             String codecName = "h264";
-            String[] command;
-            if(dwStreamType == 1){
-                if (channel == 2201 || channel == 2101) {
-                    command = new String[]{
-                            "ffmpeg",
-                            "-f", "hevc",                 // 裸流输入格式为 H.265
-                            "-i", "pipe:0",               // 从标准输入读取裸流
-                            "-vf", "scale=854:480",       // 缩放分辨率（可改为 640:360 或 854:480）
-                            "-c:v", "libx264",            // 转码为 H.264
-                            // "-c:v", "copy",
-                            "-an",                        // 无音频
-                            "-f", "flv",                  // 输出为 FLV 容器（RTMP 支持）
-                            outputUrl
-                    };
+            boolean copy = !"hevc".equals(sourceCodec);
+            // 由应用直接分发时，FFmpeg 输出 FLV 到标准输出，不再推送 RTMP
+            // LL-HLS 切片以直播分发的输入为数据源，同样走应用内分发
+            boolean liveHub = isLiveHubEnabled() || isLlHlsEnabled();
+            // 主码流开启码率阶梯时由一个 FFmpeg 进程解码一次、推送多个规格（只支持推 RTMP）
+            boolean ladder = AbrLadder.appliesTo(dwStreamType == 1) && !liveHub;
+            if (ladder && !CpuBudget.tryAdmit(liveKey(channel), CpuBudget.Pipeline.LADDER)) {
+                log.warn("CPU 预算不足，通道{}只推送单一规格", channel);
+                ladder = false;
+            }
+            // H.264 直接复制时可在进程内封装 FLV 推流，不启动 FFmpeg
+            boolean nativeMux = instance != null && instance.nativeMuxerEnabled && copy && !ladder;
+            // 按 CPU 开销准入，转码预算不足时降级为进程内直接封装 H.265
+            CpuBudget.Pipeline pipeline = !copy
+                    ? (dwStreamType == 1 ? CpuBudget.Pipeline.TRANSCODE_MAIN : CpuBudget.Pipeline.TRANSCODE_SUB)
+                    : (liveHub || nativeMux ? CpuBudget.Pipeline.NATIVE : CpuBudget.Pipeline.COPY);
+            boolean hevcPassthrough = false;
+            if (!ladder && !CpuBudget.tryAdmit(liveKey(channel), pipeline)) {
+                if (pipeline.isTranscode() && CpuBudget.isDegradeToCopy()
+                        && CpuBudget.tryAdmit(liveKey(channel), CpuBudget.Pipeline.NATIVE)) {
+                    CpuBudget.recordDegrade(liveKey(channel), pipeline, CpuBudget.Pipeline.NATIVE);
+                    hevcPassthrough = true;
                 } else {
-                    command = new String[]{
-                            "ffmpeg",
-                            "-f", "h264",                // 输入是裸 H.264 编码流
-                            "-i", "pipe:0",              // 从标准输入读取数据
-                            "-vf", "scale=854:480",             // 缩放为低分辨率（可改为 640:360 或 854:480）
-                            "-c:v", "libx264",                  // 编码为 H.264（再编码是必须的）
-                            // "-c:v", "copy",
-                            "-an",                       // 无音频
-                            "-f", "flv",                 // 输出为 FLV
-                            outputUrl                    // 推流目标地址（RTMP）
-                    };
-                }
-            }else{
-                if (channel == 2202 || channel == 2102) {
-                    command = new String[]{
-                            "ffmpeg",
-                            "-f", "hevc",                 // 裸流输入格式为 H.265
-                            "-i", "pipe:0",               // 从标准输入读取裸流
-                            "-c:v", "libx264",            // 转码为 H.264
-                            // "-c:v", "copy",
-                            "-an",                        // 无音频
-                            "-f", "flv",                  // 输出为 FLV 容器（RTMP 支持）
-                            outputUrl
-                    };
-                } else{
-                    command = new String[]{
-                            "ffmpeg",
-                            "-f", "h264",                // 输入是裸 H.264 编码流
-                            "-i", "pipe:0",              // 从标准输入读取数据
-                            // "-c:v", "libx264",                  // 编码为 H.264（再编码是必须的）
-                            "-c:v", "copy",
-                            "-an",                       // 无音频
-                            "-f", "flv",                 // 输出为 FLV
-                            outputUrl                    // 推流目标地址（RTMP）
-                    };
+                    removeUser(channel, userId);
+                    return new StartResult(false, null, "CPU 预算不足，无法启动转码");
                 }
-
             }
-
-
+            boolean launched = false;
             try {
-                log.info("开启新通道，channel: {}, outputUrl: {}", channel, outputUrl);
-                // 创建并启动 FFmpeg 进程
-                ProcessBuilder builder = new ProcessBuilder(command);
-                builder.redirectErrorStream(true); // 合并标准错误和标准输出，便于读取日志
-
-                Process process = builder.start();
-                // 打印ffmpeg日志
-                new Thread(() -> {
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            // log.info("[FFmpeg] {}", line);
-                        }
-                    } catch (IOException e) {
-                        log.error("读取 FFmpeg 输出流失败");
-                    }
-                }).start();
+                if (isLlHlsEnabled()) {
+                    LiveStreamHub.open(liveKey(channel)).addListener(LlHlsSegmenter.open(liveKey(channel)));
+                }
                 // 创建推流会话对象
                 StreamSession session = new StreamSession();
-                session.process = process;
-                session.executor = Executors.newSingleThreadExecutor();
+                if (hevcPassthrough) {
+                    // 编码 ID 12 的 FLV，播放端需支持 H.265（如 flv.js 的 H.265 分支）
+                    log.warn("开启新通道（H.265 不转码，进程内 FLV 封装），channel: {}", channel);
+                    session.sink = liveHub ? new LiveHubFrameSink(liveKey(channel), true)
+                            : new RtmpFrameSink(outputUrl, true, instance.nativeMuxerTimeoutMs);
+                    codecName = "hevc";
+                    session.degraded = true;
+                } else if (copy && liveHub) {
+                    log.info("开启新通道（进程内 FLV 封装，直接分发），channel: {}", channel);
+                    session.sink = new LiveHubFrameSink(liveKey(channel), false);
+                } else if (nativeMux) {
+                    log.info("开启新通道（进程内 FLV 封装），channel: {}, outputUrl: {}", channel, outputUrl);
+                    session.sink = new RtmpFrameSink(outputUrl, false, instance.nativeMuxerTimeoutMs);
+                } else {
+                    // 构造 FFmpeg 命令行参数，利用管道方式传入裸流数据
+                    String[] command = withProgress(buildCommand(sourceCodec, dwStreamType == 1, ladder, liveHub ? "pipe:1" : outputUrl));
+                    log.info("通道{}源编码{}，FFmpeg 参数：{}", channel, sourceCodec, String.join(" ", command));
+                    log.info("开启新通道，channel: {}, outputUrl: {}", channel, outputUrl);
+                    Process process;
+                    if (liveHub) {
+                        // 输出到标准输出时可取用预热进程（未开启预热时现场启动），标准错误单独读取
+                        FFmpegWorkerPool.Worker worker = FFmpegWorkerPool.acquire(
+                                Arrays.asList(command).subList(0, command.length - 3));
+                        process = worker.getProcess();
+                        startFlvRelay(channel, worker, startNanos);
+                    } else {
+                        // 创建并启动 FFmpeg 进程，合并标准错误和标准输出，便于读取日志
+                        ProcessBuilder builder = new ProcessBuilder(command);
+                        builder.redirectErrorStream(true);
+                        if (SessionThreads.discardUnreadOutput() && !StreamSupervisor.isEnabled()) {
+                            // 日志没有人读取，直接丢弃，不开读取线程
+                            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                        }
+                        process = builder.start();
+                    }
+                    CpuBudget.attach(liveKey(channel), process);
+                    // 打印ffmpeg日志
+                    if (liveHub || !SessionThreads.discardUnreadOutput() || StreamSupervisor.isEnabled()) {
+                        SessionThreads.start("ISUP-FFmpegLog-" + channel, () -> {
+                            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                    liveHub ? process.getErrorStream() : process.getInputStream()))) {
+                                String line;
+                                while ((line = reader.readLine()) != null) {
+                                    // log.info("[FFmpeg] {}", line);
+                                    StreamSupervisor.Session health = session.health;
+                                    if (health != null) {
+                                        health.onProgressLine(line);
+                                    }
+                                }
+                            } catch (IOException e) {
+                                log.error("读取 FFmpeg 输出流失败");
+                            }
+                        });
+                    }
+                    session.process = process;
+                    // 写入线程取空缓冲区时写出，积压时按最长延迟写出，不需要定时线程
+                    session.sink = FrameSink.pipe(CoalescingOutputStream.open(liveKey(channel), process.getOutputStream(), false));
+                }
                 session.running = true;
                 session.lastActiveTime = System.currentTimeMillis();
-                session.ffmpegInput = process.getOutputStream();
                 session.videoCodec = codecName;
-                // 会话必须先注册进 map 再启动监控线程
-                sessionMap.put(channel, session);
+                session.ladder = ladder;
+                session.ring = newRingBuffer();
+                session.writer = new Thread(() -> drainToSink(userId, channel, session), "ISUP-Writer-" + channel);
+                session.writer.setDaemon(true);
+                session.ring.bindConsumer(session.writer);
+                session.startNanos = startNanos;
+                session.userId = userId;
+                session.outputUrl = outputUrl;
+                session.health = StreamSupervisor.watch(liveKey(channel), () -> restartPipeline(channel, session),
+                        () -> stopStream2(channel));
+                GopCache cache = gopCache(channel);
+                synchronized (cache) {
+                    // 先用缓存的 GOP 预热，再注册会话，回调线程之后的帧紧接其后入队；
+                    // 写入线程此时还没启动，预热最多占缓冲区的一半，给随后到达的帧留出空间
+                    session.primedFrames = cache.prime(session.ring::offer, session.ring.capacity() / 2);
+                    // 会话必须先注册进 map 再启动监控线程
+                    sessionMap.put(channel, session);
+                }
+                StreamCapacityScheduler.register(StreamCapacityScheduler.POOL_ISUP, channel, () -> viewerCount(channel));
+                session.idleTimer = idleTimer(channel, session);
                 activeStreamCount.incrementAndGet(); // 成功启动后 +1
-                // 监控线程：等待进程结束
-                session.executor.submit(() -> {
-                    try {
-                        log.warn("等待 FFmpeg 结束中...");
-                        int exitCode = process.waitFor();
-                        log.warn("FFmpeg进程退出，用户{}通道{}，退出码{}", userId, channel, exitCode);
-                    } catch (Exception e) {
-                        log.error("等待 FFmpeg 结束时被中断,通道{}", channel);
-                    } finally {
-                        stopStream(userId,channel);
-                        log.warn("FFmpeg 推流结束，调用 stopStream()");
-                    }
-                });
-                return new StartResult(true, session.videoCodec, "新通道推流已启动");
+                session.writer.start();
+                // 监控进程结束（进程内封装时由写入失败触发停止）
+                if (session.process != null) {
+                    log.warn("等待 FFmpeg 结束中...");
+                    SessionThreads.onExit("ISUP-Monitor-" + channel, session.process, () -> {
+                        log.warn("FFmpeg进程退出，用户{}通道{}，退出码{}", userId, channel, session.process.exitValue());
+                        // 已停止的会话不再处理，避免误停同一通道新启动的会话
+                        if (sessionMap.get(channel) != session) {
+                            return;
+                        }
+                        if (StreamSupervisor.isEnabled()) {
+                            // 退避后重启，多次失败后熔断
+                            StreamSupervisor.reportFailure(liveKey(channel), "FFmpeg 进程退出");
+                        } else {
+                            stopStream(userId,channel);
+                            log.warn("FFmpeg 推流结束，调用 stopStream()");
+                        }
+                    });
+                }
+                launched = true;
+                return session.degraded
+                        ? new StartResult(true, session.videoCodec, "CPU 预算不足，未转码，输出 H.265（播放端需支持 H.265）", true)
+                        : new StartResult(true, session.videoCodec, "新通道推流已启动");
             } catch (IOException e) {
                 e.printStackTrace();
                 return new StartResult(false, null, "启动失败: " + e.getMessage());
+            } finally {
+                if (!launched) {
+                    // 启动失败：释放预算，关闭已打开的直播分发通道与 LL-HLS 切片，不留给下次启动
+                    CpuBudget.release(liveKey(channel));
+                    if (liveHub) {
+                        LiveStreamHub.close(liveKey(channel));
+                        LlHlsSegmenter.close(liveKey(channel));
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 重启卡死或退出的管线：保留设备预览与通道用户，只重建 FFmpeg / 封装输出
+     * <p>
+     * 直播分发与 LL-HLS 切片保持打开，观看者不断开，新管线从关键帧开始继续输出。
+     * <p>
+     * 不经过观看者登记，已离开的观看者不会被重新加入；重建失败时连同设备预览一起停止，
+     * 否则预览会在没有会话（也就没有空闲回收与监督）的情况下一直运行。
+     */
+    private static void restartPipeline(int channel, StreamSession session) {
+        synchronized (streamLock) {
+            if (sessionMap.get(channel) != session) {
+                return;
+            }
+            log.warn("重启通道{}的推流管线", channel);
+            closeSession(channel, false);
+        }
+        StartResult result = startPipeline(session.userId, channel, session.outputUrl, awaitVideoCodec(channel),
+                System.nanoTime());
+        if (!result.success) {
+            log.error("通道{}重启推流失败：{}，停止设备预览", channel, result.message);
+            synchronized (streamLock) {
+                // 期间已有新的启动请求重建了会话时不再停止
+                if (!sessionMap.containsKey(channel)) {
+                    stopStream2(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * 开启健康监督时让 FFmpeg 输出进度（-progress），用于判断输出是否前进
+     */
+    private static String[] withProgress(String[] command) {
+        if (!StreamSupervisor.isEnabled()) {
+            return command;
+        }
+        String[] full = new String[command.length + 3];
+        full[0] = command[0];
+        full[1] = "-progress";
+        full[2] = "pipe:2";
+        full[3] = "-nostats";
+        System.arraycopy(command, 1, full, 4, command.length - 1);
+        return full;
+    }
+
+    /**
+     * 读取 FFmpeg 标准输出中的 FLV，交给直播分发
+     */
+    private static void startFlvRelay(int channel, FFmpegWorkerPool.Worker worker, long startNanos) {
+        LiveStreamHub.Channel live = LiveStreamHub.open(liveKey(channel));
+        Process process = worker.getProcess();
+        SessionThreads.start("ISUP-FlvRelay-" + channel, () -> {
+            FlvTagReader reader = new FlvTagReader(process.getInputStream());
+            try {
+                if (reader.next(live)) {
+                    FFmpegWorkerPool.recordStart(worker, startNanos, System.nanoTime());
+                    while (reader.next(live)) {
+                        // 逐个 tag 转发
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("读取通道{}的 FFmpeg FLV 输出失败: {}", channel, e.getMessage());
             }
+            log.info("通道{} FLV 转发结束，共 {} 个 tag", channel, reader.getTags());
+        });
+    }
+
+    /**
+     * 根据源编码选择 FFmpeg 管线
+     * <p>
+     * H.264 直接复制到 FLV；H.265 浏览器无法直接播放，需转码为 H.264，主码流同时缩放。
+     * 开启码率阶梯时主码流解码一次，输出配置的各个规格。
+     *
+     * @param sourceCodec 源编码 h264 / hevc
+     * @param mainStream  是否为主码流
+     * @param ladder      是否输出码率阶梯
+     * @param outputUrl   RTMP 推流地址，或 pipe:1（输出到标准输出）
+     */
+    private static String[] buildCommand(String sourceCodec, boolean mainStream, boolean ladder, String outputUrl) {
+        if (ladder) {
+            boolean h264 = !"hevc".equals(sourceCodec);
+            return AbrLadder.command(Arrays.asList("ffmpeg", "-f", h264 ? "h264" : "hevc", "-i", "pipe:0"), h264, outputUrl);
         }
+        if (!"hevc".equals(sourceCodec)) {
+            return new String[]{
+                    "ffmpeg",
+                    "-f", "h264",                // 输入是裸 H.264 编码流
+                    "-i", "pipe:0",              // 从标准输入读取数据
+                    "-c:v", "copy",              // 浏览器可直接播放，不转码
+                    "-an",                       // 无音频
+                    "-f", "flv",                 // 输出为 FLV
+                    outputUrl                    // 推流目标地址（RTMP）
+            };
+        }
+        if (mainStream) {
+            return new String[]{
+                    "ffmpeg",
+                    "-f", "hevc",                 // 裸流输入格式为 H.265
+                    "-i", "pipe:0",               // 从标准输入读取裸流
+                    "-vf", "scale=854:480",       // 缩放分辨率（可改为 640:360 或 854:480）
+                    "-c:v", "libx264",            // 转码为 H.264
+                    "-an",                        // 无音频
+                    "-f", "flv",                  // 输出为 FLV 容器（RTMP 支持）
+                    outputUrl
+            };
+        }
+        return new String[]{
+                "ffmpeg",
+                "-f", "hevc",                 // 裸流输入格式为 H.265
+                "-i", "pipe:0",               // 从标准输入读取裸流
+                "-c:v", "libx264",            // 转码为 H.264
+                "-an",                        // 无音频
+                "-f", "flv",                  // 输出为 FLV 容器（RTMP 支持）
+                outputUrl
+        };
+    }
 
+    /**
+     * 直播分发时需要启动 FFmpeg 的管线（H.265 转码主、子码流），用于启动时预热
+     * <p>
+     * 返回不含输出部分的命令，与取用预热进程时的 profile 一致；H.264 在进程内封装，不需要 FFmpeg。
+     */
+    public static List<List<String>> liveHubProfiles() {
+        List<List<String>> profiles = new ArrayList<>();
+        for (boolean mainStream : new boolean[]{true, false}) {
+            String[] command = withProgress(buildCommand("hevc", mainStream, false, "pipe:1"));
+            profiles.add(Arrays.asList(command).subList(0, command.length - 3));
+        }
+        return profiles;
+    }
+
+    /**
+     * 记录通道的源编码（由 PS 解析器根据 PSM 或首个 NAL 头识别）
+     *
+     * @param channel 通道号
+     * @param codec   h264 / hevc
+     */
+    public static void reportVideoCodec(int channel, String codec) {
+        gopCache(channel).setHevc("hevc".equals(codec));
+        CompletableFuture<String> future = channelCodecs.computeIfAbsent(channel, k -> new CompletableFuture<>());
+        if (!future.complete(codec) && !codec.equals(future.getNow(null))) {
+            // 设备切换了编码，后续启动按新编码构造管线
+            channelCodecs.put(channel, CompletableFuture.completedFuture(codec));
+            log.info("通道{}源编码变更为{}", channel, codec);
+        }
+    }
+
+    /**
+     * 等待通道源编码识别结果，超时按 H.264 处理
+     */
+    private static String awaitVideoCodec(int channel) {
+        CompletableFuture<String> future = channelCodecs.computeIfAbsent(channel, k -> new CompletableFuture<>());
+        long timeoutMs = instance == null ? 2000 : instance.codecDetectTimeoutMs;
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("通道{}在{}ms内未识别出源编码，按 H.264 处理", channel, timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("通道{}识别源编码失败", channel);
+        }
+        return "h264";
+    }
+
+    /**
+     * 各通道识别出的源编码
+     */
+    public static Map<Integer, String> videoCodecs() {
+        Map<Integer, String> codecs = new HashMap<>();
+        for (Map.Entry<Integer, CompletableFuture<String>> entry : channelCodecs.entrySet()) {
+            codecs.put(entry.getKey(), entry.getValue().getNow("unknown"));
+        }
+        return codecs;
     }
 
     /**
@@ -243,34 +606,168 @@ public class ISUPStreamHandler {
      * @param data    裸流数据字节数组
      */
     public static void pushRaw(int userId, int channel, byte[] data) {
+        if (data == null) {
+            log.warn("推送数据为空，跳过写入");
+            return;
+        }
+        // 按通道识别出的编码判断关键帧，两种 NAL 头互相误判（未识别时与启动管线一样按 H.264 处理）
+        CompletableFuture<String> codec = channelCodecs.get(channel);
+        boolean hevc = codec != null && "hevc".equals(codec.getNow(null));
+        boolean keyFrame = NalUnits.isKeyFrame(data, 0, data.length, hevc);
+        pushRaw(userId, channel, data, 0, data.length, -1, -1, keyFrame);
+    }
 
-        if (data == null || data.length < 10) {
+    /**
+     * 推送一帧裸流数据（数组视图）
+     * <p>
+     * 数据只拷贝进该通道的环形缓冲区，由通道专属的写入线程写入 FFmpeg 管道，
+     * SDK 回调线程不会被慢速的 FFmpeg 阻塞。方法返回后调用方的缓冲区即可被覆盖。
+     *
+     * @param userId   用户 ID
+     * @param channel  通道号
+     * @param data     裸流数据所在数组
+     * @param offset   起始位置
+     * @param length   数据长度
+     * @param pts      显示时间戳（90kHz），未知为 -1
+     * @param dts      解码时间戳（90kHz），未知为 -1；有 B 帧时与 pts 不同
+     * @param keyFrame 是否为关键帧（缓冲区溢出后从关键帧恢复）
+     */
+    public static void pushRaw(int userId, int channel, byte[] data, int offset, int length, long pts, long dts,
+                               boolean keyFrame) {
+
+        if (data == null || length < 10) {
             log.warn("推送数据为空，跳过写入");
             return;
         }
-        StreamSession userSession = sessionMap.get(channel);
-        if (userSession == null || !userSession.running) return;
-        // 使用写入锁保证线程安全
-        userSession.writeLock.lock();
-        try {
-            if (userSession.process.isAlive()) {
-                // log.info("用户{}通道{}推送数据", userId, channel);
-                userSession.ffmpegInput.write(data);
-                userSession.ffmpegInput.flush();
-                // userSession.lastActiveTime = System.currentTimeMillis();
-            } else {
-                log.info("FFmpeg 进程已结束，跳过写入操作");
+        GopCache cache = gopCache(channel);
+        // 与 startStream 的预热共用缓存的监视器，保证同一时刻只有一个线程向缓冲区写入
+        synchronized (cache) {
+            cache.add(data, offset, length, pts, dts, keyFrame);
+            StreamSession userSession = sessionMap.get(channel);
+            if (userSession == null || !userSession.running) return;
+            StreamSupervisor.Session health = userSession.health;
+            if (health != null) {
+                health.onInput(length);
             }
+            if (!userSession.ring.offer(data, offset, length, pts, dts, keyFrame)) {
+                log.debug("通道{}写入缓冲区已满，丢弃帧", channel);
+            }
+        }
+    }
 
+    /**
+     * 写入线程：把环形缓冲区中的帧写入输出端（FFmpeg 标准输入或 RTMP）
+     */
+    private static void drainToSink(int userId, int channel, StreamSession session) {
+        FrameRingBuffer ring = session.ring;
+        try {
+            // 在写入线程中连接（进程内 RTMP 推流），慢的推流服务器不会占住 streamLock
+            session.sink.open();
+            while (session.running) {
+                if (!ring.peek()) {
+                    // 没有更多帧可合并，写出已缓冲的数据
+                    session.sink.flush();
+                    ring.await(WRITER_IDLE_WAIT_NANOS);
+                    continue;
+                }
+                session.sink.writeFrame(ring.array(), ring.frameOffset(), ring.frameLength(), ring.framePts(),
+                        ring.frameDts(), ring.isKeyFrame());
+                if (session.process == null && session.health != null) {
+                    // 进程内封装：写出即输出（FFmpeg 的输出进度由 -progress 得到）
+                    session.health.onOutput();
+                }
+                if (session.firstKeyFrameNanos == 0) {
+                    recordFirstFrame(channel, session, ring.isKeyFrame());
+                }
+                ring.release();
+                // 积压时缓冲区一直有数据，按最长延迟写出
+                session.sink.flushIfDue();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            log.info("写入裸流失败，停止用户：{}通道{}", userId, channel);
-            // 清除通道用户
-            channelUserMap.remove(channel);
-            stopStream2(channel); // 出错后停止推流，触发重启逻辑
-        } finally {
-            userSession.writeLock.unlock();
+            if (session.running && sessionMap.get(channel) == session) {
+                if (StreamSupervisor.isEnabled()) {
+                    // 退避后重启管线，多次失败后熔断
+                    StreamSupervisor.reportFailure(liveKey(channel), "写入失败: " + e.getMessage());
+                    return;
+                }
+                log.info("写入裸流失败，停止用户：{}通道{}", userId, channel);
+                stopStream2(channel); // 出错后停止推流，触发重启逻辑
+            }
+        } catch (RuntimeException e) {
+            // 封装或推流的缺陷不能让写入线程静默退出，否则环形缓冲区写满后通道一直丢帧
+            log.error("通道{}写入线程异常", channel, e);
+            if (session.running && sessionMap.get(channel) == session) {
+                if (StreamSupervisor.isEnabled()) {
+                    StreamSupervisor.reportFailure(liveKey(channel), "写入线程异常: " + e);
+                    return;
+                }
+                stopStream2(channel);
+            }
+        }
+    }
+
+    /**
+     * 记录启动耗时：首帧与首个关键帧写入 FFmpeg 的时间
+     */
+    private static void recordFirstFrame(int channel, StreamSession session, boolean keyFrame) {
+        long now = System.nanoTime();
+        if (session.firstFrameNanos == 0) {
+            session.firstFrameNanos = now;
+        }
+        if (keyFrame) {
+            session.firstKeyFrameNanos = now;
+            log.info("通道{}首个关键帧已写入，启动耗时{}ms，预热帧数{}", channel,
+                    TimeUnit.NANOSECONDS.toMillis(now - session.startNanos), session.primedFrames);
+        }
+    }
+
+    /**
+     * 各通道的启动耗时与 GOP 缓存统计
+     */
+    public static Map<Integer, Map<String, Object>> startStats() {
+        Map<Integer, Map<String, Object>> stats = new HashMap<>();
+        for (Map.Entry<Integer, GopCache> entry : gopCaches.entrySet()) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("gopCache", entry.getValue().stats());
+            StreamSession session = sessionMap.get(entry.getKey());
+            if (session != null) {
+                item.put("primedFrames", session.primedFrames);
+                item.put("firstFrameMs", elapsedMs(session.startNanos, session.firstFrameNanos));
+                item.put("firstKeyFrameMs", elapsedMs(session.startNanos, session.firstKeyFrameNanos));
+            }
+            stats.put(entry.getKey(), item);
+        }
+        return stats;
+    }
+
+    private static long elapsedMs(long start, long end) {
+        return end == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(end - start);
+    }
+
+    /**
+     * 各通道写入缓冲区的统计信息（含丢帧数）
+     */
+    public static Map<Integer, Map<String, Object>> ringStats() {
+        Map<Integer, Map<String, Object>> stats = new HashMap<>();
+        for (Map.Entry<Integer, StreamSession> entry : sessionMap.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().ring.stats());
         }
+        return stats;
+    }
+
+    /**
+     * 各通道写入 FFmpeg 标准输入的写出次数与合并延迟
+     */
+    public static Map<String, Map<String, Object>> pipeStats() {
+        return CoalescingOutputStream.stats();
+    }
+
+    /**
+     * 通道是否在输出码率阶梯的多个规格
+     */
+    public static boolean isLadder(int channel) {
+        StreamSession session = sessionMap.get(channel);
+        return session != null && session.ladder;
     }
 
     /**
@@ -291,45 +788,112 @@ public class ISUPStreamHandler {
      */
     public static boolean stopStream(int userId, int channel) {
         synchronized(streamLock) {
-            Set<Integer> users = channelUserMap.get(channel);
-            if (users != null) {
-                users.remove(userId);
-                if (!users.isEmpty()) {
-                    log.info("还有其他用户在使用通道 {}，不停止推流,用户{}", channel, users);
-                    return false;
-                } else {
-                    return stopStream2(channel);
-                }
-            } else {
-                return stopStream2(channel);
+            if (ViewerLeases.release(liveKey(channel), userId) > 0) {
+                log.info("还有其他用户在使用通道 {}，不停止推流,用户{}", channel, ViewerLeases.viewers(liveKey(channel)));
+                return false;
             }
+            return stopStream2(channel);
         }
     }
 
+    /**
+     * 观看者心跳，续期租约
+     *
+     * @return 通道未在推流时返回 false，客户端应重新调用启动接口
+     */
+    public static boolean heartbeat(int userId, int channel) {
+        StreamSession session = sessionMap.get(channel);
+        if (session == null || !session.running) {
+            return false;
+        }
+        session.lastActiveTime = System.currentTimeMillis();
+        StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_ISUP, channel);
+        if (!ViewerLeases.renew(liveKey(channel), userId)) {
+            // 租约刚到期但通道还未回收，重新加入
+            ViewerLeases.acquire(liveKey(channel), userId);
+        }
+        return true;
+    }
+
     public static boolean stopStream2(Integer channel) {
+        // 清除通道用户
+        ViewerLeases.clear(liveKey(channel));
         instance.stopStreamInternal(0, channel);
+        return closeSession(channel, true);
+    }
+
+    /**
+     * 最后一个观看者离开后回收通道（租约到期回调）
+     */
+    private static void reclaimIdle(int channel) {
+        synchronized (streamLock) {
+            // 回调执行前可能又有观看者加入
+            if (ViewerLeases.count(liveKey(channel)) > 0 || hubSubscribers(channel) > 0
+                    || !sessionMap.containsKey(channel)) {
+                return;
+            }
+            log.info("isup通道 {} 已无观看者，停止推流", channel);
+            stopStream2(channel);
+        }
+    }
+
+    /**
+     * 关闭通道的推流会话
+     *
+     * @param previewStopped 设备预览是否已一起停止；为 false 时是重启管线，预览继续，
+     *                       只关闭输出端、FFmpeg 进程、写入线程与缓冲区，保留直播分发与切片
+     */
+    private static boolean closeSession(Integer channel, boolean previewStopped) {
         // 删除会话
         StreamSession session = sessionMap.remove(channel);
         // 如果指定通道为空，则直接返回
         if (session != null) {
             // 设置会话状态为停止
             session.running = false;
+            StreamSupervisor.unwatch(liveKey(channel), session.health);
+            if (session.idleTimer != null) session.idleTimer.cancel();
+            // 唤醒写入线程使其退出
+            if (session.writer != null) LockSupport.unpark(session.writer);
+            // 预览随推流一起停止，缓存的 GOP 与之后的新码流接不上，只保留参数集
+            GopCache cache = gopCaches.get(channel);
+            if (cache != null && previewStopped) cache.resetGop();
             try {
                 // 关闭输入流
-                if (session.ffmpegInput != null) session.ffmpegInput.close();
+                if (session.sink != null) session.sink.close();
             } catch (IOException ignored) {
                 log.error("关闭输入流错误");
             }
             // 销毁 FFmpeg 进程
             if (session.process != null) session.process.destroy();
-            // 关闭线程池
-            if (session.executor != null) session.executor.shutdownNow();
+            if (previewStopped) {
+                // 断开直播观看者
+                LiveStreamHub.close(liveKey(channel));
+                LlHlsSegmenter.close(liveKey(channel));
+            }
             log.info("已停止通道推流：{}", channel);
             activeStreamCount.decrementAndGet(); // 推流结束后 -1
+            StreamCapacityScheduler.unregister(StreamCapacityScheduler.POOL_ISUP, channel);
+            CpuBudget.release(liveKey(channel));
         }
         return true;
     }
 
+    /**
+     * 通道当前的观看者：调用启动接口的用户 + 应用内直播分发的订阅者
+     */
+    private static int viewerCount(int channel) {
+        return ViewerLeases.count(liveKey(channel)) + hubSubscribers(channel);
+    }
+
+    private static int hubSubscribers(int channel) {
+        LiveStreamHub.Channel live = LiveStreamHub.get(liveKey(channel));
+        return live == null ? 0 : live.subscriberCount();
+    }
+
+    private static void removeUser(int channel, int userId) {
+        ViewerLeases.release(liveKey(channel), userId);
+    }
+
     /**
      * 查询通道哪些用户正在使用
      *
@@ -337,27 +901,37 @@ public class ISUPStreamHandler {
      * @return true 表示正在推流
      */
     public static Set<Integer> isRunning(int channel) {
-        return channelUserMap.get(channel);
+        return ViewerLeases.viewers(liveKey(channel));
     }
 
-    // 定时清理 15 分钟无活动会话
-    private static final ScheduledExecutorService cleaner = Executors.newScheduledThreadPool(1);
+    // 15 分钟无活动的会话自动停止
     private static final long TIMEOUT_MS = 15 * 60 * 1000;
 
-    static {
-        cleaner.scheduleAtFixedRate(() -> {
-            long now = System.currentTimeMillis();
-            for (Map.Entry<Integer, ISUPStreamHandler.StreamSession> entry : sessionMap.entrySet()) {
-                int channel = entry.getKey();
-                ISUPStreamHandler.StreamSession session = entry.getValue();
-                if (now - session.lastActiveTime > TIMEOUT_MS) {
-                    log.warn("isup通道 {} 空闲超时，自动停止推流", channel);
-                    // 清除通道用户
-                    channelUserMap.remove(channel);
-                    stopStream2(channel);
-                }
+    /**
+     * 会话的空闲超时：由时间轮在到期时读取最近活动时间，收到数据只更新时间戳，不需要定时全量扫描
+     */
+    private static TimingWheel.Timeout idleTimer(int channel, StreamSession session) {
+        TimingWheel.Timeout timer = new TimingWheel.Timeout() {
+            @Override
+            protected long deadline() {
+                return session.lastActiveTime + TIMEOUT_MS;
+            }
+
+            @Override
+            protected void expire() {
+                SessionThreads.start("ISUP-Idle-" + channel, () -> {
+                    synchronized (streamLock) {
+                        if (sessionMap.get(channel) != session) {
+                            return;
+                        }
+                        log.warn("isup通道 {} 空闲超时，自动停止推流", channel);
+                        stopStream2(channel);
+                    }
+                });
             }
-        }, 1, 1, TimeUnit.MINUTES);
+        };
+        TimingWheel.shared().schedule(timer);
+        return timer;
     }
 
 
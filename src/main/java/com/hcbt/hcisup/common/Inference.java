@@ -2,17 +2,13 @@ package com.hcbt.hcisup.common;
 
 import com.hcbt.hcisup.model.Detection;
 import lombok.extern.slf4j.Slf4j;
-import org.bytedeco.javacpp.DoublePointer;
-import org.bytedeco.javacpp.FloatPointer;
-import org.bytedeco.javacpp.IntPointer;
-import org.bytedeco.javacpp.indexer.FloatIndexer;
-import org.bytedeco.javacpp.indexer.IntIndexer;
 import org.bytedeco.opencv.opencv_core.*;
 import org.bytedeco.opencv.opencv_dnn.*;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_dnn;
 import org.bytedeco.opencv.global.opencv_imgproc;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -30,6 +26,8 @@ public class Inference {
     private boolean cudaEnabled;
     // OpenCV 的 DNN 网络对象
     private Net net;
+    // 输出层名称（加载模型时取一次）
+    private StringVector outNames;
     // 模型分类标签
     private List<String> classes ;
     // 模型推理的置信度阈值（用于 YOLOv5）
@@ -40,6 +38,12 @@ public class Inference {
     private float modelNMSThreshold = 0.50f;  // 非极大值抑制 (NMS) 的 IoU 阈值，用于去除重叠度过高的冗余检测框
     // 是否对图像进行 letterbox 操作以适配方形输入
     private boolean letterBoxForSquare = true;  // 是否对输入图像进行 Letterbox 处理以适应方形模型输入
+    // blob 不减均值；letterbox 的填充色
+    private static final Scalar NO_MEAN = new Scalar();
+    private static final Scalar BLACK = new Scalar(0, 0, 0, 0);
+    // 后处理的缓冲区，每个线程一份，各模型共用
+    private static final ThreadLocal<YoloDecoder> DECODERS = ThreadLocal.withInitial(YoloDecoder::new);
+    private final Random rand = new Random();
 
     /**
      * 构造函数
@@ -71,6 +75,7 @@ public class Inference {
             net.setPreferableBackend(opencv_dnn.DNN_BACKEND_OPENCV);
             net.setPreferableTarget(opencv_dnn.DNN_TARGET_CPU);
         }
+        outNames = net.getUnconnectedOutLayersNames();
     }
 
     /**
@@ -79,161 +84,76 @@ public class Inference {
      * @return 包含检测结果的 Detection 对象列表
      */
     public List<Detection> runInference(Mat input) {
-        Mat modelInput = input.clone();
         int[] padXY = new int[2];        // 存储 padding 的 x 和 y
         float[] scale = new float[1];   // 存储缩放因子
-
-        // 如果需要将图像调整为正方形
-        if (letterBoxForSquare && modelShape.width() == modelShape.height()) {
-            modelInput = formatToSquare(modelInput, padXY, scale);
-        }
-        // 构建 blob，进行归一化并调整尺寸
-        Mat blob = opencv_dnn.blobFromImage(modelInput, 1.0 / 255.0, modelShape, new Scalar(), true, false, opencv_core.CV_32F);
-        net.setInput(blob);
-        // 推理输出
-        MatVector outputs = new MatVector();
-        StringVector outNames = net.getUnconnectedOutLayersNames();
-        net.forward(outputs, outNames);
-
-        Mat output = outputs.get(0);            // 假设只有一个输出
-        int rows = output.size(1);          // 输出行数
-        int dimensions = output.size(2);    // 每个检测的维度数（坐标+类别分数）
-
-        // 判断是否是 YOLOv8 输出格式（维度在前）
-        boolean yolov8 = false;
-        if (dimensions > rows) { // 检查shape[2]是否大于shape[1]（YOLOv8）
-            yolov8 = true;
-            rows = output.size(2);
-            dimensions = output.size(1);
-
-            // 转置为正常的行表示检测框
-            output = output.reshape(1, dimensions);
-            Mat transposed = new Mat();
-            opencv_core.transpose(output, transposed);
-            output = transposed;
-        }
-
-        // 创建索引器读取输出内容
-        FloatIndexer data = output.createIndexer();
-        List<Integer> classIds = new ArrayList<>();
-        List<Float> confidences = new ArrayList<>();
-        List<Rect> boxes = new ArrayList<>();
-
-        // 遍历每一行（一个检测框）
-        for (int i = 0; i < rows; i++) {
-            if (yolov8) {
-                // YOLOv8 模式：得分从第4列开始，前4个是 bbox 信息
-                Mat scores = new Mat(1, classes.size(), opencv_core.CV_32FC1);
-                FloatIndexer scoresIdx = scores.createIndexer();
-
-                // 复制类别得分
-                for (int j = 0; j < classes.size(); j++) {
-                    scoresIdx.put(0, j, data.get(i, j + 4));
+        // letterbox 与 blob 取自 MatPool，推理结束后归还
+        Mat letterbox = null;
+        Mat blob = MatPool.acquire(new int[]{1, input.channels(), modelShape.height(), modelShape.width()}, opencv_core.CV_32F);
+        try {
+            // letterbox 与 blobFromImage 都不修改输入图像，不需要先复制
+            Mat modelInput = input;
+
+            // 如果需要将图像调整为正方形
+            if (letterBoxForSquare && modelShape.width() == modelShape.height()) {
+                letterbox = formatToSquare(input, padXY, scale);
+                modelInput = letterbox;
+            }
+            // 构建 blob，进行归一化并调整尺寸（写入池中同规格的 blob，不再每次分配）
+            opencv_dnn.blobFromImage(modelInput, blob, 1.0 / 255.0, modelShape, NO_MEAN, true, false, opencv_core.CV_32F);
+            net.setInput(blob);
+            // 推理输出
+            List<Detection> detections = new ArrayList<>();
+            try (MatVector outputs = new MatVector()) {
+                net.forward(outputs, outNames);
+
+                Mat output = outputs.get(0);            // 假设只有一个输出
+                int rows = output.size(1);          // 输出行数
+                int dimensions = output.size(2);    // 每个检测的维度数（坐标+类别分数）
+
+                // 判断是否是 YOLOv8 输出格式（维度在前）
+                boolean yolov8 = false;
+                if (dimensions > rows) { // 检查shape[2]是否大于shape[1]（YOLOv8）
+                    yolov8 = true;
+                    rows = output.size(2);
+                    dimensions = output.size(1);
                 }
 
-                // 查找最大得分及其索引
-                Point maxLoc = new Point();
-                DoublePointer maxVal = new DoublePointer(1);
-                opencv_core.minMaxLoc(scores, null, maxVal, null, maxLoc, null);
-                double maxScore = maxVal.get();
-                // 判断是否超过阈值
-                if (maxScore > modelScoreThreshold) {
-                    confidences.add((float) maxScore);
-                    classIds.add(maxLoc.x());
-                    // 获取坐标并反缩放还原
-                    float x = data.get(i, 0);
-                    float y = data.get(i, 1);
-                    float w = data.get(i, 2);
-                    float h = data.get(i, 3);
-
-                    int left = (int) ((x - 0.5 * w - padXY[0]) / scale[0]);
-                    int top = (int) ((y - 0.5 * h - padXY[1]) / scale[0]);
-                    int width = (int) (w / scale[0]);
-                    int height = (int) (h / scale[0]);
-
-                    boxes.add(new Rect(left, top, width, height));
+                // 输出张量一次复制到复用的数组，后处理全部在 Java 中完成（YOLOv8 按原布局读取，不再转置）
+                YoloDecoder decoder = DECODERS.get();
+                int total = rows * dimensions;
+                FloatBuffer buffer = output.createBuffer();
+                buffer.get(decoder.values(total), 0, total);
+                if (yolov8) {
+                    decoder.decodeV8(rows, classes.size(), modelScoreThreshold, padXY[0], padXY[1], scale[0]);
+                } else {
+                    decoder.decodeV5(rows, dimensions, classes.size(), modelConfidenceThreshold, modelScoreThreshold,
+                            padXY[0], padXY[1], scale[0]);
                 }
-            } else {
-                // YOLOv5
-                float confidence = data.get(i, 4);
 
-                if (confidence >= modelConfidenceThreshold) {
-                    Mat scores = new Mat(1, classes.size(), opencv_core.CV_32FC1);
-                    FloatIndexer scoresIdx = scores.createIndexer();
-
-                    // 复制类别得分
-                    for (int j = 0; j < classes.size(); j++) {
-                        scoresIdx.put(0, j, data.get(i, j + 5));
-                    }
-
-                    // 查找最大得分及其索引
-                    Point maxLoc = new Point();
-                    DoublePointer maxVal = new DoublePointer(1);
-                    opencv_core.minMaxLoc(scores, null, maxVal, null, maxLoc, null);
-                    double maxClassScore = maxVal.get();
-
-                    // 如果得分大于阈值，保存检测结果
-                    if (maxClassScore > modelScoreThreshold) {
-                        confidences.add(confidence);
-                        classIds.add(maxLoc.x());
-
-                        float x = data.get(i, 0);
-                        float y = data.get(i, 1);
-                        float w = data.get(i, 2);
-                        float h = data.get(i, 3);
-
-                        int left = (int) ((x - 0.5 * w - padXY[0]) / scale[0]);
-                        int top = (int) ((y - 0.5 * h - padXY[1]) / scale[0]);
-                        int width = (int) (w / scale[0]);
-                        int height = (int) (h / scale[0]);
-                        boxes.add(new Rect(left, top, width, height));
-                    }
+                // 非极大值抑制后构建最终检测结果
+                int keptCount = decoder.nms(modelScoreThreshold, modelNMSThreshold);
+                for (int k = 0; k < keptCount; k++) {
+                    int idx = decoder.kept(k);
+                    Detection detection = new Detection();
+                    detection.setClassId(decoder.classId(idx));
+                    detection.setConfidence(decoder.confidence(idx));
+                    detection.setColor(new Scalar(
+                            rand.nextInt(156) + 100,         // 保证颜色偏亮
+                            rand.nextInt(156) + 100,
+                            rand.nextInt(156) + 100,
+                            0
+                    ));
+                    detection.setClassName(classes.get(detection.getClassId()));
+                    detection.setBox(new Rect(decoder.left(idx), decoder.top(idx), decoder.width(idx), decoder.height(idx)));
+                    detections.add(detection);
                 }
             }
-        }
 
-        Mat bboxesMat = new Mat(boxes.size(), 4, opencv_core.CV_32S);
-        IntIndexer bboxIndexer = bboxesMat.createIndexer();
-        for (int i = 0; i < boxes.size(); i++) {
-            Rect r = boxes.get(i);
-            bboxIndexer.put(i, 0, r.x());
-            bboxIndexer.put(i, 1, r.y());
-            bboxIndexer.put(i, 2, r.width());
-            bboxIndexer.put(i, 3, r.height());
+            return detections;
+        } finally {
+            MatPool.release(letterbox);
+            MatPool.release(blob);
         }
-
-        // 准备进行 NMS 过滤
-        RectVector bboxesVec = new RectVector();
-        FloatPointer scoresPtr = new FloatPointer(confidences.size());
-        for (int i = 0; i < boxes.size(); i++) {
-            Rect r = boxes.get(i);
-            bboxesVec.push_back(new Rect(r.x(), r.y(), r.width(), r.height()));
-            scoresPtr.put(i, confidences.get(i));
-        }
-        IntPointer indicesPtr = new IntPointer();
-        opencv_dnn.NMSBoxes(bboxesVec, scoresPtr, modelScoreThreshold, modelNMSThreshold, indicesPtr);
-        // 提取保留的索引
-        int[] indicesArray = new int[(int) indicesPtr.limit()];
-        indicesPtr.get(indicesArray);
-        // 构建最终检测结果
-        List<Detection> detections = new ArrayList<>();
-        Random rand = new Random();
-        for (int idx : indicesArray) {
-            Detection detection = new Detection();
-            detection.setClassId(classIds.get(idx));
-            detection.setConfidence(confidences.get(idx));
-            detection.setColor(new Scalar(
-                    rand.nextInt(156) + 100,         // 保证颜色偏亮
-                    rand.nextInt(156) + 100,
-                    rand.nextInt(156) + 100,
-                    0
-            ));
-            detection.setClassName(classes.get(detection.getClassId()));
-            detection.setBox(boxes.get(idx));
-            detections.add(detection);
-        }
-
-        return detections;
     }
 
     /**
@@ -241,7 +161,7 @@ public class Inference {
      * @param source 原始图像
      * @param padXY 填充的X和Y值
      * @param scale 缩放因子
-     * @return 处理后的图像
+     * @return 处理后的图像（取自 MatPool，由调用方归还）
      */
     private Mat formatToSquare(Mat source, int[] padXY, float[] scale) {
         int col = source.cols();  // 原图宽
@@ -255,13 +175,14 @@ public class Inference {
         // 计算 padding（居中填充）
         padXY[0] = (m_inputWidth - resizedW) / 2;
         padXY[1] = (m_inputHeight - resizedH) / 2;
-        // 缩放图像
-        Mat resized = new Mat();
-        opencv_imgproc.resize(source, resized, new Size(resizedW, resizedH));
-        // 新建一个黑色背景图像并复制图像到中间
-        Mat result = new Mat(m_inputHeight, m_inputWidth, source.type(), new Scalar(0, 0, 0, 0));
-        Mat roi = result.apply(new Rect(padXY[0], padXY[1], resizedW, resizedH));
-        resized.copyTo(roi);
+        // 从池中取黑色背景图像，缩放结果直接写入中间区域，不再单独分配缩放图像
+        Mat result = MatPool.acquire(m_inputHeight, m_inputWidth, source.type());
+        result.put(BLACK);
+        try (Rect rect = new Rect(padXY[0], padXY[1], resizedW, resizedH);
+             Size size = new Size(resizedW, resizedH);
+             Mat roi = result.apply(rect)) {
+            opencv_imgproc.resize(source, roi, size);
+        }
 
         return result;
     }
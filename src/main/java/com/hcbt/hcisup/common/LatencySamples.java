@@ -0,0 +1,60 @@
+package com.hcbt.hcisup.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 最近若干次耗时的样本，用于统计 p50 / p99 / 最大值
+ * <p>
+ * 超过容量时覆盖最早的样本。线程安全，用于记录频率不高的耗时（进程启动、通道切换、回收、调度等待）；
+ * 每帧都要记录的延迟用直方图（见 {@link CoalescingOutputStream}）。
+ */
+public final class LatencySamples {
+
+    private final long[] samples;
+    // 下一个写入位置与当前样本数
+    private int next;
+    private int size;
+
+    /**
+     * @param capacity 保留的样本数
+     */
+    public LatencySamples(int capacity) {
+        this.samples = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * 记录一个样本（单位由调用方决定）
+     */
+    public synchronized void add(long value) {
+        samples[next] = value;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) {
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 汇总：count 为当前样本数，有样本时另有 p50、p99、max
+     */
+    public Map<String, Object> snapshot() {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, size);
+        }
+        Arrays.sort(sorted);
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("count", sorted.length);
+        if (sorted.length > 0) {
+            summary.put("p50", sorted[sorted.length / 2]);
+            summary.put("p99", sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.99) - 1)]);
+            summary.put("max", sorted[sorted.length - 1]);
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,36 @@
+package com.hcbt.hcisup.common;
+
+import java.io.IOException;
+
+/**
+ * 进程内 FLV 封装后直接交给 {@link LiveStreamHub} 分发的输出端
+ */
+public class LiveHubFrameSink implements FrameSink {
+
+    private final FlvMuxer muxer;
+    private final LiveStreamHub.Channel channel;
+
+    /**
+     * @param key  直播流 key
+     * @param hevc 源码流是否为 H.265
+     */
+    public LiveHubFrameSink(String key, boolean hevc) {
+        this.muxer = new FlvMuxer(hevc);
+        this.channel = LiveStreamHub.open(key);
+    }
+
+    @Override
+    public void writeFrame(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame) throws IOException {
+        if (channel.isClosed()) {
+            throw new IOException("直播流已关闭: " + channel.getKey());
+        }
+        muxer.writeFrame(data, offset, length, pts, dts, keyFrame, channel);
+    }
+
+    /**
+     * 不关闭直播流：由推流会话在停止时关闭，重启管线时保留，观看者不断开
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,441 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内 FLV 直播分发
+ * <p>
+ * 每个直播流（key，如 isup_101）只有一路输入，输入的 FLV tag 只封装一次，
+ * 以同一个字节数组分发给所有订阅者（HTTP-FLV、WebSocket-FLV）。
+ * 每个订阅者有独立的有界队列，消费过慢导致队列满时清空队列并丢弃后续帧，
+ * 直到下一个关键帧再继续，不会拖慢输入和其他订阅者。
+ * <p>
+ * 新订阅者先收到 FLV 文件头、onMetaData、序列头以及当前 GOP，可以立即开始解码。
+ * <p>
+ * 监听者（如 {@link LlHlsSegmenter}）在输入线程中同步收到原始 tag 负载，用于其他协议的再封装。
+ */
+@Slf4j
+public final class LiveStreamHub {
+
+    // key -> 直播流
+    private static final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    // 订阅者队列长度（tag 数）
+    private static volatile int subscriberQueueSize = 512;
+    // 每路缓存的 GOP 上限（字节）
+    private static volatile int gopMaxBytes = 4 * 1024 * 1024;
+
+    private LiveStreamHub() {
+    }
+
+    /**
+     * 设置订阅者队列长度与 GOP 缓存上限，对之后创建的直播流生效
+     */
+    public static void configure(int queueSize, int gopBytes) {
+        subscriberQueueSize = Math.max(queueSize, 16);
+        gopMaxBytes = Math.max(gopBytes, 0);
+    }
+
+    /**
+     * 获取或创建直播流（输入端调用）
+     */
+    public static Channel open(String key) {
+        return channels.computeIfAbsent(key, k -> new Channel(k, subscriberQueueSize, gopMaxBytes));
+    }
+
+    /**
+     * 获取直播流，不存在返回 null
+     */
+    public static Channel get(String key) {
+        return channels.get(key);
+    }
+
+    /**
+     * 输入结束：移除直播流并断开所有订阅者
+     */
+    public static void close(String key) {
+        Channel channel = channels.remove(key);
+        if (channel != null) {
+            channel.close();
+            log.info("直播流 {} 已关闭", key);
+        }
+    }
+
+    /**
+     * 各直播流的订阅与丢帧统计
+     */
+    public static Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new HashMap<>();
+        for (Channel channel : channels.values()) {
+            stats.put(channel.key, channel.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 一路直播流
+     */
+    public static final class Channel implements FlvMuxer.TagWriter {
+        private final String key;
+        private final int queueSize;
+        private final int gopMaxBytes;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private final AtomicInteger subscriberIds = new AtomicInteger();
+        private final List<FlvMuxer.TagWriter> listeners = new CopyOnWriteArrayList<>();
+
+        // 新订阅者需要的起始数据（仅在本对象监视器下访问）
+        private byte[] metaData;
+        private byte[] videoSequenceHeader;
+        private byte[] audioSequenceHeader;
+        private final List<byte[]> gop = new ArrayList<>();
+        private int gopBytes;
+        private volatile boolean closed;
+
+        // 统计
+        private final AtomicLong tags = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Channel(String key, int queueSize, int gopMaxBytes) {
+            this.key = key;
+            this.queueSize = queueSize;
+            this.gopMaxBytes = gopMaxBytes;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 输入一个 FLV tag 负载，封装为完整 tag 后分发
+         */
+        @Override
+        public void writeTag(int tagType, int timestamp, byte[] body, int offset, int length) {
+            byte[] tag = new byte[11 + length + 4];
+            FlvMuxer.writeTagHeader(tag, tagType, timestamp, length);
+            System.arraycopy(body, offset, tag, 11, length);
+            int size = 11 + length;
+            tag[size] = (byte) (size >>> 24);
+            tag[size + 1] = (byte) (size >>> 16);
+            tag[size + 2] = (byte) (size >>> 8);
+            tag[size + 3] = (byte) size;
+            publish(tag, tagType, length > 0 ? body[offset] : 0, length > 1 ? body[offset + 1] : 1);
+            if (closed) {
+                return;
+            }
+            for (FlvMuxer.TagWriter listener : listeners) {
+                try {
+                    listener.writeTag(tagType, timestamp, body, offset, length);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("直播流 {} 监听者处理失败: {}", key, e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * 添加监听者，之后输入的每个 tag 都会同步转交（不补发之前的数据）
+         */
+        public void addListener(FlvMuxer.TagWriter listener) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+
+        private synchronized void publish(byte[] tag, int tagType, byte first, byte packetType) {
+            if (closed) {
+                return;
+            }
+            tags.incrementAndGet();
+            bytes.addAndGet(tag.length);
+            boolean keyFrame = false;
+            if (tagType == FlvMuxer.TAG_SCRIPT) {
+                metaData = tag;
+            } else if (tagType == FlvMuxer.TAG_VIDEO) {
+                if (packetType == 0) {
+                    // 序列头单独保存，不进入 GOP
+                    videoSequenceHeader = tag;
+                } else {
+                    keyFrame = (first & 0xF0) == 0x10;
+                    cacheGop(tag, keyFrame);
+                }
+            } else if (tagType == FlvMuxer.TAG_AUDIO) {
+                if ((first & 0xF0) == 0xA0 && packetType == 0) {
+                    // AAC 序列头
+                    audioSequenceHeader = tag;
+                } else if (!gop.isEmpty()) {
+                    cacheGop(tag, false);
+                }
+            }
+            // 序列头与脚本 tag 不受丢帧影响，等待关键帧的订阅者也要收到
+            boolean always = tagType == FlvMuxer.TAG_SCRIPT || (tagType == FlvMuxer.TAG_VIDEO && packetType == 0);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(tag, keyFrame, always);
+            }
+        }
+
+        private void cacheGop(byte[] tag, boolean keyFrame) {
+            if (gopMaxBytes == 0) {
+                return;
+            }
+            if (keyFrame) {
+                gop.clear();
+                gopBytes = 0;
+            } else if (gop.isEmpty()) {
+                return;
+            }
+            if (gopBytes + tag.length > gopMaxBytes) {
+                // 超出上限，等待下一个关键帧重新缓存
+                gop.clear();
+                gopBytes = 0;
+                return;
+            }
+            gop.add(tag);
+            gopBytes += tag.length;
+        }
+
+        /**
+         * 新增订阅者，并放入 FLV 文件头、序列头与当前 GOP
+         *
+         * @param remote 订阅者描述（用于日志与统计）
+         */
+        public synchronized Subscriber subscribe(String remote) {
+            Subscriber subscriber = new Subscriber(this, subscriberIds.incrementAndGet(), remote, queueSize);
+            subscriber.queue.offer(FlvMuxer.fileHeader(audioSequenceHeader != null));
+            if (metaData != null) {
+                subscriber.queue.offer(metaData);
+            }
+            if (videoSequenceHeader != null) {
+                subscriber.queue.offer(videoSequenceHeader);
+            }
+            if (audioSequenceHeader != null) {
+                subscriber.queue.offer(audioSequenceHeader);
+            }
+            if (gop.isEmpty()) {
+                subscriber.waitingForKeyFrame = true;
+            } else {
+                for (byte[] tag : gop) {
+                    if (!subscriber.queue.offer(tag)) {
+                        subscriber.waitingForKeyFrame = true;
+                        break;
+                    }
+                }
+            }
+            subscribers.add(subscriber);
+            log.info("直播流 {} 新增订阅者 {}（{}），当前 {} 个", key, subscriber.id, remote, subscribers.size());
+            return subscriber;
+        }
+
+        void unsubscribe(Subscriber subscriber) {
+            if (subscribers.remove(subscriber)) {
+                log.info("直播流 {} 订阅者 {} 离开，剩余 {} 个", key, subscriber.id, subscribers.size());
+            }
+        }
+
+        public int subscriberCount() {
+            return subscribers.size();
+        }
+
+        private synchronized void close() {
+            closed = true;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.close();
+            }
+            subscribers.clear();
+            listeners.clear();
+            gop.clear();
+        }
+
+        private Map<String, Object> stats() {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("tags", tags.get());
+            stats.put("bytes", bytes.get());
+            stats.put("gopTags", gop.size());
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (Subscriber subscriber : subscribers) {
+                list.add(subscriber.stats());
+            }
+            stats.put("subscribers", list);
+            return stats;
+        }
+    }
+
+    /**
+     * 一个订阅者（一个 HTTP / WebSocket 连接）
+     */
+    public static final class Subscriber {
+        // 关闭标记，放入队列唤醒消费者
+        private static final byte[] EOF = new byte[0];
+
+        private final Channel channel;
+        private final int id;
+        private final String remote;
+        private final BlockingQueue<byte[]> queue;
+        private final long createdAt = System.currentTimeMillis();
+        // 以下字段只由输入线程修改（在 Channel 监视器下）
+        private boolean waitingForKeyFrame;
+        private volatile boolean closed;
+        // 有新 tag 或关闭时的回调（如异步发送）
+        private volatile Runnable listener;
+
+        private final AtomicLong sentTags = new AtomicLong();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong droppedTags = new AtomicLong();
+        private final AtomicLong overflows = new AtomicLong();
+
+        private Subscriber(Channel channel, int id, String remote, int queueSize) {
+            this.channel = channel;
+            this.id = id;
+            this.remote = remote;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        /**
+         * 输入线程投递：队列满时清空并等待下一个关键帧
+         *
+         * @param always 序列头等必须送达的 tag，等待关键帧期间也投递
+         */
+        private void offer(byte[] tag, boolean keyFrame, boolean always) {
+            if (closed) {
+                return;
+            }
+            if (waitingForKeyFrame && !always) {
+                if (!keyFrame) {
+                    droppedTags.incrementAndGet();
+                    return;
+                }
+                waitingForKeyFrame = false;
+            }
+            if (!queue.offer(tag)) {
+                overflows.incrementAndGet();
+                if (sentTags.get() == 0) {
+                    // FLV 文件头还没发出去，清空队列后无法恢复，直接断开
+                    close();
+                    return;
+                }
+                droppedTags.addAndGet(queue.size());
+                queue.clear();
+                waitingForKeyFrame = true;
+                // 清掉的可能正是更新后的序列头，先补发通道当前的序列头，之后的关键帧才能解码（调用方持有 Channel 监视器）
+                byte[] video = channel.videoSequenceHeader;
+                byte[] audio = channel.audioSequenceHeader;
+                if (video != null) {
+                    queue.offer(video);
+                }
+                if (audio != null) {
+                    queue.offer(audio);
+                }
+                // 当前 tag 就是序列头时已随上面补发
+                if (tag != video && tag != audio) {
+                    if (!always) {
+                        droppedTags.incrementAndGet();
+                        return;
+                    }
+                    queue.offer(tag);
+                }
+            }
+            notifyListener();
+        }
+
+        /**
+         * 设置有新 tag 或订阅结束时的回调，在输入线程中调用，不能阻塞；设置时已有待发送的 tag 会立即回调一次
+         */
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+            if (listener != null && (closed || !queue.isEmpty())) {
+                listener.run();
+            }
+        }
+
+        private void notifyListener() {
+            Runnable current = listener;
+            if (current != null) {
+                current.run();
+            }
+        }
+
+        /**
+         * 取出下一个完整 tag（首个为 FLV 文件头）
+         *
+         * @return tag 数据；超时返回 null；订阅结束时抛出 IllegalStateException
+         */
+        public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (closed && queue.isEmpty()) {
+                throw new IllegalStateException("直播流已结束");
+            }
+            return taken(queue.poll(timeout, unit));
+        }
+
+        /**
+         * 不等待，取出下一个 tag
+         *
+         * @return tag 数据；队列为空返回 null；订阅结束时抛出 IllegalStateException
+         */
+        public byte[] poll() {
+            return taken(queue.poll());
+        }
+
+        private byte[] taken(byte[] tag) {
+            if (tag == EOF || (tag == null && closed)) {
+                throw new IllegalStateException("直播流已结束");
+            }
+            if (tag != null) {
+                sentTags.incrementAndGet();
+                sentBytes.addAndGet(tag.length);
+            }
+            return tag;
+        }
+
+        /**
+         * 断开订阅
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            queue.offer(EOF);
+            channel.unsubscribe(this);
+            notifyListener();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 队列中是否还有待发送的 tag
+         */
+        public boolean hasPending() {
+            return !queue.isEmpty();
+        }
+
+        private Map<String, Object> stats() {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("id", id);
+            stats.put("remote", remote);
+            stats.put("connectedMs", System.currentTimeMillis() - createdAt);
+            stats.put("queued", queue.size());
+            stats.put("sentTags", sentTags.get());
+            stats.put("sentBytes", sentBytes.get());
+            stats.put("droppedTags", droppedTags.get());
+            stats.put("overflows", overflows.get());
+            return stats;
+        }
+    }
+}
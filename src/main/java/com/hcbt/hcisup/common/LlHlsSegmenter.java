@@ -0,0 +1,481 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存中的 LL-HLS（fMP4）切片
+ * <p>
+ * 作为 {@link LiveStreamHub} 的监听者接收 FLV 视频 tag，在内存中生成 CMAF 部分切片（part，约 0.5 秒）
+ * 与完整切片（在关键帧处切分），只保留最近若干个切片的滑动窗口，不写磁盘。
+ * 播放列表支持 {@code _HLS_msn} / {@code _HLS_part} 阻塞刷新：请求的部分切片生成后立即回调。
+ * <p>
+ * 输入在直播流的输入线程中调用，播放列表与切片由 HTTP 线程读取，状态都在本对象监视器下访问。
+ */
+@Slf4j
+public final class LlHlsSegmenter implements FlvMuxer.TagWriter {
+
+    // key -> 切片器
+    private static final Map<String, LlHlsSegmenter> streams = new ConcurrentHashMap<>();
+    private static volatile int partTargetMs = 500;
+    private static volatile int segmentTargetMs = 2000;
+    private static volatile int windowSegments = 6;
+
+    // 保留部分切片的切片个数（含正在生成的切片）
+    private static final int PART_SEGMENTS = 3;
+    // 相邻帧时间戳差超过该值视为不连续，按上一帧时长处理
+    private static final int MAX_FRAME_GAP_MS = 10000;
+
+    /**
+     * 设置部分切片时长、切片时长与窗口大小，对之后创建的切片器生效
+     */
+    public static void configure(int partMs, int segmentMs, int window) {
+        partTargetMs = Math.max(partMs, 100);
+        segmentTargetMs = Math.max(segmentMs, partTargetMs);
+        windowSegments = Math.max(window, 3);
+    }
+
+    /**
+     * 获取或创建切片器
+     */
+    public static LlHlsSegmenter open(String key) {
+        return streams.computeIfAbsent(key, LlHlsSegmenter::new);
+    }
+
+    /**
+     * 获取切片器，不存在返回 null
+     */
+    public static LlHlsSegmenter get(String key) {
+        return streams.get(key);
+    }
+
+    /**
+     * 输入结束：移除切片器并唤醒所有等待中的请求
+     */
+    public static void close(String key) {
+        LlHlsSegmenter segmenter = streams.remove(key);
+        if (segmenter != null) {
+            segmenter.close();
+            log.info("LL-HLS {} 已关闭", key);
+        }
+    }
+
+    /**
+     * 各路切片统计
+     */
+    public static Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new HashMap<>();
+        for (LlHlsSegmenter segmenter : streams.values()) {
+            stats.put(segmenter.key, segmenter.snapshot());
+        }
+        return stats;
+    }
+
+    /**
+     * 一个完整切片，生成过程中逐个追加部分切片
+     */
+    private static final class Segment {
+        final long msn;
+        final List<Part> parts = new ArrayList<>();
+        int durationMs;
+        boolean complete;
+        byte[] data;
+        // 超出部分切片窗口后释放部分切片数据，只保留完整切片
+        boolean partsReleased;
+
+        Segment(long msn) {
+            this.msn = msn;
+        }
+    }
+
+    private static final class Part {
+        final byte[] data;
+        final int durationMs;
+        final boolean independent;
+
+        Part(byte[] data, int durationMs, boolean independent) {
+            this.data = data;
+            this.durationMs = durationMs;
+            this.independent = independent;
+        }
+    }
+
+    /**
+     * 阻塞刷新 / 预加载请求：指定的部分切片生成后回调
+     */
+    private static final class Waiter {
+        final long msn;
+        final int part;
+        final Runnable callback;
+
+        Waiter(long msn, int part, Runnable callback) {
+            this.msn = msn;
+            this.part = part;
+            this.callback = callback;
+        }
+    }
+
+    private final String key;
+    private final int partTarget;
+    private final int segmentTarget;
+    private final int window;
+
+    // 初始化段
+    private byte[] config;
+    private boolean hevc;
+    private byte[] init;
+    private int initVersion;
+
+    // 滑动窗口，最后一个是正在生成的切片
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+    private long nextMsn;
+    private int maxSegmentMs;
+
+    // 当前部分切片的样本；最后一帧要等下一帧到达才能确定时长
+    private final List<Fmp4Muxer.Sample> partSamples = new ArrayList<>();
+    private int partDurationMs;
+    private Fmp4Muxer.Sample pending;
+    private int lastFrameMs = 40;
+    private int fragmentSequence;
+
+    private final List<Waiter> waiters = new ArrayList<>();
+    private boolean closed;
+
+    // 统计
+    private long frames;
+    private long partsCreated;
+    private long segmentsCreated;
+    private long blockedRequests;
+
+    private LlHlsSegmenter(String key) {
+        this.key = key;
+        this.partTarget = partTargetMs;
+        this.segmentTarget = segmentTargetMs;
+        this.window = windowSegments;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 阻塞刷新的最长等待时间：3 倍切片目标时长
+     */
+    public long getBlockTimeoutMs() {
+        return segmentTarget * 3L;
+    }
+
+    /**
+     * 输入 FLV tag，只处理视频
+     */
+    @Override
+    public void writeTag(int tagType, int timestamp, byte[] body, int offset, int length) {
+        if (tagType != FlvMuxer.TAG_VIDEO || length < 5) {
+            return;
+        }
+        int codec = body[offset] & 0x0F;
+        int packetType = body[offset + 1];
+        byte[] payload = Arrays.copyOfRange(body, offset + 5, offset + length);
+        if (packetType == 0) {
+            onConfig(codec == FlvMuxer.CODEC_HEVC, payload);
+        } else if (packetType == 1) {
+            // 合成时间为 24 位有符号数
+            int cts = ((body[offset + 2] << 16) | ((body[offset + 3] & 0xFF) << 8) | (body[offset + 4] & 0xFF));
+            boolean keyFrame = (body[offset] & 0xF0) == 0x10;
+            List<Waiter> ready;
+            synchronized (this) {
+                onFrame(new Fmp4Muxer.Sample(payload, 0, payload.length, timestamp, cts, keyFrame));
+                ready = takeReadyWaiters();
+            }
+            for (Waiter waiter : ready) {
+                waiter.callback.run();
+            }
+        }
+    }
+
+    private synchronized void onConfig(boolean hevc, byte[] config) {
+        if (closed || (this.hevc == hevc && Arrays.equals(this.config, config))) {
+            return;
+        }
+        if (init != null) {
+            // 编码参数变化：旧切片无法用新的初始化段解码，清空窗口重新开始
+            log.info("LL-HLS {} 编码参数变化，重新切片", key);
+            segments.clear();
+            current = null;
+            partSamples.clear();
+            partDurationMs = 0;
+            pending = null;
+        }
+        this.hevc = hevc;
+        this.config = config;
+        this.init = Fmp4Muxer.initSegment(hevc, config);
+        initVersion++;
+    }
+
+    private void onFrame(Fmp4Muxer.Sample sample) {
+        if (closed || init == null) {
+            return;
+        }
+        frames++;
+        if (current == null) {
+            // 切片必须从关键帧开始
+            if (sample.keyFrame) {
+                startSegment();
+                pending = sample;
+            }
+            return;
+        }
+        int duration = (int) (sample.decodeTime - pending.decodeTime);
+        if (duration <= 0 || duration > MAX_FRAME_GAP_MS) {
+            duration = lastFrameMs;
+        }
+        lastFrameMs = duration;
+        pending.duration = duration;
+        if (!partSamples.isEmpty() && partDurationMs + duration > partTarget) {
+            flushPart();
+        }
+        partSamples.add(pending);
+        partDurationMs += duration;
+        current.durationMs += duration;
+        if (sample.keyFrame && current.durationMs >= segmentTarget) {
+            flushPart();
+            closeSegment();
+            startSegment();
+        } else if (partDurationMs >= partTarget) {
+            flushPart();
+        }
+        pending = sample;
+    }
+
+    private void startSegment() {
+        current = new Segment(nextMsn++);
+        segments.addLast(current);
+        while (segments.size() > window + 1) {
+            segments.removeFirst();
+        }
+        int index = 0;
+        for (Iterator<Segment> it = segments.descendingIterator(); it.hasNext(); index++) {
+            Segment segment = it.next();
+            if (index >= PART_SEGMENTS && !segment.partsReleased) {
+                segment.parts.clear();
+                segment.partsReleased = true;
+            }
+        }
+    }
+
+    private void flushPart() {
+        if (partSamples.isEmpty()) {
+            return;
+        }
+        byte[] data = Fmp4Muxer.fragment(++fragmentSequence, partSamples);
+        current.parts.add(new Part(data, partDurationMs, partSamples.get(0).keyFrame));
+        partSamples.clear();
+        partDurationMs = 0;
+        partsCreated++;
+    }
+
+    private void closeSegment() {
+        int size = 0;
+        for (Part part : current.parts) {
+            size += part.data.length;
+        }
+        byte[] data = new byte[size];
+        int pos = 0;
+        for (Part part : current.parts) {
+            System.arraycopy(part.data, 0, data, pos, part.data.length);
+            pos += part.data.length;
+        }
+        current.data = data;
+        current.complete = true;
+        maxSegmentMs = Math.max(maxSegmentMs, current.durationMs);
+        segmentsCreated++;
+    }
+
+    /**
+     * 指定的部分切片（part 为 -1 时指完整切片）是否已经生成
+     */
+    private boolean isReady(long msn, int part) {
+        if (current == null) {
+            return false;
+        }
+        if (msn < current.msn) {
+            return true;
+        }
+        return msn == current.msn && part >= 0 && current.parts.size() > part;
+    }
+
+    private List<Waiter> takeReadyWaiters() {
+        if (waiters.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<Waiter> ready = new ArrayList<>();
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (closed || isReady(waiter.msn, waiter.part)) {
+                ready.add(waiter);
+                it.remove();
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * 阻塞刷新：等待指定的部分切片生成
+     *
+     * @param msn  媒体序号
+     * @param part 部分切片序号，-1 表示等待整个切片
+     * @return 1 已就绪（不会回调）；0 已登记，就绪或关闭时回调；-1 请求超出范围（应返回 400）
+     */
+    public synchronized int await(long msn, int part, Runnable callback) {
+        if (closed || isReady(msn, part)) {
+            return 1;
+        }
+        long last = current == null ? nextMsn : current.msn;
+        if (msn > last + 2) {
+            return -1;
+        }
+        waiters.add(new Waiter(msn, part, callback));
+        blockedRequests++;
+        return 0;
+    }
+
+    /**
+     * 放弃等待（请求超时）
+     */
+    public synchronized void cancel(Runnable callback) {
+        waiters.removeIf(waiter -> waiter.callback == callback);
+    }
+
+    /**
+     * 当前播放列表，尚未生成任何部分切片时返回 null
+     */
+    public synchronized String playlist() {
+        if (init == null || current == null || (current.parts.isEmpty() && segments.size() == 1)) {
+            return null;
+        }
+        int targetDuration = (int) Math.ceil(Math.max(maxSegmentMs, segmentTarget) / 1000.0);
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:9\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        sb.append("#EXT-X-PART-INF:PART-TARGET=").append(seconds(partTarget)).append('\n');
+        sb.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+                .append(seconds(partTarget * 3)).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segments.peekFirst().msn).append('\n');
+        sb.append("#EXT-X-MAP:URI=\"init.mp4?v=").append(initVersion).append("\"\n");
+        for (Segment segment : segments) {
+            if (!segment.partsReleased) {
+                for (int i = 0; i < segment.parts.size(); i++) {
+                    Part part = segment.parts.get(i);
+                    sb.append("#EXT-X-PART:DURATION=").append(seconds(part.durationMs))
+                            .append(",URI=\"part").append(segment.msn).append('.').append(i).append(".m4s\"");
+                    if (part.independent) {
+                        sb.append(",INDEPENDENT=YES");
+                    }
+                    sb.append('\n');
+                }
+            }
+            if (segment.complete) {
+                sb.append("#EXTINF:").append(seconds(segment.durationMs)).append(",\n");
+                sb.append("seg").append(segment.msn).append(".m4s\n");
+            }
+        }
+        sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part").append(current.msn).append('.')
+                .append(current.parts.size()).append(".m4s\"\n");
+        return sb.toString();
+    }
+
+    /**
+     * 初始化段
+     */
+    public synchronized byte[] initSegment() {
+        return init;
+    }
+
+    /**
+     * 完整切片，不在窗口内或尚未完成时返回 null
+     */
+    public synchronized byte[] segment(long msn) {
+        Segment segment = find(msn);
+        return segment != null && segment.complete ? segment.data : null;
+    }
+
+    /**
+     * 部分切片，不在窗口内或尚未生成时返回 null
+     */
+    public synchronized byte[] part(long msn, int index) {
+        Segment segment = find(msn);
+        if (segment == null || index < 0 || index >= segment.parts.size()) {
+            return null;
+        }
+        return segment.parts.get(index).data;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private Segment find(long msn) {
+        for (Segment segment : segments) {
+            if (segment.msn == msn) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private void close() {
+        List<Waiter> ready;
+        synchronized (this) {
+            closed = true;
+            segments.clear();
+            current = null;
+            partSamples.clear();
+            pending = null;
+            ready = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        for (Waiter waiter : ready) {
+            waiter.callback.run();
+        }
+    }
+
+    private synchronized Map<String, Object> snapshot() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("codec", init == null ? null : (hevc ? "hevc" : "h264"));
+        stats.put("frames", frames);
+        stats.put("parts", partsCreated);
+        stats.put("segments", segmentsCreated);
+        stats.put("windowSegments", segments.size());
+        stats.put("currentMsn", current == null ? null : current.msn);
+        stats.put("maxSegmentMs", maxSegmentMs);
+        stats.put("waiting", waiters.size());
+        stats.put("blockedRequests", blockedRequests);
+        long bytes = 0;
+        for (Segment segment : segments) {
+            if (segment.data != null) {
+                bytes += segment.data.length;
+            }
+            for (Part part : segment.parts) {
+                bytes += part.data.length;
+            }
+        }
+        stats.put("memoryBytes", bytes);
+        return stats;
+    }
+
+    private static String seconds(int millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+}
@@ -0,0 +1,197 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OpenCV Mat 池
+ * <p>
+ * 推理与取帧原来每帧都新分配 Mat（输入复制、letterbox、缩放、blob、转置、订阅者的帧副本），
+ * native 内存只能等 GC 回收包装对象时才释放，检测跑久了常驻内存持续上涨。
+ * 池按尺寸与类型缓存空闲的 Mat，各阶段用完后显式 {@link #release(Mat)} 归还，下次同规格直接复用。
+ * <p>
+ * 取得的 Mat 内容未初始化，需要时由调用方填充。只归还从本池取得、且不再被引用的 Mat；
+ * 每个规格最多缓存 maxPerKey 个，超出或未启用时归还即关闭。
+ */
+@Slf4j
+public final class MatPool {
+
+    /**
+     * 池的规格：各维尺寸与类型
+     */
+    private static final class Key {
+        final int[] sizes;
+        final int type;
+
+        Key(int[] sizes, int type) {
+            this.sizes = sizes;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return type == other.type && Arrays.equals(sizes, other.sizes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(sizes) + type;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < sizes.length; i++) {
+                if (i > 0) {
+                    name.append('x');
+                }
+                name.append(sizes[i]);
+            }
+            return name.append('/').append(type).toString();
+        }
+    }
+
+    private static volatile boolean enabled = true;
+    private static volatile int maxPerKey = 4;
+    private static final Map<Key, BlockingQueue<Mat>> free = new ConcurrentHashMap<>();
+
+    // 命中：复用池中的 Mat
+    private static final AtomicLong hits = new AtomicLong();
+    // 未命中：池中没有该规格，新分配
+    private static final AtomicLong misses = new AtomicLong();
+    // 归还时池已满或未启用而关闭的个数
+    private static final AtomicLong discarded = new AtomicLong();
+    // 已取出尚未归还的字节数
+    private static final AtomicLong inUseBytes = new AtomicLong();
+    // 池中空闲的字节数
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private MatPool() {
+    }
+
+    /**
+     * @param enable 是否启用（不启用时取出即分配、归还即关闭）
+     * @param perKey 每个规格最多缓存的空闲 Mat 数
+     */
+    public static void configure(boolean enable, int perKey) {
+        maxPerKey = Math.max(perKey, 1);
+        enabled = enable;
+        if (!enable) {
+            clear();
+        }
+        log.info("Mat 池{}，每个规格最多缓存 {} 个", enable ? "已启用" : "未启用", maxPerKey);
+    }
+
+    /**
+     * 取一个 rows x cols 的二维 Mat
+     */
+    public static Mat acquire(int rows, int cols, int type) {
+        return acquire(new int[]{rows, cols}, type);
+    }
+
+    /**
+     * 取一个多维 Mat（如推理输入 blob 的 1x3xHxW）
+     */
+    public static Mat acquire(int[] sizes, int type) {
+        Key key = new Key(sizes.clone(), type);
+        Mat mat = null;
+        if (enabled) {
+            BlockingQueue<Mat> queue = free.get(key);
+            mat = queue == null ? null : queue.poll();
+        }
+        if (mat != null) {
+            hits.incrementAndGet();
+            pooledBytes.addAndGet(-bytes(mat));
+        } else {
+            misses.incrementAndGet();
+            mat = new Mat(key.sizes.length, key.sizes, type);
+        }
+        inUseBytes.addAndGet(bytes(mat));
+        return mat;
+    }
+
+    /**
+     * 归还 Mat；池已满、未启用或 Mat 不是完整的连续内存（如 ROI）时关闭
+     */
+    public static void release(Mat mat) {
+        if (mat == null || mat.isNull()) {
+            return;
+        }
+        long size = bytes(mat);
+        inUseBytes.addAndGet(-size);
+        if (enabled && mat.isContinuous() && !mat.isSubmatrix()) {
+            Key key = new Key(dims(mat), mat.type());
+            BlockingQueue<Mat> queue = free.computeIfAbsent(key, k -> new ArrayBlockingQueue<>(maxPerKey));
+            if (queue.offer(mat)) {
+                pooledBytes.addAndGet(size);
+                return;
+            }
+        }
+        discarded.incrementAndGet();
+        mat.close();
+    }
+
+    /**
+     * 关闭池中全部空闲的 Mat
+     */
+    public static void clear() {
+        for (BlockingQueue<Mat> queue : free.values()) {
+            Mat mat;
+            while ((mat = queue.poll()) != null) {
+                pooledBytes.addAndGet(-bytes(mat));
+                mat.close();
+            }
+        }
+    }
+
+    private static int[] dims(Mat mat) {
+        int[] sizes = new int[mat.dims()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = mat.size(i);
+        }
+        return sizes;
+    }
+
+    private static long bytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    /**
+     * 命中率、池内与使用中的 native 内存
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        long h = hits.get();
+        long m = misses.get();
+        stats.put("enabled", enabled);
+        stats.put("maxPerKey", maxPerKey);
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m == 0 ? 0.0 : (double) h / (h + m));
+        stats.put("discarded", discarded.get());
+        stats.put("inUseBytes", inUseBytes.get());
+        stats.put("pooledBytes", pooledBytes.get());
+        Map<String, Integer> idle = new HashMap<>();
+        for (Map.Entry<Key, BlockingQueue<Mat>> entry : free.entrySet()) {
+            idle.put(entry.getKey().toString(), entry.getValue().size());
+        }
+        stats.put("idle", idle);
+        // JavaCPP 跟踪的全部 native 分配与进程物理内存
+        stats.put("nativeTotalBytes", Pointer.totalBytes());
+        stats.put("physicalBytes", Pointer.physicalBytes());
+        return stats;
+    }
+}
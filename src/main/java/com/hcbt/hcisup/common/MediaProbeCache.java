@@ -0,0 +1,345 @@
+package com.hcbt.hcisup.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 输入流探测结果缓存
+ * <p>
+ * ffprobe 探测 RTSP 地址时，摄像机慢或不可达会阻塞到超时。探测在独立线程池中执行并带超时，
+ * 按输入地址缓存编码、分辨率与帧率：
+ * <ul>
+ *     <li>未过期的结果直接返回</li>
+ *     <li>已过期的结果先返回旧值，同时在后台刷新</li>
+ *     <li>没有结果时最多等待调用方给定的时间，超时返回 null，探测继续执行并在完成后写入缓存</li>
+ *     <li>探测失败的地址在失败有效期内直接返回 null（已有旧值时返回旧值），不再等待、也不再启动 ffprobe，
+ *     不可达的摄像机不会让每次启动都等满超时</li>
+ * </ul>
+ * 同一地址同时只有一个探测在执行。定时任务提前刷新近期用过的地址，清理长期未用的地址。
+ */
+@Slf4j
+public final class MediaProbeCache {
+
+    /**
+     * 一次探测的结果
+     */
+    public static final class ProbeInfo {
+        public final String codec;
+        public final int width;
+        public final int height;
+        public final double fps;
+        public final long probedAt = System.currentTimeMillis();
+
+        ProbeInfo(String codec, int width, int height, double fps) {
+            this.codec = codec;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+
+        @Override
+        public String toString() {
+            return codec + " " + width + "x" + height + "@" + fps;
+        }
+    }
+
+    private static final class Entry {
+        volatile ProbeInfo info;
+        volatile CompletableFuture<ProbeInfo> inflight;
+        // 最近一次探测失败的时间，成功后清零
+        volatile long failedAt;
+        volatile long lastAccess = System.currentTimeMillis();
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong staleHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong probes = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong failureHits = new AtomicLong();
+    private static volatile long ttlMs = TimeUnit.MINUTES.toMillis(10);
+    private static volatile long failureTtlMs = 30_000;
+    private static volatile long probeTimeoutMs = 5000;
+    private static volatile long defaultWaitMs = 2000;
+    private static ExecutorService probeExecutor = newExecutor(4);
+    private static ScheduledExecutorService refresher;
+
+    private MediaProbeCache() {
+    }
+
+    /**
+     * @param ttl        结果有效期（毫秒）
+     * @param failureTtl 探测失败的有效期（毫秒），期间不再重新探测，0 表示不缓存失败
+     * @param timeout    单次 ffprobe 的超时时间（毫秒），超时后结束进程
+     * @param waitMs     {@link #get(String)} 没有缓存结果时最多等待的时间（毫秒）
+     * @param threads    同时执行的探测数
+     */
+    public static synchronized void configure(long ttl, long failureTtl, long timeout, long waitMs, int threads) {
+        ttlMs = Math.max(ttl, 1000);
+        failureTtlMs = Math.max(failureTtl, 0);
+        probeTimeoutMs = Math.max(timeout, 500);
+        defaultWaitMs = Math.max(waitMs, 0);
+        ExecutorService old = probeExecutor;
+        probeExecutor = newExecutor(Math.max(threads, 1));
+        old.shutdown();
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Probe-Refresher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(ttlMs / 4, 1000);
+            refresher.scheduleAtFixedRate(MediaProbeCache::refreshAhead, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 按配置的等待时间获取探测结果
+     */
+    public static ProbeInfo get(String url) {
+        return get(url, defaultWaitMs);
+    }
+
+    /**
+     * 获取探测结果，不会阻塞超过 waitMs
+     *
+     * @param waitMs 没有缓存结果时最多等待的时间
+     * @return 探测结果；没有缓存且等待超时或探测失败时返回 null
+     */
+    public static ProbeInfo get(String url, long waitMs) {
+        Entry entry = entries.computeIfAbsent(url, k -> new Entry());
+        entry.lastAccess = System.currentTimeMillis();
+        ProbeInfo info = entry.info;
+        boolean recentlyFailed = System.currentTimeMillis() - entry.failedAt < failureTtlMs;
+        if (info != null) {
+            if (System.currentTimeMillis() - info.probedAt < ttlMs) {
+                hits.incrementAndGet();
+            } else {
+                staleHits.incrementAndGet();
+                if (!recentlyFailed) {
+                    probeAsync(url);
+                }
+            }
+            return info;
+        }
+        if (recentlyFailed) {
+            failureHits.incrementAndGet();
+            return null;
+        }
+        misses.incrementAndGet();
+        try {
+            return probeAsync(url).get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("探测 {} 未在 {}ms 内完成，先按默认参数处理", mask(url), waitMs);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 异步探测，同一地址正在探测时返回同一个结果
+     */
+    public static CompletableFuture<ProbeInfo> probeAsync(String url) {
+        Entry entry = entries.computeIfAbsent(url, k -> new Entry());
+        synchronized (entry) {
+            CompletableFuture<ProbeInfo> inflight = entry.inflight;
+            if (inflight != null) {
+                return inflight;
+            }
+            CompletableFuture<ProbeInfo> future = CompletableFuture.supplyAsync(() -> probe(url), probeExecutor);
+            entry.inflight = future;
+            future.whenComplete((info, error) -> {
+                if (info != null) {
+                    entry.info = info;
+                    entry.failedAt = 0;
+                } else {
+                    entry.failedAt = System.currentTimeMillis();
+                }
+                synchronized (entry) {
+                    entry.inflight = null;
+                }
+            });
+            return future;
+        }
+    }
+
+    /**
+     * 提前刷新近期用过且即将过期的地址，移除超过两个有效期未使用的地址
+     */
+    private static void refreshAhead() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            if (now - entry.lastAccess > ttlMs * 2) {
+                entries.remove(item.getKey(), entry);
+                continue;
+            }
+            ProbeInfo info = entry.info;
+            if (info != null && now - info.probedAt > ttlMs * 3 / 4) {
+                probeAsync(item.getKey());
+            }
+        }
+    }
+
+    /**
+     * 执行 ffprobe，失败或超时返回 null
+     */
+    private static ProbeInfo probe(String url) {
+        probes.incrementAndGet();
+        String[] command = {
+                "ffprobe",
+                "-v", "quiet",
+                "-print_format", "json",
+                "-show_streams",
+                "-select_streams", "v:0",
+                url
+        };
+        Process process = null;
+        try {
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            // 只输出一路视频流的 JSON（几 KB），不会写满管道，进程结束后再读取
+            if (!process.waitFor(probeTimeoutMs, TimeUnit.MILLISECONDS)) {
+                failures.incrementAndGet();
+                log.warn("ffprobe 探测 {} 超时（{}ms）", mask(url), probeTimeoutMs);
+                return null;
+            }
+            JsonNode root = MAPPER.readTree(readAll(process.getInputStream()));
+            JsonNode streams = root.get("streams");
+            if (streams != null && streams.isArray()) {
+                for (JsonNode stream : streams) {
+                    if ("video".equals(stream.path("codec_type").asText())) {
+                        ProbeInfo info = new ProbeInfo(stream.path("codec_name").asText(), stream.path("width").asInt(),
+                                stream.path("height").asInt(), parseRate(stream.path("r_frame_rate").asText()));
+                        log.info("探测 {}：{}", mask(url), info);
+                        return info;
+                    }
+                }
+            }
+            failures.incrementAndGet();
+            log.warn("探测 {} 未找到视频流", mask(url));
+            return null;
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.warn("探测 {} 失败: {}", mask(url), e.getMessage());
+            return null;
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } catch (IOException e) {
+            log.debug("读取 ffprobe 输出失败: {}", e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解析形如 25/1 的帧率
+     */
+    private static double parseRate(String rate) {
+        try {
+            int slash = rate.indexOf('/');
+            if (slash < 0) {
+                return Double.parseDouble(rate);
+            }
+            double den = Double.parseDouble(rate.substring(slash + 1));
+            return den == 0 ? 0 : Math.round(Double.parseDouble(rate.substring(0, slash)) / den * 100) / 100.0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 隐去地址中的用户名与密码（日志与统计接口用）
+     */
+    private static String mask(String url) {
+        int scheme = url.indexOf("://");
+        int at = url.indexOf('@');
+        if (scheme < 0 || at < scheme) {
+            return url;
+        }
+        return url.substring(0, scheme + 3) + "***" + url.substring(at);
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        AtomicInteger index = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Media-Probe-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 命中率与各地址的缓存结果
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("ttlMs", ttlMs);
+        stats.put("probeTimeoutMs", probeTimeoutMs);
+        stats.put("hits", hits.get());
+        stats.put("staleHits", staleHits.get());
+        stats.put("misses", misses.get());
+        stats.put("probes", probes.get());
+        stats.put("failures", failures.get());
+        stats.put("failureTtlMs", failureTtlMs);
+        stats.put("failureHits", failureHits.get());
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            ProbeInfo info = entry.info;
+            Map<String, Object> value = new HashMap<>();
+            value.put("url", mask(item.getKey()));
+            value.put("probing", entry.inflight != null);
+            if (entry.failedAt != 0) {
+                value.put("failedAgoMs", now - entry.failedAt);
+            }
+            if (info != null) {
+                value.put("codec", info.codec);
+                value.put("width", info.width);
+                value.put("height", info.height);
+                value.put("fps", info.fps);
+                value.put("ageMs", now - info.probedAt);
+            }
+            items.add(value);
+        }
+        stats.put("entries", items);
+        return stats;
+    }
+}
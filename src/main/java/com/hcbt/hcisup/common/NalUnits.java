@@ -0,0 +1,120 @@
+package com.hcbt.hcisup.common;
+
+/**
+ * H.264 / H.265 Annex-B 裸流的 NAL 单元工具方法
+ */
+public final class NalUnits {
+
+    // H.264 NAL 类型
+    public static final int H264_IDR = 5;
+    public static final int H264_SEI = 6;
+    public static final int H264_SPS = 7;
+    public static final int H264_PPS = 8;
+    public static final int H264_AUD = 9;
+
+    // H.265 NAL 类型
+    public static final int HEVC_BLA_W_LP = 16;
+    public static final int HEVC_CRA = 21;
+    public static final int HEVC_IDR_W_RADL = 19;
+    public static final int HEVC_IDR_N_LP = 20;
+    public static final int HEVC_VPS = 32;
+    public static final int HEVC_SPS = 33;
+    public static final int HEVC_PPS = 34;
+    public static final int HEVC_AUD = 35;
+
+    private NalUnits() {
+    }
+
+    /**
+     * 从 from 开始查找下一个起始码 00 00 01（或 00 00 00 01）
+     *
+     * @return 起始码第一个字节的位置，找不到返回 -1
+     */
+    public static int findStartCode(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data[i + 2] & 0xFF) > 1) {
+                // 快速跳过：第三个字节大于 1 时，i、i+1 都不可能是起始码开头
+                i += 2;
+                continue;
+            }
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if (i > from && data[i - 1] == 0) {
+                    return i - 1;
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 起始码长度（3 或 4），pos 为 {@link #findStartCode} 的返回值
+     */
+    public static int startCodeLength(byte[] data, int pos) {
+        return data[pos + 2] == 1 ? 3 : 4;
+    }
+
+    /**
+     * NAL 类型
+     *
+     * @param header NAL 头第一个字节
+     * @param hevc   是否为 H.265
+     */
+    public static int nalType(byte header, boolean hevc) {
+        return hevc ? (header >> 1) & 0x3F : header & 0x1F;
+    }
+
+    /**
+     * 是否为可独立解码的随机访问帧（IDR / CRA / BLA）
+     */
+    public static boolean isRandomAccess(int nalType, boolean hevc) {
+        return hevc ? nalType >= HEVC_BLA_W_LP && nalType <= HEVC_CRA : nalType == H264_IDR;
+    }
+
+    /**
+     * 是否为参数集（VPS / SPS / PPS）
+     */
+    public static boolean isParameterSet(int nalType, boolean hevc) {
+        return hevc ? nalType >= HEVC_VPS && nalType <= HEVC_PPS : nalType == H264_SPS || nalType == H264_PPS;
+    }
+
+    /**
+     * 一帧数据中是否包含关键帧（随机访问点）
+     */
+    public static boolean isKeyFrame(byte[] data, int offset, int length, boolean hevc) {
+        int end = offset + length;
+        int pos = findStartCode(data, offset, end);
+        while (pos >= 0) {
+            int header = pos + startCodeLength(data, pos);
+            if (header >= end) {
+                break;
+            }
+            int type = nalType(data[header], hevc);
+            if (isRandomAccess(type, hevc)) {
+                return true;
+            }
+            pos = findStartCode(data, header + 1, end);
+        }
+        return false;
+    }
+
+    /**
+     * 根据第一个 NAL 头猜测是否为 H.265
+     * <p>
+     * H.265 的 NAL 头为两个字节，第二个字节在单层码流中固定为 0x01；
+     * 码流通常以 VPS/SPS/PPS 或 IDR/CRA 开头。
+     */
+    public static boolean looksLikeHevc(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int pos = findStartCode(data, offset, end);
+        if (pos < 0) {
+            return false;
+        }
+        int header = pos + startCodeLength(data, pos);
+        if (header + 1 >= end || data[header + 1] != 1) {
+            return false;
+        }
+        int type = nalType(data[header], true);
+        return isParameterSet(type, true) || type == HEVC_AUD || isRandomAccess(type, true);
+    }
+}
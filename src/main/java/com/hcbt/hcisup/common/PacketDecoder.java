@@ -0,0 +1,128 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.util.function.Consumer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+
+/**
+ * 按包复制的会话旁路解码
+ * <p>
+ * 按包复制（remux）时推流不解码，有帧订阅者时用本解码器解码同一批包：每个包都要送入解码器（参考帧依赖），
+ * 只有到了采样时间的帧才转换为 BGR 交给 {@link FrameTap}。解码线程数由 FFmpeg 按核数自动选择，
+ * 工作线程由构造时的调用线程创建（见 {@link CodecThreads}）。
+ * <p>
+ * 流水线调度下转码也用本解码器：拉流线程只读包，解码与编码在调度线程池中进行。
+ */
+@Slf4j
+final class PacketDecoder implements AutoCloseable {
+
+    private final AVCodecContext context;
+    private final AVFrame frame;
+    private SwsContext sws;
+    private Mat bgr;
+
+    /**
+     * @param parameters 输入视频流的编码参数
+     */
+    PacketDecoder(AVCodecParameters parameters) {
+        AVCodec codec = avcodec_find_decoder(parameters.codec_id());
+        if (codec == null) {
+            throw new IllegalStateException("找不到解码器：" + parameters.codec_id());
+        }
+        context = avcodec_alloc_context3(codec);
+        if (avcodec_parameters_to_context(context, parameters) < 0) {
+            avcodec_free_context(context);
+            throw new IllegalStateException("复制编码参数失败");
+        }
+        // 0 表示按核数自动选择（与 FFmpegFrameGrabber 相同）
+        context.thread_count(0);
+        if (avcodec_open2(context, codec, (PointerPointer<?>) null) < 0) {
+            avcodec_free_context(context);
+            throw new IllegalStateException("打开解码器失败");
+        }
+        frame = av_frame_alloc();
+    }
+
+    /**
+     * 解码一个包，解出的帧在到了采样时间时发布
+     */
+    void decode(AVPacket packet, FrameTap tap) {
+        decode(packet, tap, null);
+    }
+
+    /**
+     * 解码一个包，解出的帧在到了采样时间时发布，并全部交给 sink（如转码时的编码器）
+     *
+     * @param sink 为 null 时只转换需要发布的帧；交给 sink 的 Mat 在下一帧时被覆盖，不能保留
+     */
+    void decode(AVPacket packet, FrameTap tap, Consumer<Mat> sink) {
+        if (avcodec_send_packet(context, packet) < 0) {
+            return;
+        }
+        while (avcodec_receive_frame(context, frame) >= 0) {
+            try {
+                long now = System.nanoTime();
+                boolean due = tap.isDue(now);
+                if (due || sink != null) {
+                    Mat image = toBgr();
+                    if (due) {
+                        tap.publish(image, now);
+                    }
+                    if (sink != null) {
+                        sink.accept(image);
+                    }
+                }
+            } finally {
+                av_frame_unref(frame);
+            }
+        }
+    }
+
+    /**
+     * 转换为 BGR（复用同一块内存，发布时由 FrameTap 复制）
+     */
+    private Mat toBgr() {
+        int width = frame.width();
+        int height = frame.height();
+        sws = sws_getCachedContext(sws, width, height, frame.format(), width, height, AV_PIX_FMT_BGR24,
+                SWS_BILINEAR, null, null, (DoublePointer) null);
+        if (bgr == null || bgr.cols() != width || bgr.rows() != height) {
+            if (bgr != null) {
+                bgr.close();
+            }
+            bgr = new Mat(height, width, CV_8UC3);
+        }
+        try (PointerPointer<?> dst = new PointerPointer<>(bgr.data());
+             IntPointer dstStride = new IntPointer((int) bgr.step())) {
+            sws_scale(sws, frame.data(), frame.linesize(), 0, height, dst, dstStride);
+        }
+        return bgr;
+    }
+
+    @Override
+    public void close() {
+        av_frame_free(frame);
+        avcodec_free_context(context);
+        if (sws != null) {
+            sws_freeContext(sws);
+        }
+        if (bgr != null) {
+            bgr.close();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 流水线调度器
+ * <p>
+ * JavaCV 推流原来每个通道一个 {@code newSingleThreadExecutor()} 循环拉流、解码、编码，检测每个用户也一个线程循环取帧推理，
+ * 线程数随通道数线性增长，通道数超过核数后由操作系统调度，各通道的延迟没有保障。
+ * <p>
+ * 开启后计算阶段（旁路解码、转码、写出、推理）作为协作式任务运行在固定大小（默认为核数）的 work-stealing 线程池中：
+ * <ul>
+ *     <li>任务每次运行处理一小批输入（一个包或一帧）后返回，不阻塞；没有输入时返回 {@link Result#IDLE}，由输入方 {@link Task#wakeup()} 唤醒</li>
+ *     <li>一次运行最多占用一个时间片，用完后重新排到队尾，各通道轮流获得时间片</li>
+ *     <li>同一任务同一时刻只在一个线程上运行，阶段内的状态不需要加锁</li>
+ * </ul>
+ * 阻塞的网络读取不在线程池中执行，由输入方写入有界队列（队列满时的处理由输入方决定，形成背压）。
+ * 阶段中无法拆开的阻塞调用（如向 RTMP 服务器写出）经 {@link #blocking(BlockingCall)} 执行，阻塞期间线程池补充线程，
+ * 个别服务器卡住不会占满全部工作线程。
+ * <p>
+ * 推理一次就要上百毫秒，时间片无法打断，放在独立的有界线程池（{@link Lane#INFERENCE}）中运行，检测任务再多也不占推流的工作线程。
+ * 统计各任务的 CPU 时间与从就绪到开始运行的等待时间。
+ */
+@Slf4j
+public final class PipelineScheduler {
+
+    /**
+     * 阶段一次运行的结果
+     */
+    public enum Result {
+        // 还有输入，继续处理（时间片用完则让出）
+        MORE,
+        // 暂无输入，等待唤醒
+        IDLE,
+        // 结束
+        DONE
+    }
+
+    /**
+     * 任务运行的线程池
+     */
+    public enum Lane {
+        // 推流的解码、写出与转码
+        STREAM,
+        // 检测推理
+        INFERENCE
+    }
+
+    /**
+     * 阶段中的阻塞调用
+     */
+    @FunctionalInterface
+    public interface BlockingCall {
+        void call() throws Exception;
+    }
+
+    /**
+     * 一个流水线阶段：每次调用处理一小批输入，不能阻塞
+     */
+    @FunctionalInterface
+    public interface Stage {
+        Result run(Task task) throws Exception;
+    }
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    // 运行中被唤醒，本次运行结束后重新排队
+    private static final int NOTIFIED = 3;
+    private static final int DONE = 4;
+
+    private static final int MAX_SAMPLES = 1024;
+
+    /**
+     * 一个协作式任务
+     */
+    public static final class Task implements Runnable {
+        private final String name;
+        private final Lane lane;
+        private final Stage stage;
+        private final Runnable onDone;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private volatile boolean cancelled;
+        // 最近一次就绪（排队）的时间
+        private volatile long readyAt;
+        private volatile long slices;
+        private volatile long cpuNanos;
+        private volatile long runNanos;
+        // 从就绪到开始运行的等待时间（微秒）
+        private final LatencySamples waitSamples = new LatencySamples(MAX_SAMPLES);
+
+        Task(String name, Lane lane, Stage stage, Runnable onDone) {
+            this.name = name;
+            this.lane = lane;
+            this.stage = stage;
+            this.onDone = onDone;
+        }
+
+        /**
+         * 有新输入，唤醒任务（可在任意线程调用）
+         */
+        public void wakeup() {
+            while (true) {
+                int current = state.get();
+                if (current == IDLE) {
+                    if (state.compareAndSet(IDLE, SCHEDULED)) {
+                        enqueue();
+                        return;
+                    }
+                } else if (current == RUNNING) {
+                    if (state.compareAndSet(RUNNING, NOTIFIED)) {
+                        return;
+                    }
+                } else {
+                    // 已在队列中、已被通知或已结束
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 延迟唤醒（阶段需要定时轮询时使用）
+         */
+        public void wakeupAfter(long delayMs) {
+            timer().schedule(this::wakeup, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 结束任务，下次运行时不再调用阶段，直接执行结束回调
+         */
+        public void cancel() {
+            cancelled = true;
+            wakeup();
+        }
+
+        public boolean isDone() {
+            return state.get() == DONE;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        private void enqueue() {
+            readyAt = System.nanoTime();
+            (lane == Lane.INFERENCE ? inferencePool() : pool()).execute(this);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            state.set(RUNNING);
+            recordWait((start - readyAt) / 1000);
+            long cpuStart = currentThreadCpu();
+            Result result;
+            try {
+                do {
+                    result = cancelled ? Result.DONE : stage.run(this);
+                } while (result == Result.MORE && System.nanoTime() - start < sliceNanos);
+            } catch (Exception e) {
+                log.error("流水线任务 {} 异常：{}", name, e.getMessage(), e);
+                result = Result.DONE;
+            }
+            long end = System.nanoTime();
+            slices++;
+            runNanos += end - start;
+            long cpuEnd = currentThreadCpu();
+            if (cpuStart >= 0 && cpuEnd >= 0) {
+                cpuNanos += cpuEnd - cpuStart;
+            }
+
+            if (result == Result.DONE) {
+                state.set(DONE);
+                tasks.remove(this);
+                if (onDone != null) {
+                    try {
+                        onDone.run();
+                    } catch (RuntimeException e) {
+                        log.error("流水线任务 {} 结束回调异常", name, e);
+                    }
+                }
+            } else if (result == Result.MORE || !state.compareAndSet(RUNNING, IDLE)) {
+                // 时间片用完让出，或运行中被唤醒：重新排到队尾
+                state.set(SCHEDULED);
+                enqueue();
+            }
+        }
+
+        private void recordWait(long micros) {
+            waitSamples.add(micros);
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static volatile int workers = Runtime.getRuntime().availableProcessors();
+    private static volatile int inferenceWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static volatile long sliceNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private static volatile ForkJoinPool pool;
+    private static volatile ForkJoinPool inferencePool;
+    private static volatile ScheduledExecutorService timer;
+    private static final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private PipelineScheduler() {
+    }
+
+    /**
+     * @param enable    是否启用（不启用时各通道、各检测仍使用独立线程）
+     * @param threads          推流线程池大小，不大于 0 时为可用核数
+     * @param inferenceThreads 推理线程池大小，不大于 0 时为可用核数的一半（至少 1）
+     * @param sliceMs          任务一次运行的时间片（毫秒）
+     */
+    public static void configure(boolean enable, int threads, int inferenceThreads, long sliceMs) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        workers = threads > 0 ? threads : cores;
+        inferenceWorkers = inferenceThreads > 0 ? inferenceThreads : Math.max(1, cores / 2);
+        sliceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(sliceMs, 1));
+        enabled = enable;
+        if (enable) {
+            log.info("流水线调度已启用：{} 个推流工作线程，{} 个推理线程，时间片 {}ms", workers, inferenceWorkers,
+                    Math.max(sliceMs, 1));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 创建任务，处于空闲状态，由输入方唤醒（或立即调用 {@link Task#wakeup()}）
+     *
+     * @param onDone 阶段返回 {@link Result#DONE}、抛出异常或任务被取消后在工作线程中调用一次
+     */
+    public static Task create(String name, Stage stage, Runnable onDone) {
+        return create(Lane.STREAM, name, stage, onDone);
+    }
+
+    /**
+     * 在指定线程池中创建任务
+     */
+    public static Task create(Lane lane, String name, Stage stage, Runnable onDone) {
+        Task task = new Task(name, lane, stage, onDone);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * 在阶段中执行阻塞调用（如网络写出）
+     * <p>
+     * 在推流线程池中时通过 {@link ForkJoinPool#managedBlock} 执行，阻塞期间线程池可以补充线程继续运行其他通道的任务；
+     * 推理线程池固定大小不补充，其他线程中直接调用。
+     */
+    public static void blocking(BlockingCall call) throws Exception {
+        Thread current = Thread.currentThread();
+        if (!(current instanceof ForkJoinWorkerThread) || ((ForkJoinWorkerThread) current).getPool() != pool) {
+            call.call();
+            return;
+        }
+        Blocker blocker = new Blocker(call);
+        ForkJoinPool.managedBlock(blocker);
+        if (blocker.error != null) {
+            throw blocker.error;
+        }
+    }
+
+    private static final class Blocker implements ForkJoinPool.ManagedBlocker {
+        private final BlockingCall call;
+        private boolean done;
+        private Exception error;
+
+        Blocker(BlockingCall call) {
+            this.call = call;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                call.call();
+            } catch (Exception e) {
+                error = e;
+            }
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return done;
+        }
+    }
+
+    private static ForkJoinPool pool() {
+        ForkJoinPool current = pool;
+        if (current == null) {
+            synchronized (PipelineScheduler.class) {
+                if (pool == null) {
+                    pool = newPool(workers, "Pipeline-Worker-");
+                }
+                current = pool;
+            }
+        }
+        return current;
+    }
+
+    private static ForkJoinPool inferencePool() {
+        ForkJoinPool current = inferencePool;
+        if (current == null) {
+            synchronized (PipelineScheduler.class) {
+                if (inferencePool == null) {
+                    inferencePool = newPool(inferenceWorkers, "Pipeline-Inference-");
+                }
+                current = inferencePool;
+            }
+        }
+        return current;
+    }
+
+    private static ForkJoinPool newPool(int parallelism, String prefix) {
+        AtomicInteger index = new AtomicInteger();
+        // asyncMode：本地队列先进先出，让出的任务排到队尾，空闲线程从其他线程的队列窃取
+        return new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(prefix + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    private static ScheduledExecutorService timer() {
+        ScheduledExecutorService current = timer;
+        if (current == null) {
+            synchronized (PipelineScheduler.class) {
+                if (timer == null) {
+                    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "Pipeline-Timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                current = timer;
+            }
+        }
+        return current;
+    }
+
+    private static long currentThreadCpu() {
+        try {
+            return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 线程池状态与各任务的 CPU、调度等待时间分布
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("workers", workers);
+        stats.put("inferenceWorkers", inferenceWorkers);
+        stats.put("sliceMs", TimeUnit.NANOSECONDS.toMillis(sliceNanos));
+        stats.putAll(poolStats(pool));
+        stats.put("inference", poolStats(inferencePool));
+        Map<String, Object> items = new HashMap<>();
+        for (Task task : tasks) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("lane", task.lane);
+            item.put("slices", task.slices);
+            item.put("cpuMs", TimeUnit.NANOSECONDS.toMillis(task.cpuNanos));
+            item.put("runMs", TimeUnit.NANOSECONDS.toMillis(task.runNanos));
+            item.put("waitUs", task.waitSamples.snapshot());
+            items.put(task.name, item);
+        }
+        stats.put("tasks", items);
+        return stats;
+    }
+
+    private static Map<String, Object> poolStats(ForkJoinPool current) {
+        Map<String, Object> stats = new HashMap<>();
+        if (current != null) {
+            stats.put("poolSize", current.getPoolSize());
+            stats.put("activeThreads", current.getActiveThreadCount());
+            stats.put("queuedTasks", current.getQueuedTaskCount() + current.getQueuedSubmissionCount());
+            stats.put("steals", current.getStealCount());
+        }
+        return stats;
+    }
+}
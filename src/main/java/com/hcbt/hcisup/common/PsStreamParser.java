@@ -0,0 +1,548 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 流式 MPEG-PS（ISO/IEC 13818-1 Program Stream）解析器
+ * <p>
+ * 海康 ISUP 预览回调给出的数据并不保证按包对齐：一次回调可能包含多个包，
+ * 一个包（尤其是 I 帧的 PES）也可能跨越多次回调。该解析器以状态机方式工作，
+ * 可在任意位置切分输入，支持：
+ * <ul>
+ *     <li>pack header（00 00 01 BA，MPEG-1 / MPEG-2 两种格式及填充字节）</li>
+ *     <li>system header（BB）、PSM 节目流映射（BC，提取视频 stream_type）</li>
+ *     <li>视频 PES（E0~EF），按 PES_packet_length 读取负载，解析 PTS/DTS</li>
+ *     <li>音频 PES（C0~DF）及其他私有流 / 填充流，按长度跳过（长度为 0 时跳到下一个系统层起始码）</li>
+ *     <li>program_end_code（B9）</li>
+ * </ul>
+ * 视频负载追加到可复用的 {@link EsFrameBuffer}，遇到新的 PTS 时把上一帧
+ * 作为完整的访问单元（access unit）回调给 {@link Listener}。
+ * 失步后会重新搜索起始码，失步期间累积的帧被丢弃，避免把残缺数据送给 FFmpeg。
+ * <p>
+ * 非线程安全，每个通道一个实例，由 SDK 回调线程独占使用。
+ */
+@Slf4j
+public class PsStreamParser {
+
+    /** 解析结果回调 */
+    public interface Listener {
+        /**
+         * 一帧完整的视频访问单元
+         *
+         * @param data   数据所在数组（复用缓冲区，回调返回后会被覆盖）
+         * @param offset 起始位置
+         * @param length 长度
+         * @param pts    显示时间戳（90kHz），无则为 -1
+         * @param dts    解码时间戳（90kHz），无则等于 pts
+         */
+        void onVideoFrame(byte[] data, int offset, int length, long pts, long dts);
+
+        /**
+         * PSM 中声明的视频 stream_type 发生变化（如 0x1B H.264、0x24 H.265）
+         */
+        default void onVideoStreamType(int streamType) {
+        }
+    }
+
+    // 常见视频 stream_type
+    public static final int STREAM_TYPE_MPEG4 = 0x10;
+    public static final int STREAM_TYPE_H264 = 0x1B;
+    public static final int STREAM_TYPE_H265 = 0x24;
+    public static final int STREAM_TYPE_SVAC = 0x80;
+
+    // 单帧最大长度，超出视为数据损坏（防止异常数据撑爆内存）
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // 负载长度未知（PES_packet_length == 0）
+    private static final int UNBOUNDED = -1;
+
+    // 解析状态
+    private static final int STATE_SYNC = 0;          // 搜索起始码 00 00 01 xx
+    private static final int STATE_HEADER = 1;        // 收集包头
+    private static final int STATE_SKIP = 2;          // 跳过不关心的负载
+    private static final int STATE_VIDEO_PAYLOAD = 3; // 拷贝视频负载
+    private static final int STATE_SKIP_UNBOUNDED = 4; // 跳过长度未知的负载，直到下一个系统层起始码
+
+    private final Listener listener;
+    // 当前帧缓冲区
+    private final EsFrameBuffer frame = new EsFrameBuffer();
+    // 包头缓冲区（PSM 可能较长，按需扩容）
+    private byte[] hdr = new byte[256];
+    private int hdrLen;
+    // 当前包头需要收集的字节数
+    private int need;
+    private int state = STATE_SYNC;
+    // 跳过 / 视频负载剩余字节数
+    private int remaining;
+    // 未知长度负载中用于识别起始码的滑动窗口
+    private int unboundedWindow = 0xFFFFFF;
+
+    // 当前帧的时间戳
+    private long framePts = -1;
+    private long frameDts = -1;
+    // 当前帧是否在失步期间受损
+    private boolean frameCorrupt;
+    // 上一个视频 PES 之后是否出现过 pack header（用于没有 PTS 的码流分帧）
+    private boolean packSinceLastPes;
+    // 是否处于同步状态（用于统计失步次数）
+    private boolean synced;
+    // PSM 中的视频 stream_type
+    private int videoStreamType = -1;
+
+    // 统计
+    private long packCount;
+    private long videoPesCount;
+    private long audioPesCount;
+    private long frameCount;
+    private long droppedFrames;
+    private long resyncCount;
+
+    public PsStreamParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 输入一段 PS 数据
+     */
+    public void feed(byte[] data, int offset, int length) {
+        if (data == null || length <= 0) {
+            return;
+        }
+        feed(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * 输入一段 PS 数据，读取 src 从 position 到 limit 的全部字节
+     */
+    public void feed(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            switch (state) {
+                case STATE_SYNC:
+                    scanStartCode(src);
+                    break;
+                case STATE_HEADER:
+                    collectHeader(src);
+                    break;
+                case STATE_SKIP: {
+                    int n = Math.min(remaining, src.remaining());
+                    src.position(src.position() + n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = STATE_SYNC;
+                    }
+                    break;
+                }
+                case STATE_VIDEO_PAYLOAD:
+                    copyVideoPayload(src);
+                    break;
+                case STATE_SKIP_UNBOUNDED:
+                    skipUnboundedPayload(src);
+                    break;
+                default:
+                    state = STATE_SYNC;
+            }
+        }
+    }
+
+    /**
+     * 输出当前缓存的帧（流结束时调用）
+     */
+    public void flush() {
+        emitFrame();
+    }
+
+    /**
+     * 丢弃所有中间状态
+     */
+    public void reset() {
+        frame.reset();
+        hdrLen = 0;
+        state = STATE_SYNC;
+        framePts = -1;
+        frameDts = -1;
+        frameCorrupt = false;
+        synced = false;
+    }
+
+    /**
+     * 搜索起始码前缀 00 00 01，随后读取 stream_id
+     */
+    private void scanStartCode(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int b = src.get() & 0xFF;
+            if (hdrLen < 2) {
+                if (b == 0) {
+                    hdr[hdrLen++] = 0;
+                } else {
+                    lostSync();
+                    hdrLen = 0;
+                }
+            } else if (hdrLen == 2) {
+                if (b == 1) {
+                    hdr[hdrLen++] = 1;
+                } else if (b != 0) {
+                    lostSync();
+                    hdrLen = 0;
+                }
+                // 连续的 0 保持在前缀状态
+            } else {
+                hdr[3] = (byte) b;
+                hdrLen = 4;
+                onStreamId(b);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 识别 stream_id，决定需要读取的包头长度
+     */
+    private void onStreamId(int streamId) {
+        if (streamId == 0xB9) {
+            // program_end_code
+            emitFrame();
+            hdrLen = 0;
+            state = STATE_SYNC;
+            return;
+        }
+        if (streamId < 0xB9) {
+            // 不是系统层起始码，说明当前位置不在包边界上；
+            // 该字节为 0 时可能是紧随其后的起始码的第一个字节（00 00 01 00 00 01 BA），保留为前缀
+            lostSync();
+            hdrLen = streamId == 0 ? 1 : 0;
+            state = STATE_SYNC;
+            return;
+        }
+        synced = true;
+        // pack header 先读到第 5 字节区分 MPEG-1 / MPEG-2，其余包先读到长度字段
+        need = streamId == 0xBA ? 5 : 6;
+        state = STATE_HEADER;
+    }
+
+    /**
+     * 收集包头字节，收齐后处理
+     */
+    private void collectHeader(ByteBuffer src) {
+        int n = Math.min(need - hdrLen, src.remaining());
+        ensureHeaderCapacity(need);
+        src.get(hdr, hdrLen, n);
+        hdrLen += n;
+        if (hdrLen == need) {
+            onHeaderComplete();
+        }
+    }
+
+    private void onHeaderComplete() {
+        int streamId = hdr[3] & 0xFF;
+        if (streamId == 0xBA) {
+            onPackHeader();
+            return;
+        }
+        int pesLen = ((hdr[4] & 0xFF) << 8) | (hdr[5] & 0xFF);
+        if (streamId == 0xBC) {
+            // PSM：整个包读入后解析
+            if (hdrLen == 6 && pesLen > 0) {
+                need = 6 + pesLen;
+                return;
+            }
+            parsePsm(pesLen);
+            finishHeader();
+            return;
+        }
+        if (streamId >= 0xE0 && streamId <= 0xEF) {
+            onVideoPesHeader(pesLen);
+            return;
+        }
+        if (streamId >= 0xC0 && streamId <= 0xDF) {
+            audioPesCount++;
+        }
+        if (pesLen == 0) {
+            // 长度未知的 PES（部分设备的音频如此）：负载一直延续到下一个系统层起始码，
+            // 不能按失步处理，否则负载会被当作垃圾数据并把缓存中的视频帧标记为受损
+            hdrLen = 0;
+            unboundedWindow = 0xFFFFFF;
+            state = STATE_SKIP_UNBOUNDED;
+            return;
+        }
+        // system header、音频、私有流、填充流等直接按长度跳过
+        skip(pesLen);
+    }
+
+    /**
+     * pack header：MPEG-2 为 14 字节 + 填充，MPEG-1 为 12 字节
+     */
+    private void onPackHeader() {
+        if (hdrLen == 5) {
+            int marker = hdr[4] & 0xFF;
+            if ((marker & 0xC0) == 0x40) {
+                need = 14;
+            } else if ((marker & 0xF0) == 0x20) {
+                need = 12;
+            } else {
+                lostSync();
+                finishHeader();
+            }
+            return;
+        }
+        packCount++;
+        packSinceLastPes = true;
+        int stuffing = need == 14 ? (hdr[13] & 0x07) : 0;
+        skip(stuffing);
+    }
+
+    /**
+     * 视频 PES 包头：先读固定 9 字节，再读 PES_header_data_length 指定的可选字段
+     */
+    private void onVideoPesHeader(int pesLen) {
+        if (hdrLen == 6) {
+            need = 9;
+            return;
+        }
+        int headerDataLen = hdr[8] & 0xFF;
+        if (hdrLen == 9) {
+            if ((hdr[6] & 0xC0) != 0x80 || (pesLen != 0 && 3 + headerDataLen > pesLen)) {
+                // 不是 MPEG-2 PES 或长度自相矛盾
+                lostSync();
+                finishHeader();
+                return;
+            }
+            if (headerDataLen > 0) {
+                need = 9 + headerDataLen;
+                return;
+            }
+        }
+        videoPesCount++;
+        long pts = -1;
+        long dts = -1;
+        int ptsDtsFlags = (hdr[7] & 0xC0) >> 6;
+        if (ptsDtsFlags >= 2 && headerDataLen >= 5) {
+            pts = readTimestamp(hdr, 9);
+            dts = pts;
+            if (ptsDtsFlags == 3 && headerDataLen >= 10) {
+                dts = readTimestamp(hdr, 14);
+            }
+        }
+        startVideoPayload(pts, dts);
+        finishHeader();
+        if (pesLen == 0) {
+            remaining = UNBOUNDED;
+            unboundedWindow = 0xFFFFFF;
+            state = STATE_VIDEO_PAYLOAD;
+        } else {
+            remaining = pesLen - 3 - headerDataLen;
+            state = remaining > 0 ? STATE_VIDEO_PAYLOAD : STATE_SYNC;
+        }
+    }
+
+    /**
+     * 判断新 PES 是否开始了新的一帧
+     * <p>
+     * PTS 变化即为新帧；码流不带 PTS 时退化为“pack header 之后的第一个 PES 为新帧”。
+     */
+    private void startVideoPayload(long pts, long dts) {
+        boolean newFrame;
+        if (pts >= 0) {
+            newFrame = pts != framePts;
+        } else {
+            newFrame = framePts < 0 && packSinceLastPes;
+        }
+        packSinceLastPes = false;
+        if (newFrame) {
+            emitFrame();
+        }
+        if (frame.isEmpty()) {
+            framePts = pts;
+            frameDts = pts >= 0 ? dts : -1;
+        }
+    }
+
+    /**
+     * 拷贝视频负载到帧缓冲区
+     */
+    private void copyVideoPayload(ByteBuffer src) {
+        if (remaining == UNBOUNDED) {
+            copyUnboundedPayload(src);
+            return;
+        }
+        int n = Math.min(remaining, src.remaining());
+        if (frame.length() + n > MAX_FRAME_SIZE) {
+            frameCorrupt = true;
+            frame.reset();
+        }
+        frame.append(src, n);
+        remaining -= n;
+        if (remaining == 0) {
+            state = STATE_SYNC;
+        }
+    }
+
+    /**
+     * 长度未知的视频负载：逐字节拷贝，直到遇到系统层起始码（00 00 01 且 stream_id >= 0xB9）。
+     * ES 中 NAL 头的首字节最高位恒为 0，不会与之混淆。
+     */
+    private void copyUnboundedPayload(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int b = src.get() & 0xFF;
+            if (unboundedWindow == 0x000001 && b >= 0xB9) {
+                // 回退已写入的 00 00 01，转入包头处理
+                frame.truncate(frame.length() - 3);
+                hdr[0] = 0;
+                hdr[1] = 0;
+                hdr[2] = 1;
+                hdr[3] = (byte) b;
+                hdrLen = 4;
+                onStreamId(b);
+                return;
+            }
+            frame.append((byte) b);
+            unboundedWindow = ((unboundedWindow << 8) | b) & 0xFFFFFF;
+            if (frame.length() > MAX_FRAME_SIZE) {
+                frameCorrupt = true;
+                frame.reset();
+            }
+        }
+    }
+
+    /**
+     * 跳过长度未知的非视频负载，直到遇到系统层起始码
+     */
+    private void skipUnboundedPayload(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int b = src.get() & 0xFF;
+            if (unboundedWindow == 0x000001 && b >= 0xB9) {
+                hdr[0] = 0;
+                hdr[1] = 0;
+                hdr[2] = 1;
+                hdr[3] = (byte) b;
+                hdrLen = 4;
+                onStreamId(b);
+                return;
+            }
+            unboundedWindow = ((unboundedWindow << 8) | b) & 0xFFFFFF;
+        }
+    }
+
+    /**
+     * 解析 PSM，提取视频流的 stream_type
+     */
+    private void parsePsm(int pesLen) {
+        int end = 6 + pesLen;
+        if (end > hdrLen || pesLen < 10) {
+            return;
+        }
+        int infoLen = ((hdr[8] & 0xFF) << 8) | (hdr[9] & 0xFF);
+        int pos = 10 + infoLen;
+        if (pos + 2 > end) {
+            return;
+        }
+        int mapLen = ((hdr[pos] & 0xFF) << 8) | (hdr[pos + 1] & 0xFF);
+        pos += 2;
+        // 末尾 4 字节为 CRC32
+        int mapEnd = Math.min(pos + mapLen, end - 4);
+        while (pos + 4 <= mapEnd) {
+            int streamType = hdr[pos] & 0xFF;
+            int esId = hdr[pos + 1] & 0xFF;
+            int esInfoLen = ((hdr[pos + 2] & 0xFF) << 8) | (hdr[pos + 3] & 0xFF);
+            if (esId >= 0xE0 && esId <= 0xEF && streamType != videoStreamType) {
+                videoStreamType = streamType;
+                log.debug("PSM 视频 stream_type: 0x{}", Integer.toHexString(streamType));
+                listener.onVideoStreamType(streamType);
+            }
+            pos += 4 + esInfoLen;
+        }
+    }
+
+    private void skip(int len) {
+        hdrLen = 0;
+        if (len > 0) {
+            remaining = len;
+            state = STATE_SKIP;
+        } else {
+            state = STATE_SYNC;
+        }
+    }
+
+    private void finishHeader() {
+        hdrLen = 0;
+        state = STATE_SYNC;
+    }
+
+    /**
+     * 在包边界之外出现了无法识别的数据：当前帧标记为受损
+     */
+    private void lostSync() {
+        if (synced) {
+            synced = false;
+            resyncCount++;
+            if (!frame.isEmpty()) {
+                frameCorrupt = true;
+            }
+        }
+    }
+
+    /**
+     * 输出当前帧并复位缓冲区；受损帧直接丢弃
+     */
+    private void emitFrame() {
+        if (!frame.isEmpty()) {
+            if (frameCorrupt) {
+                droppedFrames++;
+            } else {
+                frameCount++;
+                listener.onVideoFrame(frame.array(), 0, frame.length(), framePts, frameDts);
+            }
+        }
+        frame.reset();
+        frameCorrupt = false;
+        framePts = -1;
+        frameDts = -1;
+    }
+
+    private void ensureHeaderCapacity(int size) {
+        if (size > hdr.length) {
+            byte[] newHdr = new byte[Math.max(size, hdr.length * 2)];
+            System.arraycopy(hdr, 0, newHdr, 0, hdrLen);
+            hdr = newHdr;
+        }
+    }
+
+    /**
+     * 读取 33 位 PTS / DTS
+     */
+    private static long readTimestamp(byte[] b, int pos) {
+        return (((long) (b[pos] & 0x0E)) << 29)
+                | ((long) (b[pos + 1] & 0xFF) << 22)
+                | ((long) (b[pos + 2] & 0xFE) << 14)
+                | ((long) (b[pos + 3] & 0xFF) << 7)
+                | ((b[pos + 4] & 0xFE) >> 1);
+    }
+
+    public int getVideoStreamType() {
+        return videoStreamType;
+    }
+
+    public long getPackCount() {
+        return packCount;
+    }
+
+    public long getVideoPesCount() {
+        return videoPesCount;
+    }
+
+    public long getAudioPesCount() {
+        return audioPesCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getResyncCount() {
+        return resyncCount;
+    }
+}
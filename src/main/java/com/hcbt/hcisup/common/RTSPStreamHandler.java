@@ -1,13 +1,12 @@
 package com.hcbt.hcisup.common;
 
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
@@ -29,11 +28,12 @@ public class RTSPStreamHandler {
     // 推流会话，封装每个 FFmpeg 子进程及运行状态
     static class StreamSession {
         Process process;             // FFmpeg 进程对象
-        ExecutorService executor;    // 执行监控线程
         boolean running = false;    // 是否运行中
         // long lastActiveTime; // 最后活跃时间
-        long lastActiveTime = System.currentTimeMillis(); // 用户活跃时间
+        volatile long lastActiveTime = System.currentTimeMillis(); // 用户活跃时间（启动或心跳）
         String videoCodec; // 新增：记录视频编码
+        TimingWheel.Timeout idleTimer; // 空闲超时
+        boolean ladder; // 是否输出码率阶梯的多个规格
     }
 
     public static class StartResult {
@@ -56,9 +56,6 @@ public class RTSPStreamHandler {
     // 所有通道的推流会话：channel -> StreamSession
     private static final Map<Integer, StreamSession> channelSessionMap = new ConcurrentHashMap<>();
 
-    // key: channel -> 正在使用该通道的用户ID集合
-    private static final Map<Integer, Set<Integer>> channelUserMap = new ConcurrentHashMap<>();
-    private static final int MAX_TOTAL_STREAMS = 1;
     private static final AtomicInteger activeStreamCount = new AtomicInteger(0);
     private static final Object streamLock = new Object();
 
@@ -74,48 +71,80 @@ public class RTSPStreamHandler {
     public static StartResult startStream(int userId, int channel, String inputUrl, String outputUrl) {
         // 码流类型为最后两位
         int dwStreamType = Integer.parseInt(String.valueOf(channel).substring(String.valueOf(channel).length() - 2));
-        // 注册用户使用该通道
-        channelUserMap.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(userId);
+        // 注册用户使用该通道（持有租约，最后一个观看者离开后回收通道）
+        ViewerLeases.acquire(leaseKey(channel), userId);
+        ViewerLeases.bind(leaseKey(channel), () -> 0, () -> reclaimIdle(channel));
         StreamSession userSession = channelSessionMap.get(channel);
 
         if (userSession != null && userSession.running) {
             userSession.lastActiveTime = System.currentTimeMillis();
+            StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_RTSP, channel);
             log.info("复用通道推流，channel: {}, inputUrl: {}, outputUrl: {}", channel, inputUrl, outputUrl);
             return new StartResult(true, userSession.videoCodec, "通道正在推流，复用当前会话");
         }
+        // 探测输入流（命中缓存时不启动 ffprobe），等待时不持有 streamLock
+        String codecName = extractVideoCodec(inputUrl);
         synchronized (streamLock) {
-            // 在启动前检查总数限制
-            if (activeStreamCount.get() >= MAX_TOTAL_STREAMS) {
+            // 探测期间可能已有并发请求启动了该通道
+            StreamSession started = channelSessionMap.get(channel);
+            if (started != null && started.running) {
+                started.lastActiveTime = System.currentTimeMillis();
+                StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_RTSP, channel);
+                return new StartResult(true, started.videoCodec, "通道正在推流，复用当前会话");
+            }
+            // 在启动前检查总数限制，已满时按策略挤出通道后就地重新检查
+            // （不重新进入 startStream：租约登记与输入探测已在锁外完成，不能在锁内再做一遍）
+            while (activeStreamCount.get() >= StreamCapacityScheduler.limit(StreamCapacityScheduler.POOL_RTSP)) {
                 log.info("当前推流数量:{}", activeStreamCount.get());
                 log.warn("会话map的数量：{}", channelSessionMap.size());
-                log.warn("推流数量已满，准备挤出最早的通道，当前准备播放通道{}", channel);
-                // 找到最早启动的通道
-                if (channelSessionMap.size() > 0) {
-                    Integer oldestChannel = null;
-                    for (Map.Entry<Integer, StreamSession> entry : channelSessionMap.entrySet()) {
-                        oldestChannel = entry.getKey();
-                    }
-                    log.warn("挤出通道{}", oldestChannel);
-                    if (oldestChannel != null) {
-                        log.warn("关闭通道 channel {}，为新通道腾位", oldestChannel);
-                        stopStream2(oldestChannel);
-                        // 清除该通道的用户
-                        channelUserMap.remove(oldestChannel);
-                        // 停止推流成功后，重新启动推流
-                        return startStream(userId, channel, inputUrl, outputUrl);
-                    }
-                } else {
-                    // 停止推流成功后，重新启动推流
-                    return new StartResult(false, null, "会话map为空，无法挤出最早的通道");
+                log.warn("推流数量已满，准备按策略挤出通道，当前准备播放通道{}", channel);
+                Integer victim = StreamCapacityScheduler.pickVictim(StreamCapacityScheduler.POOL_RTSP, channel);
+                if (victim == null) {
+                    ViewerLeases.release(leaseKey(channel), userId);
+                    return new StartResult(false, null, "推流数量已满，没有可挤出的通道");
+                }
+                log.warn("关闭通道 channel {}，为新通道腾位", victim);
+                int before = activeStreamCount.get();
+                // 停止推流并清除该通道的用户
+                stopStream2(victim);
+                if (activeStreamCount.get() >= before) {
+                    // 挤出的通道没有会话，名额没有减少，避免反复挤出同一个通道
+                    ViewerLeases.release(leaseKey(channel), userId);
+                    return new StartResult(false, null, "推流数量已满，挤出通道失败");
                 }
             }
-            String codecName = extractVideoCodec(inputUrl);
             // String codecName = "H.264";
             // if (codecName == null) return new StartResult(false, null, "无法提取编解码器");
             if (codecName == null) codecName = "h264";
             // 构造 FFmpeg 命令（无需转码）
+            // 主码流需要缩放转码，按 CPU 开销准入，预算不足时降级为直接复制
+            String budgetKey = "rtsp_" + channel;
+            boolean transcode = dwStreamType == 1;
+            // 主码流开启码率阶梯时解码一次、推送多个规格，预算不足时按原方式只推一个规格
+            boolean ladder = AbrLadder.appliesTo(transcode);
+            if (ladder && !CpuBudget.tryAdmit(budgetKey, CpuBudget.Pipeline.LADDER)) {
+                log.warn("CPU 预算不足，通道{}只推送单一规格", channel);
+                ladder = false;
+            }
+            if (!ladder && !CpuBudget.tryAdmit(budgetKey, transcode ? CpuBudget.Pipeline.TRANSCODE_MAIN : CpuBudget.Pipeline.COPY)) {
+                if (transcode && CpuBudget.isDegradeToCopy() && CpuBudget.tryAdmit(budgetKey, CpuBudget.Pipeline.COPY)) {
+                    CpuBudget.recordDegrade(budgetKey, CpuBudget.Pipeline.TRANSCODE_MAIN, CpuBudget.Pipeline.COPY);
+                    transcode = false;
+                } else {
+                    ViewerLeases.release(leaseKey(channel), userId);
+                    return new StartResult(false, null, "CPU 预算不足，无法启动转码");
+                }
+            }
             String[] command;
-            if(dwStreamType==1){
+            if (ladder) {
+                boolean h264 = !"hevc".equals(codecName);
+                codecName = "h264";
+                command = AbrLadder.command(Arrays.asList(
+                        "ffmpeg",
+                        "-rtsp_transport", "tcp",      // 使用 TCP 获取更稳定的数据
+                        "-i", inputUrl                 // RTSP 输入
+                ), h264, outputUrl);
+            } else if(transcode){
                 codecName = "h264";
                 command = new String[]{
                         "ffmpeg",
@@ -147,37 +176,44 @@ public class RTSPStreamHandler {
                 log.info("开启新通道，channel: {}, inputUrl: {}, outputUrl: {}", channel, inputUrl, outputUrl);
                 ProcessBuilder builder = new ProcessBuilder(command);
                 builder.redirectErrorStream(true); // 合并标准错误和标准输出，便于读取日志
+                if (SessionThreads.discardUnreadOutput()) {
+                    // 日志没有人读取，直接丢弃，不开读取线程
+                    builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+                }
 
                 Process process = builder.start();
+                CpuBudget.attach(budgetKey, process);
                 // 打印ffmpeg日志
-                new Thread(() -> {
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            // log.info("[FFmpeg] {}", line);
+                if (!SessionThreads.discardUnreadOutput()) {
+                    SessionThreads.start("RTSP-FFmpegLog-" + channel, () -> {
+                        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                            String line;
+                            while ((line = reader.readLine()) != null) {
+                                // log.info("[FFmpeg] {}", line);
+                            }
+                        } catch (IOException e) {
+                            log.error("读取 FFmpeg 输出流失败");
                         }
-                    } catch (IOException e) {
-                        log.error("读取 FFmpeg 输出流失败");
-                    }
-                }).start();
+                    });
+                }
                 StreamSession session = new StreamSession();
                 session.process = process;
-                session.executor = Executors.newSingleThreadExecutor();
                 session.running = true;
                 session.lastActiveTime = System.currentTimeMillis();
                 session.videoCodec = codecName;
+                session.ladder = ladder;
                 // 会话必须先注册进 map 再启动监控线程
                 channelSessionMap.put(channel, session);
                 activeStreamCount.incrementAndGet(); // 成功启动后 +1
+                StreamCapacityScheduler.register(StreamCapacityScheduler.POOL_RTSP, channel,
+                        () -> ViewerLeases.count(leaseKey(channel)));
+                session.idleTimer = idleTimer(channel, session);
                 // 监控进程状态（避免僵尸进程）
-                session.executor.submit(() -> {
-                    try {
-                        log.warn("等待 FFmpeg 结束中...");
-                        int exitCode = process.waitFor();
-                        log.warn("FFmpeg进程退出，用户{}通道{}，退出码{}", userId, channel, exitCode);
-                    } catch (Exception e) {
-                        log.error("等待 FFmpeg 结束时被中断,通道{}", channel);
-                    } finally {
+                log.warn("等待 FFmpeg 结束中...");
+                SessionThreads.onExit("RTSP-Monitor-" + channel, process, () -> {
+                    log.warn("FFmpeg进程退出，用户{}通道{}，退出码{}", userId, channel, process.exitValue());
+                    // 已停止的会话不再处理，避免误停同一通道新启动的会话
+                    if (channelSessionMap.get(channel) == session) {
                         stopStream(userId,channel);
                         log.warn("FFmpeg 推流结束，调用 stopStream()");
                     }
@@ -185,6 +221,7 @@ public class RTSPStreamHandler {
                 return new StartResult(true, session.videoCodec, "新通道推流已启动");
             } catch (IOException e) {
                 e.printStackTrace();
+                CpuBudget.release(budgetKey);
                 return new StartResult(false, null, "启动失败: " + e.getMessage());
             }
         }
@@ -197,25 +234,44 @@ public class RTSPStreamHandler {
      */
     public static boolean stopStream(Integer userId, Integer channel) {
         synchronized(streamLock) {
-            Set<Integer> users = channelUserMap.get(channel);
-            if (users != null) {
-                users.remove(userId);
-                if (!users.isEmpty()) {
-                    log.info("还有其他用户在使用通道 {}，不停止推流,用户{}", channel, users);
-                    return false;
-                }
+            if (ViewerLeases.release(leaseKey(channel), userId) > 0) {
+                log.info("还有其他用户在使用通道 {}，不停止推流,用户{}", channel, ViewerLeases.viewers(leaseKey(channel)));
+                return false;
             }
             return stopStream2(channel);
         }
     }
 
+    /**
+     * 观看者心跳，续期租约
+     *
+     * @return 通道未在推流时返回 false，客户端应重新调用启动接口
+     */
+    public static boolean heartbeat(int userId, int channel) {
+        StreamSession session = channelSessionMap.get(channel);
+        if (session == null || !session.running) {
+            return false;
+        }
+        session.lastActiveTime = System.currentTimeMillis();
+        StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_RTSP, channel);
+        if (!ViewerLeases.renew(leaseKey(channel), userId)) {
+            // 租约刚到期但通道还未回收，重新加入
+            ViewerLeases.acquire(leaseKey(channel), userId);
+        }
+        return true;
+    }
+
     public static boolean stopStream2(Integer channel) {
+        // 清除通道用户
+        ViewerLeases.clear(leaseKey(channel));
         StreamSession session = channelSessionMap.remove(channel);
         if (session != null) {
             session.running = false;
+            if (session.idleTimer != null) session.idleTimer.cancel();
             if (session.process != null) session.process.destroy();
-            if (session.executor != null) session.executor.shutdownNow();
             activeStreamCount.decrementAndGet(); // 推流结束后 -1
+            StreamCapacityScheduler.unregister(StreamCapacityScheduler.POOL_RTSP, channel);
+            CpuBudget.release("rtsp_" + channel);
             log.info("已停止通道推流：{}", channel);
         }
         return true;
@@ -228,28 +284,63 @@ public class RTSPStreamHandler {
      * @return true 表示正在推流
      */
     public static Set<Integer> isRunning(int channel) {
-        return channelUserMap.get(channel);
+        return ViewerLeases.viewers(leaseKey(channel));
+    }
+
+    /**
+     * 通道是否在输出码率阶梯的多个规格
+     */
+    public static boolean isLadder(int channel) {
+        StreamSession session = channelSessionMap.get(channel);
+        return session != null && session.ladder;
+    }
+
+    private static String leaseKey(int channel) {
+        return "rtsp_" + channel;
     }
 
+    /**
+     * 最后一个观看者离开后回收通道（租约到期回调）
+     */
+    private static void reclaimIdle(int channel) {
+        synchronized (streamLock) {
+            // 回调执行前可能又有观看者加入
+            if (ViewerLeases.count(leaseKey(channel)) > 0 || !channelSessionMap.containsKey(channel)) {
+                return;
+            }
+            log.info("rtsp通道 {} 已无观看者，停止推流", channel);
+            stopStream2(channel);
+        }
+    }
 
-    // 用于每分钟检查是否有会话空闲超过 15 分钟
-    private static final ScheduledExecutorService cleaner = Executors.newScheduledThreadPool(1);
+    // 15 分钟无活动的会话自动停止
     private static final long TIMEOUT_MS = 15 * 60 * 1000; // 15 分钟
 
-    static {
-        cleaner.scheduleAtFixedRate(() -> {
-            long now = System.currentTimeMillis();
-            for (Map.Entry<Integer, StreamSession> entry : channelSessionMap.entrySet()) {
-                int channel = entry.getKey();
-                StreamSession session = entry.getValue();
-                if (now - session.lastActiveTime > TIMEOUT_MS) {
-                    log.warn("rtsp通道 {} 空闲超时，自动停止推流", channel);
-                    // 清除通道用户
-                    channelUserMap.remove(channel);
-                    stopStream2(channel);
-                }
+    /**
+     * 会话的空闲超时：由时间轮在到期时读取最近活动时间，不需要每分钟全量扫描
+     */
+    private static TimingWheel.Timeout idleTimer(int channel, StreamSession session) {
+        TimingWheel.Timeout timer = new TimingWheel.Timeout() {
+            @Override
+            protected long deadline() {
+                return session.lastActiveTime + TIMEOUT_MS;
             }
-        }, 1, 1, TimeUnit.MINUTES);
+
+            @Override
+            protected void expire() {
+                SessionThreads.start("RTSP-Idle-" + channel, () -> {
+                    synchronized (streamLock) {
+                        if (channelSessionMap.get(channel) != session) {
+                            return;
+                        }
+                        log.warn("rtsp通道 {} 空闲超时，自动停止推流", channel);
+                        stopStream2(channel);
+                    }
+                });
+            }
+        };
+        TimingWheel.shared().schedule(timer);
+        return timer;
     }
 
     /**
@@ -260,60 +351,11 @@ public class RTSPStreamHandler {
     }
 
     /**
-     * 使用 FFprobe 提取视频编码格式
+     * 提取视频编码格式（由 {@link MediaProbeCache} 异步探测并缓存，探测未完成时返回 null）
      */
     public static String extractVideoCodec(String inputUrl) {
-        // 定义命令行参数
-        String[] command = {
-                "ffprobe",
-                "-v", "quiet",
-                "-print_format", "json",
-                "-show_streams",
-                inputUrl
-        };
-
-        try {
-            // 创建进程构建器
-            ProcessBuilder builder = new ProcessBuilder(command);
-            // 启动进程
-            Process process = builder.start();
-
-            // 从进程输入流中读取数据
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            // 创建字符串构建器
-            StringBuilder jsonBuilder = new StringBuilder();
-            // 逐行读取数据
-            String line;
-            while ((line = reader.readLine()) != null) {
-                jsonBuilder.append(line);
-            }
-            // 等待进程结束
-            process.waitFor();
-
-            // 创建 JSON 解析器
-            ObjectMapper mapper = new ObjectMapper();
-            // 解析 JSON 数据
-            JsonNode root = mapper.readTree(jsonBuilder.toString());
-            // 遍历流
-            JsonNode streams = root.get("streams");
-            if (streams != null && streams.isArray()) {
-                for (JsonNode stream : streams) {
-                    if ("video".equals(stream.path("codec_type").asText())) {
-                        return stream.path("codec_name").asText(); // 更安全的访问方式
-                    }
-                }
-            } else {
-                log.warn("警告: 未找到 'streams' 字段或字段格式不是数组！");
-                log.warn("原始返回 JSON: " + jsonBuilder);
-            }
-
-        } catch (Exception e) {
-            // 打印异常信息
-            e.printStackTrace();
-        }
-
-        // 返回 null
-        return null;
+        MediaProbeCache.ProbeInfo info = MediaProbeCache.get(inputUrl);
+        return info == null ? null : info.codec;
     }
 
 
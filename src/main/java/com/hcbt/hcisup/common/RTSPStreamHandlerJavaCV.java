@@ -1,18 +1,33 @@
 package com.hcbt.hcisup.common;
 
 import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 使用 JavaCV 将 RTSP 视频流转推为 RTMP（FLV 封装）到 SRS 服务器
+ * <p>
+ * 源为 H.264 时按包直接复制到 FLV（{@code grabPacket()/recordPacket()}），不解码；
+ * FLV 不支持的编码（如 H.265）才解码并重新编码为 H.264。编解码器保持默认的多线程，每路的 CPU 为推流线程（或调度任务）的
+ * CPU 时间加上该路编解码线程的 CPU 时间（见 {@link CodecThreads}）。
+ * <p>
+ * 会话通过 {@link FrameTap} 按采样率向订阅者（如检测）提供解码后的帧；按包复制时只在有订阅者时旁路解码。
+ * <p>
+ * 启用 {@link PipelineScheduler} 时每个通道不再独占一个推流线程：拉流线程只读取视频包放入有界队列（队列满时丢弃到下一个关键帧），
+ * 解码、写出与帧分接作为协作式任务在共享线程池中运行，CPU 按任务统计。
  * @author llg
  * @slogan 致敬大师，致敬未来的你
  * @create 2025-06-05 10:03
@@ -29,8 +44,32 @@ public class RTSPStreamHandlerJavaCV {
         boolean running = false;            // 当前推流是否正在运行
         long lastActiveTime = System.currentTimeMillis(); // 最后活跃时间（用于自动清理）
         String videoCodec;                  // 视频编码格式（如 h264、hevc 等）
+        boolean remux;                      // 是否按包直接复制（不解码）
+        volatile long threadId = -1;        // 推流线程 ID，用于统计 CPU
+        String codecTag;                    // 该路编解码线程的本地线程名，用于统计编解码线程的 CPU
+        long startNanos = System.nanoTime();
+        volatile long frames;               // 已推送的帧数（复制时为视频包数）
+        // 上一次统计时的 CPU 时间与时间点，用于计算近期 CPU
+        long lastCpuNanos;
+        long lastSampleNanos = System.nanoTime();
+        final FrameTap tap = new FrameTap(); // 解码帧的订阅者
+        // 以下用于流水线调度：拉流线程写入、调度任务读取的视频包队列
+        PipelineScheduler.Task task;
+        BlockingQueue<AVPacket> packets;
+        volatile boolean inputEnded;
+        boolean dropping;                   // 队列满后丢弃到下一个关键帧（只由拉流线程访问）
+        volatile long droppedPackets;
+        PacketDecoder decoder;              // 旁路解码或转码的解码器（只由调度任务访问）
+        OpenCVFrameConverter.ToMat converter;
+        // 拉流器的使用方：拉流线程与调度任务，都结束后才关闭（写出器与解码器引用拉流器的 AVFormatContext）
+        final AtomicInteger grabberUsers = new AtomicInteger(2);
     }
 
+    // 源编码 FLV 可以直接封装时是否按包复制，不转码
+    private static volatile boolean remuxEnabled = true;
+    // 流水线调度下每个通道待处理视频包的队列长度
+    private static volatile int queuePackets = 256;
+
     /** 用户启动推流的返回结果，包括是否成功、视频编码格式及描述信息 */
     public static class StartResult {
         public boolean success;
@@ -50,6 +89,18 @@ public class RTSPStreamHandlerJavaCV {
     /** 记录每个通道被哪些用户使用：channel -> userIdSet */
     private static final Map<Integer, Set<Integer>> channelUserMap = new ConcurrentHashMap<>();
 
+    /** 路数已满时的挤出与名额占用在该锁内完成，避免并发启动重复挤出 */
+    private static final Object startLock = new Object();
+
+    /**
+     * @param remux 源编码 FLV 可以直接封装（H.264）时是否按包复制
+     * @param queue 流水线调度下每个通道待处理视频包的队列长度
+     */
+    public static void configure(boolean remux, int queue) {
+        remuxEnabled = remux;
+        queuePackets = Math.max(queue, 16);
+    }
+
     /**
      * 启动 RTSP 到 RTMP 的推流任务（使用 JavaCV）
      *
@@ -67,34 +118,74 @@ public class RTSPStreamHandlerJavaCV {
         // 如果当前通道已经在推流中，则复用该会话
         if (session != null && session.running) {
             session.lastActiveTime = System.currentTimeMillis();
+            StreamCapacityScheduler.touch(StreamCapacityScheduler.POOL_JAVACV, channel);
             log.info("复用通道推流中，channel: {}, userId: {}", channel, userId);
             return new StartResult(true, session.videoCodec, "当前通道已在推流，复用会话");
         }
 
-        // 判断推流总路数是否超过上限
-        if (!StreamLimitManager.tryAcquire()) {
-            return new StartResult(false, null, "系统已达推流上限（" + StreamLimitManager.getRunningCount() + "路）");
+        // 判断推流总路数是否超过上限，已满时按策略挤出通道（与 RTSP 相同）
+        synchronized (startLock) {
+            while (!StreamLimitManager.tryAcquire()) {
+                Integer victim = StreamCapacityScheduler.pickVictim(StreamCapacityScheduler.POOL_JAVACV, channel);
+                if (victim == null) {
+                    return new StartResult(false, null,
+                            "推流数量已满（" + StreamLimitManager.getRunningCount() + "路），没有可挤出的通道");
+                }
+                log.warn("JavaCV 推流数量已满，关闭通道 {} 为通道 {} 腾位", victim, channel);
+                int before = StreamLimitManager.getRunningCount();
+                evict(victim);
+                if (StreamLimitManager.getRunningCount() >= before) {
+                    // 挤出的通道没有会话，名额没有减少，避免反复挤出同一个通道
+                    return new StartResult(false, null, "推流数量已满，挤出通道失败");
+                }
+            }
         }
-
+        FFmpegFrameGrabber grabber = null;
+        boolean admitted = false;
         try {
 
             // 创建 FrameGrabber 用于拉取 RTSP 视频帧
-            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputUrl);
+            grabber = new FFmpegFrameGrabber(inputUrl);
             grabber.setOption("rtsp_transport", "tcp");
             grabber.setOption("stimeout", "5000000"); // 微秒
-            grabber.start();
-            // 获取视频编码格式（可用于后续判断是否转码）
+            // 打开期间创建的解码线程带上会话标签
+            String codecTag = CodecThreads.tag("javacv_" + channel);
+            FFmpegFrameGrabber opening = grabber;
+            CodecThreads.open(codecTag, () -> {
+                opening.start();
+                return null;
+            });
+            // 获取视频编码格式，FLV 可以直接封装 H.264，其他编码需要转码
             String codecName = grabber.getVideoCodecName();
+            boolean remux = remuxEnabled && grabber.getVideoCodec() == avcodec.AV_CODEC_ID_H264;
+
+            // 按包复制几乎不占 CPU，解码后重新编码按转码开销准入
+            if (!CpuBudget.tryAdmit("javacv_" + channel, remux ? CpuBudget.Pipeline.COPY : CpuBudget.Pipeline.JAVACV)) {
+                closeQuietly(grabber);
+                StreamLimitManager.release();
+                return new StartResult(false, null, "CPU 预算不足，无法启动转码");
+            }
+            admitted = true;
 
             // 创建 FrameRecorder 推送到 RTMP（封装为 FLV）
             FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputUrl,
                     grabber.getImageWidth(), grabber.getImageHeight(), 0);
             recorder.setFormat("flv");
-            recorder.setFrameRate(15);
-            recorder.setVideoBitrate(400_000);
-            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
-            recorder.start();
+            if (remux) {
+                // 沿用源的编码参数，按包写入
+                recorder.setVideoCodec(grabber.getVideoCodec());
+                recorder.setFrameRate(grabber.getFrameRate());
+                recorder.start(grabber.getFormatContext());
+            } else {
+                recorder.setFrameRate(15);
+                recorder.setVideoBitrate(400_000);
+                recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+                recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+                CodecThreads.open(codecTag, () -> {
+                    recorder.start();
+                    return null;
+                });
+            }
 
             // 注册会话
             StreamSession newSession = new StreamSession();
@@ -102,19 +193,76 @@ public class RTSPStreamHandlerJavaCV {
             newSession.recorder = recorder;
             newSession.running = true;
             newSession.videoCodec = codecName;
+            newSession.remux = remux;
+            newSession.codecTag = codecTag;
+            if (PipelineScheduler.isEnabled()) {
+                newSession.packets = new ArrayBlockingQueue<>(queuePackets);
+                newSession.task = PipelineScheduler.create("javacv_" + channel, task -> pump(newSession),
+                        () -> finishPipeline(newSession, userId, channel));
+                channelSessionMap.put(channel, newSession);
+                register(channel);
+                SessionThreads.start("JavaCV-Reader-" + channel, () -> readPackets(newSession, channel));
+                log.info("开启新通道（{}，流水线调度），channel: {}, inputUrl: {}, outputUrl: {}",
+                        remux ? "按包复制" : "转码", channel, inputUrl, outputUrl);
+                return new StartResult(true, codecName, "推流启动成功");
+            }
             newSession.executor = Executors.newSingleThreadExecutor();
             channelSessionMap.put(channel, newSession);
-            log.info("开启新通道，channel: {}, inputUrl: {}, outputUrl: {}", channel, inputUrl, outputUrl);
+            register(channel);
+            log.info("开启新通道（{}），channel: {}, inputUrl: {}, outputUrl: {}", remux ? "按包复制" : "转码",
+                    channel, inputUrl, outputUrl);
             // 启动线程异步推送帧数据
+            FFmpegFrameGrabber source = grabber;
             newSession.executor.submit(() -> {
+                newSession.threadId = Thread.currentThread().getId();
+                PacketDecoder decoder = null;
                 try {
-                    Frame frame;
-                    while (newSession.running && (frame = grabber.grabImage()) != null) {
-                        recorder.record(frame);
+                    if (newSession.remux) {
+                        int videoStream = source.getVideoStream();
+                        AVPacket packet;
+                        while (newSession.running && (packet = source.grabPacket()) != null) {
+                            try {
+                                // 只转发视频（推流器没有音频流）
+                                if (packet.stream_index() != videoStream) {
+                                    continue;
+                                }
+                                // 有订阅者时从关键帧开始旁路解码，须在写出之前（写出后包被清空）
+                                if (!newSession.tap.hasSubscribers()) {
+                                    if (decoder != null) {
+                                        decoder.close();
+                                        decoder = null;
+                                    }
+                                } else if (decoder != null || (packet.flags() & avcodec.AV_PKT_FLAG_KEY) != 0) {
+                                    if (decoder == null) {
+                                        decoder = CodecThreads.open(newSession.codecTag, () ->
+                                                new PacketDecoder(source.getFormatContext().streams(videoStream).codecpar()));
+                                    }
+                                    decoder.decode(packet, newSession.tap);
+                                }
+                                recorder.recordPacket(packet);
+                                newSession.frames++;
+                            } finally {
+                                avcodec.av_packet_unref(packet);
+                            }
+                        }
+                    } else {
+                        OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+                        Frame frame;
+                        while (newSession.running && (frame = source.grabImage()) != null) {
+                            long now = System.nanoTime();
+                            if (newSession.tap.isDue(now)) {
+                                newSession.tap.publish(converter.convert(frame), now);
+                            }
+                            recorder.record(frame);
+                            newSession.frames++;
+                        }
                     }
                 } catch (Exception e) {
                     log.error("通道 {} 推流异常：{}", channel, e.getMessage());
                 } finally {
+                    if (decoder != null) {
+                        decoder.close();
+                    }
                     stopStream(userId, channel);
                 }
             });
@@ -122,12 +270,190 @@ public class RTSPStreamHandlerJavaCV {
             log.info("新通道推流启动成功：channel={}, inputUrl={}, outputUrl={} ", channel, inputUrl, outputUrl);
             return new StartResult(true, codecName, "推流启动成功");
         } catch (Exception e) {
+            if (grabber != null && !channelSessionMap.containsKey(channel)) {
+                closeQuietly(grabber);
+            }
             log.error("启动通道 {} 推流失败：{}", channel, e.getMessage());
             StreamLimitManager.release();
+            if (admitted) {
+                CpuBudget.release("javacv_" + channel);
+            }
             return new StartResult(false, null, "推流启动异常: " + e.getMessage());
         }
     }
 
+    /**
+     * 拉流线程：只读取视频包放入队列并唤醒调度任务，不解码
+     * <p>
+     * 队列满（调度跟不上）时丢弃后续的包直到下一个关键帧，写出与旁路解码从完整的 GOP 继续。
+     */
+    private static void readPackets(StreamSession session, int channel) {
+        FFmpegFrameGrabber source = session.grabber;
+        try {
+            int videoStream = source.getVideoStream();
+            AVPacket packet;
+            while (session.running && (packet = source.grabPacket()) != null) {
+                try {
+                    if (packet.stream_index() == videoStream) {
+                        enqueue(session, packet);
+                    }
+                } finally {
+                    avcodec.av_packet_unref(packet);
+                }
+            }
+        } catch (Exception e) {
+            if (session.running) {
+                log.error("通道 {} 拉流异常：{}", channel, e.getMessage());
+            }
+        } finally {
+            // 调度任务可能还在处理队列中的包（写出、解码都会访问拉流器的 AVFormatContext），这里只标记输入结束，
+            // 拉流器由最后结束的一方关闭
+            session.inputEnded = true;
+            session.task.wakeup();
+            releaseGrabber(session);
+        }
+    }
+
+    private static void enqueue(StreamSession session, AVPacket packet) {
+        boolean key = (packet.flags() & avcodec.AV_PKT_FLAG_KEY) != 0;
+        if (session.dropping && !key) {
+            session.droppedPackets++;
+            return;
+        }
+        // 引用同一块数据，不复制负载
+        AVPacket copy = avcodec.av_packet_clone(packet);
+        if (copy == null) {
+            return;
+        }
+        if (session.packets.offer(copy)) {
+            session.dropping = false;
+            session.task.wakeup();
+        } else {
+            avcodec.av_packet_free(copy);
+            session.dropping = true;
+            session.droppedPackets++;
+        }
+    }
+
+    /**
+     * 调度任务：处理一个视频包（旁路解码、写出，或解码后重新编码）
+     */
+    private static PipelineScheduler.Result pump(StreamSession session) throws Exception {
+        if (!session.running) {
+            return PipelineScheduler.Result.DONE;
+        }
+        AVPacket packet = session.packets.poll();
+        if (packet == null) {
+            return session.inputEnded ? PipelineScheduler.Result.DONE : PipelineScheduler.Result.IDLE;
+        }
+        try {
+            if (session.remux) {
+                // 有订阅者时从关键帧开始旁路解码，须在写出之前（写出后包被清空）
+                if (!session.tap.hasSubscribers()) {
+                    if (session.decoder != null) {
+                        session.decoder.close();
+                        session.decoder = null;
+                    }
+                } else if (session.decoder != null || (packet.flags() & avcodec.AV_PKT_FLAG_KEY) != 0) {
+                    if (session.decoder == null) {
+                        session.decoder = newDecoder(session);
+                    }
+                    session.decoder.decode(packet, session.tap);
+                }
+                // 写出会阻塞在 RTMP 连接上，阻塞期间线程池补充线程，不占住其他通道
+                PipelineScheduler.blocking(() -> session.recorder.recordPacket(packet));
+                session.frames++;
+            } else {
+                if (session.decoder == null) {
+                    session.decoder = newDecoder(session);
+                    session.converter = new OpenCVFrameConverter.ToMat();
+                }
+                session.decoder.decode(packet, session.tap, image -> {
+                    try {
+                        Frame frame = session.converter.convert(image);
+                        PipelineScheduler.blocking(() -> session.recorder.record(frame));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                    session.frames++;
+                });
+            }
+        } finally {
+            avcodec.av_packet_free(packet);
+        }
+        return PipelineScheduler.Result.MORE;
+    }
+
+    private static PacketDecoder newDecoder(StreamSession session) throws Exception {
+        FFmpegFrameGrabber source = session.grabber;
+        return CodecThreads.open(session.codecTag, () ->
+                new PacketDecoder(source.getFormatContext().streams(source.getVideoStream()).codecpar()));
+    }
+
+    /**
+     * 调度任务结束（输入结束或已停止）：依次关闭解码器、写出器，释放剩余的包，最后释放拉流器
+     */
+    private static void finishPipeline(StreamSession session, int userId, int channel) {
+        if (session.decoder != null) {
+            session.decoder.close();
+            session.decoder = null;
+        }
+        try {
+            session.recorder.stop();
+        } catch (Exception e) {
+            log.debug("关闭推流失败: {}", e.getMessage());
+        }
+        drainPackets(session);
+        releaseGrabber(session);
+        stopStream(userId, channel);
+    }
+
+    /**
+     * 拉流线程与调度任务各调用一次，两者都结束后关闭拉流器
+     * <p>
+     * 拉流线程可能阻塞在读取中（最长 stimeout），调度任务先结束时由拉流线程退出时关闭，不在读取中途释放上下文。
+     */
+    private static void releaseGrabber(StreamSession session) {
+        if (session.grabberUsers.decrementAndGet() == 0) {
+            closeQuietly(session.grabber);
+            // 拉流线程最后结束时，结束后才入队的包也在这里释放
+            drainPackets(session);
+        }
+    }
+
+    private static void drainPackets(StreamSession session) {
+        AVPacket packet;
+        while ((packet = session.packets.poll()) != null) {
+            avcodec.av_packet_free(packet);
+        }
+    }
+
+    private static void closeQuietly(FFmpegFrameGrabber grabber) {
+        try {
+            grabber.stop();
+        } catch (Exception e) {
+            log.debug("关闭拉流失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 登记到 JavaCV 推流池，观看者为使用该通道的用户数
+     */
+    private static void register(int channel) {
+        StreamCapacityScheduler.register(StreamCapacityScheduler.POOL_JAVACV, channel, () -> {
+            Set<Integer> users = channelUserMap.get(channel);
+            return users == null ? 0 : users.size();
+        });
+    }
+
+    /**
+     * 为新通道腾位：清除通道用户后停止推流
+     */
+    private static void evict(int channel) {
+        channelUserMap.remove(channel);
+        stopStream(-1, channel);
+    }
+
     /** 停止某个通道的推流任务（如果无用户使用） */
     public static Boolean stopStream(int userId, int channel) {
         Set<Integer> users = channelUserMap.get(channel);
@@ -142,6 +468,16 @@ public class RTSPStreamHandlerJavaCV {
         StreamSession session = channelSessionMap.remove(channel);
         if (session != null) {
             session.running = false;
+            StreamCapacityScheduler.unregister(StreamCapacityScheduler.POOL_JAVACV, channel);
+            session.tap.closeAll();
+            if (session.task != null) {
+                // 调度任务看到停止标志后关闭写出器，拉流器在拉流线程与调度任务都结束后关闭
+                session.task.cancel();
+                StreamLimitManager.release();
+                CpuBudget.release("javacv_" + channel);
+                log.info("通道 {} 推流已停止", channel);
+                return true;
+            }
             try {
                 if (session.grabber != null) session.grabber.stop();
                 if (session.recorder != null) session.recorder.stop();
@@ -151,6 +487,7 @@ public class RTSPStreamHandlerJavaCV {
                 log.warn("通道 {} 停止推流异常：{}", channel, e.getMessage());
             }
             StreamLimitManager.release();
+            CpuBudget.release("javacv_" + channel);
         }
         return true;
     }
@@ -164,6 +501,73 @@ public class RTSPStreamHandlerJavaCV {
         return channelSessionMap.keySet();
     }
 
+    /**
+     * 订阅通道解码后的帧
+     *
+     * @param fps 采样帧率
+     * @return 订阅；通道未在推流时返回 null。通道停止后订阅自动关闭
+     */
+    public static FrameTap.Subscription subscribeFrames(int channel, double fps) {
+        StreamSession session = channelSessionMap.get(channel);
+        if (session == null || !session.running) {
+            return null;
+        }
+        return session.tap.subscribe(fps);
+    }
+
+    /**
+     * 各通道的推流方式、帧率与 CPU（核数）
+     * <p>
+     * CPU 为推流线程（或调度任务）与该路编解码线程之和，codecCpuMs 为其中编解码线程的部分（只含仍在运行的线程）。
+     * cores 为启动以来的平均值，recentCores 为距上一次查询的值。
+     */
+    public static Map<Integer, Map<String, Object>> stats() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuSupported = threads.isThreadCpuTimeSupported();
+        Map<String, Long> codecCpu = CodecThreads.cpuNanosByName();
+        long now = System.nanoTime();
+        Map<Integer, Map<String, Object>> stats = new HashMap<>();
+        for (Map.Entry<Integer, StreamSession> entry : channelSessionMap.entrySet()) {
+            StreamSession session = entry.getValue();
+            Map<String, Object> item = new HashMap<>();
+            item.put("mode", session.remux ? "REMUX" : "TRANSCODE");
+            item.put("scheduler", session.task != null ? "PIPELINE" : "THREAD");
+            item.put("videoCodec", session.videoCodec);
+            double seconds = Math.max((now - session.startNanos) / 1e9, 1e-3);
+            item.put("frames", session.frames);
+            item.put("fps", Math.round(session.frames / seconds * 10) / 10.0);
+            long cpuNanos;
+            if (session.task != null) {
+                // 流水线调度下按任务累计的 CPU 时间
+                cpuNanos = session.task.getCpuNanos();
+                item.put("queuedPackets", session.packets.size());
+                item.put("droppedPackets", session.droppedPackets);
+            } else {
+                cpuNanos = cpuSupported && session.threadId >= 0 ? threads.getThreadCpuTime(session.threadId) : -1;
+            }
+            Long codecNanos = session.codecTag == null ? null : codecCpu.get(session.codecTag);
+            if (codecNanos != null) {
+                item.put("codecCpuMs", TimeUnit.NANOSECONDS.toMillis(codecNanos));
+                cpuNanos = Math.max(cpuNanos, 0) + codecNanos;
+            }
+            if (cpuNanos >= 0) {
+                item.put("cores", Math.round(cpuNanos / 1e9 / seconds * 1000) / 1000.0);
+                synchronized (session) {
+                    double recent = Math.max((now - session.lastSampleNanos) / 1e9, 1e-3);
+                    item.put("recentCores", Math.round((cpuNanos - session.lastCpuNanos) / 1e9 / recent * 1000) / 1000.0);
+                    session.lastCpuNanos = cpuNanos;
+                    session.lastSampleNanos = now;
+                }
+            }
+            long[] tapped = session.tap.counters();
+            item.put("tapSubscribers", session.tap.subscriberCount());
+            item.put("tapDelivered", tapped[0]);
+            item.put("tapReplaced", tapped[1]);
+            stats.put(entry.getKey(), item);
+        }
+        return stats;
+    }
+
 
     /** 每分钟检查是否有会话超过空闲时间（15分钟）自动关闭 */
     private static final ScheduledExecutorService cleaner = Executors.newScheduledThreadPool(1);
@@ -0,0 +1,53 @@
+package com.hcbt.hcisup.common;
+
+import java.io.IOException;
+
+/**
+ * 进程内 FLV 封装 + RTMP 推流的输出端
+ */
+public class RtmpFrameSink implements FrameSink {
+
+    private final FlvMuxer muxer;
+    private final RtmpPublisher publisher;
+    private final int timeoutMs;
+
+    /**
+     * 创建输出端，连接由写入线程在 {@link #open()} 中建立
+     *
+     * @param url       RTMP 推流地址
+     * @param hevc      源码流是否为 H.265
+     * @param timeoutMs 连接超时时间
+     * @throws IllegalArgumentException 地址格式错误
+     */
+    public RtmpFrameSink(String url, boolean hevc, int timeoutMs) {
+        this.muxer = new FlvMuxer(hevc);
+        this.publisher = new RtmpPublisher(url);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * 连接推流服务器并开始发布（TCP 连接、握手与 connect/publish 命令往返）
+     */
+    @Override
+    public void open() throws IOException {
+        publisher.connect(timeoutMs);
+    }
+
+    @Override
+    public void writeFrame(byte[] data, int offset, int length, long pts, long dts, boolean keyFrame) throws IOException {
+        muxer.writeFrame(data, offset, length, pts, dts, keyFrame, publisher::writeTag);
+    }
+
+    public RtmpPublisher getPublisher() {
+        return publisher;
+    }
+
+    public FlvMuxer getMuxer() {
+        return muxer;
+    }
+
+    @Override
+    public void close() {
+        publisher.close();
+    }
+}
@@ -0,0 +1,481 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最简 RTMP 推流客户端
+ * <p>
+ * 完成简单握手、connect / releaseStream / FCPublish / createStream / publish 流程后，
+ * 以 FLV tag 负载的形式发送音视频消息。读取线程处理服务端的控制消息
+ * （Set Chunk Size、Ping、Window Ack Size）和命令回复。
+ * 用于 H.264 直接复制的通道，代替为封装 FLV 单独启动的 FFmpeg 进程。
+ */
+@Slf4j
+public class RtmpPublisher implements Closeable {
+
+    private static final int DEFAULT_PORT = 1935;
+    private static final int HANDSHAKE_SIZE = 1536;
+    // 发送方向的块大小
+    private static final int OUT_CHUNK_SIZE = 60000;
+
+    // 块流 ID
+    private static final int CSID_CONTROL = 2;
+    private static final int CSID_COMMAND = 3;
+    private static final int CSID_STREAM_COMMAND = 5;
+    private static final int CSID_VIDEO = 6;
+    private static final int CSID_AUDIO = 7;
+
+    // 消息类型
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_ACK = 3;
+    private static final int MSG_USER_CONTROL = 4;
+    private static final int MSG_WINDOW_ACK_SIZE = 5;
+    private static final int MSG_COMMAND_AMF3 = 17;
+    private static final int MSG_COMMAND_AMF0 = 20;
+
+    private final String host;
+    private final int port;
+    private final String app;
+    private final String streamName;
+    private final String tcUrl;
+
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private Thread reader;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private int streamId;
+
+    // 读取线程收到的命令回复
+    private final BlockingQueue<List<Object>> replies = new LinkedBlockingQueue<>();
+    // 发送消息头的复用缓冲区
+    private final byte[] header = new byte[16];
+
+    // 接收方向状态（仅读取线程使用）
+    private int inChunkSize = 128;
+    private long windowAckSize = 2500000;
+    private long bytesRead;
+    private long lastAckBytes;
+    private final Map<Integer, ChunkStream> chunkStreams = new HashMap<>();
+
+    // 统计
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong mediaMessages = new AtomicLong();
+
+    /**
+     * @param url 推流地址，如 rtmp://127.0.0.1:1935/live/isup_101
+     * @throws IllegalArgumentException 地址格式错误
+     */
+    public RtmpPublisher(String url) {
+        URI uri = URI.create(url);
+        if (!"rtmp".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null || uri.getPath() == null) {
+            throw new IllegalArgumentException("不支持的推流地址: " + url);
+        }
+        String path = uri.getPath().startsWith("/") ? uri.getPath().substring(1) : uri.getPath();
+        int slash = path.lastIndexOf('/');
+        if (slash <= 0 || slash == path.length() - 1) {
+            throw new IllegalArgumentException("推流地址缺少 app 或流名: " + url);
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        this.app = path.substring(0, slash);
+        this.streamName = path.substring(slash + 1) + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        this.tcUrl = "rtmp://" + host + ":" + port + "/" + app;
+    }
+
+    /**
+     * 建立连接并开始发布，失败时关闭连接
+     *
+     * @param timeoutMs 连接与每一步命令回复的超时时间
+     */
+    public void connect(int timeoutMs) throws IOException {
+        try {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            handshake();
+            socket.setSoTimeout(0);
+
+            reader = new Thread(this::readLoop, "RTMP-Reader-" + streamName);
+            reader.setDaemon(true);
+            reader.start();
+
+            byte[] chunkSize = {(byte) (OUT_CHUNK_SIZE >>> 24), (byte) (OUT_CHUNK_SIZE >>> 16), (byte) (OUT_CHUNK_SIZE >>> 8), (byte) OUT_CHUNK_SIZE};
+            sendMessage(CSID_CONTROL, MSG_SET_CHUNK_SIZE, 0, 0, chunkSize, 0, chunkSize.length);
+
+            Map<String, Object> props = new LinkedHashMap<>();
+            props.put("app", app);
+            props.put("type", "nonprivate");
+            props.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+            props.put("tcUrl", tcUrl);
+            sendCommand(CSID_COMMAND, 0, "connect", 1, props);
+            awaitReply("_result", 1, timeoutMs);
+
+            sendCommand(CSID_COMMAND, 0, "releaseStream", 2, null, streamName);
+            sendCommand(CSID_COMMAND, 0, "FCPublish", 3, null, streamName);
+            sendCommand(CSID_COMMAND, 0, "createStream", 4, (Object) null);
+            List<Object> created = awaitReply("_result", 4, timeoutMs);
+            if (created.size() < 4 || !(created.get(3) instanceof Number)) {
+                throw new IOException("createStream 回复格式错误: " + created);
+            }
+            streamId = ((Number) created.get(3)).intValue();
+
+            sendCommand(CSID_STREAM_COMMAND, streamId, "publish", 5, null, streamName, "live");
+            List<Object> status = awaitReply("onStatus", -1, timeoutMs);
+            String code = statusCode(status);
+            if (!"NetStream.Publish.Start".equals(code)) {
+                throw new IOException("发布失败: " + code);
+            }
+            connected = true;
+            log.info("RTMP 发布成功: {}/{}", tcUrl, streamName);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 发送一个 FLV tag 负载
+     *
+     * @param tagType   FLV tag 类型（8 音频，9 视频，18 脚本）
+     * @param timestamp 时间戳（毫秒）
+     */
+    public void writeTag(int tagType, int timestamp, byte[] body, int offset, int length) throws IOException {
+        if (!connected) {
+            throw new IOException("RTMP 连接已断开");
+        }
+        int csid = tagType == FlvMuxer.TAG_VIDEO ? CSID_VIDEO : tagType == FlvMuxer.TAG_AUDIO ? CSID_AUDIO : CSID_STREAM_COMMAND;
+        sendMessage(csid, tagType, streamId, timestamp, body, offset, length);
+        mediaMessages.incrementAndGet();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getMediaMessages() {
+        return mediaMessages.get();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        connected = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 简单握手：C0+C1 -> S0+S1 -> C2（回显 S1）-> S2
+     */
+    private void handshake() throws IOException {
+        // C0 为版本号 3；C1 的时间与零字段填 0，其余为随机数
+        byte[] c1 = new byte[1 + HANDSHAKE_SIZE];
+        new Random().nextBytes(c1);
+        Arrays.fill(c1, 0, 9, (byte) 0);
+        c1[0] = 3;
+        out.write(c1);
+        out.flush();
+        int version = in.readUnsignedByte();
+        if (version != 3) {
+            throw new IOException("RTMP 版本不支持: " + version);
+        }
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        in.readFully(s1);
+        out.write(s1);
+        out.flush();
+        in.readFully(new byte[HANDSHAKE_SIZE]);
+    }
+
+    private void sendCommand(int csid, int msgStreamId, String name, int transactionId, Object... args) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        Amf0.writeString(buf, name);
+        Amf0.writeNumber(buf, transactionId);
+        for (Object arg : args) {
+            if (arg instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> map = (Map<String, Object>) arg;
+                Amf0.writeObject(buf, map);
+            } else {
+                Amf0.writeValue(buf, arg);
+            }
+        }
+        byte[] body = buf.toByteArray();
+        sendMessage(csid, MSG_COMMAND_AMF0, msgStreamId, 0, body, 0, body.length);
+    }
+
+    /**
+     * 发送一条消息：首块使用类型 0 头，其余为类型 3 头
+     */
+    private synchronized void sendMessage(int csid, int typeId, int msgStreamId, int timestamp,
+                                          byte[] body, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("RTMP 连接已关闭");
+        }
+        boolean extended = (timestamp & 0xFFFFFFFFL) >= 0xFFFFFF;
+        int ts = extended ? 0xFFFFFF : timestamp;
+        header[0] = (byte) csid;
+        header[1] = (byte) (ts >>> 16);
+        header[2] = (byte) (ts >>> 8);
+        header[3] = (byte) ts;
+        header[4] = (byte) (length >>> 16);
+        header[5] = (byte) (length >>> 8);
+        header[6] = (byte) length;
+        header[7] = (byte) typeId;
+        header[8] = (byte) msgStreamId;
+        header[9] = (byte) (msgStreamId >>> 8);
+        header[10] = (byte) (msgStreamId >>> 16);
+        header[11] = (byte) (msgStreamId >>> 24);
+        int headerLength = 12;
+        if (extended) {
+            writeInt(header, 12, timestamp);
+            headerLength = 16;
+        }
+        out.write(header, 0, headerLength);
+        int sent = 0;
+        while (true) {
+            int n = Math.min(OUT_CHUNK_SIZE, length - sent);
+            out.write(body, offset + sent, n);
+            sent += n;
+            if (sent >= length) {
+                break;
+            }
+            out.write(0xC0 | csid);
+            if (extended) {
+                out.write(header, 12, 4);
+            }
+        }
+        out.flush();
+        bytesSent.addAndGet(headerLength + length);
+    }
+
+    private List<Object> awaitReply(String name, int transactionId, int timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            List<Object> reply;
+            try {
+                reply = left > 0 ? replies.poll(left, TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待 RTMP 回复被中断");
+            }
+            if (reply == null) {
+                throw new IOException("等待 RTMP 回复 " + name + " 超时");
+            }
+            if (reply.isEmpty()) {
+                throw new IOException("RTMP 连接已断开");
+            }
+            Object replyName = reply.get(0);
+            int replyTxn = reply.size() > 1 && reply.get(1) instanceof Number ? ((Number) reply.get(1)).intValue() : 0;
+            if ("_error".equals(replyName) && (transactionId < 0 || replyTxn == transactionId)) {
+                throw new IOException("RTMP 命令失败: " + reply);
+            }
+            if (name.equals(replyName) && (transactionId < 0 || replyTxn == transactionId)) {
+                return reply;
+            }
+        }
+    }
+
+    private static String statusCode(List<Object> status) {
+        for (Object value : status) {
+            if (value instanceof Map) {
+                Object code = ((Map<?, ?>) value).get("code");
+                if (code != null) {
+                    return code.toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取线程：解析块并处理控制消息与命令回复
+     */
+    private void readLoop() {
+        try {
+            while (!closed) {
+                readChunk();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.warn("RTMP 连接断开: {}/{}，{}", tcUrl, streamName, e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            log.error("解析 RTMP 消息失败: {}/{}", tcUrl, streamName, e);
+        } finally {
+            connected = false;
+            replies.offer(Collections.emptyList());
+            close();
+        }
+    }
+
+    private void readChunk() throws IOException {
+        int b = readByte();
+        int fmt = b >>> 6;
+        int csid = b & 0x3F;
+        if (csid == 0) {
+            csid = 64 + readByte();
+        } else if (csid == 1) {
+            csid = 64 + readByte() + (readByte() << 8);
+        }
+        ChunkStream cs = chunkStreams.computeIfAbsent(csid, k -> new ChunkStream());
+        if (fmt <= 2) {
+            int ts = readUnsigned(3);
+            if (fmt <= 1) {
+                cs.length = readUnsigned(3);
+                cs.typeId = readByte();
+                if (fmt == 0) {
+                    cs.streamId = readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+                }
+            }
+            cs.extended = ts == 0xFFFFFF;
+            if (cs.extended) {
+                ts = readUnsigned(4);
+            }
+            if (fmt == 0) {
+                cs.timestamp = ts;
+                cs.delta = 0;
+            } else {
+                cs.delta = ts;
+            }
+        } else if (cs.extended) {
+            readUnsigned(4);
+        }
+        if (cs.received == 0) {
+            if (fmt != 0) {
+                cs.timestamp += cs.delta;
+            }
+            if (cs.payload == null || cs.payload.length < cs.length) {
+                cs.payload = new byte[cs.length];
+            }
+        }
+        int n = Math.min(inChunkSize, cs.length - cs.received);
+        in.readFully(cs.payload, cs.received, n);
+        bytesRead += n;
+        cs.received += n;
+        if (cs.received >= cs.length) {
+            cs.received = 0;
+            handleMessage(cs.typeId, cs.payload, cs.length);
+        }
+        if (windowAckSize > 0 && bytesRead - lastAckBytes >= windowAckSize) {
+            lastAckBytes = bytesRead;
+            byte[] ack = new byte[4];
+            writeInt(ack, 0, (int) bytesRead);
+            sendMessage(CSID_CONTROL, MSG_ACK, 0, 0, ack, 0, ack.length);
+        }
+    }
+
+    private void handleMessage(int typeId, byte[] payload, int length) throws IOException {
+        switch (typeId) {
+            case MSG_SET_CHUNK_SIZE:
+                inChunkSize = readInt(payload, 0) & 0x7FFFFFFF;
+                break;
+            case MSG_WINDOW_ACK_SIZE:
+                windowAckSize = readInt(payload, 0) & 0xFFFFFFFFL;
+                break;
+            case MSG_USER_CONTROL:
+                // Ping 请求（事件 6）回复 Ping 响应（事件 7）
+                if (length >= 6 && payload[0] == 0 && payload[1] == 6) {
+                    byte[] pong = new byte[6];
+                    pong[1] = 7;
+                    System.arraycopy(payload, 2, pong, 2, 4);
+                    sendMessage(CSID_CONTROL, MSG_USER_CONTROL, 0, 0, pong, 0, pong.length);
+                }
+                break;
+            case MSG_COMMAND_AMF3:
+            case MSG_COMMAND_AMF0: {
+                int skip = typeId == MSG_COMMAND_AMF3 ? 1 : 0;
+                List<Object> command = Amf0.decodeAll(payload, skip, length - skip);
+                if (connected) {
+                    // 发布之后只记录服务端状态
+                    log.info("RTMP 消息 {}/{}: {}", tcUrl, streamName, command);
+                } else {
+                    replies.offer(command);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private int readByte() throws IOException {
+        bytesRead++;
+        return in.readUnsignedByte();
+    }
+
+    private int readUnsigned(int bytes) throws IOException {
+        int v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v = (v << 8) | readByte();
+        }
+        return v;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 24);
+        b[pos + 1] = (byte) (v >>> 16);
+        b[pos + 2] = (byte) (v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    /**
+     * 接收方向每个块流的状态
+     */
+    private static final class ChunkStream {
+        int timestamp;
+        int delta;
+        int length;
+        int typeId;
+        int streamId;
+        boolean extended;
+        byte[] payload;
+        int received;
+    }
+}
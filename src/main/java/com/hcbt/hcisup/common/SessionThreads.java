@@ -0,0 +1,270 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 推流会话的辅助线程
+ * <p>
+ * 每路会话原来都要为 FFmpeg 日志读取、进程退出等待（{@code waitFor}）和 FLV 转发各开一个平台线程，
+ * 这些线程绝大多数时间都在阻塞。按配置选择执行方式：
+ * <ul>
+ *     <li>PLATFORM：每个任务一个平台线程（原有行为）</li>
+ *     <li>SHARED：进程退出改用 {@link Process#onExit()} 回调，回调在共享的有界线程池中执行，不再占用等待线程；
+ *     没有人读取的日志输出直接丢弃，不再开读取线程。线程数的节省来自这两项；仍需运行的阻塞任务（日志读取、FLV 转发）
+ *     在有上限的共享线程池中复用线程，池满时为该任务单独开平台线程，不排队（排队的日志读取会让 FFmpeg 写满管道而阻塞）</li>
+ *     <li>VIRTUAL：同 SHARED，但回调与阻塞任务运行在虚拟线程上（需要 Java 21，否则退回 SHARED）</li>
+ * </ul>
+ * 同时统计进程的线程数、RSS 与上下文切换次数，便于对比不同方式。
+ */
+@Slf4j
+public final class SessionThreads {
+
+    /**
+     * 执行方式
+     */
+    public enum Mode {
+        PLATFORM,
+        SHARED,
+        VIRTUAL
+    }
+
+    private static volatile Mode mode = Mode.PLATFORM;
+    // 共享方式下的阻塞任务线程池（线程可复用，有上限；任务不排队，池满时单独开线程）
+    private static ExecutorService helperPool;
+    // 共享方式下执行进程退出回调的有界线程池
+    private static ExecutorService exitPool;
+    // Java 21 的 Thread.ofVirtual() 与 Thread.Builder 方法，不可用时为 null
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderUnstarted;
+    private static final AtomicInteger activeHelpers = new AtomicInteger();
+    private static final AtomicInteger watchedProcesses = new AtomicInteger();
+    private static final AtomicInteger helperIndex = new AtomicInteger();
+    // 共享线程池已满、单独开线程运行的阻塞任务数（累计）
+    private static final AtomicInteger overflowHelpers = new AtomicInteger();
+
+    // 配置时的基线
+    private static int baselineThreads;
+    private static long baselineRssKb;
+    private static long[] baselineCtxSwitches = {0, 0};
+    private static long baselineNanos = System.nanoTime();
+
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+    }
+
+    private SessionThreads() {
+    }
+
+    /**
+     * @param newMode        执行方式
+     * @param exitPoolSize   SHARED 方式下执行进程退出回调的线程数
+     * @param helperPoolSize SHARED 方式下阻塞任务线程池的线程上限
+     */
+    public static synchronized void configure(Mode newMode, int exitPoolSize, int helperPoolSize) {
+        Mode effective = newMode == null ? Mode.PLATFORM : newMode;
+        if (effective == Mode.VIRTUAL && ofVirtual == null) {
+            log.warn("当前 JVM 不支持虚拟线程（需要 Java 21），会话辅助线程改用共享线程池");
+            effective = Mode.SHARED;
+        }
+        if (effective == Mode.SHARED && helperPool == null) {
+            // 同步队列不缓存任务，线程都在忙且达到上限时由拒绝策略单独开线程
+            ThreadPoolExecutor helpers = new ThreadPoolExecutor(0, Math.max(helperPoolSize, 1), 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> daemon(r, "Session-Helper-" + helperIndex.incrementAndGet()));
+            helpers.setRejectedExecutionHandler((task, pool) -> {
+                overflowHelpers.incrementAndGet();
+                daemon(task, "Session-Helper-" + helperIndex.incrementAndGet()).start();
+            });
+            helperPool = helpers;
+            int size = Math.max(exitPoolSize, 1);
+            exitPool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> daemon(r, "Session-Exit-" + helperIndex.incrementAndGet()));
+        }
+        mode = effective;
+        baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        baselineRssKb = readRssKb();
+        baselineCtxSwitches = readContextSwitches();
+        baselineNanos = System.nanoTime();
+        log.info("会话辅助线程方式：{}", effective);
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * 没有人读取的 FFmpeg 日志输出是否直接丢弃（不开读取线程）
+     */
+    public static boolean discardUnreadOutput() {
+        return mode != Mode.PLATFORM;
+    }
+
+    /**
+     * 运行一个长时间阻塞的辅助任务（日志读取、FLV 转发等）
+     */
+    public static void start(String name, Runnable task) {
+        Runnable counted = () -> {
+            activeHelpers.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                activeHelpers.decrementAndGet();
+            }
+        };
+        switch (mode) {
+            case VIRTUAL:
+                virtual(name, counted).start();
+                break;
+            case SHARED:
+                helperPool.execute(counted);
+                break;
+            default:
+                daemon(counted, name).start();
+        }
+    }
+
+    /**
+     * 进程退出后执行回调
+     * <p>
+     * PLATFORM 方式下由一个线程阻塞在 {@code waitFor()}，其他方式使用 {@link Process#onExit()}，不占用等待线程。
+     */
+    public static void onExit(String name, Process process, Runnable callback) {
+        watchedProcesses.incrementAndGet();
+        Runnable counted = () -> {
+            watchedProcesses.decrementAndGet();
+            callback.run();
+        };
+        switch (mode) {
+            case VIRTUAL:
+                process.onExit().thenRun(() -> virtual(name, counted).start());
+                break;
+            case SHARED:
+                process.onExit().thenRunAsync(counted, exitPool);
+                break;
+            default:
+                daemon(() -> {
+                    try {
+                        process.waitFor();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    counted.run();
+                }, name).start();
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static Thread virtual(String name, Runnable task) {
+        try {
+            Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+            return (Thread) builderUnstarted.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("创建虚拟线程失败", e);
+        }
+    }
+
+    /**
+     * 线程数、RSS 与上下文切换（与配置时的基线对比）
+     */
+    public static Map<String, Object> stats() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int live = threads.getThreadCount();
+        int sessions = watchedProcesses.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("mode", mode.name());
+        stats.put("virtualThreadsAvailable", ofVirtual != null);
+        stats.put("watchedProcesses", sessions);
+        stats.put("activeHelpers", activeHelpers.get());
+        stats.put("overflowHelpers", overflowHelpers.get());
+        stats.put("liveThreads", live);
+        stats.put("peakThreads", threads.getPeakThreadCount());
+        stats.put("baselineThreads", baselineThreads);
+        stats.put("threadsPerSession", sessions == 0 ? null : Math.round((live - baselineThreads) * 100.0 / sessions) / 100.0);
+        long rss = readRssKb();
+        stats.put("rssKb", rss);
+        stats.put("rssDeltaKb", rss - baselineRssKb);
+        long[] ctx = readContextSwitches();
+        double seconds = Math.max((System.nanoTime() - baselineNanos) / 1e9, 1e-3);
+        stats.put("voluntaryCtxSwitches", ctx[0] - baselineCtxSwitches[0]);
+        stats.put("nonvoluntaryCtxSwitches", ctx[1] - baselineCtxSwitches[1]);
+        stats.put("ctxSwitchesPerSecond", Math.round((ctx[0] + ctx[1] - baselineCtxSwitches[0] - baselineCtxSwitches[1]) / seconds * 10) / 10.0);
+        return stats;
+    }
+
+    /**
+     * /proc/self/status 中的 VmRSS（KB），读取失败返回 -1
+     */
+    private static long readRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 非 Linux
+        }
+        return -1;
+    }
+
+    /**
+     * 各线程 /proc/self/task/<tid>/status 中主动、被动上下文切换次数之和（已退出的线程不计入）
+     */
+    private static long[] readContextSwitches() {
+        long[] total = {0, 0};
+        Path tasks = Paths.get("/proc/self/task");
+        if (!Files.isDirectory(tasks)) {
+            return total;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(tasks)) {
+            for (Path dir : dirs) {
+                try {
+                    List<String> lines = Files.readAllLines(dir.resolve("status"), StandardCharsets.US_ASCII);
+                    for (String line : lines) {
+                        if (line.startsWith("voluntary_ctxt_switches:")) {
+                            total[0] += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        } else if (line.startsWith("nonvoluntary_ctxt_switches:")) {
+                            total[1] += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // 线程已退出
+                }
+            }
+        } catch (IOException e) {
+            log.debug("读取上下文切换次数失败: {}", e.getMessage());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,88 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 合并同一 key 的并发请求
+ * <p>
+ * 同一 key 已有请求在执行时，后来的调用方直接拿到同一个结果，不再重复发起（例如多个浏览器同时打开同一通道，
+ * 只向设备发一次预览请求）。请求完成（成功、失败或异常）后移除，下一次调用重新发起。
+ *
+ * @param <K> key 类型
+ * @param <V> 结果类型
+ */
+@Slf4j
+public class SingleFlight<K, V> {
+
+    // 名称 -> 实例，用于统计
+    private static final Map<String, SingleFlight<?, ?>> registry = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Map<K, CompletableFuture<V>> inflight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+
+    public SingleFlight(String name) {
+        this.name = name;
+        registry.put(name, this);
+    }
+
+    /**
+     * 执行或加入同一 key 正在执行的请求
+     *
+     * @param call 发起请求，只在没有正在执行的请求时调用
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        calls.incrementAndGet();
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inflight.putIfAbsent(key, created);
+        if (existing != null) {
+            log.debug("{} 合并请求 {}", name, key);
+            return existing;
+        }
+        executions.incrementAndGet();
+        created.whenComplete((value, error) -> inflight.remove(key, created));
+        try {
+            call.get().whenComplete((value, error) -> {
+                if (error != null) {
+                    created.completeExceptionally(error);
+                } else {
+                    created.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * 正在执行的请求数
+     */
+    public int inflightCount() {
+        return inflight.size();
+    }
+
+    /**
+     * 各实例的调用次数、实际执行次数与正在执行的请求数
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (SingleFlight<?, ?> flight : registry.values()) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("calls", flight.calls.get());
+            item.put("executions", flight.executions.get());
+            item.put("coalesced", flight.calls.get() - flight.executions.get());
+            item.put("inflight", flight.inflight.size());
+            stats.put(flight.name, item);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,249 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * 推流路数调度
+ * <p>
+ * 按推流来源（ISUP、RTSP、JavaCV）分池统计正在运行的会话，路数上限来自配置。
+ * 池满时按策略选出被挤出的通道：
+ * <ul>
+ *     <li>LRU：最久没有观看者活动的通道</li>
+ *     <li>LEAST_VIEWERS：观看者最少的通道，相同时按 LRU</li>
+ *     <li>PRIORITY：优先级最低的通道，相同时按 LRU；新通道优先级更低时不挤出</li>
+ * </ul>
+ * 选出与挤出由调用方在自己的启动锁内完成，本类只负责记录与选择。
+ */
+@Slf4j
+public final class StreamCapacityScheduler {
+
+    /** 推流池 */
+    public static final String POOL_ISUP = "isup";
+    public static final String POOL_RTSP = "rtsp";
+    public static final String POOL_JAVACV = "javacv";
+
+    /**
+     * 挤出策略
+     */
+    public enum Policy {
+        LRU,
+        LEAST_VIEWERS,
+        PRIORITY
+    }
+
+    // 池 -> (通道 -> 会话)
+    private static final Map<String, Map<Integer, Entry>> pools = new ConcurrentHashMap<>();
+    // 池 -> 路数上限
+    private static final Map<String, Integer> limits = new ConcurrentHashMap<>();
+    // 通道 -> 优先级（未配置为 0）
+    private static final Map<Integer, Integer> priorities = new ConcurrentHashMap<>();
+    // 池 -> 挤出次数
+    private static final Map<String, AtomicLong> evictions = new ConcurrentHashMap<>();
+    private static volatile Policy policy = Policy.LRU;
+
+    static {
+        limits.put(POOL_ISUP, 1);
+        limits.put(POOL_RTSP, 1);
+        limits.put(POOL_JAVACV, 2);
+    }
+
+    private StreamCapacityScheduler() {
+    }
+
+    /**
+     * 一路正在运行的会话
+     */
+    private static final class Entry {
+        final int channel;
+        final long startedAt = System.currentTimeMillis();
+        volatile long lastActivity = startedAt;
+        final IntSupplier viewers;
+
+        Entry(int channel, IntSupplier viewers) {
+            this.channel = channel;
+            this.viewers = viewers;
+        }
+
+        int viewerCount() {
+            try {
+                return viewers == null ? 0 : viewers.getAsInt();
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 设置挤出策略与通道优先级
+     *
+     * @param priorityList 形如 "101:10,201:5"，数值越大越不容易被挤出
+     */
+    public static void configure(Policy newPolicy, String priorityList) {
+        policy = newPolicy == null ? Policy.LRU : newPolicy;
+        priorities.clear();
+        if (priorityList == null || priorityList.trim().isEmpty()) {
+            return;
+        }
+        for (String item : priorityList.split(",")) {
+            String[] pair = item.trim().split(":");
+            if (pair.length != 2) {
+                log.warn("忽略无效的通道优先级配置: {}", item);
+                continue;
+            }
+            try {
+                priorities.put(Integer.parseInt(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+            } catch (NumberFormatException e) {
+                log.warn("忽略无效的通道优先级配置: {}", item);
+            }
+        }
+    }
+
+    /**
+     * 设置池的路数上限
+     */
+    public static void setLimit(String pool, int maxStreams) {
+        limits.put(pool, Math.max(maxStreams, 1));
+    }
+
+    public static int limit(String pool) {
+        return limits.getOrDefault(pool, 1);
+    }
+
+    public static Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 运行时调整通道优先级
+     */
+    public static void setPriority(int channel, int priority) {
+        priorities.put(channel, priority);
+    }
+
+    public static int priority(int channel) {
+        return priorities.getOrDefault(channel, 0);
+    }
+
+    /**
+     * 会话启动后登记
+     *
+     * @param viewers 当前观看者数量
+     */
+    public static void register(String pool, int channel, IntSupplier viewers) {
+        pools.computeIfAbsent(pool, k -> new ConcurrentHashMap<>()).put(channel, new Entry(channel, viewers));
+    }
+
+    /**
+     * 会话停止后移除
+     */
+    public static void unregister(String pool, int channel) {
+        Map<Integer, Entry> entries = pools.get(pool);
+        if (entries != null) {
+            entries.remove(channel);
+        }
+    }
+
+    /**
+     * 记录观看者活动（新观看者复用会话等）
+     */
+    public static void touch(String pool, int channel) {
+        Map<Integer, Entry> entries = pools.get(pool);
+        Entry entry = entries == null ? null : entries.get(channel);
+        if (entry != null) {
+            entry.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 池满时选出要挤出的通道
+     *
+     * @param incomingChannel 准备启动的通道
+     * @return 被挤出的通道；没有可挤出的通道（池为空，或 PRIORITY 策略下新通道优先级最低）返回 null
+     */
+    public static Integer pickVictim(String pool, int incomingChannel) {
+        Map<Integer, Entry> entries = pools.get(pool);
+        if (entries == null || entries.isEmpty()) {
+            return null;
+        }
+        Policy current = policy;
+        Entry victim = null;
+        int victimViewers = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.channel == incomingChannel) {
+                continue;
+            }
+            int viewers = current == Policy.LEAST_VIEWERS ? entry.viewerCount() : 0;
+            if (victim == null || worse(current, entry, viewers, victim, victimViewers)) {
+                victim = entry;
+                victimViewers = viewers;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        if (current == Policy.PRIORITY && priority(victim.channel) > priority(incomingChannel)) {
+            log.info("通道{}优先级{}低于所有运行中的通道，不挤出", incomingChannel, priority(incomingChannel));
+            return null;
+        }
+        evictions.computeIfAbsent(pool, k -> new AtomicLong()).incrementAndGet();
+        log.info("按 {} 策略挤出通道{}（观看者{}，优先级{}，空闲{}ms）", current, victim.channel, victim.viewerCount(),
+                priority(victim.channel), System.currentTimeMillis() - victim.lastActivity);
+        return victim.channel;
+    }
+
+    /**
+     * a 是否比 b 更应该被挤出
+     */
+    private static boolean worse(Policy current, Entry a, int aViewers, Entry b, int bViewers) {
+        if (current == Policy.LEAST_VIEWERS && aViewers != bViewers) {
+            return aViewers < bViewers;
+        }
+        if (current == Policy.PRIORITY) {
+            int pa = priority(a.channel);
+            int pb = priority(b.channel);
+            if (pa != pb) {
+                return pa < pb;
+            }
+        }
+        return a.lastActivity < b.lastActivity;
+    }
+
+    /**
+     * 各池的上限、挤出次数与会话状态
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("policy", policy.name());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            Map<String, Object> pool = new HashMap<>();
+            pool.put("maxStreams", limit.getValue());
+            AtomicLong evicted = evictions.get(limit.getKey());
+            pool.put("evictions", evicted == null ? 0 : evicted.get());
+            List<Map<String, Object>> sessions = new ArrayList<>();
+            Map<Integer, Entry> entries = pools.get(limit.getKey());
+            if (entries != null) {
+                for (Entry entry : entries.values()) {
+                    Map<String, Object> item = new HashMap<>();
+                    item.put("channel", entry.channel);
+                    item.put("runningMs", now - entry.startedAt);
+                    item.put("idleMs", now - entry.lastActivity);
+                    item.put("viewers", entry.viewerCount());
+                    item.put("priority", priority(entry.channel));
+                    sessions.add(item);
+                }
+            }
+            pool.put("sessions", sessions);
+            stats.put(limit.getKey(), pool);
+        }
+        return stats;
+    }
+}
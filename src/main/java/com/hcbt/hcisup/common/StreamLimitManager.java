@@ -9,13 +9,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @create 2025-06-03 16:33
  */
 public class StreamLimitManager {
-    private static final int MAX_STREAMS = 2; // 最多允许同时运行的总推流数
     private static final AtomicInteger runningStreams = new AtomicInteger(0);
 
     public static boolean tryAcquire() {
         while (true) {
             int current = runningStreams.get();
-            if (current >= MAX_STREAMS) return false;
+            // 最多允许同时运行的总推流数，来自 app.stream.capacity.javacv-max-streams
+            if (current >= StreamCapacityScheduler.limit(StreamCapacityScheduler.POOL_JAVACV)) return false;
             if (runningStreams.compareAndSet(current, current + 1)) return true;
         }
     }
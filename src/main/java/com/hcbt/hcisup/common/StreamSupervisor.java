@@ -0,0 +1,404 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 推流会话健康监督
+ * <p>
+ * 原来只靠 {@code waitFor()} 发现进程退出，卡死但不退出的 FFmpeg（不再输出）会一直占用推流名额。
+ * 这里按会话统计输入字节速率与输出进度（FFmpeg {@code -progress} 输出的 total_size，或进程内封装写出的帧），
+ * 输入正常而输出长时间不前进时判定为卡死并重启管线。
+ * <p>
+ * 重启（包括进程退出触发的重启）按摄像机（会话 key）做带抖动的指数退避；窗口内失败次数达到阈值时熔断：
+ * 停止会话、释放名额，熔断期内拒绝启动；熔断期过后允许一次试探启动，恢复正常输出后关闭熔断。
+ */
+@Slf4j
+public final class StreamSupervisor {
+
+    /**
+     * 会话健康状态
+     */
+    public enum State {
+        /** 已启动，尚无输出 */
+        STARTING,
+        /** 输入、输出均正常 */
+        HEALTHY,
+        /** 长时间没有输入（设备或网络问题，重启管线无效，不处理） */
+        INPUT_STALLED,
+        /** 有输入但输出不前进 */
+        OUTPUT_STALLED,
+        /** 等待退避后重启 */
+        BACKOFF,
+        /** 熔断，会话已停止 */
+        CIRCUIT_OPEN
+    }
+
+    /**
+     * 熔断器状态
+     */
+    public enum BreakerState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private static final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private static final AtomicLong restarts = new AtomicLong();
+    private static final AtomicLong circuitOpens = new AtomicLong();
+    private static volatile boolean enabled;
+    private static volatile long outputStallMs = 10000;
+    private static volatile long inputStallMs = 10000;
+    private static volatile long backoffBaseMs = 1000;
+    private static volatile long backoffMaxMs = 60000;
+    private static volatile int breakerFailures = 5;
+    private static volatile long breakerWindowMs = TimeUnit.MINUTES.toMillis(5);
+    private static volatile long breakerOpenMs = TimeUnit.MINUTES.toMillis(2);
+    private static ScheduledExecutorService scheduler;
+
+    private StreamSupervisor() {
+    }
+
+    /**
+     * 一路被监督的会话
+     */
+    public static final class Session {
+        final String key;
+        final Runnable restart;
+        final Runnable stop;
+        final long startNanos = System.nanoTime();
+        final AtomicLong inputBytes = new AtomicLong();
+        volatile long lastInputNanos;
+        volatile long lastOutputNanos;
+        volatile long outputProgress = -1;
+        volatile State state = State.STARTING;
+        volatile long restartAtMillis;
+        // 以下由检查线程访问
+        long sampledBytes;
+        long sampledNanos = startNanos;
+        double inputBytesPerSec;
+        // 输入中断后恢复的时间，输出卡死从此时重新计时
+        long resumedNanos;
+
+        Session(String key, Runnable restart, Runnable stop) {
+            this.key = key;
+            this.restart = restart;
+            this.stop = stop;
+        }
+
+        /**
+         * 记录一次输入
+         */
+        public void onInput(int bytes) {
+            inputBytes.addAndGet(bytes);
+            lastInputNanos = System.nanoTime();
+        }
+
+        /**
+         * 记录一次输出（进程内封装写出一帧）
+         */
+        public void onOutput() {
+            lastOutputNanos = System.nanoTime();
+        }
+
+        /**
+         * 解析 FFmpeg {@code -progress} 输出的一行，total_size 增长时记为有输出
+         *
+         * @return 是否为进度行
+         */
+        public boolean onProgressLine(String line) {
+            if (line.startsWith("total_size=")) {
+                try {
+                    long size = Long.parseLong(line.substring("total_size=".length()).trim());
+                    if (size > outputProgress) {
+                        outputProgress = size;
+                        lastOutputNanos = System.nanoTime();
+                    }
+                } catch (NumberFormatException e) {
+                    // 尚未输出时为 N/A
+                }
+                return true;
+            }
+            return line.startsWith("progress=") || line.startsWith("frame=") || line.startsWith("out_time");
+        }
+
+        /**
+         * -progress 的 total_size 是否已大于 0（FFmpeg 已开始写出）
+         */
+        public boolean hasOutput() {
+            return outputProgress > 0;
+        }
+    }
+
+    /**
+     * 一个摄像机的失败记录与熔断状态
+     */
+    private static final class Breaker {
+        final Deque<Long> failures = new ArrayDeque<>();
+        BreakerState state = BreakerState.CLOSED;
+        long openUntil;
+
+        int failuresInWindow(long now) {
+            while (!failures.isEmpty() && now - failures.peekFirst() > breakerWindowMs) {
+                failures.removeFirst();
+            }
+            return failures.size();
+        }
+    }
+
+    /**
+     * @param enable        是否开启卡死检测与退避重启
+     * @param checkInterval 检查间隔（毫秒）
+     * @param outputStall   有输入但没有输出多久判定为卡死（毫秒）
+     * @param inputStall    没有输入多久判定为输入中断（毫秒）
+     * @param backoffBase   第一次重启前的退避时间（毫秒），之后每次翻倍
+     * @param backoffMax    退避时间上限（毫秒）
+     * @param failures      窗口内失败多少次熔断
+     * @param window        统计失败次数的窗口（毫秒）
+     * @param openMs        熔断持续时间（毫秒）
+     */
+    public static synchronized void configure(boolean enable, long checkInterval, long outputStall, long inputStall,
+                                              long backoffBase, long backoffMax, int failures, long window, long openMs) {
+        enabled = enable;
+        outputStallMs = Math.max(outputStall, 1000);
+        inputStallMs = Math.max(inputStall, 1000);
+        backoffBaseMs = Math.max(backoffBase, 100);
+        backoffMaxMs = Math.max(backoffMax, backoffBaseMs);
+        breakerFailures = Math.max(failures, 1);
+        breakerWindowMs = Math.max(window, 1000);
+        breakerOpenMs = Math.max(openMs, 1000);
+        if (enable && scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Stream-Supervisor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(checkInterval, 200);
+            scheduler.scheduleAtFixedRate(StreamSupervisor::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        log.info("推流健康监督：{}", enable ? "开启" : "关闭");
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开始监督一路会话（同一 key 的旧会话被替换）
+     *
+     * @param restart 重启管线（在监督线程中执行）
+     * @param stop    熔断时停止会话
+     */
+    public static Session watch(String key, Runnable restart, Runnable stop) {
+        Session session = new Session(key, restart, stop);
+        sessions.put(key, session);
+        return session;
+    }
+
+    /**
+     * 会话结束，停止监督（失败记录保留）
+     */
+    public static void unwatch(String key, Session session) {
+        if (session != null) {
+            sessions.remove(key, session);
+        }
+    }
+
+    /**
+     * 是否允许启动：熔断期内拒绝，熔断期过后允许一次试探
+     */
+    public static boolean allowStart(String key) {
+        Breaker breaker = breakers.get(key);
+        if (breaker == null) {
+            return true;
+        }
+        synchronized (breaker) {
+            if (breaker.state == BreakerState.OPEN) {
+                if (System.currentTimeMillis() < breaker.openUntil) {
+                    return false;
+                }
+                breaker.state = BreakerState.HALF_OPEN;
+                log.info("{} 熔断期结束，允许试探启动", key);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 报告一次失败（卡死或进程退出）：熔断时停止会话，否则退避后重启
+     *
+     * @return 是否已安排处理（未开启、会话未被监督或已在退避中时返回 false）
+     */
+    public static boolean reportFailure(String key, String reason) {
+        Session session = sessions.get(key);
+        if (!enabled || session == null || session.state == State.BACKOFF || session.state == State.CIRCUIT_OPEN) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Breaker breaker = breakers.computeIfAbsent(key, k -> new Breaker());
+        int failures;
+        boolean open;
+        synchronized (breaker) {
+            breaker.failures.addLast(now);
+            failures = breaker.failuresInWindow(now);
+            // 试探启动失败，或窗口内失败次数达到阈值
+            open = breaker.state == BreakerState.HALF_OPEN || failures >= breakerFailures;
+            if (open) {
+                breaker.state = BreakerState.OPEN;
+                breaker.openUntil = now + breakerOpenMs;
+            }
+        }
+        if (open) {
+            circuitOpens.incrementAndGet();
+            session.state = State.CIRCUIT_OPEN;
+            log.error("{} {}，{}ms 内失败 {} 次，熔断 {}ms 并停止会话", key, reason, breakerWindowMs, failures, breakerOpenMs);
+            execute(() -> {
+                if (sessions.get(key) == session) {
+                    session.stop.run();
+                }
+            }, 0);
+            return true;
+        }
+        long delay = backoffDelay(failures);
+        session.state = State.BACKOFF;
+        session.restartAtMillis = now + delay;
+        log.warn("{} {}，{}ms 后第 {} 次重启", key, reason, delay, failures);
+        execute(() -> {
+            if (sessions.get(key) == session) {
+                restarts.incrementAndGet();
+                session.restart.run();
+            }
+        }, delay);
+        return true;
+    }
+
+    /**
+     * 第 n 次失败的退避时间：基数 × 2^(n-1)，不超过上限，取其 50%～100% 的随机值，避免多路同时重启
+     */
+    static long backoffDelay(int failures) {
+        long delay = backoffBaseMs << Math.min(Math.max(failures - 1, 0), 20);
+        delay = Math.min(delay, backoffMaxMs);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static void execute(Runnable task, long delayMs) {
+        scheduler.schedule(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("执行重启或停止失败", e);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 定时检查各会话的输入速率与输出进度
+     */
+    private static void check() {
+        long nanos = System.nanoTime();
+        for (Session session : sessions.values()) {
+            long bytes = session.inputBytes.get();
+            double seconds = (nanos - session.sampledNanos) / 1e9;
+            if (seconds > 0) {
+                session.inputBytesPerSec = (bytes - session.sampledBytes) / seconds;
+            }
+            session.sampledBytes = bytes;
+            session.sampledNanos = nanos;
+            if (session.state == State.BACKOFF || session.state == State.CIRCUIT_OPEN) {
+                continue;
+            }
+            long lastInput = Math.max(session.lastInputNanos, session.startNanos);
+            if (session.state == State.INPUT_STALLED && nanos - lastInput <= TimeUnit.MILLISECONDS.toNanos(inputStallMs)) {
+                session.resumedNanos = nanos;
+            }
+            long lastOutput = Math.max(Math.max(session.lastOutputNanos, session.startNanos), session.resumedNanos);
+            if (nanos - lastInput > TimeUnit.MILLISECONDS.toNanos(inputStallMs)) {
+                if (session.state != State.INPUT_STALLED) {
+                    log.warn("{} 超过 {}ms 没有输入", session.key, inputStallMs);
+                }
+                session.state = State.INPUT_STALLED;
+            } else if (nanos - lastOutput > TimeUnit.MILLISECONDS.toNanos(outputStallMs)) {
+                session.state = State.OUTPUT_STALLED;
+                reportFailure(session.key, "有输入但超过 " + outputStallMs + "ms 没有输出");
+            } else if (session.lastOutputNanos != 0) {
+                if (session.state != State.HEALTHY) {
+                    onHealthy(session.key);
+                }
+                session.state = State.HEALTHY;
+            }
+        }
+    }
+
+    /**
+     * 试探启动恢复正常，关闭熔断
+     */
+    private static void onHealthy(String key) {
+        Breaker breaker = breakers.get(key);
+        if (breaker == null) {
+            return;
+        }
+        synchronized (breaker) {
+            if (breaker.state == BreakerState.HALF_OPEN) {
+                breaker.state = BreakerState.CLOSED;
+                breaker.failures.clear();
+                log.info("{} 已恢复，关闭熔断", key);
+            }
+        }
+    }
+
+    /**
+     * 各会话的健康状态与各摄像机的熔断状态
+     */
+    public static Map<String, Object> stats() {
+        long nanos = System.nanoTime();
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("restarts", restarts.get());
+        stats.put("circuitOpens", circuitOpens.get());
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("key", session.key);
+            item.put("state", session.state.name());
+            item.put("inputBytes", session.inputBytes.get());
+            item.put("inputBytesPerSec", Math.round(session.inputBytesPerSec));
+            item.put("sinceInputMs", session.lastInputNanos == 0 ? null : TimeUnit.NANOSECONDS.toMillis(nanos - session.lastInputNanos));
+            item.put("sinceOutputMs", session.lastOutputNanos == 0 ? null : TimeUnit.NANOSECONDS.toMillis(nanos - session.lastOutputNanos));
+            item.put("outputBytes", session.outputProgress < 0 ? null : session.outputProgress);
+            if (session.state == State.BACKOFF) {
+                item.put("restartInMs", Math.max(session.restartAtMillis - now, 0));
+            }
+            items.add(item);
+        }
+        stats.put("sessions", items);
+        Map<String, Object> breakerStats = new HashMap<>();
+        for (Map.Entry<String, Breaker> entry : breakers.entrySet()) {
+            Breaker breaker = entry.getValue();
+            Map<String, Object> item = new HashMap<>();
+            synchronized (breaker) {
+                item.put("state", breaker.state.name());
+                item.put("failuresInWindow", breaker.failuresInWindow(now));
+                if (breaker.state == BreakerState.OPEN) {
+                    item.put("openRemainingMs", Math.max(breaker.openUntil - now, 0));
+                }
+            }
+            breakerStats.put(entry.getKey(), item);
+        }
+        stats.put("breakers", breakerStats);
+        return stats;
+    }
+}
@@ -0,0 +1,197 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 哈希时间轮
+ * <p>
+ * 取代按分钟全量扫描会话的定时任务：每个刻度只处理一个桶中的任务，与会话总数无关。
+ * 到期时重新读取任务的到期时间，变晚（续期）则重新排入，续期本身不需要移动任务（心跳只写一个时间戳）。
+ * 任务的加入与取消可在任意线程调用，桶只由时间轮线程访问。
+ */
+@Slf4j
+public final class TimingWheel {
+
+    /**
+     * 时间轮中的任务
+     */
+    public abstract static class Timeout {
+        private volatile boolean cancelled;
+        // 还要转几圈才到期（只由时间轮线程访问）
+        int rounds;
+
+        /**
+         * 当前的到期时间（毫秒）
+         */
+        protected abstract long deadline();
+
+        /**
+         * 到期时在时间轮线程中执行，耗时的操作应转交其他线程
+         */
+        protected abstract void expire();
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static volatile long sharedTickMs = 500;
+    private static volatile int sharedSize = 512;
+    private static volatile TimingWheel shared;
+
+    private final String name;
+    private final long tickMs;
+    private final List<Timeout>[] buckets;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long startMillis = System.currentTimeMillis();
+    // 已处理到的刻度（只由时间轮线程访问）
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickMs, int size) {
+        this.name = name;
+        this.tickMs = Math.max(tickMs, 10);
+        this.buckets = new List[Math.max(size, 16)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::advance, this.tickMs, this.tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置共享时间轮的刻度与桶数（在第一次使用前调用）
+     */
+    public static void configureShared(long tickMs, int size) {
+        sharedTickMs = tickMs;
+        sharedSize = size;
+    }
+
+    /**
+     * 会话租约与空闲超时共用的时间轮
+     */
+    public static TimingWheel shared() {
+        TimingWheel wheel = shared;
+        if (wheel == null) {
+            synchronized (TimingWheel.class) {
+                if (shared == null) {
+                    shared = new TimingWheel("Timing-Wheel", sharedTickMs, sharedSize);
+                }
+                wheel = shared;
+            }
+        }
+        return wheel;
+    }
+
+    /**
+     * 加入任务（在下一个刻度排入对应的桶）
+     */
+    public void schedule(Timeout timeout) {
+        pending.incrementAndGet();
+        incoming.add(timeout);
+    }
+
+    /**
+     * 尚未到期的任务数
+     */
+    public int size() {
+        return pending.get();
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * 处理到当前时间为止的刻度（调度延迟时逐个补上）
+     */
+    private void advance() {
+        long target = (System.currentTimeMillis() - startMillis) / tickMs;
+        while (tick < target) {
+            tick++;
+            transferIncoming();
+            processBucket();
+        }
+    }
+
+    private void transferIncoming() {
+        long now = System.currentTimeMillis();
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.isCancelled()) {
+                pending.decrementAndGet();
+            } else {
+                // 当前刻度尚未处理，可以排入
+                place(timeout, now, tick - 1);
+            }
+        }
+    }
+
+    private void processBucket() {
+        long now = System.currentTimeMillis();
+        List<Timeout> bucket = buckets[(int) (tick % buckets.length)];
+        List<Timeout> later = null;
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+                pending.decrementAndGet();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                it.remove();
+                if (timeout.deadline() > now) {
+                    // 已续期，重新排入
+                    if (later == null) {
+                        later = new ArrayList<>();
+                    }
+                    later.add(timeout);
+                    continue;
+                }
+                pending.decrementAndGet();
+                try {
+                    timeout.expire();
+                } catch (RuntimeException e) {
+                    log.error("{} 执行到期任务失败", name, e);
+                }
+            }
+        }
+        if (later != null) {
+            for (Timeout timeout : later) {
+                place(timeout, now, tick);
+            }
+        }
+    }
+
+    /**
+     * 按到期时间排入桶
+     *
+     * @param current 已处理的刻度，任务至少排在其后一个刻度
+     */
+    private void place(Timeout timeout, long now, long current) {
+        long deadline = Math.max(timeout.deadline(), now);
+        long target = Math.max((deadline - startMillis + tickMs - 1) / tickMs, current + 1);
+        timeout.rounds = (int) Math.min((target - current - 1) / buckets.length, Integer.MAX_VALUE);
+        buckets[(int) (target % buckets.length)].add(timeout);
+    }
+}
@@ -0,0 +1,303 @@
+package com.hcbt.hcisup.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * 观看者租约
+ * <p>
+ * 原来按用户 ID 集合记录通道的观看者，只有调用停止接口或 15 分钟（FFmpeg 为 60 分钟）超时后才释放，
+ * 关掉页面的观看者会一直占用设备通道与 FFmpeg 进程。改为每个观看者持有一个短期租约，
+ * 客户端定期调用心跳接口续期，超过有效期未续期视为离开。
+ * <p>
+ * 租约到期由 {@link TimingWheel} 驱动，续期只更新时间戳。最后一个租约离开（到期或主动释放）且没有其他观看者时
+ * 调用通道的回收回调，并记录从最后一次心跳到回收完成的耗时。
+ * <p>
+ * 未启用时租约不会到期，行为与原来的用户 ID 集合相同。
+ */
+@Slf4j
+public final class ViewerLeases {
+
+    private static final int MAX_SAMPLES = 512;
+
+    private static volatile boolean enabled;
+    private static volatile long ttlMs = 30_000;
+    private static final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private static final AtomicLong acquired = new AtomicLong();
+    private static final AtomicLong renewed = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong reclaimed = new AtomicLong();
+    // 最后一个观看者离开到回收完成的耗时（毫秒）
+    private static final LatencySamples reclaimSamples = new LatencySamples(MAX_SAMPLES);
+
+    /**
+     * 一个通道的租约
+     */
+    private static final class Stream extends TimingWheel.Timeout {
+        final String key;
+        final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
+        volatile IntSupplier otherViewers;
+        volatile Runnable onEmpty;
+        // 租约都已离开但还有其他观看者时，下次检查的时间与最后一次看到其他观看者的时间
+        volatile long recheckAt;
+        volatile long othersSeenAt;
+        volatile boolean recheckScheduled;
+
+        Stream(String key) {
+            this.key = key;
+        }
+
+        int others() {
+            IntSupplier supplier = otherViewers;
+            return supplier == null ? 0 : supplier.getAsInt();
+        }
+
+        /**
+         * 最后一个租约离开
+         *
+         * @param leftAt 离开时间（最后一次心跳或释放时间）
+         */
+        void lastLeaseGone(long leftAt) {
+            if (others() > 0) {
+                scheduleRecheck();
+            } else {
+                reclaim(this, leftAt);
+            }
+        }
+
+        synchronized void scheduleRecheck() {
+            long now = System.currentTimeMillis();
+            othersSeenAt = now;
+            recheckAt = now + ttlMs;
+            if (!recheckScheduled) {
+                recheckScheduled = true;
+                TimingWheel.shared().schedule(this);
+            }
+        }
+
+        @Override
+        protected long deadline() {
+            return recheckAt;
+        }
+
+        @Override
+        protected void expire() {
+            synchronized (this) {
+                recheckScheduled = false;
+            }
+            if (!leases.isEmpty()) {
+                return;
+            }
+            if (others() > 0) {
+                scheduleRecheck();
+            } else {
+                reclaim(this, othersSeenAt);
+            }
+        }
+    }
+
+    /**
+     * 一个观看者的租约
+     */
+    private static final class Lease extends TimingWheel.Timeout {
+        final Stream stream;
+        final int viewer;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Lease(Stream stream, int viewer) {
+            this.stream = stream;
+            this.viewer = viewer;
+        }
+
+        @Override
+        protected long deadline() {
+            return enabled ? lastSeen + ttlMs : Long.MAX_VALUE;
+        }
+
+        @Override
+        protected void expire() {
+            if (!stream.leases.remove(viewer, this)) {
+                return;
+            }
+            expired.incrementAndGet();
+            log.info("通道 {} 的观看者 {} 超过 {}ms 未心跳，租约到期", stream.key, viewer, ttlMs);
+            if (stream.leases.isEmpty()) {
+                stream.lastLeaseGone(lastSeen);
+            }
+        }
+    }
+
+    private ViewerLeases() {
+    }
+
+    /**
+     * @param enable   是否启用租约到期
+     * @param ttl      租约有效期（毫秒），客户端应以小于该值的间隔调用心跳
+     * @param tickMs   时间轮刻度（毫秒）
+     * @param wheelSize 时间轮桶数
+     */
+    public static void configure(boolean enable, long ttl, long tickMs, int wheelSize) {
+        TimingWheel.configureShared(tickMs, wheelSize);
+        ttlMs = Math.max(ttl, 1000);
+        enabled = enable;
+        if (enable) {
+            log.info("观看者租约已启用，有效期 {}ms", ttlMs);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 设置通道的回收回调
+     *
+     * @param otherViewers 不持有租约的观看者数（如共享直播的订阅者），大于 0 时不回收
+     * @param onEmpty      最后一个观看者离开后调用，回调中应在通道锁内再次确认没有观看者
+     */
+    public static void bind(String key, IntSupplier otherViewers, Runnable onEmpty) {
+        Stream stream = streams.computeIfAbsent(key, Stream::new);
+        stream.otherViewers = otherViewers;
+        stream.onEmpty = onEmpty;
+    }
+
+    /**
+     * 加入观看者，已持有租约时视为续期
+     */
+    public static void acquire(String key, int viewer) {
+        Stream stream = streams.computeIfAbsent(key, Stream::new);
+        Lease lease = stream.leases.get(viewer);
+        if (lease != null) {
+            lease.lastSeen = System.currentTimeMillis();
+            return;
+        }
+        lease = new Lease(stream, viewer);
+        if (stream.leases.putIfAbsent(viewer, lease) == null) {
+            acquired.incrementAndGet();
+            if (enabled) {
+                TimingWheel.shared().schedule(lease);
+            }
+        } else {
+            stream.leases.get(viewer).lastSeen = lease.lastSeen;
+        }
+    }
+
+    /**
+     * 心跳续期
+     *
+     * @return 没有该观看者的租约（已到期或未加入）时返回 false，客户端应重新调用启动接口
+     */
+    public static boolean renew(String key, int viewer) {
+        Stream stream = streams.get(key);
+        Lease lease = stream == null ? null : stream.leases.get(viewer);
+        if (lease == null) {
+            return false;
+        }
+        lease.lastSeen = System.currentTimeMillis();
+        renewed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 观看者主动离开（不触发回收回调，由调用方决定是否停止）
+     *
+     * @return 剩余的租约数
+     */
+    public static int release(String key, int viewer) {
+        Stream stream = streams.get(key);
+        if (stream == null) {
+            return 0;
+        }
+        Lease lease = stream.leases.remove(viewer);
+        if (lease != null) {
+            lease.cancel();
+            released.incrementAndGet();
+        }
+        return stream.leases.size();
+    }
+
+    /**
+     * 通道停止，移除全部租约与回调
+     */
+    public static void clear(String key) {
+        Stream stream = streams.remove(key);
+        if (stream != null) {
+            stream.cancel();
+            for (Lease lease : stream.leases.values()) {
+                lease.cancel();
+            }
+        }
+    }
+
+    /**
+     * 持有租约的观看者，没有时返回 null
+     */
+    public static Set<Integer> viewers(String key) {
+        Stream stream = streams.get(key);
+        if (stream == null || stream.leases.isEmpty()) {
+            return null;
+        }
+        return new HashSet<>(stream.leases.keySet());
+    }
+
+    public static int count(String key) {
+        Stream stream = streams.get(key);
+        return stream == null ? 0 : stream.leases.size();
+    }
+
+    /**
+     * 在辅助线程中调用回收回调，完成后记录耗时
+     */
+    private static void reclaim(Stream stream, long leftAt) {
+        Runnable onEmpty = stream.onEmpty;
+        if (onEmpty == null) {
+            return;
+        }
+        SessionThreads.start("Lease-Reclaim-" + stream.key, () -> {
+            try {
+                onEmpty.run();
+            } catch (RuntimeException e) {
+                log.error("回收通道 {} 失败", stream.key, e);
+                return;
+            }
+            if (streams.get(stream.key) != stream && stream.leases.isEmpty()) {
+                // 回调停止了通道（clear 移除了租约）
+                long millis = System.currentTimeMillis() - leftAt;
+                reclaimed.incrementAndGet();
+                reclaimSamples.add(millis);
+                log.info("通道 {} 已无观看者，{}ms 后回收", stream.key, millis);
+            }
+        });
+    }
+
+    /**
+     * 租约数量与回收耗时分布
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ttlMs", ttlMs);
+        stats.put("acquired", acquired.get());
+        stats.put("renewed", renewed.get());
+        stats.put("released", released.get());
+        stats.put("expired", expired.get());
+        stats.put("reclaimed", reclaimed.get());
+        stats.put("reclaimMs", reclaimSamples.snapshot());
+        Map<String, Integer> viewers = new HashMap<>();
+        for (Map.Entry<String, Stream> entry : streams.entrySet()) {
+            viewers.put(entry.getKey(), entry.getValue().leases.size());
+        }
+        stats.put("viewers", viewers);
+        stats.put("wheelPending", TimingWheel.shared().size());
+        stats.put("wheelTickMs", TimingWheel.shared().getTickMs());
+        return stats;
+    }
+}
@@ -0,0 +1,207 @@
+package com.hcbt.hcisup.common;
+
+import java.util.Arrays;
+
+/**
+ * YOLO 输出张量的后处理：取最大类别分数、阈值过滤、还原检测框与非极大值抑制
+ * <p>
+ * 原来对每一行（YOLOv8 为 8400 行）都新建一个 Mat、索引器、Point 与 DoublePointer，再经 JNI 调用 minMaxLoc 求 80 个分数的最大值，
+ * CPU 上后处理常常比推理本身还慢。改为把输出张量一次复制到复用的 float 数组，在 Java 中用基本类型数组完成全部计算，
+ * NMS 也按 OpenCV {@code NMSBoxes} 的规则在 Java 中完成，结果与原实现一致。
+ * <p>
+ * 缓冲区在调用之间复用（只在容量不足时扩大），一个实例只能由一个线程使用。
+ */
+final class YoloDecoder {
+
+    // 输出张量
+    private float[] values = new float[0];
+    // YOLOv8 按类别逐列扫描时每行的最大分数与类别
+    private float[] bestScores = new float[0];
+    private int[] bestClasses = new int[0];
+    // 候选框：类别、置信度、left/top/width/height
+    private int count;
+    private int[] classIds = new int[64];
+    private float[] confidences = new float[64];
+    private int[] boxes = new int[64 * 4];
+    // NMS 的排序键与保留的候选序号
+    private long[] order = new long[64];
+    private int[] kept = new int[64];
+    private int keptCount;
+
+    /**
+     * 容量不小于 size 的输出缓冲区，由调用方写入输出张量
+     */
+    float[] values(int size) {
+        if (values.length < size) {
+            values = new float[size];
+        }
+        return values;
+    }
+
+    /**
+     * YOLOv8 输出：布局为 [4 + 类别数][rows]，最大类别分数大于 scoreThreshold 的行作为候选，置信度为该分数
+     *
+     * @return 候选数
+     */
+    int decodeV8(int rows, int classCount, float scoreThreshold, int padX, int padY, float scale) {
+        if (bestScores.length < rows) {
+            bestScores = new float[rows];
+            bestClasses = new int[rows];
+        }
+        float[] data = values;
+        float[] best = bestScores;
+        int[] bestClass = bestClasses;
+        // 按类别逐段顺序扫描（每个类别的分数是连续的 rows 个 float），取第一个最大值，与 minMaxLoc 相同
+        System.arraycopy(data, 4 * rows, best, 0, rows);
+        Arrays.fill(bestClass, 0, rows, 0);
+        for (int j = 1; j < classCount; j++) {
+            int base = (4 + j) * rows;
+            for (int i = 0; i < rows; i++) {
+                float v = data[base + i];
+                if (v > best[i]) {
+                    best[i] = v;
+                    bestClass[i] = j;
+                }
+            }
+        }
+        count = 0;
+        for (int i = 0; i < rows; i++) {
+            float maxScore = best[i];
+            if (maxScore > scoreThreshold) {
+                add(bestClass[i], maxScore, data[i], data[rows + i], data[2 * rows + i], data[3 * rows + i],
+                        padX, padY, scale);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * YOLOv5 输出：布局为 [rows][5 + 类别数]，目标置信度不小于 confidenceThreshold 且最大类别分数大于 scoreThreshold 的行
+     * 作为候选，置信度为目标置信度
+     *
+     * @return 候选数
+     */
+    int decodeV5(int rows, int dimensions, int classCount, float confidenceThreshold, float scoreThreshold,
+                 int padX, int padY, float scale) {
+        float[] data = values;
+        count = 0;
+        for (int i = 0, row = 0; i < rows; i++, row += dimensions) {
+            float confidence = data[row + 4];
+            if (confidence < confidenceThreshold) {
+                continue;
+            }
+            int classId = 0;
+            float maxClassScore = data[row + 5];
+            for (int j = 1; j < classCount; j++) {
+                float v = data[row + 5 + j];
+                if (v > maxClassScore) {
+                    maxClassScore = v;
+                    classId = j;
+                }
+            }
+            if (maxClassScore > scoreThreshold) {
+                add(classId, confidence, data[row], data[row + 1], data[row + 2], data[row + 3], padX, padY, scale);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 加入候选框，坐标按 letterbox 的填充与缩放还原到原图
+     */
+    private void add(int classId, float confidence, float x, float y, float w, float h, int padX, int padY, float scale) {
+        if (count == classIds.length) {
+            int capacity = count * 2;
+            classIds = Arrays.copyOf(classIds, capacity);
+            confidences = Arrays.copyOf(confidences, capacity);
+            boxes = Arrays.copyOf(boxes, capacity * 4);
+            order = new long[capacity];
+            kept = new int[capacity];
+        }
+        classIds[count] = classId;
+        confidences[count] = confidence;
+        int b = count * 4;
+        boxes[b] = (int) ((x - 0.5 * w - padX) / scale);
+        boxes[b + 1] = (int) ((y - 0.5 * h - padY) / scale);
+        boxes[b + 2] = (int) (w / scale);
+        boxes[b + 3] = (int) (h / scale);
+        count++;
+    }
+
+    /**
+     * 非极大值抑制，规则与 OpenCV {@code NMSBoxes} 相同：置信度大于 scoreThreshold 的候选按置信度从高到低
+     * （相同时按序号）依次处理，与已保留的框 IoU 都不大于 nmsThreshold 时保留
+     *
+     * @return 保留的个数，用 {@link #kept(int)} 取候选序号
+     */
+    int nms(float scoreThreshold, float nmsThreshold) {
+        int candidates = 0;
+        for (int i = 0; i < count; i++) {
+            float score = confidences[i];
+            if (score > scoreThreshold) {
+                // 置信度为正数时 float 的位模式与数值同序：高 32 位取反得到降序，低 32 位为序号保证相同置信度时的先后
+                order[candidates++] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(score)) << 32) | i;
+            }
+        }
+        Arrays.sort(order, 0, candidates);
+        keptCount = 0;
+        for (int c = 0; c < candidates; c++) {
+            int index = (int) order[c];
+            boolean keep = true;
+            for (int k = 0; k < keptCount && keep; k++) {
+                keep = overlap(index, kept[k]) <= nmsThreshold;
+            }
+            if (keep) {
+                kept[keptCount++] = index;
+            }
+        }
+        return keptCount;
+    }
+
+    /**
+     * 两个候选框的 IoU（与 OpenCV 的 Rect 计算方式相同）
+     */
+    private double overlap(int a, int b) {
+        int ia = a * 4;
+        int ib = b * 4;
+        double areaA = (double) boxes[ia + 2] * boxes[ia + 3];
+        double areaB = (double) boxes[ib + 2] * boxes[ib + 3];
+        if (areaA + areaB <= 0) {
+            return 1;
+        }
+        int x1 = Math.max(boxes[ia], boxes[ib]);
+        int y1 = Math.max(boxes[ia + 1], boxes[ib + 1]);
+        int x2 = Math.min(boxes[ia] + boxes[ia + 2], boxes[ib] + boxes[ib + 2]);
+        int y2 = Math.min(boxes[ia + 1] + boxes[ia + 3], boxes[ib + 1] + boxes[ib + 3]);
+        double intersection = x2 <= x1 || y2 <= y1 ? 0 : (double) (x2 - x1) * (y2 - y1);
+        return intersection / (areaA + areaB - intersection);
+    }
+
+    int kept(int k) {
+        return kept[k];
+    }
+
+    int classId(int index) {
+        return classIds[index];
+    }
+
+    float confidence(int index) {
+        return confidences[index];
+    }
+
+    int left(int index) {
+        return boxes[index * 4];
+    }
+
+    int top(int index) {
+        return boxes[index * 4 + 1];
+    }
+
+    int width(int index) {
+        return boxes[index * 4 + 2];
+    }
+
+    int height(int index) {
+        return boxes[index * 4 + 3];
+    }
+}
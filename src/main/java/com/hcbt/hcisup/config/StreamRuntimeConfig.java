@@ -0,0 +1,210 @@
+package com.hcbt.hcisup.config;
+
+import com.hcbt.hcisup.common.AbrLadder;
+import com.hcbt.hcisup.common.CoalescingOutputStream;
+import com.hcbt.hcisup.common.CpuBudget;
+import com.hcbt.hcisup.common.FFmpegStreamHandler;
+import com.hcbt.hcisup.common.FFmpegWorkerPool;
+import com.hcbt.hcisup.common.ISUPStreamHandler;
+import com.hcbt.hcisup.common.MediaProbeCache;
+import com.hcbt.hcisup.common.PipelineScheduler;
+import com.hcbt.hcisup.common.RTSPStreamHandlerJavaCV;
+import com.hcbt.hcisup.common.SessionThreads;
+import com.hcbt.hcisup.common.StreamCapacityScheduler;
+import com.hcbt.hcisup.common.StreamSupervisor;
+import com.hcbt.hcisup.common.ViewerLeases;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 各推流处理器共用的运行时配置
+ * <p>
+ * 管道写出、路数调度、CPU 准入、进程预热、输入探测、会话辅助线程、健康监督、码率阶梯、JavaCV、流水线调度与观看者租约
+ * 由 ISUP、RTSP、FFmpeg 与 JavaCV 处理器共用，不属于某一个处理器，在这里统一读取 {@code app.stream} 下的配置。
+ */
+@Configuration
+public class StreamRuntimeConfig {
+
+    // 写入 FFmpeg 标准输入的方式：COALESCE 合并写出，FLUSH_PER_FRAME 每帧写出
+    @Value("${app.stream.pipe-writer.mode:COALESCE}")
+    private CoalescingOutputStream.Mode pipeWriterMode;
+    // 合并写出的缓冲区大小（字节）
+    @Value("${app.stream.pipe-writer.buffer-bytes:262144}")
+    private int pipeWriterBufferBytes;
+    // 合并写出时一帧最多等待的时间（毫秒），0 表示每帧立即写出
+    @Value("${app.stream.pipe-writer.max-latency-ms:5}")
+    private long pipeWriterMaxLatencyMs;
+
+    // 同时推流的 ISUP 通道上限
+    @Value("${app.stream.capacity.isup-max-streams:1}")
+    private int isupMaxStreams;
+    // 同时推流的 RTSP 通道上限
+    @Value("${app.stream.capacity.rtsp-max-streams:1}")
+    private int rtspMaxStreams;
+    // JavaCV 拉流检测的路数上限
+    @Value("${app.stream.capacity.javacv-max-streams:2}")
+    private int javacvMaxStreams;
+    // 路数已满时的挤出策略：LRU、LEAST_VIEWERS、PRIORITY
+    @Value("${app.stream.capacity.policy:LRU}")
+    private StreamCapacityScheduler.Policy capacityPolicy;
+    // 通道优先级，如 101:10,201:5，数值越大越不容易被挤出
+    @Value("${app.stream.capacity.priorities:}")
+    private String capacityPriorities;
+
+    // 是否按 CPU 开销准入推流会话
+    @Value("${app.stream.cpu-admission.enabled:false}")
+    private boolean cpuAdmissionEnabled;
+    // 总核数预算，0 表示可用核数的 80%
+    @Value("${app.stream.cpu-admission.budget-cores:0}")
+    private double cpuBudgetCores;
+    // 转码预算不足时是否降级为直接复制（H.265 以编码 ID 12 封装 FLV，常见浏览器播放端不支持，默认拒绝）
+    @Value("${app.stream.cpu-admission.degrade-to-copy:false}")
+    private boolean cpuDegradeToCopy;
+    // 读取 /proc 校准各管线权重的间隔（毫秒）
+    @Value("${app.stream.cpu-admission.sample-interval-ms:5000}")
+    private long cpuSampleIntervalMs;
+
+    // 是否预启动 FFmpeg 进程（输出到标准输出的管线），缩短通道启动耗时
+    @Value("${app.stream.warm-pool.enabled:false}")
+    private boolean warmPoolEnabled;
+    // 每种管线保持的空闲进程数
+    @Value("${app.stream.warm-pool.workers-per-profile:1}")
+    private int warmPoolWorkersPerProfile;
+    // 与 ISUPStreamHandler 相同的开关：应用内分发时 H.265 转码管线输出到标准输出，才需要预热
+    @Value("${app.stream.live-hub.enabled:false}")
+    private boolean liveHubEnabled;
+    @Value("${app.stream.ll-hls.enabled:false}")
+    private boolean llHlsEnabled;
+
+    // 输入流探测结果的有效期（毫秒），过期后先返回旧值并在后台刷新
+    @Value("${app.stream.probe.ttl-ms:600000}")
+    private long probeTtlMs;
+    // 探测失败的有效期（毫秒），期间启动推流不再等待与重新探测，0 表示不缓存失败
+    @Value("${app.stream.probe.failure-ttl-ms:30000}")
+    private long probeFailureTtlMs;
+    // 单次 ffprobe 的超时时间（毫秒）
+    @Value("${app.stream.probe.timeout-ms:5000}")
+    private long probeTimeoutMs;
+    // 启动推流时没有缓存结果最多等待的时间（毫秒），超时按默认编码处理
+    @Value("${app.stream.probe.wait-ms:2000}")
+    private long probeWaitMs;
+    // 同时执行的探测数
+    @Value("${app.stream.probe.threads:4}")
+    private int probeThreads;
+
+    // 会话辅助线程（日志读取、进程退出等待、FLV 转发）的执行方式：PLATFORM / SHARED / VIRTUAL
+    @Value("${app.stream.session-threads.mode:PLATFORM}")
+    private SessionThreads.Mode sessionThreadsMode;
+    // SHARED 方式下执行进程退出回调的线程数
+    @Value("${app.stream.session-threads.exit-pool-size:2}")
+    private int sessionExitPoolSize;
+    // SHARED 方式下阻塞任务（日志读取、FLV 转发）线程池的线程上限，池满时单独开线程
+    @Value("${app.stream.session-threads.helper-pool-size:32}")
+    private int sessionHelperPoolSize;
+
+    // 切换通道时新管线等待关键帧并开始推流的最长时间（毫秒），超时保留原通道
+    @Value("${app.stream.channel-switch.keyframe-timeout-ms:5000}")
+    private long switchKeyFrameTimeoutMs;
+
+    // 是否开启推流健康监督（卡死检测、退避重启与熔断）
+    @Value("${app.stream.supervisor.enabled:false}")
+    private boolean supervisorEnabled;
+    // 检查间隔（毫秒）
+    @Value("${app.stream.supervisor.check-interval-ms:1000}")
+    private long supervisorCheckIntervalMs;
+    // 有输入但没有输出多久判定为卡死（毫秒）
+    @Value("${app.stream.supervisor.output-stall-ms:10000}")
+    private long supervisorOutputStallMs;
+    // 没有输入多久判定为输入中断（毫秒）
+    @Value("${app.stream.supervisor.input-stall-ms:10000}")
+    private long supervisorInputStallMs;
+    // 第一次重启前的退避时间（毫秒），之后每次翻倍并加随机抖动
+    @Value("${app.stream.supervisor.backoff-base-ms:1000}")
+    private long supervisorBackoffBaseMs;
+    // 退避时间上限（毫秒）
+    @Value("${app.stream.supervisor.backoff-max-ms:60000}")
+    private long supervisorBackoffMaxMs;
+    // 窗口内失败多少次熔断
+    @Value("${app.stream.supervisor.breaker-failures:5}")
+    private int supervisorBreakerFailures;
+    // 统计失败次数的窗口（毫秒）
+    @Value("${app.stream.supervisor.breaker-window-ms:300000}")
+    private long supervisorBreakerWindowMs;
+    // 熔断持续时间（毫秒）
+    @Value("${app.stream.supervisor.breaker-open-ms:120000}")
+    private long supervisorBreakerOpenMs;
+
+    // 主码流是否解码一次、输出多个规格（码率阶梯）
+    @Value("${app.stream.abr-ladder.enabled:false}")
+    private boolean abrLadderEnabled;
+    // 规格列表，source 表示原始分辨率（H.264 源直接复制），其余为 宽x高
+    @Value("${app.stream.abr-ladder.renditions:source,854x480,640x360}")
+    private String abrLadderRenditions;
+
+    // JavaCV 拉流源为 H.264 时是否按包复制到 FLV（不解码、不转码）
+    @Value("${app.stream.javacv.remux:true}")
+    private boolean javacvRemux;
+    // 流水线调度下每个 JavaCV 通道待处理视频包的队列长度
+    @Value("${app.stream.javacv.queue-packets:256}")
+    private int javacvQueuePackets;
+
+    // 是否启用流水线调度（JavaCV 推流与检测的计算阶段在共享线程池中协作运行）
+    @Value("${app.stream.pipeline-scheduler.enabled:false}")
+    private boolean pipelineSchedulerEnabled;
+    // 线程池大小，0 表示可用核数
+    @Value("${app.stream.pipeline-scheduler.workers:0}")
+    private int pipelineSchedulerWorkers;
+    // 推理线程池大小，0 表示可用核数的一半
+    @Value("${app.stream.pipeline-scheduler.inference-workers:0}")
+    private int pipelineSchedulerInferenceWorkers;
+    // 任务一次运行的时间片（毫秒）
+    @Value("${app.stream.pipeline-scheduler.slice-ms:10}")
+    private long pipelineSchedulerSliceMs;
+
+    // 是否启用观看者租约（客户端定期心跳，超过有效期未心跳视为离开）
+    @Value("${app.stream.viewer-lease.enabled:false}")
+    private boolean viewerLeaseEnabled;
+    // 租约有效期（毫秒），客户端心跳间隔应小于该值
+    @Value("${app.stream.viewer-lease.ttl-ms:30000}")
+    private long viewerLeaseTtlMs;
+    // 租约与空闲超时时间轮的刻度（毫秒）
+    @Value("${app.stream.viewer-lease.tick-ms:500}")
+    private long viewerLeaseTickMs;
+    // 时间轮的桶数
+    @Value("${app.stream.viewer-lease.wheel-size:512}")
+    private int viewerLeaseWheelSize;
+
+    @PostConstruct
+    public void init() {
+        CoalescingOutputStream.configure(pipeWriterMode, pipeWriterBufferBytes, pipeWriterMaxLatencyMs);
+        StreamCapacityScheduler.setLimit(StreamCapacityScheduler.POOL_ISUP, isupMaxStreams);
+        StreamCapacityScheduler.setLimit(StreamCapacityScheduler.POOL_RTSP, rtspMaxStreams);
+        StreamCapacityScheduler.setLimit(StreamCapacityScheduler.POOL_JAVACV, javacvMaxStreams);
+        StreamCapacityScheduler.configure(capacityPolicy, capacityPriorities);
+        CpuBudget.configure(cpuAdmissionEnabled, cpuBudgetCores, cpuDegradeToCopy, cpuSampleIntervalMs);
+        FFmpegWorkerPool.configure(warmPoolEnabled, warmPoolWorkersPerProfile);
+        MediaProbeCache.configure(probeTtlMs, probeFailureTtlMs, probeTimeoutMs, probeWaitMs, probeThreads);
+        SessionThreads.configure(sessionThreadsMode, sessionExitPoolSize, sessionHelperPoolSize);
+        FFmpegStreamHandler.configureSwitch(switchKeyFrameTimeoutMs);
+        StreamSupervisor.configure(supervisorEnabled, supervisorCheckIntervalMs, supervisorOutputStallMs,
+                supervisorInputStallMs, supervisorBackoffBaseMs, supervisorBackoffMaxMs, supervisorBreakerFailures,
+                supervisorBreakerWindowMs, supervisorBreakerOpenMs);
+        RTSPStreamHandlerJavaCV.configure(javacvRemux, javacvQueuePackets);
+        PipelineScheduler.configure(pipelineSchedulerEnabled, pipelineSchedulerWorkers,
+                pipelineSchedulerInferenceWorkers, pipelineSchedulerSliceMs);
+        AbrLadder.configure(abrLadderEnabled, abrLadderRenditions);
+        ViewerLeases.configure(viewerLeaseEnabled, viewerLeaseTtlMs, viewerLeaseTickMs, viewerLeaseWheelSize);
+        // 启动时检查一次 FFmpeg，开始推流时不再执行 ffmpeg -version
+        if (FFmpegWorkerPool.isFFmpegAvailable() && warmPoolEnabled && (liveHubEnabled || llHlsEnabled)) {
+            // 放在健康监督配置之后：开启监督时命令带 -progress，profile 需与启动时一致
+            ISUPStreamHandler.liveHubProfiles().forEach(FFmpegWorkerPool::prewarm);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        FFmpegWorkerPool.shutdown();
+    }
+}
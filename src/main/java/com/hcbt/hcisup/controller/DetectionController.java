@@ -1,5 +1,6 @@
 package com.hcbt.hcisup.controller;
 
+import com.hcbt.hcisup.common.MatPool;
 import com.hcbt.hcisup.service.DetectionService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -105,6 +106,12 @@ public class DetectionController {
         return ResponseEntity.ok(response);
     }
 
+    @GetMapping("/matPool")
+    @Operation(summary = "Mat 池统计", description = "命中率、池内与使用中的 native 内存字节数")
+    public ResponseEntity<Map<String, Object>> matPoolStats() {
+        return ResponseEntity.ok(MatPool.stats());
+    }
+
     @GetMapping("/result-video")
     @Operation(summary = "获取结果视频文件")
     public ResponseEntity<Resource> getResultVideo(@RequestParam("filename") String filename) throws IOException {
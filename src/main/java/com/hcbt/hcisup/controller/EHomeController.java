@@ -6,12 +6,13 @@ import com.hcbt.hcisup.common.AjaxResult;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/")
@@ -23,31 +24,21 @@ public class EHomeController {
     private SMS sms;
     @Resource
     private CMS cms;
+    // 启动接口等待的最长时间（毫秒）
+    @Value("${app.stream.async.start-timeout-ms:15000}")
+    private long startTimeoutMs;
     /**
      * 根据摄像头编号开始推流
      */
     @PostMapping("startPushStream")
     @Operation(summary = "根据摄像头编号开始推流")
-    public AjaxResult startPushStream(@RequestParam("luserId") Integer luserId,
-                                      @RequestParam("channel") Integer channel){
-
-        CompletableFuture<String> completableFuture = new CompletableFuture<>();
-
-        try {
-            sms.RealPlay(luserId,channel,completableFuture);
-        }catch (Exception e){
-            return AjaxResult.error();
-        }
-
-        try {
-            String result = completableFuture.get();
-            if(Objects.equals(result, "true")){
-                return AjaxResult.success();
-            }
-            return AjaxResult.error();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
-        }
+    public CompletableFuture<AjaxResult> startPushStream(@RequestParam("luserId") Integer luserId,
+                                                        @RequestParam("channel") Integer channel){
+        // 同一通道并发的请求合并为一次 SDK 调用，接口线程不等待
+        return sms.realPlayAsync(luserId, channel)
+                .thenApply(result -> Objects.equals(result, "true") ? AjaxResult.success() : AjaxResult.error())
+                .exceptionally(e -> AjaxResult.error())
+                .completeOnTimeout(AjaxResult.error("启动超时，请稍后重试"), startTimeoutMs, TimeUnit.MILLISECONDS);
     }
 
     /**
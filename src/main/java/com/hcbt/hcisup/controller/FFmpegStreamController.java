@@ -4,6 +4,9 @@ import com.hcbt.hcisup.SdkService.CmsService.CMS;
 import com.hcbt.hcisup.SdkService.StreamService.SMS;
 import com.hcbt.hcisup.common.AjaxResult;
 import com.hcbt.hcisup.common.FFmpegStreamHandler;
+import com.hcbt.hcisup.common.FFmpegWorkerPool;
+import com.hcbt.hcisup.common.SingleFlight;
+import com.hcbt.hcisup.common.ViewerLeases;
 import com.hcbt.hcisup.service.FrameDetectionProcessor;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -46,9 +49,16 @@ public class FFmpegStreamController {
     private static final ScheduledExecutorService scheduledExecutor =
             Executors.newScheduledThreadPool(5);
 
-    // 自动关闭超时时间（毫秒），默认1小时
+    // 自动关闭超时时间（毫秒），默认1小时（启用观看者租约时改为按心跳回收）
     private static final long AUTO_CLOSE_TIMEOUT_MS = 60 * 60 * 1000;
 
+    // 启动接口等待的最长时间（毫秒），超时返回错误，启动本身继续执行
+    @Value("${app.stream.async.start-timeout-ms:15000}")
+    private long startTimeoutMs;
+
+    // 同一通道并发的启动请求合并为一次
+    private final SingleFlight<Integer, AjaxResult> startFlight = new SingleFlight<>("ffmpegStart");
+
     public FFmpegStreamController(@Value("${app.stream.hls-dir}") String hlsDirBasePath) {
         this.hlsDirBasePath = hlsDirBasePath;
     }
@@ -97,7 +107,7 @@ public class FFmpegStreamController {
 
     @PostMapping("/smartStream")
     @Operation(summary = "智能推流", description = "自动管理通道切换和超时关闭的推流服务")
-    public AjaxResult smartStream(@RequestParam("channel") @Parameter(description = "通道号") Integer channel) {
+    public CompletableFuture<AjaxResult> smartStream(@RequestParam("channel") @Parameter(description = "通道号") Integer channel) {
         Map<String, String> data = new HashMap<>();
         Integer luserId = 0; // 默认用户ID
         data.put("code", "hevc");
@@ -114,49 +124,67 @@ public class FFmpegStreamController {
         if (currentChannel != null && currentChannel.equals(channel)) {
             // 重置自动关闭计时器
             resetAutoCloseTimer(luserId,channel);
-            return AjaxResult.success("继续使用现有流", data);
+            return CompletableFuture.completedFuture(AjaxResult.success("继续使用现有流", data));
         }
 
-        // 检查FFmpeg是否已经在运行
-        boolean ffmpegRunning = FFmpegStreamHandler.isProcessAlive(luserId);
+        // 同一通道同时只有一个请求启动 FFmpeg 并向设备发起预览，其余请求共用结果
+        CompletableFuture<AjaxResult> started = startFlight.execute(channel, () -> CompletableFuture.supplyAsync(() -> {
+            // 检查FFmpeg是否已经在运行
+            boolean ffmpegRunning = FFmpegStreamHandler.isProcessAlive(luserId);
+            Integer previousChannel = userChannelMap.get(luserId);
+            // 已在推其他通道时先建后拆：新通道的管线输出关键帧后才替换旧管线，随后停止旧通道的预览
+            CompletableFuture<Long> switched = null;
 
-        // 如果FFmpeg未运行，则启动FFmpeg
-        if (!ffmpegRunning) {
-            // if (!FFmpegStreamHandler.startFFmpeg(luserId,  hlsPath)) {
-            //     return AjaxResult.error("启动 FFmpeg 失败");
-            // }
-            if (!FFmpegStreamHandler.startFFmpeg2(luserId,channel)) {
-                return AjaxResult.error("启动 FFmpeg 失败");
+            // 如果FFmpeg未运行，则启动FFmpeg
+            if (!ffmpegRunning) {
+                // if (!FFmpegStreamHandler.startFFmpeg(luserId,  hlsPath)) {
+                //     return AjaxResult.error("启动 FFmpeg 失败");
+                // }
+                if (!FFmpegStreamHandler.startFFmpeg2(luserId,channel)) {
+                    return CompletableFuture.completedFuture(AjaxResult.error("启动 FFmpeg 失败"));
+                }
+            } else {
+                switched = FFmpegStreamHandler.switchChannel(luserId, channel);
             }
-        }
-
-        // 启动 ISUP 流并处理结果
-        CompletableFuture<String> future = new CompletableFuture<>();
-        sms.RealPlayWithFFmpeg(luserId, channel, 0,future);
+            CompletableFuture<Long> ready = switched;
 
-        try {
-            String result = future.get();
-            if ("true".equals(result)) {
-                // 更新通道映射
-                userChannelMap.put(luserId, channel);
-
-                // 设置自动关闭计时器
-                setupAutoCloseTimer(luserId,channel);
-
-                // Thread.sleep(8000);
-                return AjaxResult.success("流启动成功", data);
-            } else {
+            // 启动 ISUP 流并处理结果（切换时等待新管线替换旧管线）
+            return sms.realPlayWithFFmpegAsync(luserId, channel, 0).thenCompose(result -> {
+                if (ready == null || !"true".equals(result)) {
+                    return CompletableFuture.completedFuture(result);
+                }
+                return ready.thenApply(millis -> {
+                    data.put("switchMs", String.valueOf(millis));
+                    return result;
+                });
+            }).handle((result, error) -> {
+                if (error == null && "true".equals(result)) {
+                    // 更新通道映射
+                    userChannelMap.put(luserId, channel);
+
+                    // 新通道已在推流，停止旧通道的预览
+                    if (previousChannel != null && !previousChannel.equals(channel)) {
+                        stopPreview(luserId, previousChannel);
+                    }
+
+                    // 设置自动关闭计时器
+                    setupAutoCloseTimer(luserId,channel);
+
+                    // Thread.sleep(8000);
+                    return AjaxResult.success("流启动成功", data);
+                }
                 if (!ffmpegRunning) {
                     FFmpegStreamHandler.stopFFmpeg(luserId);
+                } else if (ready != null && !channel.equals(userChannelMap.get(luserId))) {
+                    // 切换失败，原通道继续推流，停止新通道的预览
+                    stopPreview(luserId, channel);
                 }
-                return AjaxResult.error("启动流失败");
-            }
-        } catch (InterruptedException | ExecutionException e) {
-            if (!ffmpegRunning) {
-                FFmpegStreamHandler.stopFFmpeg(luserId);
-            }
-            return AjaxResult.error("流启动失败: " + e.getMessage());
-        }
+                return error == null ? AjaxResult.error("启动流失败") : AjaxResult.error("流启动失败: " + error.getMessage());
+            });
+        }, sms.getStartExecutor()).thenCompose(result -> result));
+        // 每个调用方单独计时，超时不影响合并的请求
+        return started.thenApply(result -> result)
+                .completeOnTimeout(AjaxResult.error("启动超时，请稍后重试"), startTimeoutMs, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -178,6 +206,48 @@ public class FFmpegStreamController {
         }
     }
 
+    /**
+     * 观看者心跳
+     *
+     * @return AjaxResult 通道未在推流时返回错误，客户端应重新调用智能推流接口
+     */
+    @PostMapping("/heartbeat")
+    @Operation(summary = "观看者心跳", description = "续期观看者租约，启用租约后超过有效期未心跳的通道自动停止")
+    public AjaxResult heartbeat(@RequestParam("channel") @Parameter(description = "通道号") Integer channel) {
+        Integer luserId = 0;
+        if (!channel.equals(userChannelMap.get(luserId))) {
+            return AjaxResult.error("通道未在推流，请重新启动");
+        }
+        if (ViewerLeases.isEnabled()) {
+            ViewerLeases.acquire(leaseKey(luserId), luserId);
+        } else {
+            resetAutoCloseTimer(luserId, channel);
+        }
+        return AjaxResult.success("心跳成功");
+    }
+
+    /**
+     * 查看通道切换耗时
+     *
+     * @return AjaxResult 切换次数、失败次数与耗时分布
+     */
+    @GetMapping("/switchStats")
+    @Operation(summary = "通道切换统计", description = "先建后拆切换通道的次数、失败次数、耗时（p50/p99/max）与正在进行的切换")
+    public AjaxResult switchStats() {
+        return AjaxResult.success(FFmpegStreamHandler.switchStats());
+    }
+
+    /**
+     * 查看 FFmpeg 预热进程池
+     *
+     * @return AjaxResult 空闲进程数与首字节耗时
+     */
+    @GetMapping("/warmPool")
+    @Operation(summary = "FFmpeg 预热进程池统计", description = "各管线的空闲进程数，预热进程与现场启动的首字节耗时（p50/p99/max）")
+    public AjaxResult warmPoolStats() {
+        return AjaxResult.success(FFmpegWorkerPool.stats());
+    }
+
     /**
      * 内部方法：停止指定用户ID的流
      *
@@ -209,6 +279,21 @@ public class FFmpegStreamController {
         }
     }
 
+    /**
+     * 只停止指定通道的设备预览（不停止 FFmpeg）
+     */
+    private void stopPreview(Integer luserId, Integer channel) {
+        Integer sessionId = SMS.LuserIDandSessionMap.get(channel);
+        if (sessionId == null) {
+            return;
+        }
+        try {
+            sms.StopRealPlay(luserId, channel, sessionId, SMS.SessionIDAndPreviewHandleMap.get(sessionId));
+        } catch (Exception e) {
+            // 预览已结束
+        }
+    }
+
     /**
      * 设置自动关闭计时器
      *
@@ -218,6 +303,18 @@ public class FFmpegStreamController {
         // 先取消已有的计时器（如果存在）
         cancelAutoCloseTask(luserId);
 
+        if (ViewerLeases.isEnabled()) {
+            // 持有租约，超过有效期未心跳时停止当前推流的通道（切换通道后沿用同一租约）
+            ViewerLeases.acquire(leaseKey(luserId), luserId);
+            ViewerLeases.bind(leaseKey(luserId), () -> 0, () -> {
+                Integer current = userChannelMap.get(luserId);
+                if (ViewerLeases.count(leaseKey(luserId)) == 0 && current != null) {
+                    stopStreamInternal(luserId, current);
+                }
+            });
+            return;
+        }
+
         // 创建新的自动关闭任务
         ScheduledFuture<?> future = scheduledExecutor.schedule(() -> {
             stopStreamInternal(luserId,channel);
@@ -250,6 +347,11 @@ public class FFmpegStreamController {
         if (task != null && !task.isDone()) {
             task.cancel(false);
         }
+        ViewerLeases.clear(leaseKey(luserId));
+    }
+
+    private static String leaseKey(Integer luserId) {
+        return "ffmpeg_" + luserId;
     }
 
     /**
@@ -1,8 +1,15 @@
 package com.hcbt.hcisup.controller;
 
 import com.hcbt.hcisup.SdkService.StreamService.SMS;
+import com.hcbt.hcisup.common.AbrLadder;
 import com.hcbt.hcisup.common.AjaxResult;
+import com.hcbt.hcisup.common.CpuBudget;
 import com.hcbt.hcisup.common.ISUPStreamHandler;
+import com.hcbt.hcisup.common.SessionThreads;
+import com.hcbt.hcisup.common.SingleFlight;
+import com.hcbt.hcisup.common.StreamCapacityScheduler;
+import com.hcbt.hcisup.common.StreamSupervisor;
+import com.hcbt.hcisup.common.ViewerLeases;
 import com.hcbt.hcisup.service.FrameDetectionProcessor;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -29,8 +36,15 @@ public class ISUPStreamController {
     private String publicIp;
     private final int rtmpPort = 1935;
     private final int httpPort = 18080;
+    @Value("${server.port:8080}")
+    private int serverPort;
+    // 启动接口等待的最长时间（毫秒），超时返回错误，启动本身继续执行
+    @Value("${app.stream.async.start-timeout-ms:15000}")
+    private long startTimeoutMs;
     @Resource
     private SMS sms;
+    // 同一通道并发的启动请求合并为一次：channel -> 预览与推流启动结果
+    private final SingleFlight<Integer, Started> startFlight = new SingleFlight<>("isupStart");
 
     @Autowired
     private FrameDetectionProcessor frameDetectionProcessor;
@@ -38,38 +52,79 @@ public class ISUPStreamController {
 
     @PostMapping("/startStream")
     @Operation(summary = "isup推流", description = "根据隧道号推流")
-    public AjaxResult smartStream(@RequestParam @Parameter(description = "用户ID") Integer userId, @RequestParam("channel") @Parameter(description = "通道号+码流类型，如拉取主码流的1号通道，就是101，拉取子码流就是102") Integer channel) {
+    public CompletableFuture<AjaxResult> smartStream(@RequestParam @Parameter(description = "用户ID") Integer userId, @RequestParam("channel") @Parameter(description = "通道号+码流类型，如拉取主码流的1号通道，就是101，拉取子码流就是102") Integer channel,
+                                                     @RequestParam(required = false) @Parameter(description = "规格（开启码率阶梯时有效），如 source、480p、360p，默认原始分辨率") String rendition) {
         Integer luserId = 0; // 默认用户ID
         int dwStreamType = Integer.parseInt(String.valueOf(channel).substring(String.valueOf(channel).length() - 2));
-        String key = "isup" + "_" + channel;
+        String key = ISUPStreamHandler.liveKey(channel);
         int streamType = 0;
         if(dwStreamType!=1 && dwStreamType!=2){
-            return AjaxResult.error("推流类型错误");
+            return CompletableFuture.completedFuture(AjaxResult.error("推流类型错误"));
         }
         if (dwStreamType == 2) {
             streamType = 1;
         }
         String outputUrl = String.format("rtmp://%s:%d/live/%s", publicIp, rtmpPort, key);
-        String flvUrl = String.format("http://%s:%d/live/%s.flv", publicIp, httpPort, key);
-        Map<String, String> data = new HashMap<>();
+        String flvBase = String.format("http://%s:%d/live/%s", publicIp, httpPort, key);
+        String flvUrl = flvBase + ".flv";
+        if (ISUPStreamHandler.isLiveHubEnabled() || ISUPStreamHandler.isLlHlsEnabled()) {
+            // 由应用直接分发，不经过 SRS
+            flvUrl = String.format("http://%s:%d/live/%s.flv", publicIp, serverPort, key);
+        }
+        String playUrl = flvUrl;
+        int previewType = streamType;
 
-        // 启动 ISUP 流并处理结果
-        CompletableFuture<String> future = new CompletableFuture<>();
-        sms.RealPlayWithFFmpeg(luserId, channel,streamType,future);
-        try {
-            String result = future.get();
-            if ("true".equals(result)) {
-                ISUPStreamHandler.StartResult startResult = ISUPStreamHandler.startStream(userId, channel, outputUrl);
+        // 启动 ISUP 流并处理结果：同一通道同时只有一个请求向设备发起预览并启动推流
+        CompletableFuture<Started> started = startFlight.execute(channel, () ->
+                sms.realPlayWithFFmpegAsync(luserId, channel, previewType).thenApplyAsync(result -> "true".equals(result)
+                        ? new Started(userId, ISUPStreamHandler.startStream(userId, channel, outputUrl))
+                        : null, sms.getStartExecutor()));
+        return started.thenApplyAsync(shared -> {
+            if (shared != null) {
+                // 推流已由合并请求中的第一个启动并登记了它的用户，其余请求在这里登记当前用户（复用当前会话）
+                ISUPStreamHandler.StartResult startResult = shared.result.success && !userId.equals(shared.userId)
+                        ? ISUPStreamHandler.startStream(userId, channel, outputUrl) : shared.result;
+                Map<String, Object> data = new HashMap<>();
                 data.put("code", startResult.videoCodec);
                 data.put("msg", startResult.message);
-                data.put("flvUrl", flvUrl);
+                // 降级为 H.265 直出时播放端需自行判断能否播放
+                data.put("degraded", startResult.degraded);
+                data.put("flvUrl", playUrl);
+                if (startResult.success && ISUPStreamHandler.isLadder(channel)) {
+                    // 同一路解码输出的各个规格，观看者按需选择
+                    Map<String, String> renditions = AbrLadder.urls(flvBase, ".flv");
+                    data.put("renditions", renditions);
+                    AbrLadder.Rendition picked = rendition == null ? null : AbrLadder.find(rendition);
+                    if (picked != null) {
+                        data.put("flvUrl", renditions.get(picked.name));
+                    }
+                }
+                if (ISUPStreamHandler.isLiveHubEnabled()) {
+                    data.put("wsUrl", String.format("ws://%s:%d/ws/live/%s", publicIp, serverPort, key));
+                }
+                if (ISUPStreamHandler.isLlHlsEnabled()) {
+                    data.put("hlsUrl", String.format("http://%s:%d/hls/%s/index.m3u8", publicIp, serverPort, key));
+                }
                 return AjaxResult.success(data);
                 // return AjaxResult.success("流启动成功", data);
             } else {
                 return AjaxResult.error("设备异常，请联系管理员");
             }
-        } catch (InterruptedException | ExecutionException e) {
-            return AjaxResult.error("设备异常，请联系管理员: " + e.getMessage());
+        }, sms.getStartExecutor())
+                .exceptionally(e -> AjaxResult.error("设备异常，请联系管理员: " + e.getMessage()))
+                .completeOnTimeout(AjaxResult.error("启动超时，请稍后重试"), startTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 合并启动的结果：发起启动的用户与推流启动结果
+     */
+    private static final class Started {
+        final Integer userId;
+        final ISUPStreamHandler.StartResult result;
+
+        Started(Integer userId, ISUPStreamHandler.StartResult result) {
+            this.userId = userId;
+            this.result = result;
         }
     }
 
@@ -100,6 +155,21 @@ public class ISUPStreamController {
         return AjaxResult.success("流已成功停止");
     }
 
+    /**
+     * 观看者心跳
+     *
+     * @return AjaxResult 通道未在推流时返回错误，客户端应重新调用启动接口
+     */
+    @PostMapping("/heartbeat")
+    @Operation(summary = "观看者心跳", description = "续期观看者租约，启用租约后超过有效期未心跳的用户视为离开，最后一个观看者离开后停止推流")
+    public AjaxResult heartbeat(@RequestParam @Parameter(description = "用户ID") int userId,
+                                @RequestParam("channel") @Parameter(description = "通道号") Integer channel) {
+        if (!ISUPStreamHandler.heartbeat(userId, channel)) {
+            return AjaxResult.error("通道未在推流，请重新启动");
+        }
+        return AjaxResult.success("心跳成功");
+    }
+
     /**
      * 查看正在播放的通道有哪些
      */
@@ -109,6 +179,116 @@ public class ISUPStreamController {
         return AjaxResult.success(ISUPStreamHandler.playingChannels());
     }
 
+    /**
+     * 查看预览回调的 PS 解析情况
+     */
+    @GetMapping("/callbackStats")
+    @Operation(summary = "查看预览回调解析统计", description = "各通道预览回调的 PS 包数、视频帧数、丢弃帧数与失步次数")
+    public AjaxResult callbackStats() {
+        return AjaxResult.success(SMS.callbackStats());
+    }
+
+    /**
+     * 查看各通道写入缓冲区的使用情况与丢帧数
+     */
+    @GetMapping("/ringStats")
+    @Operation(summary = "查看写入缓冲区统计", description = "各通道回调线程与 FFmpeg 写入线程之间环形缓冲区的容量、水位与丢帧数")
+    public AjaxResult ringStats() {
+        return AjaxResult.success(ISUPStreamHandler.ringStats());
+    }
+
+    /**
+     * 查看各通道写入 FFmpeg 的系统调用次数与合并延迟
+     */
+    @GetMapping("/pipeStats")
+    @Operation(summary = "查看管道写入统计", description = "各通道写入 FFmpeg 标准输入的写出次数/秒、每次写出的帧数，以及合并带来的 p50/p99 延迟")
+    public AjaxResult pipeStats() {
+        return AjaxResult.success(ISUPStreamHandler.pipeStats());
+    }
+
+    /**
+     * 查看推流路数调度状态
+     */
+    @GetMapping("/capacity")
+    @Operation(summary = "查看推流路数调度", description = "各推流池的路数上限、挤出策略、挤出次数，以及每路的观看者、优先级与空闲时间")
+    public AjaxResult capacity() {
+        return AjaxResult.success(StreamCapacityScheduler.stats());
+    }
+
+    /**
+     * 查看 CPU 准入预算
+     */
+    @GetMapping("/cpuBudget")
+    @Operation(summary = "查看 CPU 准入预算", description = "总核数预算、已占用核数、各管线的校准权重，以及每路 FFmpeg 的实测 CPU")
+    public AjaxResult cpuBudget() {
+        return AjaxResult.success(CpuBudget.stats());
+    }
+
+    /**
+     * 调整通道优先级（PRIORITY 策略下生效）
+     */
+    @PostMapping("/priority")
+    @Operation(summary = "设置通道优先级", description = "数值越大越不容易被挤出，重启后以配置 app.stream.capacity.priorities 为准")
+    public AjaxResult priority(@RequestParam @Parameter(description = "通道号") int channel,
+                               @RequestParam @Parameter(description = "优先级") int priority) {
+        StreamCapacityScheduler.setPriority(channel, priority);
+        return AjaxResult.success();
+    }
+
+    /**
+     * 查看各通道识别出的源编码
+     */
+    @GetMapping("/videoCodecs")
+    @Operation(summary = "查看通道源编码", description = "根据 PSM 或 NAL 头识别出的各通道源编码，决定直接复制还是转码")
+    public AjaxResult videoCodecs() {
+        return AjaxResult.success(ISUPStreamHandler.videoCodecs());
+    }
+
+    /**
+     * 查看各通道启动耗时与 GOP 缓存
+     */
+    @GetMapping("/startStats")
+    @Operation(summary = "查看启动耗时", description = "各通道从启动到首帧、首个关键帧写入 FFmpeg 的耗时，以及 GOP 缓存预热情况")
+    public AjaxResult startStats() {
+        return AjaxResult.success(ISUPStreamHandler.startStats());
+    }
+
+    /**
+     * 查看启动请求的合并情况
+     */
+    @GetMapping("/startFlights")
+    @Operation(summary = "查看启动请求合并统计", description = "预览、回放与推流启动请求的调用次数、实际执行次数与正在执行的请求数")
+    public AjaxResult startFlights() {
+        return AjaxResult.success(SingleFlight.stats());
+    }
+
+    /**
+     * 查看会话辅助线程的开销
+     */
+    @GetMapping("/sessionThreads")
+    @Operation(summary = "查看会话辅助线程统计", description = "辅助线程执行方式、线程数、RSS 与上下文切换（与启动时的基线对比）")
+    public AjaxResult sessionThreads() {
+        return AjaxResult.success(SessionThreads.stats());
+    }
+
+    /**
+     * 查看推流会话健康状态
+     */
+    @GetMapping("/health")
+    @Operation(summary = "查看推流健康状态", description = "各会话的状态、输入字节速率、距上次输入/输出的时间，以及各摄像机的熔断状态")
+    public AjaxResult health() {
+        return AjaxResult.success(StreamSupervisor.stats());
+    }
+
+    /**
+     * 查看观看者租约
+     */
+    @GetMapping("/viewerLeases")
+    @Operation(summary = "查看观看者租约", description = "各通道持有租约的观看者数、到期与释放次数，以及最后一个观看者离开到回收通道的耗时（p50/p99/max）")
+    public AjaxResult viewerLeases() {
+        return AjaxResult.success(ViewerLeases.stats());
+    }
+
     /**
      * 内部方法：停止指定用户ID的流
      */
@@ -0,0 +1,177 @@
+package com.hcbt.hcisup.controller;
+
+import com.hcbt.hcisup.common.AjaxResult;
+import com.hcbt.hcisup.common.LiveStreamHub;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HTTP-FLV 直播接口
+ * 直接由应用分发直播流，不经过 SRS 中转
+ */
+@Slf4j
+@RestController
+@Tag(name = "HTTP-FLV直播接口", description = "应用内置的 HTTP-FLV 直播分发")
+public class LiveStreamController {
+
+    /**
+     * 以分块传输方式持续输出 FLV 直播流，客户端断开或直播流结束时结束响应
+     * <p>
+     * 使用 Servlet 异步与非阻塞输出：订阅队列有数据时在容器线程中写出，写不下时等容器回调，
+     * 观看期间不占用请求线程。
+     */
+    @GetMapping("/live/{key}.flv")
+    @Operation(summary = "HTTP-FLV 直播", description = "如 /live/isup_101.flv，可直接用 flv.js 播放")
+    public void flv(@PathVariable @Parameter(description = "直播流 key，如 isup_101") String key,
+                    HttpServletRequest request, HttpServletResponse response) throws IOException {
+        LiveStreamHub.Channel channel = LiveStreamHub.get(key);
+        if (channel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "直播流不存在");
+            return;
+        }
+        response.setContentType("video/x-flv");
+        response.setHeader("Cache-Control", "no-cache");
+        LiveStreamHub.Subscriber subscriber = channel.subscribe("http:" + request.getRemoteAddr() + ":" + request.getRemotePort());
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        FlvSender sender = new FlvSender(key, async, response.getOutputStream(), subscriber);
+        async.addListener(sender);
+        // 设置后容器即回调 onWritePossible 开始写出
+        response.getOutputStream().setWriteListener(sender);
+        subscriber.setListener(sender::schedule);
+    }
+
+    /**
+     * 一个 HTTP-FLV 连接的非阻塞写出
+     * <p>
+     * 写出只在容器线程中进行且同一时刻只有一个：输出可写时由容器回调，有新 tag 时由输入线程经 {@link AsyncContext#start} 调度。
+     */
+    private static final class FlvSender implements WriteListener, AsyncListener {
+        private final String key;
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private final LiveStreamHub.Subscriber subscriber;
+        // 已调度写出，尚未开始
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        // 已写出但未 flush
+        private boolean dirty;
+
+        FlvSender(String key, AsyncContext async, ServletOutputStream out, LiveStreamHub.Subscriber subscriber) {
+            this.key = key;
+            this.async = async;
+            this.out = out;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * 有新 tag（输入线程调用，不能阻塞）
+         */
+        void schedule() {
+            if (!finished.get() && scheduled.compareAndSet(false, true)) {
+                try {
+                    async.start(this::drain);
+                } catch (IllegalStateException e) {
+                    // 响应已结束
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        private synchronized void drain() {
+            scheduled.set(false);
+            if (finished.get()) {
+                return;
+            }
+            try {
+                while (out.isReady()) {
+                    byte[] tag = subscriber.poll();
+                    if (tag == null) {
+                        if (!dirty) {
+                            return;
+                        }
+                        // 队列取空后再 flush，减少小包
+                        dirty = false;
+                        out.flush();
+                        continue;
+                    }
+                    out.write(tag);
+                    dirty = true;
+                }
+                // 写不下，等容器回调 onWritePossible
+            } catch (IllegalStateException e) {
+                log.debug("直播流 {} 已结束", key);
+                finish();
+            } catch (IOException e) {
+                log.debug("HTTP-FLV 客户端断开: {}", e.getMessage());
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                subscriber.close();
+                try {
+                    async.complete();
+                } catch (IllegalStateException ignored) {
+                    // 连接已由容器结束
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.debug("HTTP-FLV 客户端断开: {}", t.getMessage());
+            finish();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finished.set(true);
+            subscriber.close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * 查看各直播流的订阅者与丢帧统计
+     */
+    @GetMapping("/live/stats")
+    @Operation(summary = "直播分发统计", description = "各直播流的订阅者数量、队列长度与丢帧数")
+    public AjaxResult stats() {
+        return AjaxResult.success(LiveStreamHub.stats());
+    }
+}
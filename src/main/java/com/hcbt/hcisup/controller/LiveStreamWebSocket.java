@@ -0,0 +1,100 @@
+package com.hcbt.hcisup.controller;
+
+import com.hcbt.hcisup.common.LiveStreamHub;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.OnClose;
+import jakarta.websocket.OnError;
+import jakarta.websocket.OnOpen;
+import jakarta.websocket.Session;
+import jakarta.websocket.server.PathParam;
+import jakarta.websocket.server.ServerEndpoint;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * WebSocket-FLV 直播接口
+ * <p>
+ * 每条二进制消息是一个完整的 FLV tag（第一条为 FLV 文件头），flv.js 可直接播放。
+ * 容器为每个连接创建一个实例。
+ */
+@Slf4j
+@Component
+@ServerEndpoint("/ws/live/{key}")
+public class LiveStreamWebSocket {
+
+    private LiveStreamHub.Subscriber subscriber;
+    // 同一时刻只有一条异步发送
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    @OnOpen
+    public void onOpen(Session session, @PathParam("key") String key) throws IOException {
+        LiveStreamHub.Channel channel = LiveStreamHub.get(key);
+        if (channel == null) {
+            session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "live stream not found"));
+            return;
+        }
+        subscriber = channel.subscribe("ws:" + session.getId());
+        // 异步发送：有新 tag 时发出一条，发送完成的回调中继续发下一条，不为每个连接开线程
+        subscriber.setListener(() -> sendNext(session));
+    }
+
+    /**
+     * 发出订阅队列中的下一个 tag（输入线程或发送完成回调中调用，不阻塞）
+     */
+    private void sendNext(Session session) {
+        while (sending.compareAndSet(false, true)) {
+            byte[] tag;
+            try {
+                tag = subscriber.poll();
+            } catch (IllegalStateException e) {
+                log.debug("WebSocket-FLV 发送结束: {}", e.getMessage());
+                closeQuietly(session);
+                return;
+            }
+            if (tag != null) {
+                session.getAsyncRemote().sendBinary(ByteBuffer.wrap(tag), result -> {
+                    sending.set(false);
+                    if (result.isOK()) {
+                        sendNext(session);
+                    } else {
+                        log.debug("WebSocket-FLV 发送失败: {}", result.getException().getMessage());
+                        subscriber.close();
+                        closeQuietly(session);
+                    }
+                });
+                return;
+            }
+            sending.set(false);
+            // 释放标记前到达的 tag 的回调已被跳过，队列不空时重新取
+            if (!subscriber.hasPending()) {
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(Session session) {
+        try {
+            session.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @OnClose
+    public void onClose() {
+        if (subscriber != null) {
+            subscriber.close();
+        }
+    }
+
+    @OnError
+    public void onError(Session session, Throwable error) {
+        log.debug("WebSocket-FLV 连接异常: {}", error.getMessage());
+        if (subscriber != null) {
+            subscriber.close();
+        }
+    }
+}
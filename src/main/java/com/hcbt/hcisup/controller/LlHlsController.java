@@ -0,0 +1,136 @@
+package com.hcbt.hcisup.controller;
+
+import com.hcbt.hcisup.common.AjaxResult;
+import com.hcbt.hcisup.common.LlHlsSegmenter;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * LL-HLS 直播接口
+ * 播放列表与切片都在内存中生成，阻塞刷新请求以 DeferredResult 挂起，不占用请求线程
+ */
+@RestController
+@RequestMapping("/hls")
+@Tag(name = "LL-HLS直播接口", description = "应用内置的低延迟 HLS（fMP4）分发")
+public class LlHlsController {
+
+    private static final MediaType PLAYLIST = MediaType.parseMediaType("application/vnd.apple.mpegurl");
+    private static final MediaType MP4 = MediaType.parseMediaType("video/mp4");
+
+    /**
+     * 播放列表，带 _HLS_msn（可选 _HLS_part）时等到对应切片生成后再返回
+     */
+    @GetMapping("/{key}/index.m3u8")
+    @Operation(summary = "LL-HLS 播放列表", description = "如 /hls/isup_101/index.m3u8，可直接用 hls.js 或 Safari 播放")
+    public DeferredResult<ResponseEntity<String>> playlist(
+            @PathVariable @Parameter(description = "直播流 key，如 isup_101") String key,
+            @RequestParam(name = "_HLS_msn", required = false) @Parameter(description = "阻塞刷新：等待的媒体序号") Long msn,
+            @RequestParam(name = "_HLS_part", required = false) @Parameter(description = "阻塞刷新：等待的部分切片序号") Integer part) {
+        LlHlsSegmenter segmenter = LlHlsSegmenter.get(key);
+        if (segmenter == null) {
+            return completed(ResponseEntity.status(HttpStatus.NOT_FOUND).body("直播流不存在"));
+        }
+        if (msn == null) {
+            if (part != null) {
+                return completed(ResponseEntity.badRequest().body("_HLS_part 需要与 _HLS_msn 一起使用"));
+            }
+            return completed(playlistResponse(segmenter));
+        }
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<>(segmenter.getBlockTimeoutMs());
+        Runnable callback = () -> result.setResult(playlistResponse(segmenter));
+        int state = segmenter.await(msn, part == null ? -1 : part, callback);
+        if (state < 0) {
+            result.setResult(ResponseEntity.badRequest().body("_HLS_msn 超出范围"));
+        } else if (state > 0) {
+            callback.run();
+        } else {
+            result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("等待切片超时")));
+            result.onCompletion(() -> segmenter.cancel(callback));
+        }
+        return result;
+    }
+
+    /**
+     * 初始化段
+     */
+    @GetMapping("/{key}/init.mp4")
+    @Operation(summary = "LL-HLS 初始化段")
+    public ResponseEntity<byte[]> init(@PathVariable String key) {
+        LlHlsSegmenter segmenter = LlHlsSegmenter.get(key);
+        return media(segmenter == null ? null : segmenter.initSegment(), "max-age=60");
+    }
+
+    /**
+     * 完整切片
+     */
+    @GetMapping("/{key}/seg{msn:\\d+}.m4s")
+    @Operation(summary = "LL-HLS 切片")
+    public ResponseEntity<byte[]> segment(@PathVariable String key, @PathVariable long msn) {
+        LlHlsSegmenter segmenter = LlHlsSegmenter.get(key);
+        return media(segmenter == null ? null : segmenter.segment(msn), "max-age=60");
+    }
+
+    /**
+     * 部分切片；预加载提示中的下一个部分切片会挂起到生成为止
+     */
+    @GetMapping("/{key}/part{msn:\\d+}.{index:\\d+}.m4s")
+    @Operation(summary = "LL-HLS 部分切片")
+    public DeferredResult<ResponseEntity<byte[]>> part(@PathVariable String key, @PathVariable long msn, @PathVariable int index) {
+        LlHlsSegmenter segmenter = LlHlsSegmenter.get(key);
+        if (segmenter == null) {
+            return completed(ResponseEntity.notFound().build());
+        }
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(segmenter.getBlockTimeoutMs());
+        Runnable callback = () -> result.setResult(media(segmenter.part(msn, index), "max-age=60"));
+        int state = segmenter.await(msn, index, callback);
+        if (state < 0) {
+            result.setResult(ResponseEntity.notFound().build());
+        } else if (state > 0) {
+            callback.run();
+        } else {
+            result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build()));
+            result.onCompletion(() -> segmenter.cancel(callback));
+        }
+        return result;
+    }
+
+    /**
+     * 查看各路切片统计
+     */
+    @GetMapping("/stats")
+    @Operation(summary = "LL-HLS 切片统计", description = "各路的切片数、窗口大小、内存占用与挂起的阻塞请求数")
+    public AjaxResult stats() {
+        return AjaxResult.success(LlHlsSegmenter.stats());
+    }
+
+    private static ResponseEntity<String> playlistResponse(LlHlsSegmenter segmenter) {
+        String playlist = segmenter.playlist();
+        if (playlist == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("暂无切片");
+        }
+        return ResponseEntity.ok().contentType(PLAYLIST).header("Cache-Control", "no-cache").body(playlist);
+    }
+
+    private static ResponseEntity<byte[]> media(byte[] data, String cacheControl) {
+        if (data == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().contentType(MP4).header("Cache-Control", cacheControl).body(data);
+    }
+
+    private static <T> DeferredResult<T> completed(T value) {
+        DeferredResult<T> result = new DeferredResult<>();
+        result.setResult(value);
+        return result;
+    }
+}
@@ -8,6 +8,7 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.annotation.Resource;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.web.bind.annotation.*;
 
@@ -16,7 +17,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created with IntelliJ IDEA
@@ -37,6 +38,10 @@ public class PlayBackVideoController {
     @Resource
     private SMS sms;
 
+    // 回放接口等待的最长时间（毫秒），回放数据接收完成后才返回
+    @Value("${app.stream.async.playback-timeout-ms:120000}")
+    private long playBackTimeoutMs;
+
     /**
      * 开始录制
      * @param luserId
@@ -99,25 +104,18 @@ public class PlayBackVideoController {
      */
     @PostMapping("backLook/start/{luserId}")
     @Operation(summary = "开始录像回放")
-    public AjaxResult startLookBackVideo(@PathVariable("luserId") Integer luserId,
-                                         @RequestParam("filename") String filename,
-                                         @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime startTime,
-                                         @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime endTime){
-
-        CompletableFuture<String> completableFuture = new CompletableFuture<>();
-
-        sms.startPlayBackByFileName(luserId,filename,startTime,endTime,completableFuture);
-
-        try {
-            String result = completableFuture.get();
-            if(Objects.equals(result, "true")){
-                return AjaxResult.success();
-            }
-            return AjaxResult.error();
-        } catch (InterruptedException | ExecutionException e) {
-            log.error(e.getMessage());
-            return AjaxResult.error();
-        }
+    public CompletableFuture<AjaxResult> startLookBackVideo(@PathVariable("luserId") Integer luserId,
+                                                            @RequestParam("filename") String filename,
+                                                            @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime startTime,
+                                                            @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime endTime){
+        // 同一文件同一时间段并发的请求合并为一次回放，接口线程不等待
+        return sms.startPlayBackAsync(luserId, filename, startTime, endTime)
+                .thenApply(result -> Objects.equals(result, "true") ? AjaxResult.success() : AjaxResult.error())
+                .exceptionally(e -> {
+                    log.error(e.getMessage());
+                    return AjaxResult.error();
+                })
+                .completeOnTimeout(AjaxResult.error("回放超时，请稍后重试"), playBackTimeoutMs, TimeUnit.MILLISECONDS);
     }
 
     /**
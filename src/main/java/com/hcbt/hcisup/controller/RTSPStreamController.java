@@ -1,7 +1,11 @@
 package com.hcbt.hcisup.controller;
 
+import com.hcbt.hcisup.common.AbrLadder;
 import com.hcbt.hcisup.common.AjaxResult;
+import com.hcbt.hcisup.common.MediaProbeCache;
+import com.hcbt.hcisup.common.PipelineScheduler;
 import com.hcbt.hcisup.common.RTSPStreamHandler;
+import com.hcbt.hcisup.common.RTSPStreamHandlerJavaCV;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -44,7 +48,8 @@ public class RTSPStreamController {
     @Operation(summary = "启动推流接口", description = "根据用户ID、通道号、拉流地址启动推流")
     public AjaxResult startStream(
             @RequestParam @Parameter(description = "用户ID")int userId,
-            @RequestParam @Parameter(description = "通道号+码流类型，如拉取主码流的1号通道，就是101，拉取子码流就是102")int channel
+            @RequestParam @Parameter(description = "通道号+码流类型，如拉取主码流的1号通道，就是101，拉取子码流就是102")int channel,
+            @RequestParam(required = false) @Parameter(description = "规格（开启码率阶梯时有效），如 source、480p、360p，默认原始分辨率")String rendition
     ) {
         int dwStreamType = Integer.parseInt(String.valueOf(channel).substring(String.valueOf(channel).length() - 2));
         String key = "rtsp" + "_" + channel;
@@ -61,9 +66,18 @@ public class RTSPStreamController {
         }
 
         // FLV 播放地址（供 flv.js 使用）
-        String flvUrl = String.format("http://%s:%d/live/%s.flv", publicIp, httpPort, key);
-        Map<String, String> data = new HashMap<>();
-        data.put("flvUrl", flvUrl);
+        String flvBase = String.format("http://%s:%d/live/%s", publicIp, httpPort, key);
+        Map<String, Object> data = new HashMap<>();
+        data.put("flvUrl", flvBase + ".flv");
+        if (RTSPStreamHandler.isLadder(channel)) {
+            // 同一路解码输出的各个规格，观看者按需选择
+            Map<String, String> renditions = AbrLadder.urls(flvBase, ".flv");
+            data.put("renditions", renditions);
+            AbrLadder.Rendition picked = rendition == null ? null : AbrLadder.find(rendition);
+            if (picked != null) {
+                data.put("flvUrl", renditions.get(picked.name));
+            }
+        }
         data.put("code", startResult.videoCodec);
         data.put("message", startResult.message);
         return AjaxResult.success("推流已启动", data);
@@ -92,6 +106,25 @@ public class RTSPStreamController {
 
     }
 
+    /**
+     * 观看者心跳
+     *
+     * @param userId 用户 ID
+     * @param channel 通道号
+     * @return 通道未在推流时返回错误，客户端应重新调用启动接口
+     */
+    @PostMapping("/heartbeat")
+    @Operation(summary = "观看者心跳", description = "续期观看者租约，启用租约后超过有效期未心跳的用户视为离开，最后一个观看者离开后停止推流")
+    public AjaxResult heartbeat(
+            @RequestParam @Parameter(description = "用户ID")int userId,
+            @RequestParam @Parameter(description = "通道号")int channel
+    ) {
+        if (!RTSPStreamHandler.heartbeat(userId, channel)) {
+            return AjaxResult.error("通道未在推流，请重新启动");
+        }
+        return AjaxResult.success("心跳成功");
+    }
+
     /**
      * 查看正在播放的通道有哪些
      */
@@ -115,6 +148,33 @@ public class RTSPStreamController {
         return AjaxResult.success(RTSPStreamHandler.isRunning( channel));
     }
 
+    /**
+     * 查看 JavaCV 推流的 CPU
+     */
+    @GetMapping("/javacvStats")
+    @Operation(summary = "JavaCV 推流统计", description = "各通道的推流方式（按包复制或转码）、帧率与推流线程占用的 CPU 核数")
+    public AjaxResult javacvStats() {
+        return AjaxResult.success(RTSPStreamHandlerJavaCV.stats());
+    }
+
+    /**
+     * 查看流水线调度
+     */
+    @GetMapping("/pipelineScheduler")
+    @Operation(summary = "流水线调度统计", description = "共享线程池的线程数、排队与窃取次数，各任务（JavaCV 通道、检测）的 CPU 与调度等待时间分布")
+    public AjaxResult pipelineScheduler() {
+        return AjaxResult.success(PipelineScheduler.stats());
+    }
+
+    /**
+     * 查看输入流探测缓存
+     */
+    @GetMapping("/probeCache")
+    @Operation(summary = "输入流探测缓存", description = "ffprobe 探测结果（编码、分辨率、帧率）的命中率与各地址的缓存状态")
+    public AjaxResult probeCache() {
+        return AjaxResult.success(MediaProbeCache.stats());
+    }
+
     // /**
     //  * 获取播放地址（用于前端 flv.js 播放）
     //  * @param userId 用户 ID
@@ -112,10 +112,20 @@ public class VideoRecordingController {
      * @return 操作结果
      */
     @PostMapping("/start/{luserId}")
-    @Operation(summary = "启动用户的检测流程")
-    public ResponseEntity<?> startDetection(@PathVariable("luserId") Integer luserId) {
-        frameDetectionProcessor.startDetection(luserId);
+    @Operation(summary = "启动用户的检测流程", description = "指定 channel 时直接取该 JavaCV 推流通道解码后的帧，否则读取帧目录中的图片")
+    public ResponseEntity<?> startDetection(@PathVariable("luserId") Integer luserId,
+                                            @RequestParam(required = false) Integer channel) {
         Map<String, Object> response = new HashMap<>();
+        if (channel != null) {
+            if (!frameDetectionProcessor.startDetection(luserId, channel)) {
+                response.put("status", "channel not streaming");
+                response.put("channel", channel);
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+            }
+            response.put("channel", channel);
+        } else {
+            frameDetectionProcessor.startDetection(luserId);
+        }
         response.put("status", "started");
         response.put("luserId", luserId);
         return ResponseEntity.ok(response);
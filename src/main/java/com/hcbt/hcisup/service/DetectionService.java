@@ -1,6 +1,7 @@
 package com.hcbt.hcisup.service;
 
 import com.hcbt.hcisup.common.Inference;
+import com.hcbt.hcisup.common.MatPool;
 import com.hcbt.hcisup.model.Detection;
 import lombok.extern.slf4j.Slf4j;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
@@ -32,12 +33,21 @@ public class DetectionService {
     private final Inference inferencePedestrian;
     // 定义结果保存路径
     private final Path resultDir;
+    // 检测框颜色：绿色用于安全背心，蓝色用于行人（只读，所有检测结果共用）
+    private static final Scalar VEST_COLOR = new Scalar(0, 255, 0, 0);
+    private static final Scalar PEDESTRIAN_COLOR = new Scalar(255, 0, 0, 0);
 
     // 构造函数，初始化推理模型和结果保存路径
     public DetectionService(
             @Value("${app.models.model-path-vest}") String modelPathVest,
             @Value("${app.models.model-path-pedestrian}") String modelPathPedestrian,
-            @Value("${app.result-dir}") String resultDirPath) {
+            @Value("${app.result-dir}") String resultDirPath,
+            // 是否启用 Mat 池（推理与取帧的中间 Mat 按尺寸与类型复用）
+            @Value("${app.stream.mat-pool.enabled:true}") boolean matPoolEnabled,
+            // 每个尺寸与类型最多缓存的空闲 Mat 数
+            @Value("${app.stream.mat-pool.max-per-key:4}") int matPoolMaxPerKey) {
+        // Mat 池只服务于推理与取帧，需在创建推理模型之前配置
+        MatPool.configure(matPoolEnabled, matPoolMaxPerKey);
         this.resultDir = Paths.get(resultDirPath);
         log.info("Loading vest model from: " + modelPathVest);
         log.info("Loading pedestrian model from: " + modelPathPedestrian);
@@ -73,40 +83,45 @@ public class DetectionService {
         // 使用 OpenCV 读取图像为 Mat 对象
         Mat image = opencv_imgcodecs.imread(imagePath);
         if (image.empty()) {
+            image.close();
             throw new RuntimeException("无法读取图像文件: " + imagePath);
         }
+        try {
+            // 运行对象检测  调用安全背心模型执行推理，返回检测结果
+            List<Detection> detectionsVest = inferenceVest.runInference(image);
+            // 给所有检测到的安全背心设置统一颜色（绿色）
+            for (Detection d : detectionsVest) {
+                d.setColor(VEST_COLOR); // 绿色用于安全背心
+            }
+            // 调用行人检测模型执行推理
+            List<Detection> detectionsPedestrian = inferencePedestrian.runInference(image);
+            // 给所有检测到的行人设置统一颜色（蓝色）
+            for (Detection d : detectionsPedestrian) {
+                d.setColor(PEDESTRIAN_COLOR); // 蓝色用于行人
+            }
 
-        // 运行对象检测  调用安全背心模型执行推理，返回检测结果
-        List<Detection> detectionsVest = inferenceVest.runInference(image);
-        // 给所有检测到的安全背心设置统一颜色（绿色）
-        for (Detection d : detectionsVest) {
-            d.setColor(new Scalar(0, 255, 0, 0)); // 绿色用于安全背心
-        }
-        // 调用行人检测模型执行推理
-        List<Detection> detectionsPedestrian = inferencePedestrian.runInference(image);
-        // 给所有检测到的行人设置统一颜色（蓝色）
-        for (Detection d : detectionsPedestrian) {
-            d.setColor(new Scalar(255, 0, 0, 0)); // 蓝色用于行人
-        }
-
-        //  合并两个模型的所有检测结果  在图像上绘制检测结果
-        List<Detection> allDetections = new ArrayList<>();
-        allDetections.addAll(detectionsVest);           // 添加安全背心检测框
-        allDetections.addAll(detectionsPedestrian);     // 添加行人检测框
-        // 将所有检测结果绘制到原始图像上
-        drawDetections(image, allDetections);
+            //  合并两个模型的所有检测结果  在图像上绘制检测结果
+            List<Detection> allDetections = new ArrayList<>();
+            allDetections.addAll(detectionsVest);           // 添加安全背心检测框
+            allDetections.addAll(detectionsPedestrian);     // 添加行人检测框
+            // 将所有检测结果绘制到原始图像上
+            drawDetections(image, allDetections);
 
-        // 保存结果图像
-        // 获取原始文件名（不含路径）
-        String originalFilename = Paths.get(imagePath).getFileName().toString();
-        // 构建新的结果图像文件名（添加前缀 result_）
-        String resultFilename = "result_" + originalFilename;
-        // 构建保存路径（使用 resultDir 目录）
-        Path resultPath = resultDir.resolve(resultFilename);
-        // 使用 OpenCV 将绘制后的图像保存到文件系统
-        opencv_imgcodecs.imwrite(resultPath.toString(), image);
-        // 返回生成的结果图像文件名
-        return resultFilename;
+            // 保存结果图像
+            // 获取原始文件名（不含路径）
+            String originalFilename = Paths.get(imagePath).getFileName().toString();
+            // 构建新的结果图像文件名（添加前缀 result_）
+            String resultFilename = "result_" + originalFilename;
+            // 构建保存路径（使用 resultDir 目录）
+            Path resultPath = resultDir.resolve(resultFilename);
+            // 使用 OpenCV 将绘制后的图像保存到文件系统
+            opencv_imgcodecs.imwrite(resultPath.toString(), image);
+            // 返回生成的结果图像文件名
+            return resultFilename;
+        } finally {
+            // imread 分配的 native 内存立即释放，不等 GC
+            image.close();
+        }
     }
 
     /**
@@ -137,6 +152,8 @@ public class DetectionService {
             recorder.start();  // 启动写入器
 
             // 创建OpenCV帧转换器  用于帧之间的 OpenCV 与 JavaCV 的转换
+            // 转换只包装抓取器的帧缓冲区，不复制：在 Mat 上绘制即修改该帧，写入时再包装回 Frame，
+            // 抓取器每帧复用同一块缓冲区，转换器的包装对象也随之复用，推理的中间缓冲区由 MatPool 复用
             OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
 
             // 处理每一帧
@@ -149,12 +166,12 @@ public class DetectionService {
                     // 检测对象
                     List<Detection> detectionsVest = inferenceVest.runInference(mat);
                     for (Detection d : detectionsVest) {
-                        d.setColor(new Scalar(0, 255, 0, 0)); // 绿色用于安全背心
+                        d.setColor(VEST_COLOR); // 绿色用于安全背心
                     }
 
                     List<Detection> detectionsPedestrian = inferencePedestrian.runInference(mat);
                     for (Detection d : detectionsPedestrian) {
-                        d.setColor(new Scalar(255, 0, 0, 0)); // 蓝色用于行人
+                        d.setColor(PEDESTRIAN_COLOR); // 蓝色用于行人
                     }
 
                     List<Detection> allDetections = new ArrayList<>();
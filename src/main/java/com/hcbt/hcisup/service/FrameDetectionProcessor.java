@@ -1,5 +1,9 @@
 package com.hcbt.hcisup.service;
 
+import com.hcbt.hcisup.common.FrameTap;
+import com.hcbt.hcisup.common.MatPool;
+import com.hcbt.hcisup.common.PipelineScheduler;
+import com.hcbt.hcisup.common.RTSPStreamHandlerJavaCV;
 import com.hcbt.hcisup.model.Detection;
 import lombok.extern.slf4j.Slf4j;
 import org.bytedeco.opencv.opencv_core.*;
@@ -30,20 +34,123 @@ public class FrameDetectionProcessor {
     private final String framesDirBasePath;
     // 存储每个用户的检测执行线程池（单线程）
     private final ConcurrentHashMap<Integer, ExecutorService> detectionExecutors = new ConcurrentHashMap<>();
+    // 启用流水线调度时每个用户的检测任务（运行在共享线程池中，不独占线程）
+    private final ConcurrentHashMap<Integer, PipelineScheduler.Task> detectionTasks = new ConcurrentHashMap<>();
     // 存储每个用户最新处理结果图像的路径
     private final ConcurrentHashMap<Integer, String> latestResultPaths = new ConcurrentHashMap<>();
     // 存储每个用户上一次处理的帧文件名，用于避免重复处理
     private final ConcurrentHashMap<Integer, String> lastProcessedFrames = new ConcurrentHashMap<>();
 
+    // 从推流会话直接取帧时的采样帧率
+    @Value("${app.stream.detection.sample-fps:2}")
+    private double sampleFps;
+
     // 构造函数，注入framesDirBasePath
     public FrameDetectionProcessor(@Value("${app.stream.frames-dir}") String framesDirBasePath) {
         this.framesDirBasePath = framesDirBasePath;
     }
 
+    /**
+     * 启动检测流程，帧直接取自 JavaCV 推流会话解码后的帧（不经过磁盘上的 JPEG）
+     *
+     * @param channel JavaCV 推流的通道号
+     * @return 通道未在推流时返回 false
+     */
+    public boolean startDetection(Integer luserId, int channel) {
+        // 如果已经在处理，先停止
+        stopDetection(luserId);
+        FrameTap.Subscription frames = RTSPStreamHandlerJavaCV.subscribeFrames(channel, sampleFps);
+        if (frames == null) {
+            log.warn("通道 {} 未在推流，无法启动用户 {} 的检测", channel, luserId);
+            return false;
+        }
+        if (PipelineScheduler.isEnabled()) {
+            String resultsDirPath = framesDirBasePath + luserId + "/results";
+            new File(resultsDirPath).mkdirs();
+            long[] index = {0};
+            // 推理在独立的推理线程池中运行，不占推流的工作线程
+            PipelineScheduler.Task task = PipelineScheduler.create(PipelineScheduler.Lane.INFERENCE,
+                    "detect_" + luserId, t -> detectTapFrame(luserId, channel, frames, resultsDirPath, index), frames::close);
+            detectionTasks.put(luserId, task);
+            // 有新帧时唤醒任务
+            frames.setListener(task::wakeup);
+            log.info("用户 {} 的检测任务已启动（流水线调度），取通道 {} 的解码帧，采样 {} 帧/秒", luserId, channel, sampleFps);
+            return true;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        detectionExecutors.put(luserId, executor);
+        executor.submit(() -> runTapDetectionLoop(luserId, channel, frames));
+        log.info("用户 {} 的检测流程已启动，取通道 {} 的解码帧，采样 {} 帧/秒", luserId, channel, sampleFps);
+        return true;
+    }
+
+    // 从推流会话取帧的检测循环
+    private void runTapDetectionLoop(Integer luserId, int channel, FrameTap.Subscription frames) {
+        String resultsDirPath = framesDirBasePath + luserId + "/results";
+        File resultsDir = new File(resultsDirPath);
+        if (!resultsDir.exists()) {
+            resultsDir.mkdirs();
+        }
+        long index = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Mat image = frames.take(1000);
+                if (image == null) {
+                    if (frames.isClosed()) {
+                        log.info("通道 {} 推流已停止，用户 {} 的检测结束", channel, luserId);
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    // 结果图像按序号循环命名（最多 64 个文件），相邻两帧路径不同，供最新结果与 MJPEG 接口读取
+                    String frameName = String.format("tap_%d_%02d.jpg", channel, index++ % 64);
+                    detectAndSave(luserId, image, frameName, resultsDirPath + "/result_" + frameName);
+                } finally {
+                    MatPool.release(image);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("用户 {} 检测循环被中断", luserId);
+        } finally {
+            frames.close();
+        }
+    }
+
+    // 流水线调度下的检测阶段：取一帧推理，没有新帧时等待唤醒
+    private PipelineScheduler.Result detectTapFrame(Integer luserId, int channel, FrameTap.Subscription frames,
+                                                    String resultsDirPath, long[] index) {
+        Mat image = frames.poll();
+        if (image == null) {
+            if (frames.isClosed()) {
+                log.info("通道 {} 推流已停止，用户 {} 的检测结束", channel, luserId);
+                return PipelineScheduler.Result.DONE;
+            }
+            return PipelineScheduler.Result.IDLE;
+        }
+        try {
+            String frameName = String.format("tap_%d_%02d.jpg", channel, index[0]++ % 64);
+            detectAndSave(luserId, image, frameName, resultsDirPath + "/result_" + frameName);
+        } finally {
+            MatPool.release(image);
+        }
+        return PipelineScheduler.Result.MORE;
+    }
+
     // 启动检测流程
     public void startDetection(Integer luserId) {
         // 如果已经在处理，先停止
         stopDetection(luserId);
+        if (PipelineScheduler.isEnabled()) {
+            new File(framesDirBasePath + luserId + "/results").mkdirs();
+            PipelineScheduler.Task task = PipelineScheduler.create(PipelineScheduler.Lane.INFERENCE,
+                    "detect_" + luserId, t -> detectNextFile(luserId, t), null);
+            detectionTasks.put(luserId, task);
+            task.wakeup();
+            log.info("用户 {} 的检测任务已启动（流水线调度）", luserId);
+            return;
+        }
         // 创建一个新的单线程执行器
         ExecutorService executor = Executors.newSingleThreadExecutor();
         // 将执行器放入map中，以luserId为key
@@ -69,78 +176,17 @@ public class FrameDetectionProcessor {
         // 循环检测
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                // 获取用户帧目录
-                File framesDir = new File(framesDirPath);
-                // 获取用户帧目录下的所有jpg文件
-                File[] frameFiles = framesDir.listFiles((dir, name) -> name.endsWith(".jpg"));
-                // 如果没有可用帧，等待500毫秒
-                if (frameFiles == null || frameFiles.length == 0) {
-                    log.debug("用户 {} 无可用帧，等待中", luserId);
-                    Thread.sleep(500);
-                    continue;
-                }
-
-                // 按文件名排序以确保顺序处理
-                List<File> sortedFrames = Arrays.stream(frameFiles)
-                        .sorted(Comparator.comparing(File::getName))
-                        .toList();
-
-                // 获取上次处理的帧
-                String lastProcessedFrame = lastProcessedFrames.get(luserId);
-                File frameToProcess = null;
-
                 // 找到下一个未处理的帧
-                for (File frame : sortedFrames) {
-                    if (lastProcessedFrame == null || frame.getName().compareTo(lastProcessedFrame) > 0) {
-                        frameToProcess = frame;
-                        break;
-                    }
-                }
-
+                File frameToProcess = findNextFrame(luserId, framesDirPath);
                 // 如果没有新帧，等待500毫秒
                 if (frameToProcess == null) {
-                    log.debug("用户 {} 无新帧，等待中", luserId);
                     Thread.sleep(500);
                     continue;
                 }
-
-                // 获取帧路径
-                String framePath = frameToProcess.getAbsolutePath();
-                // 获取结果文件名
-                String resultFilename = "result_" + frameToProcess.getName();
-                // 获取结果路径
-                String resultPath = resultsDirPath + "/" + resultFilename;
-
-                // 读取帧
-                Mat image = opencv_imgcodecs.imread(framePath);
-                // 如果无法读取帧，记录错误日志
-                if (image.empty()) {
-                    log.error("无法读取帧: {}", framePath);
+                if (!detectFile(luserId, frameToProcess, resultsDirPath)) {
                     continue;
                 }
 
-                try {
-                    // 运行推理
-                    List<Detection> detections = detectionService.runInference(image);
-                    // 绘制检测结果
-                    drawDetections(image, detections);
-                    // 保存结果
-                    opencv_imgcodecs.imwrite(resultPath, image);
-
-                    // 更新上次处理的帧和最新结果路径
-                    lastProcessedFrames.put(luserId, frameToProcess.getName());
-                    latestResultPaths.put(luserId, resultPath);
-                    log.info("用户 {} 处理帧: {}，结果保存至: {}", luserId, frameToProcess.getName(), resultPath);
-                } catch (Exception e) {
-                    // 如果运行推理出错，记录错误日志，绘制空检测结果，保存结果
-                    log.error("用户 {} 运行推理时出错: {}", luserId, e.getMessage());
-                    drawDetections(image, new ArrayList<>());
-                    opencv_imgcodecs.imwrite(resultPath, image);
-                    // 更新上次处理的帧和最新结果路径
-                    lastProcessedFrames.put(luserId, frameToProcess.getName());
-                    latestResultPaths.put(luserId, resultPath);
-                }
-
                 // 控制处理速度，避免过快消耗CPU
                 Thread.sleep(500);
             } catch (InterruptedException e) {
@@ -162,6 +208,105 @@ public class FrameDetectionProcessor {
         }
     }
 
+    // 流水线调度下的帧目录检测：每次处理一帧或检查一次新帧，与独立线程一样间隔 500 毫秒
+    private PipelineScheduler.Result detectNextFile(Integer luserId, PipelineScheduler.Task task) {
+        String framesDirPath = framesDirBasePath + luserId;
+        try {
+            File frameToProcess = findNextFrame(luserId, framesDirPath);
+            if (frameToProcess != null) {
+                detectFile(luserId, frameToProcess, framesDirPath + "/results");
+            }
+            task.wakeupAfter(500);
+        } catch (Exception e) {
+            log.error("用户 {} 检测帧时出错: {}", luserId, e.getMessage());
+            task.wakeupAfter(1000);
+        }
+        return PipelineScheduler.Result.IDLE;
+    }
+
+    /**
+     * 找到帧目录中下一个未处理的帧（按文件名排序）
+     * @return 没有新帧时返回 null
+     */
+    private File findNextFrame(Integer luserId, String framesDirPath) {
+        // 获取用户帧目录
+        File framesDir = new File(framesDirPath);
+        // 获取用户帧目录下的所有jpg文件
+        File[] frameFiles = framesDir.listFiles((dir, name) -> name.endsWith(".jpg"));
+        if (frameFiles == null || frameFiles.length == 0) {
+            log.debug("用户 {} 无可用帧，等待中", luserId);
+            return null;
+        }
+
+        // 按文件名排序以确保顺序处理
+        List<File> sortedFrames = Arrays.stream(frameFiles)
+                .sorted(Comparator.comparing(File::getName))
+                .toList();
+
+        // 获取上次处理的帧
+        String lastProcessedFrame = lastProcessedFrames.get(luserId);
+        for (File frame : sortedFrames) {
+            if (lastProcessedFrame == null || frame.getName().compareTo(lastProcessedFrame) > 0) {
+                return frame;
+            }
+        }
+        log.debug("用户 {} 无新帧，等待中", luserId);
+        return null;
+    }
+
+    /**
+     * 读取帧文件并检测
+     * @return 无法读取帧时返回 false
+     */
+    private boolean detectFile(Integer luserId, File frameToProcess, String resultsDirPath) {
+        // 获取帧路径
+        String framePath = frameToProcess.getAbsolutePath();
+        // 获取结果路径
+        String resultPath = resultsDirPath + "/result_" + frameToProcess.getName();
+
+        // 读取帧
+        Mat image = opencv_imgcodecs.imread(framePath);
+        // 如果无法读取帧，记录错误日志
+        if (image.empty()) {
+            log.error("无法读取帧: {}", framePath);
+            image.close();
+            return false;
+        }
+
+        try {
+            detectAndSave(luserId, image, frameToProcess.getName(), resultPath);
+        } finally {
+            // imread 分配的 native 内存立即释放，不等 GC
+            image.close();
+        }
+        return true;
+    }
+
+    // 对一帧运行推理、绘制并保存结果
+    private void detectAndSave(Integer luserId, Mat image, String frameName, String resultPath) {
+        try {
+            // 运行推理
+            List<Detection> detections = detectionService.runInference(image);
+            // 绘制检测结果
+            drawDetections(image, detections);
+            // 保存结果
+            opencv_imgcodecs.imwrite(resultPath, image);
+
+            // 更新上次处理的帧和最新结果路径
+            lastProcessedFrames.put(luserId, frameName);
+            latestResultPaths.put(luserId, resultPath);
+            log.info("用户 {} 处理帧: {}，结果保存至: {}", luserId, frameName, resultPath);
+        } catch (Exception e) {
+            // 如果运行推理出错，记录错误日志，绘制空检测结果，保存结果
+            log.error("用户 {} 运行推理时出错: {}", luserId, e.getMessage());
+            drawDetections(image, new ArrayList<>());
+            opencv_imgcodecs.imwrite(resultPath, image);
+            // 更新上次处理的帧和最新结果路径
+            lastProcessedFrames.put(luserId, frameName);
+            latestResultPaths.put(luserId, resultPath);
+        }
+    }
+
     // 停止检测流程
     public void stopDetection(Integer luserId) {
         // 从检测线程池中移除指定用户的线程池
@@ -173,6 +318,12 @@ public class FrameDetectionProcessor {
             // 记录日志，表示指定用户的检测流程已停止
             log.info("用户 {} 的检测流程已停止", luserId);
         }
+        PipelineScheduler.Task task = detectionTasks.remove(luserId);
+        if (task != null) {
+            // 正在推理的帧处理完后结束
+            task.cancel();
+            log.info("用户 {} 的检测任务已停止", luserId);
+        }
         // 从最新结果路径集合中移除指定用户的路径
         latestResultPaths.remove(luserId);
         // 从最后处理的帧集合中移除指定用户的帧
@@ -190,6 +341,10 @@ public class FrameDetectionProcessor {
      * @return 是否正在处理
      */
     public boolean isProcessingUser(Integer luserId) {
+        PipelineScheduler.Task task = detectionTasks.get(luserId);
+        if (task != null) {
+            return !task.isDone();
+        }
         ExecutorService executor = detectionExecutors.get(luserId);
         return executor != null && !executor.isShutdown() && !executor.isTerminated();
     }
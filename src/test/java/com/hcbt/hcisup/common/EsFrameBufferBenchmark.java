@@ -0,0 +1,105 @@
+package com.hcbt.hcisup.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一帧裸流的组装：原来每个 PES 包先复制出负载、再与已有数据拼接成新数组的写法，
+ * 与追加到复用的 {@link EsFrameBuffer} 的写法对比
+ * <p>
+ * 每帧按 PES 负载大小切成若干包，包头为 9 字节固定部分加 5 字节扩展（与设备回调的 PES 包相同）。
+ * 16KB 近似子码流 P 帧，256KB 近似主码流 I 帧。
+ * <p>
+ * 运行：{@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.hcbt.hcisup.common.EsFrameBufferBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EsFrameBufferBenchmark {
+
+    // PES 头扩展部分的长度（PTS 等），写在第 9 个字节
+    private static final int HEADER_DATA_LENGTH = 5;
+
+    @Param({"16384", "262144"})
+    public int frameBytes;
+
+    @Param({"4096", "65000"})
+    public int pesPayload;
+
+    // 一帧对应的 PES 包
+    private byte[][] packets;
+    private final EsFrameBuffer frameBuffer = new EsFrameBuffer();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(20250603L);
+        int count = (frameBytes + pesPayload - 1) / pesPayload;
+        packets = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int len = Math.min(pesPayload, frameBytes - i * pesPayload);
+            byte[] packet = new byte[9 + HEADER_DATA_LENGTH + len];
+            random.nextBytes(packet);
+            packet[0] = 0;
+            packet[1] = 0;
+            packet[2] = 1;
+            packet[3] = (byte) 0xE0;
+            packet[8] = HEADER_DATA_LENGTH;
+            packets[i] = packet;
+        }
+    }
+
+    @Benchmark
+    public byte[] legacyConcatenate() {
+        byte[] allEsBytes = null;
+        for (byte[] packet : packets) {
+            // 提取裸流
+            int from = 9 + (packet[8] & 0xff);
+            int len = packet.length - from;
+            byte[] esBytes = new byte[len];
+            System.arraycopy(packet, from, esBytes, 0, len);
+            // 拼接
+            if (allEsBytes == null) {
+                allEsBytes = esBytes;
+            } else {
+                byte[] combinedBytes = new byte[allEsBytes.length + esBytes.length];
+                System.arraycopy(allEsBytes, 0, combinedBytes, 0, allEsBytes.length);
+                System.arraycopy(esBytes, 0, combinedBytes, allEsBytes.length, esBytes.length);
+                allEsBytes = combinedBytes;
+            }
+        }
+        return allEsBytes;
+    }
+
+    @Benchmark
+    public int esFrameBuffer() {
+        frameBuffer.reset();
+        for (byte[] packet : packets) {
+            int from = 9 + (packet[8] & 0xff);
+            frameBuffer.append(packet, from, packet.length - from);
+        }
+        return frameBuffer.length();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EsFrameBufferBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,53 @@
+package com.hcbt.hcisup.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * 耗时样本：容量内按全部样本统计，超过容量后只保留最近的样本
+ */
+class LatencySamplesTest {
+
+    @Test
+    void emptySnapshotHasOnlyCount() {
+        Map<String, Object> snapshot = new LatencySamples(8).snapshot();
+
+        assertEquals(0, snapshot.get("count"));
+        assertFalse(snapshot.containsKey("p50"));
+    }
+
+    @Test
+    void percentilesOverAllSamples() {
+        LatencySamples samples = new LatencySamples(200);
+        // 乱序写入 1..100
+        for (int i = 0; i < 100; i++) {
+            samples.add((i * 37) % 100 + 1);
+        }
+
+        Map<String, Object> snapshot = samples.snapshot();
+
+        assertEquals(100, snapshot.get("count"));
+        assertEquals(51L, snapshot.get("p50"));
+        assertEquals(99L, snapshot.get("p99"));
+        assertEquals(100L, snapshot.get("max"));
+    }
+
+    @Test
+    void keepsOnlyMostRecentSamples() {
+        LatencySamples samples = new LatencySamples(4);
+        for (long value : new long[]{1000, 900, 1, 2, 3, 4}) {
+            samples.add(value);
+        }
+
+        Map<String, Object> snapshot = samples.snapshot();
+
+        assertEquals(4, samples.size());
+        assertEquals(4, snapshot.get("count"));
+        assertEquals(4L, snapshot.get("max"));
+        assertEquals(3L, snapshot.get("p50"));
+    }
+}
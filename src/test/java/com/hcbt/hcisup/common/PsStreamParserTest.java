@@ -0,0 +1,338 @@
+package com.hcbt.hcisup.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PS 解析器：任意切分输入的一致性、随机数据下的健壮性与边界情况
+ */
+class PsStreamParserTest {
+
+    /**
+     * 解析出的一帧
+     */
+    private static final class Frame {
+        final byte[] data;
+        final long pts;
+        final long dts;
+
+        Frame(byte[] data, long pts, long dts) {
+            this.data = data;
+            this.pts = pts;
+            this.dts = dts;
+        }
+    }
+
+    /**
+     * 记录解析结果
+     */
+    private static final class Recorder implements PsStreamParser.Listener {
+        final List<Frame> frames = new ArrayList<>();
+        final List<Integer> streamTypes = new ArrayList<>();
+
+        @Override
+        public void onVideoFrame(byte[] data, int offset, int length, long pts, long dts) {
+            frames.add(new Frame(Arrays.copyOfRange(data, offset, offset + length), pts, dts));
+        }
+
+        @Override
+        public void onVideoStreamType(int streamType) {
+            streamTypes.add(streamType);
+        }
+    }
+
+    /**
+     * 测试码流与期望的帧
+     */
+    private static final class Stream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Frame> expected = new ArrayList<>();
+    }
+
+    @Test
+    void parsesFramesWithTimestampsAndStreamType() {
+        Stream stream = new Stream();
+        packHeader(stream.bytes, 0);
+        psm(stream.bytes, PsStreamParser.STREAM_TYPE_H265);
+        byte[] first = {0, 0, 0, 1, 0x40, 0x01, 0x0C};
+        byte[] second = {0, 0, 0, 1, 0x02, 0x01, (byte) 0xD0};
+        videoPes(stream.bytes, 3600, 0, first);
+        packHeader(stream.bytes, 3);
+        videoPes(stream.bytes, 7200, 3600, second);
+
+        Recorder recorder = parse(stream.bytes.toByteArray(), null);
+
+        assertEquals(List.of(PsStreamParser.STREAM_TYPE_H265), recorder.streamTypes);
+        assertEquals(2, recorder.frames.size());
+        assertArrayEquals(first, recorder.frames.get(0).data);
+        assertEquals(3600, recorder.frames.get(0).pts);
+        assertEquals(0, recorder.frames.get(0).dts);
+        assertArrayEquals(second, recorder.frames.get(1).data);
+        assertEquals(7200, recorder.frames.get(1).pts);
+        assertEquals(3600, recorder.frames.get(1).dts);
+    }
+
+    @Test
+    void anySplitYieldsTheSameFrames() {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            Stream stream = randomStream(random, 20);
+            byte[] data = stream.bytes.toByteArray();
+            Recorder recorder = parse(data, random);
+            assertFrames(stream.expected, recorder.frames, "seed " + seed);
+        }
+    }
+
+    @Test
+    void resynchronizesAfterRandomGarbage() {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            ByteArrayOutputStream input = new ByteArrayOutputStream();
+            byte[] garbage = new byte[random.nextInt(4096)];
+            random.nextBytes(garbage);
+            input.writeBytes(garbage);
+            // 垃圾数据最多让解析器跳过一个最大长度的包（约 64KB），之后的帧必须完整解析出来
+            Stream stream = randomStream(random, 40);
+            input.writeBytes(stream.bytes.toByteArray());
+
+            Recorder recorder = parse(input.toByteArray(), random);
+
+            int tail = 5;
+            assertTrue(recorder.frames.size() >= tail, "seed " + seed);
+            assertFrames(stream.expected.subList(stream.expected.size() - tail, stream.expected.size()),
+                    recorder.frames.subList(recorder.frames.size() - tail, recorder.frames.size()), "seed " + seed);
+        }
+    }
+
+    @Test
+    void survivesMutatedInput() {
+        for (int seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            byte[] data = randomStream(random, 10).bytes.toByteArray();
+            int flips = 1 + random.nextInt(20);
+            for (int i = 0; i < flips; i++) {
+                data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+            }
+            Recorder recorder = parse(data, random);
+            for (Frame frame : recorder.frames) {
+                assertTrue(frame.data.length <= data.length, "seed " + seed);
+            }
+        }
+    }
+
+    @Test
+    void startCodeRightAfterNonSystemStartCodeIsFound() {
+        Stream stream = new Stream();
+        byte[] payload = {0, 0, 0, 1, 0x65, 0x11, 0x22};
+        // 00 00 01 00 之后紧跟 00 01 BA：第四个字节同时是下一个起始码的第一个字节
+        stream.bytes.writeBytes(new byte[]{0, 0, 1, 0});
+        stream.bytes.writeBytes(new byte[]{0});
+        byte[] pack = packHeaderBytes(0);
+        stream.bytes.write(pack, 2, pack.length - 2);
+        videoPes(stream.bytes, 3600, -1, payload);
+
+        Recorder recorder = new Recorder();
+        PsStreamParser parser = new PsStreamParser(recorder);
+        byte[] data = stream.bytes.toByteArray();
+        parser.feed(data, 0, data.length);
+        parser.flush();
+
+        assertEquals(1, parser.getPackCount());
+        assertEquals(1, recorder.frames.size());
+        assertArrayEquals(payload, recorder.frames.get(0).data);
+    }
+
+    @Test
+    void zeroLengthAudioPesDoesNotCorruptBufferedFrame() {
+        Stream stream = new Stream();
+        byte[] first = {0, 0, 0, 1, 0x65, 0x01, 0x02, 0x03};
+        byte[] second = {0, 0, 0, 1, 0x41, 0x04, 0x05};
+        packHeader(stream.bytes, 0);
+        videoPes(stream.bytes, 3600, -1, first);
+        // 长度为 0 的音频 PES，负载延续到下一个包头
+        stream.bytes.writeBytes(new byte[]{0, 0, 1, (byte) 0xC0, 0, 0, 0x7F, 0x7E, 0x7D, 0x10});
+        packHeader(stream.bytes, 0);
+        // 长度为 0 且没有负载的音频 PES
+        stream.bytes.writeBytes(new byte[]{0, 0, 1, (byte) 0xC0, 0, 0});
+        videoPes(stream.bytes, 7200, -1, second);
+
+        Recorder recorder = new Recorder();
+        PsStreamParser parser = new PsStreamParser(recorder);
+        byte[] data = stream.bytes.toByteArray();
+        parser.feed(data, 0, data.length);
+        parser.flush();
+
+        assertEquals(0, parser.getResyncCount());
+        assertEquals(0, parser.getDroppedFrames());
+        assertEquals(2, parser.getAudioPesCount());
+        assertEquals(2, recorder.frames.size());
+        assertArrayEquals(first, recorder.frames.get(0).data);
+        assertArrayEquals(second, recorder.frames.get(1).data);
+    }
+
+    @Test
+    void unboundedVideoPesEndsAtNextPackHeader() {
+        Stream stream = new Stream();
+        byte[] first = {0, 0, 0, 1, 0x65, 0x31, 0x32, 0x33};
+        byte[] second = {0, 0, 0, 1, 0x41, 0x34};
+        packHeader(stream.bytes, 0);
+        videoPesHeader(stream.bytes, 3600, -1, 0);
+        stream.bytes.writeBytes(first);
+        packHeader(stream.bytes, 2);
+        videoPes(stream.bytes, 7200, -1, second);
+
+        Recorder recorder = parse(stream.bytes.toByteArray(), new Random(7));
+
+        assertEquals(2, recorder.frames.size());
+        assertArrayEquals(first, recorder.frames.get(0).data);
+        assertArrayEquals(second, recorder.frames.get(1).data);
+    }
+
+    /**
+     * 按随机大小切分输入（random 为 null 时整块输入），结束后 flush
+     */
+    private static Recorder parse(byte[] data, Random random) {
+        Recorder recorder = new Recorder();
+        PsStreamParser parser = new PsStreamParser(recorder);
+        if (random == null) {
+            parser.feed(data, 0, data.length);
+        } else {
+            for (int pos = 0; pos < data.length; ) {
+                int n = Math.min(1 + random.nextInt(random.nextBoolean() ? 8 : 4096), data.length - pos);
+                parser.feed(data, pos, n);
+                pos += n;
+            }
+        }
+        parser.flush();
+        return recorder;
+    }
+
+    private static void assertFrames(List<Frame> expected, List<Frame> actual, String message) {
+        assertEquals(expected.size(), actual.size(), message);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i).data, actual.get(i).data, message + " frame " + i);
+            assertEquals(expected.get(i).pts, actual.get(i).pts, message + " frame " + i);
+            assertEquals(expected.get(i).dts, actual.get(i).dts, message + " frame " + i);
+        }
+    }
+
+    /**
+     * 随机码流：每帧一个 pack header，视频分成 1~3 个 PES，穿插音频与填充流
+     * <p>
+     * 负载字节不含 0（除开头的 NAL 起始码），跳入负载中途搜索起始码时不会误判。
+     */
+    private static Stream randomStream(Random random, int frames) {
+        Stream stream = new Stream();
+        long pts = random.nextInt(1 << 20);
+        for (int f = 0; f < frames; f++) {
+            packHeader(stream.bytes, random.nextInt(8));
+            if (f == 0) {
+                psm(stream.bytes, PsStreamParser.STREAM_TYPE_H264);
+            }
+            long dts = random.nextBoolean() ? pts - 3600 : -1;
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            int pieces = 1 + random.nextInt(3);
+            for (int p = 0; p < pieces; p++) {
+                byte[] payload = randomPayload(random, p == 0, 1 + random.nextInt(p == 0 ? 20000 : 3000));
+                videoPes(stream.bytes, pts, dts, payload);
+                frame.writeBytes(payload);
+                if (random.nextInt(4) == 0) {
+                    audioPes(stream.bytes, random);
+                }
+            }
+            if (random.nextInt(5) == 0) {
+                // 填充流
+                stream.bytes.writeBytes(new byte[]{0, 0, 1, (byte) 0xBE, 0, 4, -1, -1, -1, -1});
+            }
+            stream.expected.add(new Frame(frame.toByteArray(), pts, dts < 0 ? pts : dts));
+            pts += 3600;
+        }
+        return stream;
+    }
+
+    private static byte[] randomPayload(Random random, boolean startCode, int length) {
+        byte[] payload = new byte[length + (startCode ? 4 : 0)];
+        int pos = 0;
+        if (startCode) {
+            // 起始码加 NAL 头（首位为 0）
+            payload[3] = 1;
+            payload[4] = (byte) (1 + random.nextInt(0x7F));
+            pos = 5;
+        }
+        for (; pos < payload.length; pos++) {
+            payload[pos] = (byte) (1 + random.nextInt(255));
+        }
+        return payload;
+    }
+
+    private static void audioPes(ByteArrayOutputStream out, Random random) {
+        byte[] payload = randomPayload(random, false, 1 + random.nextInt(400));
+        int length = 4 + payload.length;
+        // 不带时间戳，一个填充字节
+        out.writeBytes(new byte[]{0, 0, 1, (byte) 0xC0, (byte) (length >> 8), (byte) length, (byte) 0x80, 0, 1, -1});
+        out.writeBytes(payload);
+    }
+
+    private static byte[] packHeaderBytes(int stuffing) {
+        byte[] pack = new byte[14 + stuffing];
+        pack[2] = 1;
+        pack[3] = (byte) 0xBA;
+        // MPEG-2：'01' + SCR 与 marker 位
+        pack[4] = 0x44;
+        pack[6] = 0x04;
+        pack[8] = 0x04;
+        pack[9] = 0x01;
+        pack[10] = 0x01;
+        pack[11] = (byte) 0x89;
+        pack[12] = (byte) 0xC3;
+        pack[13] = (byte) (0xF8 | stuffing);
+        Arrays.fill(pack, 14, pack.length, (byte) 0xFF);
+        return pack;
+    }
+
+    private static void packHeader(ByteArrayOutputStream out, int stuffing) {
+        out.writeBytes(packHeaderBytes(stuffing));
+    }
+
+    private static void psm(ByteArrayOutputStream out, int streamType) {
+        out.writeBytes(new byte[]{0, 0, 1, (byte) 0xBC, 0, 14, (byte) 0xE0, (byte) 0xFF, 0, 0, 0, 4,
+                (byte) streamType, (byte) 0xE0, 0, 0, 0, 0, 0, 0});
+    }
+
+    private static void videoPes(ByteArrayOutputStream out, long pts, long dts, byte[] payload) {
+        videoPesHeader(out, pts, dts, payload.length);
+        out.writeBytes(payload);
+    }
+
+    /**
+     * @param payloadLength 负载长度，0 表示长度未知（PES_packet_length 为 0）
+     */
+    private static void videoPesHeader(ByteArrayOutputStream out, long pts, long dts, int payloadLength) {
+        int headerDataLength = dts >= 0 ? 10 : 5;
+        int length = payloadLength == 0 ? 0 : 3 + headerDataLength + payloadLength;
+        out.writeBytes(new byte[]{0, 0, 1, (byte) 0xE0, (byte) (length >> 8), (byte) length, (byte) 0x80,
+                (byte) (dts >= 0 ? 0xC0 : 0x80), (byte) headerDataLength});
+        out.writeBytes(timestamp(dts >= 0 ? 3 : 2, pts));
+        if (dts >= 0) {
+            out.writeBytes(timestamp(1, dts));
+        }
+    }
+
+    private static byte[] timestamp(int prefix, long ts) {
+        return new byte[]{
+                (byte) ((prefix << 4) | ((ts >> 29) & 0x0E) | 1),
+                (byte) (ts >> 22),
+                (byte) (((ts >> 14) & 0xFE) | 1),
+                (byte) (ts >> 7),
+                (byte) (((ts << 1) & 0xFE) | 1)};
+    }
+}
@@ -0,0 +1,130 @@
+package com.hcbt.hcisup.common;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 进程内 FLV 封装 + RTMP 推流，推到本地 RTMP 服务端替身
+ */
+class RtmpFrameSinkTest {
+
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1E, (byte) 0x95, (byte) 0xA8, 0x28};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+    private static final byte[] P = {0x41, (byte) 0x9A, 0x21, 0x6C};
+    // nal_ref_idc 为 0 的非参考帧（B 帧）
+    private static final byte[] B = {0x01, (byte) 0x9E, 0x42, 0x79};
+
+    private RtmpServerStandIn server;
+    private RtmpFrameSink sink;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new RtmpServerStandIn();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (sink != null) {
+            sink.close();
+        }
+        server.close();
+    }
+
+    @Test
+    void publishesSequenceHeaderBeforeFirstKeyFrame() throws Exception {
+        sink = new RtmpFrameSink(server.url("isup_101"), false, 2000);
+        sink.open();
+        assertEquals("isup_101", server.getPublishedName());
+
+        byte[] key = annexB(SPS, PPS, IDR);
+        sink.writeFrame(key, 0, key.length, 90000, 90000, true);
+
+        RtmpServerStandIn.Message header = next();
+        assertEquals(FlvMuxer.TAG_VIDEO, header.typeId);
+        assertEquals(0x17, header.body[0] & 0xFF);
+        assertEquals(0, header.body[1]);
+
+        RtmpServerStandIn.Message frame = next();
+        assertEquals(0x17, frame.body[0] & 0xFF);
+        assertEquals(1, frame.body[1]);
+        assertEquals(0, frame.timestamp);
+        // 参数集已在序列头中，帧数据只保留 IDR
+        assertArrayEquals(IDR, RtmpServerStandIn.firstNal(frame.body));
+    }
+
+    @Test
+    void bFramesCarryCompositionTime() throws Exception {
+        sink = new RtmpFrameSink(server.url("isup_201"), false, 2000);
+        sink.open();
+        // 25fps，解码顺序 I P B B，显示顺序 I B B P
+        long[][] frames = {{7200, 0}, {18000, 3600}, {10800, 7200}, {14400, 10800}};
+        byte[][] nals = {annexB(SPS, PPS, IDR), annexB(P), annexB(B), annexB(B)};
+        for (int i = 0; i < frames.length; i++) {
+            sink.writeFrame(nals[i], 0, nals[i].length, frames[i][0], frames[i][1], i == 0);
+        }
+
+        next();
+        int[] timestamps = new int[frames.length];
+        int[] cts = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            RtmpServerStandIn.Message frame = next();
+            timestamps[i] = frame.timestamp;
+            cts[i] = RtmpServerStandIn.compositionTime(frame.body);
+        }
+        // tag 时间戳按 DTS 单调递增，CTS = PTS - DTS
+        assertArrayEquals(new int[]{0, 40, 80, 120}, timestamps);
+        assertArrayEquals(new int[]{80, 160, 40, 40}, cts);
+    }
+
+    @Test
+    void unknownDtsFallsBackToPts() throws Exception {
+        sink = new RtmpFrameSink(server.url("isup_301"), false, 2000);
+        sink.open();
+        byte[] key = annexB(SPS, PPS, IDR);
+        sink.writeFrame(key, 0, key.length, 3600, -1, true);
+        byte[] p = annexB(P);
+        sink.writeFrame(p, 0, p.length, 7200, -1, false);
+
+        next();
+        RtmpServerStandIn.Message first = next();
+        RtmpServerStandIn.Message second = next();
+        assertEquals(0, first.timestamp);
+        assertEquals(40, second.timestamp);
+        assertEquals(0, RtmpServerStandIn.compositionTime(second.body));
+    }
+
+    @Test
+    void writeBeforeOpenFails() {
+        sink = new RtmpFrameSink(server.url("isup_401"), false, 2000);
+        byte[] key = annexB(SPS, PPS, IDR);
+        assertThrows(IOException.class, () -> sink.writeFrame(key, 0, key.length, 0, 0, true));
+    }
+
+    private RtmpServerStandIn.Message next() throws InterruptedException {
+        RtmpServerStandIn.Message message = server.next(2000);
+        assertNotNull(message, "替身没有收到消息");
+        return message;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+}
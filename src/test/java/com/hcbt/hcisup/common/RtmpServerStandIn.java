@@ -0,0 +1,232 @@
+package com.hcbt.hcisup.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试用的本地 RTMP 服务端替身
+ * <p>
+ * 只接受一个推流连接：完成简单握手，应答 connect / createStream / publish，
+ * 把收到的音视频消息按顺序记录下来供断言。
+ */
+class RtmpServerStandIn implements Closeable {
+
+    /**
+     * 收到的一条音视频消息
+     */
+    static final class Message {
+        final int typeId;
+        final int timestamp;
+        final byte[] body;
+
+        Message(int typeId, int timestamp, byte[] body) {
+            this.typeId = typeId;
+            this.timestamp = timestamp;
+            this.body = body;
+        }
+    }
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int OUT_CHUNK_SIZE = 128;
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+    private volatile Socket socket;
+    private volatile String publishedName;
+
+    // 接收方向每个块流的状态
+    private final Map<Integer, int[]> headers = new HashMap<>();
+    private final Map<Integer, ByteArrayOutputStream> partial = new HashMap<>();
+    private int inChunkSize = 128;
+
+    RtmpServerStandIn() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::serve, "RTMP-StandIn");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url(String streamName) {
+        return "rtmp://127.0.0.1:" + server.getLocalPort() + "/live/" + streamName;
+    }
+
+    String getPublishedName() {
+        return publishedName;
+    }
+
+    /**
+     * 取下一条音视频消息，超时返回 null
+     */
+    Message next(long timeoutMs) throws InterruptedException {
+        return messages.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void serve() {
+        try (Socket s = server.accept()) {
+            socket = s;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            // C0+C1 -> S0+S1+S2（S2 回显 C1）-> C2
+            byte[] c1 = new byte[1 + HANDSHAKE_SIZE];
+            in.readFully(c1);
+            byte[] reply = new byte[1 + 2 * HANDSHAKE_SIZE];
+            reply[0] = 3;
+            System.arraycopy(c1, 1, reply, 1 + HANDSHAKE_SIZE, HANDSHAKE_SIZE);
+            out.write(reply);
+            out.flush();
+            in.readFully(new byte[HANDSHAKE_SIZE]);
+            while (!s.isClosed()) {
+                readChunk(in, out);
+            }
+        } catch (IOException ignored) {
+            // 客户端断开或替身关闭
+        }
+    }
+
+    private void readChunk(DataInputStream in, OutputStream out) throws IOException {
+        int b = in.readUnsignedByte();
+        int fmt = b >>> 6;
+        int csid = b & 0x3F;
+        // 头部：timestamp、length、typeId、streamId
+        int[] header = headers.computeIfAbsent(csid, k -> new int[4]);
+        if (fmt <= 2) {
+            int ts = readUnsigned(in, 3);
+            if (fmt <= 1) {
+                header[1] = readUnsigned(in, 3);
+                header[2] = in.readUnsignedByte();
+                if (fmt == 0) {
+                    header[3] = Integer.reverseBytes(in.readInt());
+                }
+            }
+            if (ts == 0xFFFFFF) {
+                ts = in.readInt();
+            }
+            header[0] = fmt == 0 ? ts : header[0] + ts;
+        } else if (header[0] >= 0xFFFFFF) {
+            in.readInt();
+        }
+        ByteArrayOutputStream buf = partial.computeIfAbsent(csid, k -> new ByteArrayOutputStream());
+        int n = Math.min(inChunkSize, header[1] - buf.size());
+        byte[] data = new byte[n];
+        in.readFully(data);
+        buf.write(data);
+        if (buf.size() < header[1]) {
+            return;
+        }
+        byte[] body = buf.toByteArray();
+        buf.reset();
+        handleMessage(header[2], header[0], body, out);
+    }
+
+    private void handleMessage(int typeId, int timestamp, byte[] body, OutputStream out) throws IOException {
+        switch (typeId) {
+            case 1:
+                inChunkSize = ((body[0] & 0x7F) << 24) | ((body[1] & 0xFF) << 16) | ((body[2] & 0xFF) << 8) | (body[3] & 0xFF);
+                break;
+            case 8:
+            case 9:
+            case 18:
+                messages.offer(new Message(typeId, timestamp, body));
+                break;
+            case 20: {
+                List<Object> command = Amf0.decodeAll(body, 0, body.length);
+                String name = (String) command.get(0);
+                double txn = ((Number) command.get(1)).doubleValue();
+                if ("connect".equals(name)) {
+                    sendCommand(out, 0, "_result", txn, status("NetConnection.Connect.Success"));
+                } else if ("createStream".equals(name)) {
+                    sendCommand(out, 0, "_result", txn, null, 1.0);
+                } else if ("publish".equals(name)) {
+                    publishedName = (String) command.get(3);
+                    sendCommand(out, 1, "onStatus", 0, null, status("NetStream.Publish.Start"));
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private static Map<String, Object> status(String code) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("level", "status");
+        info.put("code", code);
+        return info;
+    }
+
+    private static void sendCommand(OutputStream out, int streamId, String name, double txn, Object... args)
+            throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Amf0.writeString(buf, name);
+        Amf0.writeNumber(buf, txn);
+        for (Object arg : args) {
+            if (arg instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> map = (Map<String, Object>) arg;
+                Amf0.writeObject(buf, map);
+            } else {
+                Amf0.writeValue(buf, arg);
+            }
+        }
+        byte[] body = buf.toByteArray();
+        byte[] header = {3, 0, 0, 0, (byte) (body.length >>> 16), (byte) (body.length >>> 8), (byte) body.length, 20,
+                (byte) streamId, 0, 0, 0};
+        out.write(header);
+        for (int sent = 0; sent < body.length; sent += OUT_CHUNK_SIZE) {
+            if (sent > 0) {
+                out.write(0xC3);
+            }
+            out.write(body, sent, Math.min(OUT_CHUNK_SIZE, body.length - sent));
+        }
+        out.flush();
+    }
+
+    private static int readUnsigned(DataInputStream in, int bytes) throws IOException {
+        int v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v = (v << 8) | in.readUnsignedByte();
+        }
+        return v;
+    }
+
+    /**
+     * 视频 tag 负载中的合成时间（有符号 24 位，毫秒）
+     */
+    static int compositionTime(byte[] body) {
+        int cts = ((body[2] & 0xFF) << 16) | ((body[3] & 0xFF) << 8) | (body[4] & 0xFF);
+        return (cts << 8) >> 8;
+    }
+
+    /**
+     * 视频 tag 负载中第一个 NAL 单元（去掉 4 字节长度）
+     */
+    static byte[] firstNal(byte[] body) {
+        int length = ((body[5] & 0xFF) << 24) | ((body[6] & 0xFF) << 16) | ((body[7] & 0xFF) << 8) | (body[8] & 0xFF);
+        return Arrays.copyOfRange(body, 9, 9 + length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Socket s = socket;
+        if (s != null) {
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.hcbt.hcisup.common;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_dnn;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.RectVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YOLO 输出后处理：原来逐行新建 Mat + minMaxLoc、列表收集候选再调用 NMSBoxes 的写法，
+ * 与一次复制到 float 数组后由 {@link YoloDecoder} 完成的写法，在固定张量上对比
+ * <p>
+ * v8 为 [1, 84, 8400]（YOLOv8 640 输入），v5 为 [1, 25200, 85]（YOLOv5 640 输入）。
+ * 张量按固定种子生成，约 1% 的行分数超过阈值，与实际画面中候选稀疏的情况相近。
+ * <p>
+ * 需要 OpenCV 本地库，运行：{@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.hcbt.hcisup.common.YoloDecoderBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YoloDecoderBenchmark {
+
+    private static final int CLASSES = 80;
+    private static final float SCORE_THRESHOLD = 0.25f;
+    private static final float CONFIDENCE_THRESHOLD = 0.25f;
+    private static final float NMS_THRESHOLD = 0.45f;
+    private static final int PAD_X = 0;
+    private static final int PAD_Y = 140;
+    private static final float SCALE = 0.5f;
+
+    @Param({"v8", "v5"})
+    public String layout;
+
+    private boolean yolov8;
+    private int rows;
+    private int dimensions;
+    // 推理输出（与 net.forward 得到的三维 Mat 相同）
+    private Mat output;
+    // 原写法中 YOLOv8 转置的目标（原实现取自 MatPool，这里同样复用）
+    private Mat transposed;
+    private final YoloDecoder decoder = new YoloDecoder();
+
+    @Setup
+    public void setUp() {
+        yolov8 = "v8".equals(layout);
+        rows = yolov8 ? 8400 : 25200;
+        dimensions = yolov8 ? 4 + CLASSES : 5 + CLASSES;
+        float[] values = yolov8 ? randomV8(new Random(20250601L)) : randomV5(new Random(20250602L));
+        int[] sizes = yolov8 ? new int[]{1, dimensions, rows} : new int[]{1, rows, dimensions};
+        output = new Mat(sizes.length, sizes, opencv_core.CV_32F);
+        FloatBuffer buffer = output.createBuffer();
+        buffer.put(values);
+        transposed = new Mat(rows, dimensions, opencv_core.CV_32F);
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.close();
+        transposed.close();
+    }
+
+    @Benchmark
+    public int legacyPerRowMat() {
+        // 原实现按二维读取：YOLOv8 转置为 [rows][84]，YOLOv5 视为 [rows][85]
+        Mat reshaped = output.reshape(1, yolov8 ? dimensions : rows);
+        if (yolov8) {
+            opencv_core.transpose(reshaped, transposed);
+        }
+        FloatIndexer data = (yolov8 ? transposed : reshaped).createIndexer();
+        List<Integer> classIds = new ArrayList<>();
+        List<Float> confidences = new ArrayList<>();
+        List<Rect> boxes = new ArrayList<>();
+        int offset = yolov8 ? 4 : 5;
+        for (int i = 0; i < rows; i++) {
+            float confidence = yolov8 ? 0 : data.get(i, 4);
+            if (!yolov8 && confidence < CONFIDENCE_THRESHOLD) {
+                continue;
+            }
+            // 逐行的 Mat、索引器、Point 与 DoublePointer（原实现依赖 GC 回收，这里及时释放，开销只会更低）
+            try (Mat scores = new Mat(1, CLASSES, opencv_core.CV_32FC1);
+                 FloatIndexer scoresIdx = scores.createIndexer();
+                 Point maxLoc = new Point();
+                 DoublePointer maxVal = new DoublePointer(1)) {
+                for (int j = 0; j < CLASSES; j++) {
+                    scoresIdx.put(0, j, data.get(i, j + offset));
+                }
+                opencv_core.minMaxLoc(scores, null, maxVal, null, maxLoc, null);
+                double maxScore = maxVal.get();
+                if (maxScore > SCORE_THRESHOLD) {
+                    confidences.add(yolov8 ? (float) maxScore : confidence);
+                    classIds.add(maxLoc.x());
+                    float x = data.get(i, 0);
+                    float y = data.get(i, 1);
+                    float w = data.get(i, 2);
+                    float h = data.get(i, 3);
+                    boxes.add(new Rect((int) ((x - 0.5 * w - PAD_X) / SCALE), (int) ((y - 0.5 * h - PAD_Y) / SCALE),
+                            (int) (w / SCALE), (int) (h / SCALE)));
+                }
+            }
+        }
+        data.close();
+        reshaped.close();
+
+        int kept;
+        try (RectVector bboxesVec = new RectVector();
+             FloatPointer scoresPtr = new FloatPointer(Math.max(confidences.size(), 1));
+             IntPointer indicesPtr = new IntPointer()) {
+            for (int i = 0; i < boxes.size(); i++) {
+                bboxesVec.push_back(boxes.get(i));
+                scoresPtr.put(i, confidences.get(i));
+            }
+            opencv_dnn.NMSBoxes(bboxesVec, scoresPtr, SCORE_THRESHOLD, NMS_THRESHOLD, indicesPtr);
+            int[] indices = new int[(int) indicesPtr.limit()];
+            indicesPtr.get(indices);
+            kept = indices.length;
+        }
+        for (Rect box : boxes) {
+            box.close();
+        }
+        return kept;
+    }
+
+    @Benchmark
+    public int yoloDecoder() {
+        int total = rows * dimensions;
+        FloatBuffer buffer = output.createBuffer();
+        buffer.get(decoder.values(total), 0, total);
+        if (yolov8) {
+            decoder.decodeV8(rows, CLASSES, SCORE_THRESHOLD, PAD_X, PAD_Y, SCALE);
+        } else {
+            decoder.decodeV5(rows, dimensions, CLASSES, CONFIDENCE_THRESHOLD, SCORE_THRESHOLD, PAD_X, PAD_Y, SCALE);
+        }
+        return decoder.nms(SCORE_THRESHOLD, NMS_THRESHOLD);
+    }
+
+    /**
+     * [84][8400]，按列存放：x、y、w、h、80 个类别分数
+     */
+    private static float[] randomV8(Random random) {
+        int rows = 8400;
+        float[] values = new float[(4 + CLASSES) * rows];
+        for (int i = 0; i < rows; i++) {
+            fillBox(random, values, i, rows);
+            for (int j = 0; j < CLASSES; j++) {
+                values[(4 + j) * rows + i] = random.nextFloat() * 0.1f;
+            }
+            if (random.nextInt(100) == 0) {
+                values[(4 + random.nextInt(CLASSES)) * rows + i] = 0.3f + random.nextFloat() * 0.7f;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * [25200][85]，按行存放：x、y、w、h、目标置信度、80 个类别分数
+     */
+    private static float[] randomV5(Random random) {
+        int rows = 25200;
+        int dims = 5 + CLASSES;
+        float[] values = new float[rows * dims];
+        for (int i = 0; i < rows; i++) {
+            fillBox(random, values, i * dims, 1);
+            boolean object = random.nextInt(100) == 0;
+            values[i * dims + 4] = object ? 0.3f + random.nextFloat() * 0.7f : random.nextFloat() * 0.1f;
+            for (int j = 0; j < CLASSES; j++) {
+                values[i * dims + 5 + j] = random.nextFloat() * 0.1f;
+            }
+            if (object) {
+                values[i * dims + 5 + random.nextInt(CLASSES)] = 0.3f + random.nextFloat() * 0.7f;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 写入 x、y、w、h，stride 为相邻两个坐标之间的距离（按列存放时为行数）
+     */
+    private static void fillBox(Random random, float[] values, int start, int stride) {
+        values[start] = random.nextInt(640);
+        values[start + stride] = random.nextInt(640);
+        values[start + 2 * stride] = 10 + random.nextInt(200);
+        values[start + 3 * stride] = 10 + random.nextInt(200);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(YoloDecoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
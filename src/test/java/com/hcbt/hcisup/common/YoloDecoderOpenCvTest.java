@@ -0,0 +1,128 @@
+package com.hcbt.hcisup.common;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_dnn;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.RectVector;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * YOLO 输出后处理与原来的 OpenCV 实现（minMaxLoc 取最大类别、NMSBoxes 抑制）在随机张量上逐条对比
+ * <p>
+ * 需要 OpenCV 本地库，当前平台加载不了时跳过。
+ */
+class YoloDecoderOpenCvTest {
+
+    private static boolean opencvAvailable;
+
+    @BeforeAll
+    static void loadOpenCv() {
+        try {
+            Loader.load(opencv_dnn.class);
+            opencvAvailable = true;
+        } catch (Throwable e) {
+            opencvAvailable = false;
+        }
+    }
+
+    @Test
+    void bestClassMatchesMinMaxLoc() {
+        assumeTrue(opencvAvailable, "OpenCV 本地库不可用");
+        Random random = new Random(20250528L);
+        YoloDecoder decoder = new YoloDecoder();
+        for (int round = 0; round < 20; round++) {
+            int rows = 100 + random.nextInt(300);
+            int classes = 1 + random.nextInt(8);
+            int dimensions = 5 + classes;
+            float[][] tensor = randomV5(random, rows, classes);
+            fill(decoder, tensor, dimensions);
+
+            // 阈值放到最低，每一行都成为候选，候选序号即行号
+            assertEquals(rows, decoder.decodeV5(rows, dimensions, classes, 0f, -1f, 0, 0, 1f));
+            for (int i = 0; i < rows; i++) {
+                try (Mat scores = new Mat(1, classes, opencv_core.CV_32FC1);
+                     FloatIndexer indexer = scores.createIndexer();
+                     Point maxLoc = new Point();
+                     DoublePointer maxVal = new DoublePointer(1)) {
+                    for (int j = 0; j < classes; j++) {
+                        indexer.put(0, j, tensor[i][5 + j]);
+                    }
+                    opencv_core.minMaxLoc(scores, null, maxVal, null, maxLoc, null);
+                    assertEquals(maxLoc.x(), decoder.classId(i), "第 " + round + " 轮第 " + i + " 行");
+                }
+            }
+        }
+    }
+
+    @Test
+    void nmsMatchesNmsBoxes() {
+        assumeTrue(opencvAvailable, "OpenCV 本地库不可用");
+        Random random = new Random(20250529L);
+        YoloDecoder decoder = new YoloDecoder();
+        for (int round = 0; round < 50; round++) {
+            int rows = 50 + random.nextInt(400);
+            int classes = 1 + random.nextInt(3);
+            int dimensions = 5 + classes;
+            fill(decoder, randomV5(random, rows, classes), dimensions);
+            int count = decoder.decodeV5(rows, dimensions, classes, 0.25f, 0.25f, 5, 11, 0.8f);
+
+            int[] expected;
+            try (RectVector boxes = new RectVector();
+                 FloatPointer scores = new FloatPointer(Math.max(count, 1));
+                 IntPointer indices = new IntPointer()) {
+                for (int i = 0; i < count; i++) {
+                    boxes.push_back(new Rect(decoder.left(i), decoder.top(i), decoder.width(i), decoder.height(i)));
+                    scores.put(i, decoder.confidence(i));
+                }
+                opencv_dnn.NMSBoxes(boxes, scores, 0.3f, 0.45f, indices);
+                expected = new int[(int) indices.limit()];
+                indices.get(expected);
+            }
+
+            int kept = decoder.nms(0.3f, 0.45f);
+            int[] actual = new int[kept];
+            for (int k = 0; k < kept; k++) {
+                actual[k] = decoder.kept(k);
+            }
+            assertArrayEquals(expected, actual, "第 " + round + " 轮");
+        }
+    }
+
+    /**
+     * [rows][5 + classes] 的 YOLOv5 输出：框集中在小范围内制造大量重叠，分数取 0.05 的整数倍制造相同分数
+     */
+    private static float[][] randomV5(Random random, int rows, int classes) {
+        float[][] tensor = new float[rows][5 + classes];
+        for (float[] row : tensor) {
+            row[0] = 200 + random.nextInt(80);
+            row[1] = 200 + random.nextInt(80);
+            row[2] = 10 + random.nextInt(100);
+            row[3] = 10 + random.nextInt(100);
+            for (int j = 4; j < row.length; j++) {
+                row[j] = random.nextInt(21) * 0.05f;
+            }
+        }
+        return tensor;
+    }
+
+    private static void fill(YoloDecoder decoder, float[][] tensor, int dimensions) {
+        float[] values = decoder.values(tensor.length * dimensions);
+        for (int r = 0; r < tensor.length; r++) {
+            System.arraycopy(tensor[r], 0, values, r * dimensions, dimensions);
+        }
+    }
+}
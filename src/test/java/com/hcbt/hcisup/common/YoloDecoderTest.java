@@ -0,0 +1,240 @@
+package com.hcbt.hcisup.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * YOLO 输出后处理：固定张量上的解码结果与 NMS 规则
+ * <p>
+ * 随机张量部分与按 OpenCV {@code NMSBoxes} 规则逐条实现的参考版本（列表 + 稳定排序）对比，
+ * 与 OpenCV 本身的对比见 {@link YoloDecoderOpenCvTest}。
+ */
+class YoloDecoderTest {
+
+    @Test
+    void decodeV8PicksFirstBestClassAndUndoesLetterbox() {
+        YoloDecoder decoder = new YoloDecoder();
+        // [4 + 3 类][3 行]，按列存放：x、y、w、h、各类别分数
+        float[][] columns = {
+                {320, 100, 200},
+                {320, 100, 200},
+                {100, 10, 40},
+                {50, 10, 40},
+                {0.1f, 0.1f, 0.1f},
+                {0.9f, 0.2f, 0.1f},
+                {0.9f, 0.1f, 0.6f},
+        };
+        fillColumns(decoder, columns);
+
+        // 640 画布上 pad 为 (0, 80)，缩放 0.5
+        int count = decoder.decodeV8(3, 3, 0.25f, 0, 80, 0.5f);
+
+        assertEquals(2, count);
+        // 两个类别分数相同时取第一个（与 minMaxLoc 相同）
+        assertEquals(1, decoder.classId(0));
+        assertEquals(0.9f, decoder.confidence(0), 0f);
+        assertEquals(540, decoder.left(0));
+        assertEquals(430, decoder.top(0));
+        assertEquals(200, decoder.width(0));
+        assertEquals(100, decoder.height(0));
+        // 第二行最大分数 0.2 不超过阈值，被跳过
+        assertEquals(2, decoder.classId(1));
+        assertEquals(0.6f, decoder.confidence(1), 0f);
+    }
+
+    @Test
+    void decodeV5UsesObjectnessAsConfidence() {
+        YoloDecoder decoder = new YoloDecoder();
+        // [4 行][5 + 2 类]
+        float[][] rows = {
+                {100, 100, 20, 20, 0.8f, 0.3f, 0.7f},
+                // 目标置信度低于阈值，类别分数再高也跳过
+                {100, 100, 20, 20, 0.2f, 0.9f, 0.9f},
+                // 类别分数不超过阈值
+                {100, 100, 20, 20, 0.9f, 0.1f, 0.25f},
+                // 目标置信度等于阈值时保留
+                {50, 60, 10, 20, 0.25f, 0.5f, 0.1f},
+        };
+        fillRows(decoder, rows);
+
+        int count = decoder.decodeV5(4, 7, 2, 0.25f, 0.25f, 10, 20, 1f);
+
+        assertEquals(2, count);
+        assertEquals(1, decoder.classId(0));
+        assertEquals(0.8f, decoder.confidence(0), 0f);
+        assertEquals(80, decoder.left(0));
+        assertEquals(70, decoder.top(0));
+        assertEquals(0, decoder.classId(1));
+        assertEquals(0.25f, decoder.confidence(1), 0f);
+        assertEquals(35, decoder.left(1));
+        assertEquals(30, decoder.top(1));
+        assertEquals(10, decoder.width(1));
+        assertEquals(20, decoder.height(1));
+    }
+
+    @Test
+    void nmsKeepsHigherScoresAndBreaksTiesByIndex() {
+        YoloDecoder decoder = new YoloDecoder();
+        float[][] rows = {
+                // 0 与 1 完全重合，分数相同，保留序号小的
+                v5Row(0, 0, 100, 30, 0.6f),
+                v5Row(0, 0, 100, 30, 0.6f),
+                // 与 0 的 IoU 恰好为 0.5，不大于阈值时保留
+                v5Row(0, 10, 100, 30, 0.5f),
+                // 分数最高，先于其他框处理
+                v5Row(200, 0, 100, 100, 0.9f),
+                // 与 3 的 IoU 约 0.82，被抑制
+                v5Row(205, 5, 100, 100, 0.4f),
+                // 不超过 NMS 的分数阈值
+                v5Row(800, 800, 40, 40, 0.26f),
+        };
+        fillRows(decoder, rows);
+        int count = decoder.decodeV5(rows.length, 6, 1, 0.25f, 0.25f, 0, 0, 1f);
+        assertEquals(rows.length, count);
+
+        int kept = decoder.nms(0.26f, 0.5f);
+
+        assertArrayEquals(new int[]{3, 0, 2}, kept(decoder, kept));
+    }
+
+    @Test
+    void randomTensorsMatchReferenceNms() {
+        Random random = new Random(20250528L);
+        YoloDecoder decoder = new YoloDecoder();
+        for (int round = 0; round < 50; round++) {
+            int rows = 50 + random.nextInt(400);
+            int classes = 1 + random.nextInt(5);
+            float[][] columns = new float[4 + classes][rows];
+            for (int i = 0; i < rows; i++) {
+                // 框集中在小范围内，制造大量重叠
+                columns[0][i] = 100 + random.nextInt(60);
+                columns[1][i] = 100 + random.nextInt(60);
+                columns[2][i] = 10 + random.nextInt(80);
+                columns[3][i] = 10 + random.nextInt(80);
+                for (int j = 0; j < classes; j++) {
+                    // 分数取 0.05 的整数倍，制造大量相同分数
+                    columns[4 + j][i] = random.nextInt(21) * 0.05f;
+                }
+            }
+            fillColumns(decoder, columns);
+
+            int count = decoder.decodeV8(rows, classes, 0.25f, 3, 7, 0.75f);
+            List<int[]> boxes = new ArrayList<>();
+            List<Float> scores = new ArrayList<>();
+            referenceDecodeV8(columns, rows, classes, 0.25f, 3, 7, 0.75f, boxes, scores);
+            assertEquals(boxes.size(), count, "候选数");
+            for (int i = 0; i < count; i++) {
+                int[] box = boxes.get(i);
+                assertArrayEquals(box, new int[]{decoder.left(i), decoder.top(i), decoder.width(i),
+                        decoder.height(i), decoder.classId(i)}, "候选 " + i);
+                assertEquals(scores.get(i), decoder.confidence(i), 0f);
+            }
+
+            int kept = decoder.nms(0.3f, 0.45f);
+            assertArrayEquals(referenceNms(boxes, scores, 0.3f, 0.45f), kept(decoder, kept), "第 " + round + " 轮");
+        }
+    }
+
+    private static float[] v5Row(int left, int top, int width, int height, float confidence) {
+        // 中心点坐标，类别分数取 1
+        return new float[]{left + width / 2f, top + height / 2f, width, height, confidence, 1f};
+    }
+
+    private static void fillColumns(YoloDecoder decoder, float[][] columns) {
+        int rows = columns[0].length;
+        float[] values = decoder.values(columns.length * rows);
+        for (int c = 0; c < columns.length; c++) {
+            System.arraycopy(columns[c], 0, values, c * rows, rows);
+        }
+    }
+
+    private static void fillRows(YoloDecoder decoder, float[][] rows) {
+        int dimensions = rows[0].length;
+        float[] values = decoder.values(rows.length * dimensions);
+        for (int r = 0; r < rows.length; r++) {
+            System.arraycopy(rows[r], 0, values, r * dimensions, dimensions);
+        }
+    }
+
+    private static int[] kept(YoloDecoder decoder, int count) {
+        int[] kept = new int[count];
+        for (int k = 0; k < count; k++) {
+            kept[k] = decoder.kept(k);
+        }
+        return kept;
+    }
+
+    /**
+     * 逐行求最大类别分数的原始写法，候选为 {left, top, width, height, classId}
+     */
+    private static void referenceDecodeV8(float[][] columns, int rows, int classes, float threshold, int padX,
+                                          int padY, float scale, List<int[]> boxes, List<Float> scores) {
+        for (int i = 0; i < rows; i++) {
+            int best = 0;
+            for (int j = 1; j < classes; j++) {
+                if (columns[4 + j][i] > columns[4 + best][i]) {
+                    best = j;
+                }
+            }
+            float score = columns[4 + best][i];
+            if (score > threshold) {
+                float x = columns[0][i];
+                float y = columns[1][i];
+                float w = columns[2][i];
+                float h = columns[3][i];
+                boxes.add(new int[]{(int) ((x - 0.5 * w - padX) / scale), (int) ((y - 0.5 * h - padY) / scale),
+                        (int) (w / scale), (int) (h / scale), best});
+                scores.add(score);
+            }
+        }
+    }
+
+    /**
+     * OpenCV NMSBoxes（eta = 1、top_k = 0）：分数大于阈值的候选稳定排序后贪心保留
+     */
+    private static int[] referenceNms(List<int[]> boxes, List<Float> scores, float scoreThreshold, float nmsThreshold) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < scores.size(); i++) {
+            if (scores.get(i) > scoreThreshold) {
+                order.add(i);
+            }
+        }
+        // List.sort 为稳定排序，相同分数保持原顺序
+        order.sort((a, b) -> Float.compare(scores.get(b), scores.get(a)));
+        List<Integer> kept = new ArrayList<>();
+        for (int index : order) {
+            boolean keep = true;
+            for (int k : kept) {
+                if (iou(boxes.get(index), boxes.get(k)) > nmsThreshold) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                kept.add(index);
+            }
+        }
+        return kept.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 与 OpenCV rectOverlap 相同：1 - jaccardDistance
+     */
+    private static double iou(int[] a, int[] b) {
+        double areaA = (double) a[2] * a[3];
+        double areaB = (double) b[2] * b[3];
+        if (areaA + areaB <= 0) {
+            return 1;
+        }
+        int w = Math.min(a[0] + a[2], b[0] + b[2]) - Math.max(a[0], b[0]);
+        int h = Math.min(a[1] + a[3], b[1] + b[3]) - Math.max(a[1], b[1]);
+        double intersection = w <= 0 || h <= 0 ? 0 : (double) w * h;
+        return intersection / (areaA + areaB - intersection);
+    }
+}